@@ -1,15 +1,17 @@
 package dezzy.neuronz2.ann.layers;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
+import dezzy.neuronz2.arch.IntraOpExecutor;
+import dezzy.neuronz2.arch.IntraOpLayer;
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
 import dezzy.neuronz2.arch.init.WeightInitFunc;
-import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.layers.BatchNormLayer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
+import dezzy.neuronz2.arch.optimizers.OptimizerState;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Vector;
@@ -17,11 +19,13 @@ import dezzy.neuronz2.math.constructs.shape.MatrixShape;
 import dezzy.neuronz2.math.constructs.shape.VectorShape;
 
 /**
- * A dense (fully connected) layer in a neural network.
+ * A dense (fully connected) layer in a neural network. In the parallel architecture, the rows of the weight matrix
+ * (and the columns, for the derivative with respect to the input) can be split across threads with
+ * {@link #setIntraOpParallelism(IntraOpExecutor, int)}.
  *
  * @author Joe Desmond
  */
-public class DenseLayer implements ParallelLayer<Vector, Vector> {
+public class DenseLayer implements ParallelLayer<Vector, Vector>, IntraOpLayer {
 
 	/**
 	 * 
@@ -39,20 +43,52 @@ public class DenseLayer implements ParallelLayer<Vector, Vector> {
 	private Vector bias;
 	
 	/**
-	 * Accumulated weight deltas, used in backpropagation
+	 * Accumulated weight deltas, used in backpropagation. Created by the first call to {@link #backprop(Vector, boolean)}
+	 * and cleared (not freed) by every update, so that gradients are summed in place
 	 */
-	private Matrix weightDeltas = null;
+	private transient Matrix weightDeltas = null;
 	
 	/**
 	 * Accumulated bias deltas, used in backpropagation
 	 */
-	private Vector biasDeltas = null;
+	private transient Vector biasDeltas = null;
+	
+	/**
+	 * True if {@link #backprop(Vector, boolean)} has added gradients since the last update
+	 */
+	private transient boolean deltasPending = false;
 	
 	/**
 	 * The latest input to this layer
 	 */
 	private Vector latestInput;
 	
+	/**
+	 * Update rule for the weights and biases. If this is null (for example; if this layer was saved
+	 * before optimizers existed), {@link Optimizer#SGD} is used
+	 */
+	private Optimizer optimizer = Optimizer.SGD;
+	
+	/**
+	 * Optimizer state for the weights, created on the first update
+	 */
+	private OptimizerState weightState = null;
+	
+	/**
+	 * Optimizer state for the biases, created on the first update
+	 */
+	private OptimizerState biasState = null;
+	
+	/**
+	 * Threads to split the work of one sample across, or null to use only the calling thread
+	 */
+	private transient IntraOpExecutor intraOp = null;
+	
+	/**
+	 * Number of ranges the work of one sample is split into
+	 */
+	private transient int intraOpDegree = 1;
+	
 	/**
 	 * Constructs a fully connected layer with the given initial weights and biases.
 	 * 
@@ -96,40 +132,94 @@ public class DenseLayer implements ParallelLayer<Vector, Vector> {
 
 	@Override
 	public Vector backprop(final Vector errorOutputDeriv, final boolean isFirstLayer) {
-		final Matrix newWeightDeltas = errorOutputDeriv.outerProduct(latestInput);
-		final Vector newBiasDeltas = errorOutputDeriv;
-		
 		if (weightDeltas == null) {
-			weightDeltas = newWeightDeltas;
-		} else {
-			weightDeltas = weightDeltas.plus(newWeightDeltas);
+			weightDeltas = new Matrix(new double[weights.rows][weights.cols]);
+			biasDeltas = new Vector(new double[bias.dimension]);
 		}
 		
-		if (biasDeltas == null) {
-			biasDeltas = newBiasDeltas;
-		} else {
-			biasDeltas = biasDeltas.plus(newBiasDeltas);
-		}
+		addWeightGradient(weightDeltas, errorOutputDeriv, latestInput);
+		biasDeltas.addInPlace(errorOutputDeriv);
+		deltasPending = true;
 		
 		if (isFirstLayer) {
 			return null;
 		}
 		
-		final Vector output = weights.transpose().multiply(errorOutputDeriv);
-		
-		return output;
+		return inputDerivative(errorOutputDeriv);
 	}
 
+	/**
+	 * Updates the weights and biases with the deltas accumulated since the last update, then clears the deltas and keeps
+	 * their buffers for the next minibatch. Does nothing if no deltas have been accumulated since the last update.
+	 * 
+	 * @param learningRate learning rate
+	 */
 	@Override
 	public void update(final double learningRate) {
-		final Matrix weightGradient = weightDeltas.transform(w -> learningRate * w);
-		final Vector biasGradient = biasDeltas.transform(b -> learningRate * b);
+		if (!deltasPending) {
+			return;
+		}
 		
-		weights = weights.minus(weightGradient);
-		bias = bias.minus(biasGradient);
+		applyGradients(weightDeltas, biasDeltas, learningRate);
 		
-		weightDeltas = null;
-		biasDeltas = null;
+		weightDeltas.clear();
+		biasDeltas.clear();
+		deltasPending = false;
+	}
+	
+	@Override
+	public void setOptimizer(final Optimizer _optimizer) {
+		optimizer = _optimizer;
+		weightState = null;
+		biasState = null;
+	}
+	
+	/**
+	 * Updates the weights and biases in place with the given gradients, using this layer's {@link Optimizer}.
+	 * 
+	 * @param weightGradient gradient of the error with respect to the weights
+	 * @param biasGradient gradient of the error with respect to the biases
+	 * @param learningRate learning rate
+	 */
+	private void applyGradients(final Matrix weightGradient, final Vector biasGradient, final double learningRate) {
+		if (optimizer == null) {
+			optimizer = Optimizer.SGD;
+		}
+		
+		if (weightState == null) {
+			weightState = optimizer.createState(weights.elementCount());
+			biasState = optimizer.createState(bias.elementCount());
+		}
+		
+		optimizer.update(weights, weightGradient, weightState, learningRate);
+		optimizer.update(bias, biasGradient, biasState, learningRate);
+	}
+	
+	/**
+	 * Creates a new dense layer that computes the same function as this layer followed by the given batch normalization
+	 * layer in inference mode. Each output neuron's weights and bias are multiplied by the neuron's
+	 * {@linkplain BatchNormLayer#scales() batch normalization scale}, and the {@linkplain BatchNormLayer#shifts() shift}
+	 * is added to the bias. This layer is not modified.
+	 * 
+	 * @param batchNorm batch normalization layer that follows this layer, with one channel per output neuron
+	 * @return a new dense layer with the batch normalization folded in
+	 */
+	public DenseLayer foldBatchNorm(final BatchNormLayer<Vector> batchNorm) {
+		final double[] scales = batchNorm.scales();
+		final double[] shifts = batchNorm.shifts();
+		
+		final double[][] foldedWeights = new double[weights.rows][weights.cols];
+		final double[] foldedBias = new double[bias.dimension];
+		
+		for (int row = 0; row < weights.rows; row++) {
+			for (int col = 0; col < weights.cols; col++) {
+				foldedWeights[row][col] = weights.get(row, col) * scales[row];
+			}
+			
+			foldedBias[row] = (bias.get(row) * scales[row]) + shifts[row];
+		}
+		
+		return new DenseLayer(new Matrix(foldedWeights), new Vector(foldedBias));
 	}
 	
 	@Override
@@ -137,51 +227,158 @@ public class DenseLayer implements ParallelLayer<Vector, Vector> {
 		return bias.dimension + (weights.rows * weights.cols);
 	}
 	
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		return List.of(weights, bias);
+	}
+	
 	@Override
 	public int sublayers() {
 		return 1;
 	}
 
 	@Override
-	public ParallelForwardPass<Vector> parallelForwardPass(final Vector prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
+	public void setIntraOpParallelism(final IntraOpExecutor executor, final int degree) {
+		intraOp = executor;
+		intraOpDegree = degree;
+	}
+	
+	@Override
+	public int intraOpDegree() {
+		return Math.max(1, intraOpDegree);
+	}
+	
+	/**
+	 * Estimates the floating point operations in one forward pass (a matrix-vector product) and one backward pass (an outer
+	 * product and a transposed matrix-vector product).
+	 * 
+	 * @param input ignored; the shape of the input is given by the weights
+	 * @return about <code>6 * rows * cols</code>
+	 */
+	@Override
+	public long estimateFlops(final ElementContainer<?> input) {
+		return 6L * weights.rows * weights.cols;
+	}
+	
+	/**
+	 * Computes <code>(weights * input) + bias</code>, with the rows split across the intra-op threads.
+	 * 
+	 * @param input input vector
+	 * @return output vector
+	 */
+	private Vector multiplyAndAdd(final Vector input) {
+		final double[] result = new double[weights.rows];
 		
-		final Vector multiplied = weights.multiply(prevActivations);
+		IntraOpExecutor.run(intraOp, intraOpDegree, weights.rows, (start, end) -> {
+			weights.multiply(input, result, start, end);
+			
+			for (int row = start; row < end; row++) {
+				result[row] += bias.get(row);
+			}
+		});
+		
+		return new Vector(result);
+	}
+	
+	/**
+	 * Computes <code>transpose(weights) * errorOutputDeriv</code>, with the columns split across the intra-op threads.
+	 * 
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @return derivative of the error with respect to this layer's input
+	 */
+	private Vector inputDerivative(final Vector errorOutputDeriv) {
+		final double[] result = new double[weights.cols];
 		
-		latestInputs.put(this, prevActivations);
+		IntraOpExecutor.run(intraOp, intraOpDegree, weights.cols, (start, end) -> weights.transposeMultiply(errorOutputDeriv, result, start, end));
+		
+		return new Vector(result);
+	}
+	
+	/**
+	 * Adds the outer product of <code>errorOutputDeriv</code> and <code>input</code> to <code>weightGradient</code>, with the
+	 * rows split across the intra-op threads.
+	 * 
+	 * @param weightGradient weight gradient to add to
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param input input to this layer
+	 */
+	private void addWeightGradient(final Matrix weightGradient, final Vector errorOutputDeriv, final Vector input) {
+		IntraOpExecutor.run(intraOp, intraOpDegree, weights.rows, (start, end) -> weightGradient.addOuterProduct(errorOutputDeriv, input, start, end));
+	}
+	
+	@Override
+	public ParallelForwardPass<Vector> parallelForwardPass(final Vector prevActivations) {
+		final Vector nextActivations = multiplyAndAdd(prevActivations);
 		
-		final Vector nextActivations = multiplied.plus(bias);
+		final ParallelForwardPass<Vector> out = new ParallelForwardPass<>(nextActivations, 1);
+		out.setLatestInput(0, prevActivations);
 		
-		return new ParallelForwardPass<>(nextActivations, latestInputs, Map.of());
+		return out;
 	}
 
 	@Override
 	public ParallelBackwardPass<Vector> parallelBackprop(final ParallelForwardPass<Vector> prevForward, final Vector errorOutputDeriv, final boolean isFirstLayer) {
-		final Map<Layer<?, ?>, List<ElementContainer<?>>> gradients = new HashMap<>();
+		final Vector prevLatestInput = (Vector) prevForward.latestInput(0);
 		
-		final Vector prevLatestInput = (Vector) prevForward.latestInputs.get(this);
-		
-		final Matrix newWeightDeltas = errorOutputDeriv.outerProduct(prevLatestInput);
+		final Matrix newWeightDeltas = new Matrix(new double[weights.rows][weights.cols]);
+		addWeightGradient(newWeightDeltas, errorOutputDeriv, prevLatestInput);
 		final Vector newBiasDeltas = errorOutputDeriv;
 		
-		gradients.put(this, List.of(newWeightDeltas, newBiasDeltas));
+		final Vector output = isFirstLayer ? null : inputDerivative(errorOutputDeriv);
 		
-		final Vector output = isFirstLayer ? null : weights.transpose().multiply(errorOutputDeriv);
+		final ParallelBackwardPass<Vector> out = new ParallelBackwardPass<>(output, 1);
+		out.setGradients(0, newWeightDeltas, newBiasDeltas);
 		
-		return new ParallelBackwardPass<>(output, gradients);
+		return out;
+	}
+
+	/**
+	 * Adds the weight and bias gradients for one sample directly to <code>accumulator</code>, without creating
+	 * the outer product as a separate matrix.
+	 * 
+	 * @param prevForward result of the previous forward pass
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param isFirstLayer true if the derivative with respect to the input is not needed
+	 * @param accumulator weight and bias gradients to add to
+	 * @return derivative of the error with respect to this layer's input
+	 */
+	@Override
+	public Vector accumulateBackprop(final ParallelForwardPass<Vector> prevForward, final Vector errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final Vector prevLatestInput = (Vector) prevForward.latestInput(0);
+		
+		ElementContainer<?>[] gradientList = accumulator.gradients(0);
+		
+		if (gradientList == null) {
+			gradientList = new ElementContainer<?>[] {new Matrix(new double[weights.rows][weights.cols]), new Vector(new double[bias.dimension])};
+			accumulator.setGradients(0, gradientList);
+		}
+		
+		addWeightGradient((Matrix) gradientList[0], errorOutputDeriv, prevLatestInput);
+		((Vector) gradientList[1]).addInPlace(errorOutputDeriv);
+		
+		return isFirstLayer ? null : inputDerivative(errorOutputDeriv);
 	}
 
 	@Override
 	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
-		final List<ElementContainer<?>> gradientList = gradients.gradients.get(this);
+		final ElementContainer<?>[] gradientList = gradients.gradients(0);
 		
-		final Matrix prevWeightDeltas = (Matrix) gradientList.get(0);
-		final Vector prevBiasDeltas = (Vector) gradientList.get(1);
+		final Matrix prevWeightDeltas = (Matrix) gradientList[0];
+		final Vector prevBiasDeltas = (Vector) gradientList[1];
 		
-		final Matrix weightGradient = prevWeightDeltas.transform(w -> learningRate * w);
-		final Vector biasGradient = prevBiasDeltas.transform(b -> learningRate * b);
+		applyGradients(prevWeightDeltas, prevBiasDeltas, learningRate);
+	}
+	
+	@Override
+	public void hogwildUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		final ElementContainer<?>[] gradientList = gradients.gradients(0);
 		
-		weights = weights.minus(weightGradient);
-		bias = bias.minus(biasGradient);
+		weights.addScaledInPlace((Matrix) gradientList[0], -learningRate);
+		bias.addScaledInPlace((Vector) gradientList[1], -learningRate);
+	}
+	
+	@Override
+	public boolean supportsHogwild() {
+		return optimizer == null || optimizer == Optimizer.SGD;
 	}
 }
@@ -1,15 +1,11 @@
 package dezzy.neuronz2.ann.layers;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
-import dezzy.neuronz2.arch.layers.Layer;
 import dezzy.neuronz2.arch.layers.TensorActivationLayer;
-import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.ApproximateFunctions;
 
 /**
  * A softmax layer in a neural network. Implemented as a separate layer instead of an activation function
@@ -30,12 +26,44 @@ public class SoftmaxLayer extends TensorActivationLayer<Vector> {
 	 */
 	private Vector latestOutput;
 	
+	/**
+	 * True if {@link ApproximateFunctions#exp(double)} should be used instead of {@link Math#exp(double)}
+	 */
+	private final boolean approximateExp;
+	
 	/**
 	 * Constructs a softmax layer. There are no weights in this layer; this layer only applies the softmax
 	 * function to its input.
 	 */
 	public SoftmaxLayer() {
+		this(false);
+	}
+	
+	/**
+	 * Constructs a softmax layer that can use an approximation of <code>e^x</code>. The approximation has a relative
+	 * error of less than 6e-8 (see {@link ApproximateFunctions#exp(double)}), which is usually too small to change the
+	 * output of a network.
+	 * 
+	 * @param _approximateExp true to use {@link ApproximateFunctions#exp(double)} instead of {@link Math#exp(double)}
+	 */
+	public SoftmaxLayer(final boolean _approximateExp) {
 		super(null);
+		approximateExp = _approximateExp;
+	}
+	
+	/**
+	 * Raises e to the power of each element in the given vector, using the approximation if
+	 * {@link #approximateExp} is true.
+	 * 
+	 * @param prevActivations input vector
+	 * @return a vector with <code>e^x</code> for every element <code>x</code> in <code>prevActivations</code>
+	 */
+	private Vector raise(final Vector prevActivations) {
+		if (approximateExp) {
+			return prevActivations.transform(ApproximateFunctions::exp);
+		}
+		
+		return prevActivations.transform(d -> Math.exp(d));
 	}
 	
 	/**
@@ -47,7 +75,7 @@ public class SoftmaxLayer extends TensorActivationLayer<Vector> {
 	 */
 	@Override
 	public Vector forwardPass(final Vector prevActivations) {
-		final Vector raised = prevActivations.transform(d -> Math.exp(d));
+		final Vector raised = raise(prevActivations);
 		final double sum = raised.sum();
 		
 		latestOutput = raised.transform(d -> d / sum);
@@ -83,21 +111,20 @@ public class SoftmaxLayer extends TensorActivationLayer<Vector> {
 	
 	@Override
 	public ParallelForwardPass<Vector> parallelForwardPass(final Vector prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestOutputs = new HashMap<>();
-		
-		final Vector raised = prevActivations.transform(d -> Math.exp(d));
+		final Vector raised = raise(prevActivations);
 		final double sum = raised.sum();
 		
 		final Vector newLatestOutput = raised.transform(d -> d / sum);
 		
-		latestOutputs.put(this, newLatestOutput);
+		final ParallelForwardPass<Vector> out = new ParallelForwardPass<>(newLatestOutput, 1);
+		out.setLatestOutput(0, newLatestOutput);
 		
-		return new ParallelForwardPass<>(newLatestOutput, Map.of(), latestOutputs);
+		return out;
 	}
 	
 	@Override
 	public ParallelBackwardPass<Vector> parallelBackprop(final ParallelForwardPass<Vector> prevForward, final Vector errorOutputDeriv, final boolean isFirstLayer) {
-		final Vector prevLatestOutput = (Vector) prevForward.latestOutputs.get(this);
+		final Vector prevLatestOutput = (Vector) prevForward.latestOutput(0);
 		
 		final double[][] values = new double[prevLatestOutput.dimension][prevLatestOutput.dimension];
 		
@@ -115,6 +142,6 @@ public class SoftmaxLayer extends TensorActivationLayer<Vector> {
 		
 		final Vector out = jacobian.multiply(errorOutputDeriv);
 		
-		return new ParallelBackwardPass<>(out, Map.of());
+		return new ParallelBackwardPass<>(out, 1);
 	}
 }
@@ -0,0 +1,21 @@
+package dezzy.neuronz2.arch;
+
+/**
+ * The counters of a {@link GradientAccumulator}, which its worker thread writes after every sample. They are kept in their own
+ * class so that the padding in {@link AccumulatorPadding} comes before them, and the fields of <code>GradientAccumulator</code>
+ * (including its own padding) come after them, whatever order the JVM gives the fields of each class.
+ *
+ * @author Joe Desmond
+ */
+abstract class AccumulatorCounters extends AccumulatorPadding {
+	
+	/**
+	 * The number of samples accumulated since the last reset
+	 */
+	long samples = 0;
+	
+	/**
+	 * The sum of the errors of every sample accumulated since the last reset
+	 */
+	double errorSum = 0;
+}
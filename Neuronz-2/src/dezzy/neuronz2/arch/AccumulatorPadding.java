@@ -0,0 +1,17 @@
+package dezzy.neuronz2.arch;
+
+/**
+ * Padding in front of the counters of a {@link GradientAccumulator}. The JVM is free to reorder the fields of one class,
+ * but it always places the fields of a superclass before the fields of its subclasses, so padding fields in a superclass
+ * stay in front of the counters (see {@link AccumulatorCounters}).
+ *
+ * @author Joe Desmond
+ */
+abstract class AccumulatorPadding {
+	
+	/**
+	 * Padding before the counters (7 longs, so that the counters never share a cache line with the fields in front of them)
+	 */
+	@SuppressWarnings("unused")
+	private long p0, p1, p2, p3, p4, p5, p6;
+}
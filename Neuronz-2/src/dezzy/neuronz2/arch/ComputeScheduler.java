@@ -0,0 +1,764 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One set of compute threads shared by every workload on a host: inference requests, the per-sample tasks of trainers, and
+ * the ranges of intra-op work (see {@link IntraOpExecutor}). Separate thread pools for each workload compete blindly for the
+ * same cores; this scheduler instead runs queued tasks in order of their {@link Priority}, and tasks of the same priority in
+ * order of their deadlines (the time they were submitted plus their latency budget).
+ * <p>
+ * A task that is already running is never interrupted, so a long training task could still delay an inference request. To
+ * keep inference latency bounded, trainers that use a scheduler (see
+ * {@link DataParallelTrainer#DataParallelTrainer(ParallelLayer, dezzy.neuronz2.arch.error.CompleteErrorFunc, ComputeScheduler, int, java.util.Random) DataParallelTrainer})
+ * call {@link #runPending(Priority)} between samples, which runs any queued tasks with a higher priority on the training
+ * thread. Some threads can also be reserved for inference, so that an inference request never has to wait for a sample to
+ * finish.
+ * <p>
+ * The time from submission to completion of recent tasks is recorded for each priority, along with the number of tasks that
+ * missed their latency budget (see {@link #latencyPercentileNanos(Priority, double)} and {@link #report()}).
+ * <p>
+ * The threads are daemon threads, but they should still be stopped with {@link #close()} when the scheduler is no longer needed.
+ *
+ * @author Joe Desmond
+ */
+public class ComputeScheduler implements AutoCloseable {
+	
+	/**
+	 * Number of recent latencies kept for each priority
+	 */
+	private static final int LATENCY_HISTORY = 4096;
+	
+	/**
+	 * Number of threads
+	 */
+	public final int threadCount;
+	
+	/**
+	 * Number of threads that only run {@link Priority#INFERENCE} tasks
+	 */
+	public final int reservedForInference;
+	
+	/**
+	 * Queued tasks, highest priority and earliest deadline first
+	 */
+	private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+	
+	/**
+	 * Guards {@link #queue}
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	/**
+	 * Signalled when a task is queued
+	 */
+	private final Condition available = lock.newCondition();
+	
+	/**
+	 * Gives every task a sequence number, so that tasks with the same priority and deadline run in the order they were submitted
+	 */
+	private final AtomicLong sequence = new AtomicLong(0);
+	
+	/**
+	 * Latency statistics, indexed by priority ordinal
+	 */
+	private final LatencyStats[] stats = new LatencyStats[Priority.values().length];
+	
+	/**
+	 * True once {@link #close()} has been called
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Creates a compute scheduler with the given number of threads.
+	 * 
+	 * @param _threadCount number of threads
+	 * @param _reservedForInference number of those threads that only run inference tasks (less than <code>_threadCount</code>)
+	 * @throws IllegalArgumentException if every thread would be reserved for inference
+	 */
+	public ComputeScheduler(final int _threadCount, final int _reservedForInference) {
+		if (_reservedForInference >= _threadCount) {
+			throw new IllegalArgumentException("At least one thread must be able to run training tasks");
+		}
+		
+		threadCount = _threadCount;
+		reservedForInference = _reservedForInference;
+		
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new LatencyStats();
+		}
+		
+		for (int i = 0; i < threadCount; i++) {
+			final boolean reserved = i < reservedForInference;
+			final Thread thread = new Thread(() -> work(reserved), "ComputeScheduler-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Creates a compute scheduler with one thread per available core, none of them reserved.
+	 */
+	public ComputeScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), 0);
+	}
+	
+	/**
+	 * Queues a task with the given priority and latency budget.
+	 * 
+	 * @param <T> result type
+	 * @param priority priority class of the task
+	 * @param latencyBudgetNanos time after submission that the task should be done by, in nanoseconds. Among tasks with the
+	 * 			same priority, the task with the earliest deadline runs first
+	 * @param callable the task
+	 * @return the result of the task. Cancelling a task that has not started removes it from the queue
+	 * @throws IllegalStateException if the scheduler has been closed
+	 */
+	public <T> Future<T> submit(final Priority priority, final long latencyBudgetNanos, final Callable<T> callable) {
+		final Task<T> task = new Task<>(callable, priority, latencyBudgetNanos, null);
+		enqueue(task);
+		
+		return task;
+	}
+	
+	/**
+	 * Queues an inference task with the {@linkplain Priority#defaultBudgetNanos default latency budget} for inference.
+	 * 
+	 * @param <T> result type
+	 * @param callable the task (for example; a forward pass through a network)
+	 * @return the result of the task
+	 * @throws IllegalStateException if the scheduler has been closed
+	 */
+	public <T> Future<T> submitInference(final Callable<T> callable) {
+		return submit(Priority.INFERENCE, Priority.INFERENCE.defaultBudgetNanos, callable);
+	}
+	
+	/**
+	 * Returns an executor that queues every task on this scheduler with the given priority and the priority's
+	 * {@linkplain Priority#defaultBudgetNanos default latency budget}. Shutting the executor down only stops it from
+	 * accepting tasks; the scheduler keeps running. The executor is terminated once it is shut down and every task it
+	 * queued has finished or been cancelled.
+	 * 
+	 * @param priority priority class of every task
+	 * @return an executor backed by this scheduler
+	 */
+	public ExecutorService executor(final Priority priority) {
+		return executor(priority, priority.defaultBudgetNanos);
+	}
+	
+	/**
+	 * Returns an executor that queues every task on this scheduler with the given priority and latency budget. Shutting the
+	 * executor down only stops it from accepting tasks; the scheduler keeps running. The executor is terminated once it is
+	 * shut down and every task it queued has finished or been cancelled.
+	 * 
+	 * @param priority priority class of every task
+	 * @param latencyBudgetNanos latency budget of every task, in nanoseconds
+	 * @return an executor backed by this scheduler
+	 */
+	public ExecutorService executor(final Priority priority, final long latencyBudgetNanos) {
+		return new View(priority, latencyBudgetNanos);
+	}
+	
+	/**
+	 * Runs queued tasks with a higher priority than <code>priority</code> on the calling thread, until there are none left.
+	 * Long-running tasks should call this regularly (for example; a trainer calls it between samples) so that more urgent
+	 * tasks do not have to wait for them to finish.
+	 * 
+	 * @param priority priority of the calling task
+	 * @return the number of tasks that were run
+	 */
+	public int runPending(final Priority priority) {
+		int ran = 0;
+		
+		while (true) {
+			final Task<?> task;
+			
+			lock.lock();
+			try {
+				final Task<?> head = queue.peek();
+				
+				if (head == null || head.priority.ordinal() >= priority.ordinal()) {
+					return ran;
+				}
+				
+				task = queue.poll();
+			} finally {
+				lock.unlock();
+			}
+			
+			task.run();
+			ran++;
+		}
+	}
+	
+	/**
+	 * Returns the number of queued tasks that have not started.
+	 * 
+	 * @return number of queued tasks
+	 */
+	public int queued() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns a percentile of the time from submission to completion of recent tasks with the given priority.
+	 * 
+	 * @param priority priority class
+	 * @param percentile percentile, from 0 to 100 (for example; 99 for the tail latency)
+	 * @return latency in nanoseconds, or zero if no tasks with this priority have finished
+	 */
+	public long latencyPercentileNanos(final Priority priority, final double percentile) {
+		return stats[priority.ordinal()].percentile(percentile);
+	}
+	
+	/**
+	 * Returns the number of tasks with the given priority that have finished.
+	 * 
+	 * @param priority priority class
+	 * @return number of finished tasks
+	 */
+	public long completed(final Priority priority) {
+		return stats[priority.ordinal()].completed();
+	}
+	
+	/**
+	 * Returns the number of tasks with the given priority that finished after their deadline.
+	 * 
+	 * @param priority priority class
+	 * @return number of tasks that missed their latency budget
+	 */
+	public long budgetMisses(final Priority priority) {
+		return stats[priority.ordinal()].misses();
+	}
+	
+	/**
+	 * Returns a table with the number of finished tasks, the number of missed budgets, and the median and tail latencies of
+	 * each priority.
+	 * 
+	 * @return latency report
+	 */
+	public String report() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-10s %10s %8s %12s %12s%n", "Priority", "Completed", "Missed", "p50 ms", "p99 ms"));
+		
+		final Priority[] priorities = Priority.values();
+		
+		for (int i = 0; i < priorities.length; i++) {
+			final Priority priority = priorities[i];
+			
+			sb.append(String.format("%-10s %10d %8d %12.3f %12.3f%n", priority, completed(priority), budgetMisses(priority),
+					latencyPercentileNanos(priority, 50) / 1e6, latencyPercentileNanos(priority, 99) / 1e6));
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Stops the threads. Tasks that are still queued are cancelled.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		
+		final List<Task<?>> cancelled;
+		
+		lock.lock();
+		try {
+			cancelled = new ArrayList<>(queue);
+			queue.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		
+		for (int i = 0; i < cancelled.size(); i++) {
+			cancelled.get(i).cancel(false);
+		}
+	}
+	
+	/**
+	 * Queues a task and wakes the threads.
+	 * 
+	 * @param task task to queue
+	 * @throws IllegalStateException if the scheduler has been closed
+	 */
+	private void enqueue(final Task<?> task) {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("The compute scheduler has been closed");
+			}
+			
+			queue.add(task);
+			
+			// Reserved threads may not be able to take the task, so every thread is woken
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes a task from the queue, if it is still there.
+	 * 
+	 * @param task task to remove
+	 */
+	private void unqueue(final Task<?> task) {
+		lock.lock();
+		try {
+			queue.remove(task);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes every queued task that was submitted through the given executor view.
+	 * 
+	 * @param view executor view
+	 * @return the removed tasks, in no particular order
+	 */
+	private List<Task<?>> unqueueAll(final View view) {
+		final List<Task<?>> out = new ArrayList<>();
+		
+		lock.lock();
+		try {
+			final Iterator<Task<?>> tasks = queue.iterator();
+			
+			while (tasks.hasNext()) {
+				final Task<?> task = tasks.next();
+				
+				if (task.view == view) {
+					out.add(task);
+					tasks.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * The loop run by every thread.
+	 * 
+	 * @param reserved true if this thread only runs inference tasks
+	 */
+	private void work(final boolean reserved) {
+		while (true) {
+			final Task<?> task;
+			
+			lock.lock();
+			try {
+				while (!closed && !canTake(queue.peek(), reserved)) {
+					available.awaitUninterruptibly();
+				}
+				
+				if (closed) {
+					return;
+				}
+				
+				task = queue.poll();
+			} finally {
+				lock.unlock();
+			}
+			
+			task.run();
+		}
+	}
+	
+	/**
+	 * Returns true if a thread can take the given task.
+	 * 
+	 * @param task task at the head of the queue, or null
+	 * @param reserved true if the thread only runs inference tasks
+	 * @return true if the task can be taken
+	 */
+	private static boolean canTake(final Task<?> task, final boolean reserved) {
+		return task != null && (!reserved || task.priority == Priority.INFERENCE);
+	}
+	
+	/**
+	 * Priority classes, from most to least urgent.
+	 * 
+	 * @author Joe Desmond
+	 */
+	public enum Priority {
+		
+		/**
+		 * Inference requests, which someone is waiting for
+		 */
+		INFERENCE(TimeUnit.MILLISECONDS.toNanos(10)),
+		
+		/**
+		 * Ranges of intra-op work; another thread is waiting for each one, and each one is short
+		 */
+		INTRA_OP(TimeUnit.MILLISECONDS.toNanos(1)),
+		
+		/**
+		 * Training tasks, which use whatever the other tasks leave
+		 */
+		TRAINING(TimeUnit.SECONDS.toNanos(60));
+		
+		/**
+		 * Latency budget of tasks with this priority, if none is given
+		 */
+		public final long defaultBudgetNanos;
+		
+		/**
+		 * Creates a priority class.
+		 * 
+		 * @param _defaultBudgetNanos default latency budget, in nanoseconds
+		 */
+		private Priority(final long _defaultBudgetNanos) {
+			defaultBudgetNanos = _defaultBudgetNanos;
+		}
+	}
+	
+	/**
+	 * A queued task, with its priority and deadline.
+	 * 
+	 * @author Joe Desmond
+	 * @param <T> result type
+	 */
+	private final class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+		
+		/**
+		 * Priority class
+		 */
+		final Priority priority;
+		
+		/**
+		 * Time the task was submitted, from {@link System#nanoTime()}
+		 */
+		final long submitted;
+		
+		/**
+		 * Time the task should be done by, from {@link System#nanoTime()}
+		 */
+		final long deadline;
+		
+		/**
+		 * Breaks ties between tasks with the same priority and deadline
+		 */
+		final long sequenceNumber;
+		
+		/**
+		 * The executor view that queued this task, or null if it was submitted to the scheduler directly
+		 */
+		final View view;
+		
+		/**
+		 * Creates a task.
+		 * 
+		 * @param callable the work
+		 * @param _priority priority class
+		 * @param latencyBudgetNanos latency budget, in nanoseconds
+		 * @param _view the executor view that queued this task, or null
+		 */
+		Task(final Callable<T> callable, final Priority _priority, final long latencyBudgetNanos, final View _view) {
+			super(callable);
+			priority = _priority;
+			view = _view;
+			submitted = System.nanoTime();
+			
+			// Saturate instead of overflowing for very large budgets
+			final long budget = Math.min(latencyBudgetNanos, Long.MAX_VALUE / 2);
+			deadline = submitted + budget;
+			sequenceNumber = sequence.getAndIncrement();
+		}
+		
+		@Override
+		public void run() {
+			if (isCancelled()) {
+				return;
+			}
+			
+			super.run();
+			
+			final long finished = System.nanoTime();
+			stats[priority.ordinal()].record(finished - submitted, finished - deadline > 0);
+		}
+		
+		/**
+		 * Cancels this task, and removes it from the queue if it has not started, so that no thread takes it.
+		 * 
+		 * @param mayInterruptIfRunning true if the thread running this task should be interrupted
+		 * @return true if the task was cancelled
+		 */
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			
+			if (cancelled) {
+				unqueue(this);
+			}
+			
+			return cancelled;
+		}
+		
+		/**
+		 * Tells the executor view that queued this task (if any) that the task has finished or been cancelled.
+		 */
+		@Override
+		protected void done() {
+			if (view != null) {
+				view.finished();
+			}
+		}
+		
+		@Override
+		public int compareTo(final Task<?> other) {
+			if (priority != other.priority) {
+				return Integer.compare(priority.ordinal(), other.priority.ordinal());
+			}
+			
+			final long difference = deadline - other.deadline;
+			
+			if (difference != 0) {
+				return (difference < 0) ? -1 : 1;
+			}
+			
+			return Long.compare(sequenceNumber, other.sequenceNumber);
+		}
+	}
+	
+	/**
+	 * An executor that queues its tasks on the scheduler with a fixed priority and latency budget.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private final class View extends AbstractExecutorService {
+		
+		/**
+		 * Priority of every task
+		 */
+		private final Priority priority;
+		
+		/**
+		 * Latency budget of every task
+		 */
+		private final long latencyBudgetNanos;
+		
+		/**
+		 * True once this executor has been shut down; guarded by this view
+		 */
+		private boolean shutdown = false;
+		
+		/**
+		 * Number of tasks queued by this executor that have not finished or been cancelled; guarded by this view
+		 */
+		private int outstanding = 0;
+		
+		/**
+		 * Creates an executor view.
+		 * 
+		 * @param _priority priority of every task
+		 * @param _latencyBudgetNanos latency budget of every task
+		 */
+		View(final Priority _priority, final long _latencyBudgetNanos) {
+			priority = _priority;
+			latencyBudgetNanos = _latencyBudgetNanos;
+		}
+		
+		/**
+		 * Queues a task created by {@link #newTaskFor(Callable)} as it is, so that cancelling the future returned by
+		 * <code>submit</code> removes the task from the queue. Any other command is wrapped in a new task.
+		 * 
+		 * @param command the work
+		 */
+		@Override
+		public void execute(final Runnable command) {
+			synchronized (this) {
+				if (shutdown) {
+					throw new IllegalStateException("This executor has been shut down");
+				}
+				
+				outstanding++;
+			}
+			
+			try {
+				if (command instanceof Task && ((Task<?>) command).view == this) {
+					enqueue((Task<?>) command);
+				} else {
+					enqueue(new Task<>(Executors.callable(command), priority, latencyBudgetNanos, this));
+				}
+			} catch (IllegalStateException e) {
+				finished();
+				throw e;
+			}
+		}
+		
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+			return new Task<>(callable, priority, latencyBudgetNanos, this);
+		}
+		
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+			return new Task<>(Executors.callable(runnable, value), priority, latencyBudgetNanos, this);
+		}
+		
+		/**
+		 * Counts a task queued by this executor as finished, and wakes threads waiting for termination.
+		 */
+		synchronized void finished() {
+			outstanding--;
+			
+			if (outstanding == 0) {
+				notifyAll();
+			}
+		}
+		
+		@Override
+		public synchronized void shutdown() {
+			shutdown = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Shuts this executor down, and cancels and returns every task that it queued and that has not started. Tasks that are
+		 * running are not interrupted.
+		 * 
+		 * @return tasks that never started
+		 */
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown();
+			
+			final List<Task<?>> removed = unqueueAll(this);
+			final List<Runnable> out = new ArrayList<>(removed.size());
+			
+			for (int i = 0; i < removed.size(); i++) {
+				removed.get(i).cancel(false);
+				out.add(removed.get(i));
+			}
+			
+			return out;
+		}
+		
+		@Override
+		public synchronized boolean isShutdown() {
+			return shutdown;
+		}
+		
+		@Override
+		public synchronized boolean isTerminated() {
+			return shutdown && outstanding == 0;
+		}
+		
+		@Override
+		public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			
+			while (!isTerminated()) {
+				final long remaining = deadline - System.nanoTime();
+				
+				if (remaining <= 0) {
+					return false;
+				}
+				
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * The latencies of recent tasks with one priority, and the number of tasks that finished and missed their budgets.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private static final class LatencyStats {
+		
+		/**
+		 * Ring buffer of recent latencies, in nanoseconds
+		 */
+		private final long[] latencies = new long[LATENCY_HISTORY];
+		
+		/**
+		 * Number of finished tasks
+		 */
+		private long completed = 0;
+		
+		/**
+		 * Number of tasks that missed their budget
+		 */
+		private long misses = 0;
+		
+		/**
+		 * Records a finished task.
+		 * 
+		 * @param latencyNanos time from submission to completion
+		 * @param missed true if the task finished after its deadline
+		 */
+		synchronized void record(final long latencyNanos, final boolean missed) {
+			latencies[(int) (completed % latencies.length)] = latencyNanos;
+			completed++;
+			
+			if (missed) {
+				misses++;
+			}
+		}
+		
+		/**
+		 * Returns a percentile of the recent latencies.
+		 * 
+		 * @param percentile percentile, from 0 to 100
+		 * @return latency in nanoseconds, or zero if no tasks have finished
+		 */
+		synchronized long percentile(final double percentile) {
+			final int count = (int) Math.min(completed, latencies.length);
+			
+			if (count == 0) {
+				return 0;
+			}
+			
+			final long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			
+			final int index = (int) Math.ceil((percentile / 100) * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+		
+		/**
+		 * Returns the number of finished tasks.
+		 * 
+		 * @return number of finished tasks
+		 */
+		synchronized long completed() {
+			return completed;
+		}
+		
+		/**
+		 * Returns the number of tasks that missed their budget.
+		 * 
+		 * @return number of missed budgets
+		 */
+		synchronized long misses() {
+			return misses;
+		}
+	}
+}
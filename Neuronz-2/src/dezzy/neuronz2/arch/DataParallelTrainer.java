@@ -0,0 +1,998 @@
+package dezzy.neuronz2.arch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import dezzy.neuronz2.arch.ComputeScheduler.Priority;
+import dezzy.neuronz2.arch.error.CompleteErrorFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Trains a {@link ParallelLayer} with minibatch gradient descent on a fixed number of worker threads. The number of threads
+ * does not depend on the minibatch size: by default there is one worker per core.
+ * <p>
+ * Every minibatch is handed to all the workers at once. The workers take samples from one shared cursor over the (shuffled)
+ * minibatch until it is empty, and each worker sums the gradients of its samples in its own {@link GradientAccumulator}. The
+ * accumulators are then reduced with a {@link GradientReducer}, the layer is updated with the summed gradients, and the
+ * accumulators are reset for the next minibatch.
+ * <p>
+ * If the layer {@linkplain ParallelLayer#usesBatchStatistics() uses batch statistics} (for example; it contains a
+ * {@link dezzy.neuronz2.arch.layers.BatchNormLayer}), each worker instead takes a contiguous share of the minibatch and passes it
+ * through the layer as one batch, so the layer normalizes over each worker's share ("ghost batches"). The statistics of every
+ * share are summed with the gradients, so the running statistics follow the whole minibatch.
+ * <p>
+ * {@link #trainEpochHogwild(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpochHogwild()} is an opt-in
+ * asynchronous alternative with no minibatch barrier: every worker applies its own gradients directly to the shared parameters
+ * (see {@link ParallelLayer#hogwildUpdate(ParallelBackwardPass, double)}) while the other workers keep training.
+ * {@link #trainEpochPipelined(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpochPipelined()} is an
+ * opt-in mode that keeps the minibatch barrier, but hides the update of the layer behind the next minibatch.
+ * <p>
+ * A trainer can also be one of several replicas of the same network in different processes (see
+ * {@link #setGradientExchange(GradientExchange)}). Each replica then trains on its own share of every minibatch, and the
+ * summed gradients of every replica are combined before each update.
+ * <p>
+ * With a {@linkplain #setMemoryBudget(MemoryBudget) memory budget}, a worker waits before starting a sample until the
+ * activations of every sample in flight fit in the budget, so the number of threads is not limited by the heap.
+ * <p>
+ * A trainer can run its workers on a shared {@link ComputeScheduler} instead of its own threads, with
+ * {@linkplain Priority#TRAINING training priority}. Between samples, each worker then runs any queued tasks with a higher
+ * priority (such as inference requests), so training only uses the cores that the other workloads leave.
+ * <p>
+ * The number of workers can be changed between minibatches, by hand ({@link #setThreads(int)}) or by measured throughput
+ * ({@link #setElasticWorkers(ElasticWorkers)}), without touching the layer or its optimizer state.
+ * <p>
+ * The worker threads are daemon threads, but they should still be stopped with {@link #close()} when the trainer is no longer needed.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class DataParallelTrainer<I extends ElementContainer<I>, O extends ElementContainer<O>> implements AutoCloseable {
+	
+	/**
+	 * The layer (network) being trained
+	 */
+	public final ParallelLayer<I, O> layer;
+	
+	/**
+	 * Error function to use for calculating gradients
+	 */
+	public final CompleteErrorFunc<O> errorFunc;
+	
+	/**
+	 * Worker threads. Every minibatch is one task per worker on this executor's queue
+	 */
+	private final ExecutorService workers;
+	
+	/**
+	 * The shared scheduler that the workers run on, or null if the workers have their own threads
+	 */
+	private final ComputeScheduler scheduler;
+	
+	/**
+	 * One gradient accumulator per worker. Only the first {@link #activeWorkers} are used; the rest are kept from when there
+	 * were more workers, so that adding workers again does not allocate new gradient buffers
+	 */
+	private final List<GradientAccumulator<I, O>> accumulators;
+	
+	/**
+	 * The number of workers that process each minibatch
+	 */
+	private int activeWorkers;
+	
+	/**
+	 * Chooses the number of workers between minibatches, or null to keep it fixed
+	 */
+	private ElasticWorkers elasticWorkers = null;
+	
+	/**
+	 * Sums the accumulators after each minibatch
+	 */
+	private final GradientReducer reducer;
+	
+	/**
+	 * Used to shuffle the training data at the beginning of each epoch
+	 */
+	private final Random random;
+	
+	/**
+	 * A copy of {@link #layer} that the workers run forward and backward passes through in
+	 * {@linkplain #trainEpochPipelined(ElementContainer[], ElementContainer[], int, double, BiPredicate) pipelined mode}, while
+	 * <code>layer</code> is being updated. Null until pipelined mode is first used
+	 */
+	private ParallelLayer<I, O> pipelineReplica = null;
+	
+	/**
+	 * Two sets of gradient accumulators for {@link #pipelineReplica}, one per worker in each set. The workers add the gradients of
+	 * a minibatch to one set while the gradients of the previous minibatch in the other set are being applied
+	 */
+	private List<List<GradientAccumulator<I, O>>> pipelineAccumulators = null;
+	
+	/**
+	 * The {@linkplain ParallelLayer#state() state} of {@link #layer} (its learnable parameters and any statistics, such as running
+	 * means), in the same order as {@link #replicaState}
+	 */
+	private List<ElementContainer<?>> layerState = null;
+	
+	/**
+	 * The {@linkplain ParallelLayer#state() state} of {@link #pipelineReplica}
+	 */
+	private List<ElementContainer<?>> replicaState = null;
+	
+	/**
+	 * Combines the gradients of this trainer with those of other replicas, or null if this trainer is the only replica
+	 */
+	private GradientExchange exchange = null;
+	
+	/**
+	 * Limits the number of samples in flight, or null if every worker can always start a sample
+	 */
+	private MemoryBudget memoryBudget = null;
+	
+	/**
+	 * Snapshots of {@link #layer} for serving, captured after some of the updates, or null
+	 */
+	private ModelSnapshots<I, O> snapshots = null;
+	
+	/**
+	 * The number of updates between snapshots
+	 */
+	private int updatesPerSnapshot = 1;
+	
+	/**
+	 * The number of updates since the latest snapshot
+	 */
+	private int updatesSinceSnapshot = 0;
+	
+	/**
+	 * Creates a trainer with the given number of worker threads.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param threads number of worker threads
+	 * @param _random used to shuffle the training data
+	 */
+	public DataParallelTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final int threads, final Random _random) {
+		this(_layer, _errorFunc, newWorkerPool(threads), null, threads, _random);
+	}
+	
+	/**
+	 * Creates a trainer whose workers run on a shared compute scheduler with {@linkplain Priority#TRAINING training priority}.
+	 * Between samples, every worker runs the scheduler's queued tasks that have a higher priority. {@link #close()} does not
+	 * stop the scheduler.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param _scheduler shared compute scheduler
+	 * @param threads number of workers (at most the number of the scheduler's threads that are not reserved for inference)
+	 * @param _random used to shuffle the training data
+	 */
+	public DataParallelTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final ComputeScheduler _scheduler, final int threads, final Random _random) {
+		this(_layer, _errorFunc, _scheduler.executor(Priority.TRAINING), _scheduler, threads, _random);
+	}
+	
+	/**
+	 * Creates a trainer with the given workers.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param _workers executor for the workers
+	 * @param _scheduler the scheduler behind <code>_workers</code>, or null
+	 * @param threads number of workers
+	 * @param _random used to shuffle the training data
+	 */
+	private DataParallelTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final ExecutorService _workers, final ComputeScheduler _scheduler, final int threads, final Random _random) {
+		layer = _layer;
+		errorFunc = _errorFunc;
+		random = _random;
+		workers = _workers;
+		scheduler = _scheduler;
+		activeWorkers = threads;
+		
+		accumulators = new ArrayList<>(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			accumulators.add(new GradientAccumulator<>(layer, errorFunc));
+		}
+		
+		reducer = new GradientReducer(workers);
+	}
+	
+	/**
+	 * Creates a trainer with one worker thread per available core.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 */
+	public DataParallelTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc) {
+		this(_layer, _errorFunc, Runtime.getRuntime().availableProcessors(), new Random());
+	}
+	
+	/**
+	 * Creates a pool of daemon worker threads.
+	 * 
+	 * @param threads number of threads
+	 * @return worker thread pool
+	 */
+	private static ExecutorService newWorkerPool(final int threads) {
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "DataParallelTrainer-" + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+	}
+	
+	/**
+	 * Returns the number of worker threads.
+	 * 
+	 * @return number of worker threads
+	 */
+	public int threads() {
+		return activeWorkers;
+	}
+	
+	/**
+	 * Changes the number of worker threads. This must not be called while the trainer is training; from another thread,
+	 * use {@link ElasticWorkers#setLimit(int)} instead. The layer and its optimizer state are not touched. If the workers
+	 * have their own threads, the thread pool is resized; on a shared {@link ComputeScheduler}, only the number of tasks
+	 * per minibatch changes.
+	 * 
+	 * @param threads new number of workers (at least 1)
+	 */
+	public void setThreads(final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("A trainer needs at least one worker (got " + threads + ")");
+		}
+		
+		while (accumulators.size() < threads) {
+			accumulators.add(new GradientAccumulator<>(layer, errorFunc));
+		}
+		
+		if (pipelineAccumulators != null) {
+			for (int set = 0; set < pipelineAccumulators.size(); set++) {
+				final List<GradientAccumulator<I, O>> accumulatorSet = pipelineAccumulators.get(set);
+				
+				while (accumulatorSet.size() < threads) {
+					accumulatorSet.add(new GradientAccumulator<>(pipelineReplica, errorFunc));
+				}
+			}
+		}
+		
+		if (workers instanceof ThreadPoolExecutor) {
+			final ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+			
+			// The core size can never be more than the maximum size, so the order depends on the direction
+			if (threads > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threads);
+				pool.setCorePoolSize(threads);
+			} else {
+				pool.setCorePoolSize(threads);
+				pool.setMaximumPoolSize(threads);
+			}
+		}
+		
+		activeWorkers = threads;
+	}
+	
+	/**
+	 * Lets the number of workers change between minibatches, based on the throughput of every minibatch and on the cap set
+	 * with {@link ElasticWorkers#setLimit(int)} (see {@link ElasticWorkers}). {@link #trainEpoch(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpoch()}
+	 * and {@link #trainEpochPipelined(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpochPipelined()}
+	 * measure every minibatch; Hogwild training and {@link #evaluate(ElementContainer[], ElementContainer[], BiPredicate) evaluate()}
+	 * have no minibatches, so they only use the current count.
+	 * 
+	 * @param _elasticWorkers chooses the number of workers, or null to keep the current number
+	 */
+	public void setElasticWorkers(final ElasticWorkers _elasticWorkers) {
+		elasticWorkers = _elasticWorkers;
+		
+		if (elasticWorkers != null) {
+			setThreads(elasticWorkers.workers());
+		}
+	}
+	
+	/**
+	 * Makes this trainer one of several replicas that train the same network together. {@link #trainEpoch(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpoch()}
+	 * will then process only this replica's share of every minibatch and combine its gradients with the other replicas' before
+	 * every update. Every replica must have the same training data, the same initial parameters, and a {@link Random} with the
+	 * same seed, so that they all shuffle the data the same way. The other training modes do not use the exchange.
+	 * 
+	 * @param _exchange gradient exchange between the replicas, or null to train alone
+	 */
+	public void setGradientExchange(final GradientExchange _exchange) {
+		exchange = _exchange;
+	}
+	
+	/**
+	 * Limits the memory used by the activations of the samples in flight. Every training mode and {@link #evaluate(ElementContainer[], ElementContainer[], BiPredicate) evaluate()}
+	 * will admit a sample only when it fits in the budget, and the other workers wait until a sample finishes. This allows
+	 * more worker threads than the budget allows samples, without running out of memory; see {@link MemoryBudget#forNetwork(ParallelLayer, ElementContainer, long)}
+	 * to create a budget for the layer.
+	 * 
+	 * @param _memoryBudget memory budget for the samples in flight, or null to let every worker run a sample at all times
+	 */
+	public void setMemoryBudget(final MemoryBudget _memoryBudget) {
+		memoryBudget = _memoryBudget;
+	}
+	
+	/**
+	 * Captures a snapshot of the layer after every <code>_updatesPerSnapshot</code> updates, so that other threads can serve
+	 * predictions from a recent, consistent version of the layer while it is being trained (see {@link ModelSnapshots}). The
+	 * snapshots are captured between updates by {@link #trainEpoch(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpoch()}
+	 * and {@link #trainEpochPipelined(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpochPipelined()};
+	 * Hogwild training never has a moment between updates, so it does not capture snapshots.
+	 * 
+	 * @param _snapshots snapshots of {@link #layer}, or null to stop capturing snapshots
+	 * @param _updatesPerSnapshot number of updates between snapshots
+	 */
+	public void setSnapshots(final ModelSnapshots<I, O> _snapshots, final int _updatesPerSnapshot) {
+		snapshots = _snapshots;
+		updatesPerSnapshot = _updatesPerSnapshot;
+		updatesSinceSnapshot = 0;
+	}
+	
+	/**
+	 * Trains the layer for one epoch. The samples are shuffled, split into minibatches, and the layer is updated with the
+	 * summed gradients after each minibatch. If the number of samples is not a multiple of the minibatch size, the last minibatch
+	 * is smaller.
+	 * <p>
+	 * If there is a {@linkplain #setGradientExchange(GradientExchange) gradient exchange}, every minibatch has
+	 * <code>minibatchSize</code> samples for each replica, and this trainer processes only its own share. So that every replica
+	 * has the same number of samples in every minibatch, up to <code>worldSize() - 1</code> samples at the end of the shuffled
+	 * data are skipped in each epoch.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param minibatchSize number of samples in one minibatch
+	 * @param learningRate learning rate
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch (for this replica only). Each sample
+	 * 			is measured before the update for its minibatch
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker or the gradient exchange throws an exception
+	 */
+	public Result trainEpoch(final I[] inputs, final O[] expectedOutputs, final int minibatchSize, final double learningRate, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = shuffledOrder(inputs.length);
+		final int rank = (exchange == null) ? 0 : exchange.rank();
+		final int worldSize = (exchange == null) ? 1 : exchange.worldSize();
+		final int usable = order.length - (order.length % worldSize);
+		
+		Result total = new Result(0, 0, 0);
+		
+		for (int globalStart = 0; globalStart < usable; globalStart += minibatchSize * worldSize) {
+			adjustWorkers();
+			
+			final long minibatchStart = System.nanoTime();
+			final int share = (Math.min(globalStart + (minibatchSize * worldSize), usable) - globalStart) / worldSize;
+			final int start = globalStart + (rank * share);
+			final int end = start + share;
+			
+			final List<GradientAccumulator<I, O>> active = activeAccumulators(accumulators);
+			final Result minibatch = collect(startTraining(active, order, start, end, inputs, expectedOutputs, successTest));
+			total = total.plus(minibatch);
+			
+			final ParallelBackwardPass<I> gradients = GradientAccumulator.reduce(active, reducer);
+			
+			if (exchange != null) {
+				try {
+					exchange.exchange(gradients);
+				} catch (IOException e) {
+					throw new ExecutionException(e);
+				}
+			}
+			
+			layer.parallelUpdate(gradients, learningRate);
+			updated();
+			
+			for (int i = 0; i < active.size(); i++) {
+				active.get(i).reset();
+			}
+			
+			recordMinibatch(minibatch.samples, System.nanoTime() - minibatchStart);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Trains the layer for one epoch with Hogwild-style asynchronous SGD. The samples are shuffled and shared between the
+	 * workers as in {@link #trainEpoch(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpoch()}, but
+	 * there is no minibatch: each worker applies a plain SGD step with its own summed gradients after every
+	 * <code>samplesPerUpdate</code> of its samples, without locks and without waiting for the other workers. Workers only wait
+	 * for each other at the end of the epoch.
+	 * <p>
+	 * The updates race with each other and with the forward and backward passes of the other workers, so results are not
+	 * reproducible. Every layer with learnable parameters must support
+	 * {@link ParallelLayer#hogwildUpdate(ParallelBackwardPass, double)} (for example; {@link dezzy.neuronz2.ann.layers.DenseLayer}
+	 * and {@link dezzy.neuronz2.cnn.layers.ConvolutionLayer2}, but not {@link dezzy.neuronz2.arch.layers.BatchNormLayer}), and
+	 * must use {@link dezzy.neuronz2.arch.optimizers.Optimizer#SGD}: optimizer state such as momentum cannot be shared between
+	 * threads without locks, so the updates are always plain SGD steps, and a layer with another optimizer is rejected instead
+	 * of being trained with a different rule than it was given. This is checked (with {@link ParallelLayer#supportsHogwild()})
+	 * before any worker starts.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param samplesPerUpdate number of samples each worker sums the gradients of before it updates the layer (1 for pure Hogwild)
+	 * @param learningRate learning rate
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch. Each sample is measured
+	 * 			with the parameters as they were when the sample was processed
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 * @throws UnsupportedOperationException if a layer with learnable parameters does not support Hogwild updates, or does
+	 * 			not use plain SGD
+	 */
+	public Result trainEpochHogwild(final I[] inputs, final O[] expectedOutputs, final int samplesPerUpdate, final double learningRate, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		if (!layer.supportsHogwild()) {
+			throw new UnsupportedOperationException("Every layer with learnable parameters must support lock-free (Hogwild) updates and use Optimizer.SGD");
+		}
+		
+		adjustWorkers();
+		
+		final int[] order = shuffledOrder(inputs.length);
+		
+		final Result total = runWorkers(order, 0, order.length, (accumulator, sample) -> {
+			final ForwardPassResult<O> result = accumulator.train(inputs[sample], expectedOutputs[sample]);
+			
+			if (accumulator.samples() >= samplesPerUpdate) {
+				layer.hogwildUpdate(accumulator.gradients(), learningRate);
+				accumulator.reset();
+			}
+			
+			return result;
+		}, expectedOutputs, successTest);
+		
+		// Apply the gradients that were left over when the samples ran out
+		for (int i = 0; i < accumulators.size(); i++) {
+			final GradientAccumulator<I, O> accumulator = accumulators.get(i);
+			
+			if (accumulator.samples() > 0) {
+				layer.hogwildUpdate(accumulator.gradients(), learningRate);
+				accumulator.reset();
+			}
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Trains the layer for one epoch, like {@link #trainEpoch(ElementContainer[], ElementContainer[], int, double, BiPredicate) trainEpoch()},
+	 * but overlaps the update of the layer with the next minibatch. The workers run forward and backward passes through a copy
+	 * of the layer that holds the parameters from before the latest update (double buffering), while the calling thread
+	 * applies the gradients of the previous minibatch to the layer itself. Once both are done, the new parameters and statistics are copied
+	 * into the workers' copy, and the next minibatch starts.
+	 * <p>
+	 * The gradients of every minibatch are therefore calculated with parameters that are exactly one update out of date
+	 * (except for the first minibatch of the epoch). The layer is fully up to date when this function returns. This hides the
+	 * cost of {@link ParallelLayer#parallelUpdate(ParallelBackwardPass, double)}, which is large for big dense layers and
+	 * optimizers with several moments, at the cost of one extra copy of the parameters and two sets of gradient buffers.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param minibatchSize number of samples in one minibatch
+	 * @param learningRate learning rate
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch. Each sample is measured
+	 * 			with the parameters the workers used for its minibatch
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	public Result trainEpochPipelined(final I[] inputs, final O[] expectedOutputs, final int minibatchSize, final double learningRate, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		if (pipelineReplica == null) {
+			pipelineReplica = ParallelLayer.copyOf(layer);
+			pipelineAccumulators = new ArrayList<>(2);
+			
+			for (int set = 0; set < 2; set++) {
+				final List<GradientAccumulator<I, O>> accumulatorSet = new ArrayList<>(threads());
+				
+				for (int i = 0; i < threads(); i++) {
+					accumulatorSet.add(new GradientAccumulator<>(pipelineReplica, errorFunc));
+				}
+				
+				pipelineAccumulators.add(accumulatorSet);
+			}
+			
+			layerState = layer.state();
+			replicaState = pipelineReplica.state();
+		} else {
+			// The layer may have been trained some other way since the last pipelined epoch
+			copyStateToReplica();
+		}
+		
+		final int[] order = shuffledOrder(inputs.length);
+		
+		Result total = new Result(0, 0, 0);
+		List<GradientAccumulator<I, O>> pending = null;
+		ParallelBackwardPass<I> pendingGradients = null;
+		
+		for (int start = 0, set = 0; start < order.length; start += minibatchSize, set ^= 1) {
+			adjustWorkers();
+			
+			final long minibatchStart = System.nanoTime();
+			final int end = Math.min(start + minibatchSize, order.length);
+			final List<GradientAccumulator<I, O>> accumulatorSet = activeAccumulators(pipelineAccumulators.get(set));
+			
+			final List<Future<Result>> minibatch = startTraining(accumulatorSet, order, start, end, inputs, expectedOutputs, successTest);
+			
+			// Apply the previous minibatch's gradients while the workers run this one
+			if (pending != null) {
+				applyPipelined(pending, pendingGradients, learningRate);
+			}
+			
+			final Result minibatchResult = collect(minibatch);
+			total = total.plus(minibatchResult);
+			
+			if (pending != null) {
+				copyStateToReplica();
+			}
+			
+			pending = accumulatorSet;
+			pendingGradients = GradientAccumulator.reduce(accumulatorSet, reducer);
+			recordMinibatch(minibatchResult.samples, System.nanoTime() - minibatchStart);
+		}
+		
+		if (pending != null) {
+			applyPipelined(pending, pendingGradients, learningRate);
+			copyStateToReplica();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Runs every sample through the layer in inference mode (see {@link ParallelLayer#setTrainingMode(boolean)}), without
+	 * training. The layer is returned to training mode afterwards.
+	 * 
+	 * @param inputs test inputs
+	 * @param expectedOutputs expected output for each test input
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	public Result evaluate(final I[] inputs, final O[] expectedOutputs, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = new int[inputs.length];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		
+		adjustWorkers();
+		layer.setTrainingMode(false);
+		
+		try {
+			return runWorkers(order, 0, order.length, (accumulator, sample) -> {
+				final O actualOutput = layer.parallelForwardPass(inputs[sample]).output;
+				final double error = errorFunc.errorFunction.condense(expectedOutputs[sample], actualOutput);
+				
+				return new ForwardPassResult<>(actualOutput, error);
+			}, expectedOutputs, successTest);
+		} finally {
+			layer.setTrainingMode(true);
+		}
+	}
+	
+	/**
+	 * Stops the worker threads (but not a shared {@link ComputeScheduler}). The trainer cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		workers.shutdown();
+	}
+	
+	/**
+	 * Returns the indices from zero to <code>count - 1</code> in a random order.
+	 * 
+	 * @param count number of indices
+	 * @return shuffled indices
+	 */
+	private int[] shuffledOrder(final int count) {
+		final int[] order = new int[count];
+		
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		
+		for (int i = count - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		
+		return order;
+	}
+	
+	/**
+	 * Updates the layer with the gradients of one pipelined minibatch, and resets the accumulators that held them.
+	 * 
+	 * @param accumulatorSet accumulators of the minibatch
+	 * @param gradients summed gradients of the minibatch, or null if it had no samples
+	 * @param learningRate learning rate
+	 */
+	private void applyPipelined(final List<GradientAccumulator<I, O>> accumulatorSet, final ParallelBackwardPass<I> gradients, final double learningRate) {
+		if (gradients != null) {
+			layer.parallelUpdate(gradients, learningRate);
+			updated();
+		}
+		
+		for (int i = 0; i < accumulatorSet.size(); i++) {
+			accumulatorSet.get(i).reset();
+		}
+	}
+	
+	/**
+	 * Returns the accumulators of the active workers. This is a copy, so it stays valid if more accumulators are added later.
+	 * 
+	 * @param accumulatorSet one accumulator for each worker, and possibly more
+	 * @return the first {@link #activeWorkers} accumulators
+	 */
+	private List<GradientAccumulator<I, O>> activeAccumulators(final List<GradientAccumulator<I, O>> accumulatorSet) {
+		return List.copyOf(accumulatorSet.subList(0, activeWorkers));
+	}
+	
+	/**
+	 * Applies the worker count chosen by the {@linkplain #setElasticWorkers(ElasticWorkers) elastic workers}, if there are any.
+	 */
+	private void adjustWorkers() {
+		if (elasticWorkers != null && elasticWorkers.workers() != activeWorkers) {
+			setThreads(elasticWorkers.workers());
+		}
+	}
+	
+	/**
+	 * Reports the throughput of a minibatch to the {@linkplain #setElasticWorkers(ElasticWorkers) elastic workers}, if there
+	 * are any.
+	 * 
+	 * @param samples number of samples in the minibatch
+	 * @param nanos time taken by the minibatch, in nanoseconds
+	 */
+	private void recordMinibatch(final int samples, final long nanos) {
+		if (elasticWorkers != null) {
+			elasticWorkers.record(samples, nanos);
+		}
+	}
+	
+	/**
+	 * Counts an update of {@link #layer}, and captures a snapshot if one is due.
+	 */
+	private void updated() {
+		if (snapshots != null && ++updatesSinceSnapshot >= updatesPerSnapshot) {
+			snapshots.capture();
+			updatesSinceSnapshot = 0;
+		}
+	}
+	
+	/**
+	 * Copies the state of {@link #layer} into {@link #pipelineReplica}, one tensor per task on the workers. The state includes
+	 * statistics that are not learnable parameters (such as the running statistics of a
+	 * {@link dezzy.neuronz2.arch.layers.BatchNormLayer}), which are only updated in <code>layer</code>.
+	 * 
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a copy throws an exception
+	 */
+	private void copyStateToReplica() throws InterruptedException, ExecutionException {
+		final List<Callable<Object>> copies = new ArrayList<>(layerState.size());
+		
+		for (int i = 0; i < layerState.size(); i++) {
+			final ElementContainer<?> source = layerState.get(i);
+			final ElementContainer<?> destination = replicaState.get(i);
+			
+			copies.add(() -> {
+				destination.clear();
+				destination.unsafeAddInPlace(source);
+				
+				return null;
+			});
+		}
+		
+		final List<Future<Object>> futures = workers.invokeAll(copies);
+		
+		for (int i = 0; i < futures.size(); i++) {
+			futures.get(i).get();
+		}
+	}
+	
+	/**
+	 * Processes the samples <code>order[start]</code> to <code>order[end - 1]</code> on every worker, and waits for the
+	 * workers to finish. Each worker takes the next sample from a shared cursor until there are no samples left.
+	 * 
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @param task processes one sample on a worker
+	 * @param expectedOutputs expected output for each sample
+	 * @param successTest success test, or null
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private Result runWorkers(final int[] order, final int start, final int end, final SampleTask<I, O> task, final O[] expectedOutputs, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		return collect(startWorkers(activeAccumulators(accumulators), order, start, end, task, expectedOutputs, successTest));
+	}
+	
+	/**
+	 * Starts processing the samples <code>order[start]</code> to <code>order[end - 1]</code> on every worker, without waiting
+	 * for the workers to finish. Each worker takes the next sample from a shared cursor until there are no samples left.
+	 * 
+	 * @param accumulatorSet one accumulator for each worker
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @param task processes one sample on a worker
+	 * @param expectedOutputs expected output for each sample
+	 * @param successTest success test, or null
+	 * @return the result of each worker, to be given to {@link #collect(List)}
+	 */
+	private List<Future<Result>> startWorkers(final List<GradientAccumulator<I, O>> accumulatorSet, final int[] order, final int start, final int end, final SampleTask<I, O> task, final O[] expectedOutputs, final BiPredicate<O, O> successTest) {
+		final AtomicInteger cursor = new AtomicInteger(start);
+		final MemoryBudget budget = memoryBudget;
+		final ComputeScheduler shared = scheduler;
+		final List<Future<Result>> results = new ArrayList<>(accumulatorSet.size());
+		
+		for (int i = 0; i < accumulatorSet.size(); i++) {
+			final GradientAccumulator<I, O> accumulator = accumulatorSet.get(i);
+			
+			results.add(workers.submit(() -> {
+				int samples = 0;
+				double errorSum = 0;
+				int successes = 0;
+				
+				for (int position = cursor.getAndIncrement(); position < end; position = cursor.getAndIncrement()) {
+					final int sample = order[position];
+					final ForwardPassResult<O> result;
+					
+					if (budget == null) {
+						result = task.process(accumulator, sample);
+					} else {
+						budget.admit();
+						
+						try {
+							result = task.process(accumulator, sample);
+						} finally {
+							budget.release();
+						}
+					}
+					
+					samples++;
+					errorSum += result.error;
+					
+					if (successTest != null && successTest.test(result.actualOutput, expectedOutputs[sample])) {
+						successes++;
+					}
+					
+					// Let more urgent work on a shared scheduler run before the next sample
+					if (shared != null) {
+						shared.runPending(Priority.TRAINING);
+					}
+				}
+				
+				return new Result(samples, errorSum, successes);
+			}));
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Starts training on the samples <code>order[start]</code> to <code>order[end - 1]</code> on every worker, without waiting
+	 * for the workers to finish. Layers that {@linkplain ParallelLayer#usesBatchStatistics() use batch statistics} are trained
+	 * in batches (see {@link #startBatchWorkers(List, int[], int, int, ElementContainer[], ElementContainer[], BiPredicate) startBatchWorkers()}),
+	 * and other layers one sample at a time.
+	 * 
+	 * @param accumulatorSet one accumulator for each worker
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param successTest success test, or null
+	 * @return the result of each worker, to be given to {@link #collect(List)}
+	 */
+	private List<Future<Result>> startTraining(final List<GradientAccumulator<I, O>> accumulatorSet, final int[] order, final int start, final int end, final I[] inputs, final O[] expectedOutputs, final BiPredicate<O, O> successTest) {
+		if (accumulatorSet.get(0).layer.usesBatchStatistics()) {
+			return startBatchWorkers(accumulatorSet, order, start, end, inputs, expectedOutputs, successTest);
+		}
+		
+		return startWorkers(accumulatorSet, order, start, end, (accumulator, sample) -> accumulator.train(inputs[sample], expectedOutputs[sample]), expectedOutputs, successTest);
+	}
+	
+	/**
+	 * Starts training on the samples <code>order[start]</code> to <code>order[end - 1]</code> in batches, without waiting for
+	 * the workers to finish. Each worker takes a contiguous share of the samples and passes it through the layer as one batch
+	 * (see {@link GradientAccumulator#trainBatch(List, List)}). With a {@linkplain #setMemoryBudget(MemoryBudget) memory budget},
+	 * a share is split into batches that each take at most an equal part of the budget, and each batch is admitted at once.
+	 * 
+	 * @param accumulatorSet one accumulator for each worker
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param successTest success test, or null
+	 * @return the result of each worker, to be given to {@link #collect(List)}
+	 */
+	private List<Future<Result>> startBatchWorkers(final List<GradientAccumulator<I, O>> accumulatorSet, final int[] order, final int start, final int end, final I[] inputs, final O[] expectedOutputs, final BiPredicate<O, O> successTest) {
+		final MemoryBudget budget = memoryBudget;
+		final ComputeScheduler shared = scheduler;
+		final int workerCount = accumulatorSet.size();
+		final List<Future<Result>> results = new ArrayList<>(workerCount);
+		
+		for (int i = 0; i < workerCount; i++) {
+			final GradientAccumulator<I, O> accumulator = accumulatorSet.get(i);
+			final int shareStart = start + (int) (((end - start) * (long) i) / workerCount);
+			final int shareEnd = start + (int) (((end - start) * (long) (i + 1)) / workerCount);
+			final int batchSize = (budget == null) ? Math.max(1, shareEnd - shareStart) : Math.max(1, budget.maxInFlight / workerCount);
+			
+			results.add(workers.submit(() -> {
+				int samples = 0;
+				double errorSum = 0;
+				int successes = 0;
+				
+				for (int batchStart = shareStart; batchStart < shareEnd; batchStart += batchSize) {
+					final int batchEnd = Math.min(batchStart + batchSize, shareEnd);
+					final List<I> batchInputs = new ArrayList<>(batchEnd - batchStart);
+					final List<O> batchExpectedOutputs = new ArrayList<>(batchEnd - batchStart);
+					
+					for (int position = batchStart; position < batchEnd; position++) {
+						batchInputs.add(inputs[order[position]]);
+						batchExpectedOutputs.add(expectedOutputs[order[position]]);
+					}
+					
+					final List<ForwardPassResult<O>> batchResults;
+					
+					if (budget == null) {
+						batchResults = accumulator.trainBatch(batchInputs, batchExpectedOutputs);
+					} else {
+						budget.admit(batchInputs.size());
+						
+						try {
+							batchResults = accumulator.trainBatch(batchInputs, batchExpectedOutputs);
+						} finally {
+							budget.release(batchInputs.size());
+						}
+					}
+					
+					for (int j = 0; j < batchResults.size(); j++) {
+						final ForwardPassResult<O> result = batchResults.get(j);
+						
+						samples++;
+						errorSum += result.error;
+						
+						if (successTest != null && successTest.test(result.actualOutput, batchExpectedOutputs.get(j))) {
+							successes++;
+						}
+					}
+					
+					// Let more urgent work on a shared scheduler run before the next batch
+					if (shared != null) {
+						shared.runPending(Priority.TRAINING);
+					}
+				}
+				
+				return new Result(samples, errorSum, successes);
+			}));
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Waits for every worker started by {@link #startWorkers(List, int[], int, int, SampleTask, ElementContainer[], BiPredicate) startWorkers()}
+	 * to finish, and adds up their results.
+	 * 
+	 * @param results the result of each worker
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static Result collect(final List<Future<Result>> results) throws InterruptedException, ExecutionException {
+		Result total = new Result(0, 0, 0);
+		
+		for (int i = 0; i < results.size(); i++) {
+			total = total.plus(results.get(i).get());
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Processes one sample on a worker thread.
+	 * 
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 */
+	@FunctionalInterface
+	private interface SampleTask<I extends ElementContainer<I>, O extends ElementContainer<O>> {
+		
+		/**
+		 * Processes one sample.
+		 * 
+		 * @param accumulator the worker's gradient accumulator
+		 * @param sample index of the sample
+		 * @return actual output and error
+		 */
+		ForwardPassResult<O> process(final GradientAccumulator<I, O> accumulator, final int sample);
+	}
+	
+	/**
+	 * Totals over several samples (for example; one epoch).
+	 * 
+	 * @author Joe Desmond
+	 */
+	public static class Result {
+		
+		/**
+		 * The number of samples
+		 */
+		public final int samples;
+		
+		/**
+		 * The sum of the error of every sample
+		 */
+		public final double errorSum;
+		
+		/**
+		 * The number of samples that passed the success test
+		 */
+		public final int successes;
+		
+		/**
+		 * Creates a result with the given totals.
+		 * 
+		 * @param _samples number of samples
+		 * @param _errorSum sum of the error of every sample
+		 * @param _successes number of successful samples
+		 */
+		public Result(final int _samples, final double _errorSum, final int _successes) {
+			samples = _samples;
+			errorSum = _errorSum;
+			successes = _successes;
+		}
+		
+		/**
+		 * Returns the sum of this result and another.
+		 * 
+		 * @param other other result
+		 * @return combined totals
+		 */
+		public Result plus(final Result other) {
+			return new Result(samples + other.samples, errorSum + other.errorSum, successes + other.successes);
+		}
+		
+		/**
+		 * Returns the average error per sample.
+		 * 
+		 * @return average error, or zero if there are no samples
+		 */
+		public double meanError() {
+			return (samples == 0) ? 0 : errorSum / samples;
+		}
+		
+		/**
+		 * Returns the fraction of samples that passed the success test.
+		 * 
+		 * @return success rate, or zero if there are no samples
+		 */
+		public double successRate() {
+			return (samples == 0) ? 0 : successes / (double) samples;
+		}
+	}
+}
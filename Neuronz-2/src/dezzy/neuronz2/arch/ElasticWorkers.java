@@ -0,0 +1,283 @@
+package dezzy.neuronz2.arch;
+
+/**
+ * Chooses the number of workers of a {@link DataParallelTrainer} while it trains (see {@link DataParallelTrainer#setElasticWorkers(ElasticWorkers)}).
+ * When cores are shared with other work that comes and goes over the day, a fixed number of workers either leaves cores idle
+ * or oversubscribes them. With elastic workers, the trainer reports the throughput of every minibatch, and the number of
+ * workers is changed between minibatches by hill climbing: after measuring the throughput for a few minibatches, one worker
+ * is added (or removed), and the change is kept only if the throughput improves. If neither direction helps, the count is
+ * held for a while before trying again, so that changes in the load on the machine are eventually noticed.
+ * <p>
+ * Other code can also cap the number of workers at any time with {@link #setLimit(int)}; for example, when the machine starts
+ * serving inference and the trainer should give up some cores. The cap takes effect before the next minibatch, and the
+ * measurements start over.
+ * <p>
+ * Changing the number of workers never touches the layer, so the optimizer state (such as momentum) is kept.
+ *
+ * @author Joe Desmond
+ */
+public class ElasticWorkers {
+	
+	/**
+	 * The default number of minibatches that the throughput is measured over before each decision
+	 */
+	public static final int DEFAULT_WINDOW = 4;
+	
+	/**
+	 * The default relative improvement in throughput needed to keep a change
+	 */
+	public static final double DEFAULT_TOLERANCE = 0.05;
+	
+	/**
+	 * The number of windows to hold the worker count for after a change in either direction did not help
+	 */
+	public static final int HOLD_WINDOWS = 8;
+	
+	/**
+	 * The fewest workers to use
+	 */
+	public final int minWorkers;
+	
+	/**
+	 * The most workers to use
+	 */
+	public final int maxWorkers;
+	
+	/**
+	 * The number of minibatches that the throughput is measured over before each decision
+	 */
+	public final int window;
+	
+	/**
+	 * The relative improvement in throughput needed to keep a change (for example; 0.05 for 5%)
+	 */
+	public final double tolerance;
+	
+	/**
+	 * The cap set by {@link #setLimit(int)}
+	 */
+	private volatile int limit;
+	
+	/**
+	 * The cap that the current measurements were made under
+	 */
+	private int measuredLimit;
+	
+	/**
+	 * The number of workers to use for the next minibatch
+	 */
+	private int current;
+	
+	/**
+	 * The direction of the next change: 1 to add a worker, -1 to remove one
+	 */
+	private int direction = 1;
+	
+	/**
+	 * True if {@link #current} is a change that is being tried out
+	 */
+	private boolean probing = false;
+	
+	/**
+	 * The throughput measured before the change being tried out, in samples per second
+	 */
+	private double baseline = 0;
+	
+	/**
+	 * The number of changes in a row that did not help
+	 */
+	private int failedProbes = 0;
+	
+	/**
+	 * The number of windows that the worker count has been held for
+	 */
+	private int heldWindows = 0;
+	
+	/**
+	 * Minibatches in the current window
+	 */
+	private int windowMinibatches = 0;
+	
+	/**
+	 * Samples in the current window
+	 */
+	private long windowSamples = 0;
+	
+	/**
+	 * Time spent on the current window, in nanoseconds
+	 */
+	private long windowNanos = 0;
+	
+	/**
+	 * The throughput of the latest complete window, in samples per second
+	 */
+	private double throughput = 0;
+	
+	/**
+	 * Creates an elastic worker count that starts at <code>_initialWorkers</code> and stays between <code>_minWorkers</code>
+	 * and <code>_maxWorkers</code>.
+	 * 
+	 * @param _minWorkers fewest workers to use (at least 1)
+	 * @param _initialWorkers number of workers to start with
+	 * @param _maxWorkers most workers to use
+	 * @param _window number of minibatches to measure the throughput over before each decision
+	 * @param _tolerance relative improvement in throughput needed to keep a change
+	 */
+	public ElasticWorkers(final int _minWorkers, final int _initialWorkers, final int _maxWorkers, final int _window, final double _tolerance) {
+		if (_minWorkers < 1 || _maxWorkers < _minWorkers) {
+			throw new IllegalArgumentException("Worker range must satisfy 1 <= min <= max (got " + _minWorkers + " to " + _maxWorkers + ")");
+		}
+		
+		minWorkers = _minWorkers;
+		maxWorkers = _maxWorkers;
+		window = Math.max(1, _window);
+		tolerance = _tolerance;
+		limit = maxWorkers;
+		measuredLimit = maxWorkers;
+		current = Math.max(minWorkers, Math.min(maxWorkers, _initialWorkers));
+	}
+	
+	/**
+	 * Creates an elastic worker count between <code>_minWorkers</code> and <code>_maxWorkers</code>, starting with one worker per
+	 * available core, with the default window and tolerance.
+	 * 
+	 * @param _minWorkers fewest workers to use (at least 1)
+	 * @param _maxWorkers most workers to use
+	 */
+	public ElasticWorkers(final int _minWorkers, final int _maxWorkers) {
+		this(_minWorkers, Runtime.getRuntime().availableProcessors(), _maxWorkers, DEFAULT_WINDOW, DEFAULT_TOLERANCE);
+	}
+	
+	/**
+	 * Caps the number of workers, from any thread. The cap is applied before the trainer's next minibatch. It never goes below
+	 * {@link #minWorkers}; {@link #maxWorkers} removes the cap.
+	 * 
+	 * @param _limit the most workers to use from now on
+	 */
+	public void setLimit(final int _limit) {
+		limit = Math.max(minWorkers, Math.min(maxWorkers, _limit));
+	}
+	
+	/**
+	 * Returns the cap set by {@link #setLimit(int)}.
+	 * 
+	 * @return the most workers to use
+	 */
+	public int limit() {
+		return limit;
+	}
+	
+	/**
+	 * Returns the number of workers to use for the next minibatch.
+	 * 
+	 * @return number of workers
+	 */
+	public synchronized int workers() {
+		applyLimit();
+		
+		return current;
+	}
+	
+	/**
+	 * Returns the throughput measured over the latest complete window.
+	 * 
+	 * @return samples per second, or 0 if no window has been completed
+	 */
+	public synchronized double throughput() {
+		return throughput;
+	}
+	
+	/**
+	 * Records one minibatch, and changes the number of workers if the current window is complete.
+	 * 
+	 * @param samples number of samples in the minibatch
+	 * @param nanos time taken by the minibatch, including the update, in nanoseconds
+	 * @return number of workers to use for the next minibatch
+	 */
+	public synchronized int record(final int samples, final long nanos) {
+		applyLimit();
+		
+		windowMinibatches++;
+		windowSamples += samples;
+		windowNanos += nanos;
+		
+		if (windowMinibatches < window) {
+			return current;
+		}
+		
+		throughput = (windowNanos == 0) ? 0 : (windowSamples * 1e9) / windowNanos;
+		clearWindow();
+		
+		if (probing) {
+			if (throughput > baseline * (1 + tolerance)) {
+				// Keep the change, and try another one in the same direction
+				baseline = throughput;
+				failedProbes = 0;
+				step(false);
+			} else {
+				// Undo the change, and try the other direction after measuring again
+				current -= direction;
+				direction = -direction;
+				probing = false;
+				failedProbes++;
+			}
+		} else if (failedProbes >= 2 && heldWindows < HOLD_WINDOWS) {
+			heldWindows++;
+		} else {
+			if (failedProbes >= 2) {
+				failedProbes = 0;
+				heldWindows = 0;
+			}
+			
+			baseline = throughput;
+			step(true);
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Moves {@link #current} one worker in {@link #direction}, and starts trying out the change. At the edge of the allowed
+	 * range, the other direction is tried instead if <code>mayReverse</code> is true; otherwise, nothing is tried.
+	 * 
+	 * @param mayReverse true to try the other direction at the edge of the range
+	 */
+	private void step(final boolean mayReverse) {
+		final int upper = Math.min(maxWorkers, measuredLimit);
+		int next = Math.max(minWorkers, Math.min(upper, current + direction));
+		
+		if (next == current && mayReverse) {
+			direction = -direction;
+			next = Math.max(minWorkers, Math.min(upper, current + direction));
+		}
+		
+		probing = (next != current);
+		current = next;
+	}
+	
+	/**
+	 * If the cap has changed since the last call, applies it and starts the measurements over, since the throughput measured
+	 * under the old cap no longer says anything.
+	 */
+	private void applyLimit() {
+		final int newLimit = limit;
+		
+		if (newLimit != measuredLimit) {
+			measuredLimit = newLimit;
+			current = Math.min(current, newLimit);
+			probing = false;
+			failedProbes = 0;
+			heldWindows = 0;
+			clearWindow();
+		}
+	}
+	
+	/**
+	 * Starts a new measurement window.
+	 */
+	private void clearWindow() {
+		windowMinibatches = 0;
+		windowSamples = 0;
+		windowNanos = 0;
+	}
+}
@@ -0,0 +1,188 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.arch.error.CompleteErrorFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * One worker thread's gradient buffers for data-parallel training. Each worker owns one accumulator, and sums the gradients
+ * of every sample it processes in a minibatch into the same buffers (with
+ * {@link ParallelLayer#accumulateBackprop(ParallelForwardPass, ElementContainer, boolean, ParallelBackwardPass) accumulateBackprop()}),
+ * so memory use does not depend on the size of the minibatch. At the end of the minibatch, the accumulators of all the workers
+ * are {@linkplain #reduce(List, GradientReducer) reduced} once, the layer is updated, and every accumulator is {@linkplain #reset() reset}.
+ * <p>
+ * The buffers are created by the first call to {@link #train(ElementContainer, ElementContainer)}, so they are allocated by
+ * the thread that uses them. The counters that are written after every sample are padded so that accumulators owned by
+ * different threads do not share a cache line. The padding is split across superclasses ({@link AccumulatorPadding} and
+ * {@link AccumulatorCounters}), because the JVM may reorder the fields within a class but not across a class hierarchy.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class GradientAccumulator<I extends ElementContainer<I>, O extends ElementContainer<O>> extends AccumulatorCounters {
+	
+	/**
+	 * Padding after the counters in {@link AccumulatorCounters}. The fields of this class always come after the counters, in
+	 * whatever order, so this keeps the next object in memory off the counters' cache line.
+	 */
+	@SuppressWarnings("unused")
+	private long q0, q1, q2, q3, q4, q5, q6;
+	
+	/**
+	 * The layer (network) being trained
+	 */
+	public final ParallelLayer<I, O> layer;
+	
+	/**
+	 * Error function to use for calculating gradients
+	 */
+	public final CompleteErrorFunc<O> errorFunc;
+	
+	/**
+	 * The summed gradients, or null if no samples have been accumulated yet
+	 */
+	private ParallelBackwardPass<I> gradients = null;
+	
+	/**
+	 * Creates an empty gradient accumulator for the given layer.
+	 * 
+	 * @param _layer parallel layer network
+	 * @param _errorFunc error function to use for calculating gradients
+	 */
+	public GradientAccumulator(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc) {
+		layer = _layer;
+		errorFunc = _errorFunc;
+	}
+	
+	/**
+	 * Performs one forward and backward pass through the layer and adds the gradients to this accumulator.
+	 * Does not update the layer.
+	 * 
+	 * @param input input for the forward pass
+	 * @param expectedOutput expected output of the forward pass
+	 * @return actual output and error of the forward pass
+	 */
+	public ForwardPassResult<O> train(final I input, final O expectedOutput) {
+		if (gradients == null) {
+			gradients = new ParallelBackwardPass<>(null, layer.sublayers());
+		}
+		
+		final ParallelForwardPass<O> forwardPass = layer.parallelForwardPass(input);
+		final double error = errorFunc.errorFunction.condense(expectedOutput, forwardPass.output);
+		final O errorDeriv = errorFunc.errorFunctionDerivative.calculate(expectedOutput, forwardPass.output, error);
+		
+		layer.accumulateBackprop(forwardPass, errorDeriv, true, gradients);
+		
+		samples++;
+		errorSum += error;
+		
+		return new ForwardPassResult<>(forwardPass.output, error);
+	}
+	
+	/**
+	 * Passes a batch of samples forward and backward through the layer together (see {@link ParallelLayer#parallelForwardBatch(List)})
+	 * and adds the gradients to this accumulator, so that layers that {@linkplain ParallelLayer#usesBatchStatistics() use batch
+	 * statistics} normalize over the whole batch. Does not update the layer.
+	 * 
+	 * @param inputs input of each sample
+	 * @param expectedOutputs expected output of each sample
+	 * @return actual output and error of each sample
+	 */
+	public List<ForwardPassResult<O>> trainBatch(final List<I> inputs, final List<O> expectedOutputs) {
+		if (gradients == null) {
+			gradients = new ParallelBackwardPass<>(null, layer.sublayers());
+		}
+		
+		final List<ParallelForwardPass<O>> forwardPasses = layer.parallelForwardBatch(inputs);
+		final List<O> errorDerivs = new ArrayList<>(forwardPasses.size());
+		final List<ForwardPassResult<O>> results = new ArrayList<>(forwardPasses.size());
+		
+		for (int i = 0; i < forwardPasses.size(); i++) {
+			final O actualOutput = forwardPasses.get(i).output;
+			final double error = errorFunc.errorFunction.condense(expectedOutputs.get(i), actualOutput);
+			
+			errorDerivs.add(errorFunc.errorFunctionDerivative.calculate(expectedOutputs.get(i), actualOutput, error));
+			results.add(new ForwardPassResult<>(actualOutput, error));
+			
+			samples++;
+			errorSum += error;
+		}
+		
+		layer.accumulateBackpropBatch(forwardPasses, errorDerivs, true, gradients);
+		
+		return results;
+	}
+	
+	/**
+	 * Returns the number of samples accumulated since the last reset.
+	 * 
+	 * @return number of samples
+	 */
+	public long samples() {
+		return samples;
+	}
+	
+	/**
+	 * Returns the sum of the errors of every sample accumulated since the last reset.
+	 * 
+	 * @return sum of errors
+	 */
+	public double errorSum() {
+		return errorSum;
+	}
+	
+	/**
+	 * Returns the summed gradients of every sample accumulated since the last reset.
+	 * 
+	 * @return summed gradients, or null if no samples have been accumulated since this accumulator was created
+	 */
+	public ParallelBackwardPass<I> gradients() {
+		return gradients;
+	}
+	
+	/**
+	 * Sets the sample count, error sum, and every gradient and statistic to zero. The buffers are kept for the next minibatch.
+	 */
+	public void reset() {
+		samples = 0;
+		errorSum = 0;
+		
+		if (gradients != null) {
+			gradients.clear();
+		}
+	}
+	
+	/**
+	 * Sums the gradients of every accumulator that has at least one sample. The sum is stored in the buffers of the first
+	 * such accumulator, which are returned. Every accumulator should be {@linkplain #reset() reset} after the result is used.
+	 * 
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 * @param accumulators the accumulators of every worker
+	 * @param reducer gradient reducer
+	 * @return summed gradients, or null if no accumulator has any samples
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the reduction to finish
+	 * @throws ExecutionException if an addition throws an exception
+	 */
+	public static <I extends ElementContainer<I>, O extends ElementContainer<O>> ParallelBackwardPass<I> reduce(final List<GradientAccumulator<I, O>> accumulators, final GradientReducer reducer) throws InterruptedException, ExecutionException {
+		final List<ParallelBackwardPass<I>> passes = new ArrayList<>(accumulators.size());
+		
+		for (int i = 0; i < accumulators.size(); i++) {
+			final GradientAccumulator<I, O> accumulator = accumulators.get(i);
+			
+			if (accumulator.samples > 0) {
+				passes.add(accumulator.gradients);
+			}
+		}
+		
+		if (passes.isEmpty()) {
+			return null;
+		}
+		
+		return reducer.reduce(passes);
+	}
+}
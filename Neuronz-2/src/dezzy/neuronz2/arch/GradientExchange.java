@@ -0,0 +1,41 @@
+package dezzy.neuronz2.arch;
+
+import java.io.IOException;
+
+/**
+ * Combines the gradients of several replicas of the same network, each trained on a different part of the data (usually in
+ * different processes). Every replica calls {@link #exchange(ParallelBackwardPass)} once per step with its own summed
+ * gradients, and afterwards each replica holds the combined gradients, so every replica makes the same update. Statistics
+ * that are reported alongside the gradients (see {@link ParallelBackwardPass#statistics(int)}) are summed as well, but are
+ * never compressed.
+ * <p>
+ * The replicas are numbered from zero to <code>worldSize() - 1</code>. A {@link DataParallelTrainer} with an exchange
+ * (see {@link DataParallelTrainer#setGradientExchange(GradientExchange)}) trains only on its own share of every minibatch.
+ *
+ * @author Joe Desmond
+ */
+public interface GradientExchange {
+	
+	/**
+	 * Returns the number of this replica.
+	 * 
+	 * @return number of this replica, from zero to <code>worldSize() - 1</code>
+	 */
+	public int rank();
+	
+	/**
+	 * Returns the number of replicas taking part in the exchange.
+	 * 
+	 * @return number of replicas
+	 */
+	public int worldSize();
+	
+	/**
+	 * Replaces the gradients in <code>gradients</code> with the sum of the gradients of every replica, in place. Every
+	 * replica must call this the same number of times, with gradients in the same slots and of the same shapes.
+	 * 
+	 * @param gradients this replica's gradients; overwritten with the sum over every replica
+	 * @throws IOException if there is a problem communicating with the other replicas
+	 */
+	public void exchange(final ParallelBackwardPass<?> gradients) throws IOException;
+}
@@ -0,0 +1,145 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Sums the gradients of several {@linkplain ParallelBackwardPass backward passes} (for example; one per sample in a minibatch)
+ * with a pairwise tree reduction. At each level of the tree, pass <code>i</code> absorbs pass <code>i + stride</code>, and the
+ * pairs are added on separate threads. The sum is accumulated in place, so no new tensors are allocated. The result can be
+ * given directly to {@link ParallelLayer#parallelUpdate(ParallelBackwardPass, double)}.
+ * <p>
+ * <b>WARNING:</b> The gradients in the passes given to {@link #reduce(List)} are modified. The passes should not be used
+ * after they are reduced.
+ *
+ * @author Joe Desmond
+ */
+public class GradientReducer {
+	
+	/**
+	 * Runs the additions at each level of the tree
+	 */
+	private final ExecutorService executor;
+	
+	/**
+	 * Creates a gradient reducer that adds gradients on the threads of the given executor. {@link #reduce(List)}
+	 * must not be called from one of these threads, because it waits for the additions to finish.
+	 * 
+	 * @param _executor executor to run additions on
+	 */
+	public GradientReducer(final ExecutorService _executor) {
+		executor = _executor;
+	}
+	
+	/**
+	 * Sums the gradients of every pass. The first pass in the list is returned, and it holds the sum of all the gradients.
+	 * Every pass must have the same number of slots.
+	 * 
+	 * @param <I> input type of the layer
+	 * @param passes backward passes through the same layer; must not be empty
+	 * @return the first pass, with the sum of all the gradients
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the additions to finish
+	 * @throws ExecutionException if an addition throws an exception
+	 */
+	public <I extends ElementContainer<I>> ParallelBackwardPass<I> reduce(final List<ParallelBackwardPass<I>> passes) throws InterruptedException, ExecutionException {
+		final int count = passes.size();
+		final List<Future<?>> futures = new ArrayList<>();
+		
+		for (int stride = 1; stride < count; stride *= 2) {
+			int last = -1;
+			
+			for (int i = 0; i + stride < count; i += 2 * stride) {
+				if (last != -1) {
+					final ParallelBackwardPass<I> sum = passes.get(last);
+					final ParallelBackwardPass<I> other = passes.get(last + stride);
+					
+					futures.add(executor.submit(() -> accumulate(sum, other)));
+				}
+				
+				last = i;
+			}
+			
+			// The calling thread adds the last pair instead of waiting idly
+			accumulate(passes.get(last), passes.get(last + stride));
+			
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+			}
+			
+			futures.clear();
+		}
+		
+		return passes.get(0);
+	}
+	
+	/**
+	 * Adds the gradients and statistics of <code>other</code> to <code>sum</code>, in place. If <code>sum</code> has no
+	 * gradients (statistics) at a slot where <code>other</code> does, <code>sum</code> gets a copy of them, so that later
+	 * additions to <code>sum</code> never change the tensors of <code>other</code>.
+	 * 
+	 * @param sum pass to add gradients to
+	 * @param other pass to take gradients from
+	 */
+	public static void accumulate(final ParallelBackwardPass<?> sum, final ParallelBackwardPass<?> other) {
+		for (int slot = 0; slot < sum.slotCount(); slot++) {
+			final ElementContainer<?>[] otherGradients = other.gradients(slot);
+			
+			if (otherGradients != null) {
+				final ElementContainer<?>[] sumGradients = sum.gradients(slot);
+				
+				if (sumGradients == null) {
+					sum.setGradients(slot, copyOf(otherGradients));
+				} else {
+					addInPlace(sumGradients, otherGradients);
+				}
+			}
+			
+			final ElementContainer<?>[] otherStatistics = other.statistics(slot);
+			
+			if (otherStatistics != null) {
+				final ElementContainer<?>[] sumStatistics = sum.statistics(slot);
+				
+				if (sumStatistics == null) {
+					sum.setStatistics(slot, copyOf(otherStatistics));
+				} else {
+					addInPlace(sumStatistics, otherStatistics);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds each tensor of <code>other</code> to the matching tensor of <code>sum</code>, in place.
+	 * 
+	 * @param sum tensors to add to
+	 * @param other tensors to add
+	 */
+	private static void addInPlace(final ElementContainer<?>[] sum, final ElementContainer<?>[] other) {
+		for (int i = 0; i < sum.length; i++) {
+			sum[i].unsafeAddInPlace(other[i]);
+		}
+	}
+	
+	/**
+	 * Copies each gradient of a layer into a new tensor with the same shape.
+	 * 
+	 * @param gradients gradients of one layer
+	 * @return copies of the gradients
+	 */
+	private static ElementContainer<?>[] copyOf(final ElementContainer<?>[] gradients) {
+		final ElementContainer<?>[] copies = new ElementContainer<?>[gradients.length];
+		
+		for (int i = 0; i < gradients.length; i++) {
+			final double[] values = new double[gradients[i].elementCount()];
+			gradients[i].copyTo(values, 0);
+			copies[i] = (ElementContainer<?>) gradients[i].withElements(values, 0);
+		}
+		
+		return copies;
+	}
+}
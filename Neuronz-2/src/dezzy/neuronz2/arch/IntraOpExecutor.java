@@ -0,0 +1,165 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that split the work of a single sample in one layer (intra-op parallelism), as opposed to the workers of a
+ * {@link DataParallelTrainer}, which run different samples side by side. A layer that supports intra-op parallelism (see
+ * {@link IntraOpLayer}) splits a loop into ranges with {@link #forEachRange(int, int, RangeTask)}; the calling thread runs the
+ * first range itself, then runs any range that no other thread has started, and waits for the rest.
+ * <p>
+ * The ranges never wait for anything, so the same executor can safely be shared by every layer and every trainer worker. It can
+ * also run on the threads of a {@link ComputeScheduler}, with {@linkplain ComputeScheduler.Priority#INTRA_OP intra-op priority};
+ * since the calling thread runs every range that has not started, a range never waits for a thread that is busy with the
+ * sample that split it.
+ *
+ * @author Joe Desmond
+ */
+public class IntraOpExecutor implements AutoCloseable {
+	
+	/**
+	 * The threads that run the ranges
+	 */
+	private final ExecutorService threads;
+	
+	/**
+	 * Number of threads
+	 */
+	public final int threadCount;
+	
+	/**
+	 * Creates an intra-op executor with the given number of threads.
+	 * 
+	 * @param _threadCount number of threads
+	 */
+	public IntraOpExecutor(final int _threadCount) {
+		threadCount = _threadCount;
+		
+		final AtomicInteger threadNumber = new AtomicInteger(0);
+		threads = Executors.newFixedThreadPool(threadCount, runnable -> {
+			final Thread thread = new Thread(runnable, "IntraOpExecutor-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+	}
+	
+	/**
+	 * Creates an intra-op executor that runs its ranges on the threads of a compute scheduler, with
+	 * {@linkplain ComputeScheduler.Priority#INTRA_OP intra-op priority}. Closing this executor does not stop the scheduler.
+	 * 
+	 * @param scheduler shared compute scheduler
+	 */
+	public IntraOpExecutor(final ComputeScheduler scheduler) {
+		threadCount = scheduler.threadCount - scheduler.reservedForInference;
+		threads = scheduler.executor(ComputeScheduler.Priority.INTRA_OP);
+	}
+	
+	/**
+	 * Splits <code>[0, count)</code> into <code>degree</code> ranges of about the same size, and runs <code>task</code> on
+	 * every range. The calling thread runs the first range and every range that has not been started by another thread, and
+	 * this returns once every range is done. The task of a range that the calling thread runs is cancelled, so that it does not
+	 * stay queued (on a {@link ComputeScheduler}, it is removed from the queue).
+	 * 
+	 * @param degree number of ranges (at most <code>count</code> are used)
+	 * @param count number of items to split
+	 * @param task work to do on each range
+	 * @throws IllegalStateException if the calling thread is interrupted while waiting
+	 */
+	public void forEachRange(final int degree, final int count, final RangeTask task) {
+		final int ranges = Math.min(degree, count);
+		
+		if (ranges <= 1) {
+			task.run(0, count);
+			return;
+		}
+		
+		final List<Future<?>> futures = new ArrayList<>(ranges - 1);
+		final List<AtomicBoolean> claims = new ArrayList<>(ranges - 1);
+		
+		for (int i = 1; i < ranges; i++) {
+			final int start = (int) (((long) count * i) / ranges);
+			final int end = (int) (((long) count * (i + 1)) / ranges);
+			final AtomicBoolean claimed = new AtomicBoolean(false);
+			
+			// Whichever thread claims the range first runs it
+			claims.add(claimed);
+			futures.add(threads.submit(() -> {
+				if (claimed.compareAndSet(false, true)) {
+					task.run(start, end);
+				}
+			}));
+		}
+		
+		task.run(0, count / ranges);
+		
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				if (claims.get(i).compareAndSet(false, true)) {
+					// Not started yet, so run it here instead of waiting for a thread to take it
+					futures.get(i).cancel(false);
+					task.run((int) (((long) count * (i + 1)) / ranges), (int) (((long) count * (i + 2)) / ranges));
+				} else {
+					futures.get(i).get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for intra-op work", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new IllegalStateException("Intra-op work failed", e.getCause());
+		}
+	}
+	
+	/**
+	 * Runs <code>task</code> on <code>[0, count)</code>, split into <code>degree</code> ranges on <code>executor</code> if there is one.
+	 * 
+	 * @param executor intra-op executor, or null to run the whole range on the calling thread
+	 * @param degree number of ranges
+	 * @param count number of items to split
+	 * @param task work to do on each range
+	 */
+	public static void run(final IntraOpExecutor executor, final int degree, final int count, final RangeTask task) {
+		if (executor == null || degree <= 1) {
+			task.run(0, count);
+		} else {
+			executor.forEachRange(degree, count, task);
+		}
+	}
+	
+	/**
+	 * Stops the threads.
+	 */
+	@Override
+	public void close() {
+		threads.shutdown();
+	}
+	
+	/**
+	 * Work on a range of items
+	 * 
+	 * @author Joe Desmond
+	 */
+	@FunctionalInterface
+	public interface RangeTask {
+		
+		/**
+		 * Does the work for items <code>start</code> (inclusive) to <code>end</code> (exclusive).
+		 * 
+		 * @param start first item
+		 * @param end last item (exclusive)
+		 */
+		public void run(final int start, final int end);
+	}
+}
@@ -0,0 +1,40 @@
+package dezzy.neuronz2.arch;
+
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * A layer that can split the work of a single sample across several threads (intra-op parallelism). This pays off for
+ * layers that do a lot of work per sample (for example; a large {@link dezzy.neuronz2.ann.layers.DenseLayer} or an early
+ * {@link dezzy.neuronz2.cnn.layers.ConvolutionLayer2}), when there are more cores than samples being processed at once.
+ * {@link ParallelismScheduler} decides how far each layer should be split.
+ * <p>
+ * The executor and degree are not saved with the layer; a loaded or copied layer processes each sample on one thread.
+ *
+ * @author Joe Desmond
+ */
+public interface IntraOpLayer {
+	
+	/**
+	 * Sets the executor and the number of ranges that the work of one sample is split into.
+	 * 
+	 * @param executor threads to split the work across, or null to use only the calling thread
+	 * @param degree number of ranges to split the work into; 1 to use only the calling thread
+	 */
+	public void setIntraOpParallelism(final IntraOpExecutor executor, final int degree);
+	
+	/**
+	 * Returns the number of ranges that the work of one sample is split into.
+	 * 
+	 * @return intra-op degree; 1 if the work is not split
+	 */
+	public int intraOpDegree();
+	
+	/**
+	 * Estimates the number of floating point operations in one forward and backward pass through this layer, from the shapes
+	 * of its parameters and of the input.
+	 * 
+	 * @param input an input to this layer (only its shape is used)
+	 * @return estimated floating point operations per sample
+	 */
+	public long estimateFlops(final ElementContainer<?> input);
+}
@@ -6,9 +6,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import dezzy.neuronz2.arch.error.CompleteErrorFunc;
 import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
@@ -82,6 +84,44 @@ public class LayeredNetwork<I extends ElementContainer<I>, O extends ElementCont
 		network.backprop(errorDeriv, true);
 	}
 	
+	/**
+	 * Trains the network on one minibatch and updates it. If the network is a {@link ParallelLayer}, the whole minibatch is
+	 * passed through it at once (see {@link ParallelLayer#parallelForwardBatch(java.util.List)}), so layers that
+	 * {@linkplain ParallelLayer#usesBatchStatistics() use batch statistics} normalize over the minibatch. Otherwise, each sample
+	 * is passed forward and backward on its own, as with {@link #forwardPass(ElementContainer, ElementContainer) forwardPass()}
+	 * and {@link #backprop(ElementContainer, ElementContainer, double) backprop()}.
+	 * 
+	 * @param inputs input of each sample
+	 * @param expectedOutputs expected output of each sample
+	 * @param learningRate learning rate
+	 * @return the sum of the errors of every sample, before the update
+	 */
+	@SuppressWarnings("unchecked")
+	public final double trainBatch(final I[] inputs, final O[] expectedOutputs, final double learningRate) {
+		if (network instanceof ParallelLayer) {
+			final GradientAccumulator<I, O> accumulator = new GradientAccumulator<>((ParallelLayer<I, O>) network, errorFunc);
+			accumulator.trainBatch(Arrays.asList(inputs), Arrays.asList(expectedOutputs));
+			
+			if (accumulator.gradients() != null) {
+				((ParallelLayer<I, O>) network).parallelUpdate(accumulator.gradients(), learningRate);
+			}
+			
+			return accumulator.errorSum();
+		}
+		
+		double errorSum = 0;
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final ForwardPassResult<O> result = forwardPass(inputs[i], expectedOutputs[i]);
+			backprop(expectedOutputs[i], result.actualOutput, result.error);
+			errorSum += result.error;
+		}
+		
+		update(learningRate);
+		
+		return errorSum;
+	}
+	
 	/**
 	 * Updates the learnable parameters in the network.
 	 * 
@@ -91,6 +131,24 @@ public class LayeredNetwork<I extends ElementContainer<I>, O extends ElementCont
 		network.update(learningRate);
 	}
 	
+	/**
+	 * Sets the {@link Optimizer} used to update the learnable parameters in every layer of the network.
+	 * 
+	 * @param optimizer update rule for the learnable parameters
+	 */
+	public final void setOptimizer(final Optimizer optimizer) {
+		network.setOptimizer(optimizer);
+	}
+	
+	/**
+	 * Switches every layer in the network between training mode and inference mode.
+	 * 
+	 * @param training true for training mode, false for inference mode
+	 */
+	public final void setTrainingMode(final boolean training) {
+		network.setTrainingMode(training);
+	}
+	
 	/**
 	 * Saves this network to a file so that it can be run/trained later (with {@link #loadFrom}).
 	 * 
@@ -0,0 +1,453 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.error.CompleteErrorFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Trains a {@link ParallelLayer} with local SGD. Every worker thread trains its own deep copy (replica) of the network on its
+ * own part of the data, with ordinary minibatch updates, and the workers only synchronize every <code>k</code> minibatches:
+ * the parameters of all the replicas are then averaged in place, with every worker averaging a share of the
+ * {@linkplain dezzy.neuronz2.arch.layers.Layer#state() state tensors}. Compared to {@link DataParallelTrainer},
+ * which reduces the gradients of every minibatch, this trades some statistical efficiency for much less synchronization,
+ * which pays off when minibatches are small.
+ * <p>
+ * The first replica is the layer given to the constructor, so it holds the averaged parameters after every epoch. Each replica
+ * keeps its own optimizer state, which is not averaged. Statistics that are not learnable parameters (such as the running
+ * statistics of a {@link dezzy.neuronz2.arch.layers.BatchNormLayer}) are part of the state, so they are averaged along with
+ * the parameters. If the layer {@linkplain ParallelLayer#usesBatchStatistics() uses batch statistics}, each worker passes
+ * every minibatch through its replica as one batch.
+ * <p>
+ * The worker threads are daemon threads, but they should still be stopped with {@link #close()} when the trainer is no longer needed.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class LocalSGDTrainer<I extends ElementContainer<I>, O extends ElementContainer<O>> implements AutoCloseable {
+	
+	/**
+	 * The layer (network) being trained. This is the first replica
+	 */
+	public final ParallelLayer<I, O> layer;
+	
+	/**
+	 * Error function to use for calculating gradients
+	 */
+	public final CompleteErrorFunc<O> errorFunc;
+	
+	/**
+	 * Worker threads. Every epoch is one task per worker on this executor's queue
+	 */
+	private final ExecutorService workers;
+	
+	/**
+	 * One gradient accumulator per worker, each for a different replica of the network
+	 */
+	private final List<GradientAccumulator<I, O>> accumulators;
+	
+	/**
+	 * The {@linkplain ParallelLayer#state() state} (learnable parameters and statistics) of every replica, indexed by replica
+	 * and then by tensor
+	 */
+	private final ElementContainer<?>[][] replicaParameters;
+	
+	/**
+	 * The indices of the state tensors that each worker averages. The tensors are shared out so that every worker
+	 * averages about the same number of elements
+	 */
+	private final int[][] averagedParameters;
+	
+	/**
+	 * Scratch space for each worker, big enough for the largest parameter that it averages
+	 */
+	private final double[][] averageBuffers;
+	
+	/**
+	 * Used to shuffle the training data at the beginning of each epoch
+	 */
+	private final Random random;
+	
+	/**
+	 * Creates a local SGD trainer with the given number of worker threads, each with its own replica of the network.
+	 * 
+	 * @param _layer parallel layer network to train; becomes the first replica
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param threads number of worker threads (and replicas)
+	 * @param _random used to shuffle the training data
+	 */
+	public LocalSGDTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final int threads, final Random _random) {
+		layer = _layer;
+		errorFunc = _errorFunc;
+		random = _random;
+		
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		
+		workers = Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "LocalSGDTrainer-" + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		
+		accumulators = new ArrayList<>(threads);
+		replicaParameters = new ElementContainer<?>[threads][];
+		
+		for (int i = 0; i < threads; i++) {
+			final ParallelLayer<I, O> replica = (i == 0) ? layer : ParallelLayer.copyOf(layer);
+			
+			accumulators.add(new GradientAccumulator<>(replica, errorFunc));
+			replicaParameters[i] = replica.state().toArray(new ElementContainer<?>[0]);
+		}
+		
+		averagedParameters = shareParameters(replicaParameters[0], threads);
+		averageBuffers = new double[threads][];
+		
+		for (int i = 0; i < threads; i++) {
+			int maxSize = 0;
+			
+			for (final int parameter : averagedParameters[i]) {
+				maxSize = Math.max(maxSize, replicaParameters[0][parameter].elementCount());
+			}
+			
+			averageBuffers[i] = new double[maxSize];
+		}
+	}
+	
+	/**
+	 * Creates a local SGD trainer with one worker thread (and replica) per available core.
+	 * 
+	 * @param _layer parallel layer network to train; becomes the first replica
+	 * @param _errorFunc error function to use for calculating gradients
+	 */
+	public LocalSGDTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc) {
+		this(_layer, _errorFunc, Runtime.getRuntime().availableProcessors(), new Random());
+	}
+	
+	/**
+	 * Returns the number of worker threads, which is also the number of replicas.
+	 * 
+	 * @return number of worker threads
+	 */
+	public int threads() {
+		return accumulators.size();
+	}
+	
+	/**
+	 * Returns one of the replicas. Replica zero is {@link #layer}.
+	 * 
+	 * @param index index of the replica, from zero to <code>threads() - 1</code>
+	 * @return the replica trained by worker <code>index</code>
+	 */
+	public ParallelLayer<I, O> replica(final int index) {
+		return accumulators.get(index).layer;
+	}
+	
+	/**
+	 * Trains the layer for one epoch. The samples are shuffled and split into one contiguous shard per worker. Each worker
+	 * trains its replica on its shard in minibatches, and after every <code>stepsPerAverage</code> minibatches, the workers
+	 * wait for each other and average the parameters (and statistics) of all the replicas. They are always averaged at the end
+	 * of the epoch, so every replica (including {@link #layer}) has the same parameters when this function returns.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param minibatchSize number of samples in one minibatch of one worker
+	 * @param stepsPerAverage number of minibatches each worker trains on between averages
+	 * @param learningRate learning rate
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch. Each sample is measured
+	 * 			by its worker's replica before the update for its minibatch
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	public Result trainEpoch(final I[] inputs, final O[] expectedOutputs, final int minibatchSize, final int stepsPerAverage, final double learningRate, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = shuffledOrder(inputs.length);
+		final boolean batched = layer.usesBatchStatistics();
+		final int threads = threads();
+		final int largestShard = (order.length + threads - 1) / threads;
+		final int samplesPerRound = minibatchSize * stepsPerAverage;
+		final int rounds = Math.max(1, (largestShard + samplesPerRound - 1) / samplesPerRound);
+		
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final List<Callable<Result>> tasks = new ArrayList<>(threads);
+		
+		for (int i = 0; i < threads; i++) {
+			final int worker = i;
+			final int shardStart = (int) ((long) order.length * worker / threads);
+			final int shardEnd = (int) ((long) order.length * (worker + 1) / threads);
+			
+			tasks.add(() -> {
+				try {
+					final GradientAccumulator<I, O> accumulator = accumulators.get(worker);
+					
+					int samples = 0;
+					double errorSum = 0;
+					int successes = 0;
+					
+					for (int round = 0; round < rounds; round++) {
+						final int roundEnd = Math.min(shardStart + ((round + 1) * samplesPerRound), shardEnd);
+						
+						for (int start = shardStart + (round * samplesPerRound); start < roundEnd; start += minibatchSize) {
+							final int end = Math.min(start + minibatchSize, roundEnd);
+							
+							final List<ForwardPassResult<O>> results = batched ? trainBatch(accumulator, inputs, expectedOutputs, order, start, end) : null;
+							
+							for (int position = start; position < end; position++) {
+								final int sample = order[position];
+								final ForwardPassResult<O> result = batched ? results.get(position - start) : accumulator.train(inputs[sample], expectedOutputs[sample]);
+								
+								samples++;
+								errorSum += result.error;
+								
+								if (successTest != null && successTest.test(result.actualOutput, expectedOutputs[sample])) {
+									successes++;
+								}
+							}
+							
+							accumulator.layer.parallelUpdate(accumulator.gradients(), learningRate);
+							accumulator.reset();
+						}
+						
+						// Every replica must be finished with its local steps before any parameters are averaged,
+						// and every parameter must be averaged before any replica starts its next local steps
+						barrier.await();
+						average(worker);
+						barrier.await();
+					}
+					
+					return new Result(samples, errorSum, successes);
+				} catch (RuntimeException | Error e) {
+					// Release the other workers if they are waiting for this one
+					barrier.reset();
+					throw e;
+				}
+			});
+		}
+		
+		return sum(workers.invokeAll(tasks));
+	}
+	
+	/**
+	 * Runs every sample through the replicas in inference mode (see {@link ParallelLayer#setTrainingMode(boolean)}), without
+	 * training. The replicas are returned to training mode afterwards.
+	 * 
+	 * @param inputs test inputs
+	 * @param expectedOutputs expected output for each test input
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	public Result evaluate(final I[] inputs, final O[] expectedOutputs, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final AtomicInteger cursor = new AtomicInteger(0);
+		final List<Callable<Result>> tasks = new ArrayList<>(threads());
+		
+		for (int i = 0; i < threads(); i++) {
+			tasks.add(() -> {
+				int samples = 0;
+				double errorSum = 0;
+				int successes = 0;
+				
+				for (int sample = cursor.getAndIncrement(); sample < inputs.length; sample = cursor.getAndIncrement()) {
+					final O actualOutput = layer.parallelForwardPass(inputs[sample]).output;
+					
+					samples++;
+					errorSum += errorFunc.errorFunction.condense(expectedOutputs[sample], actualOutput);
+					
+					if (successTest != null && successTest.test(actualOutput, expectedOutputs[sample])) {
+						successes++;
+					}
+				}
+				
+				return new Result(samples, errorSum, successes);
+			});
+		}
+		
+		layer.setTrainingMode(false);
+		
+		try {
+			return sum(workers.invokeAll(tasks));
+		} finally {
+			layer.setTrainingMode(true);
+		}
+	}
+	
+	/**
+	 * Stops the worker threads. The trainer cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		workers.shutdown();
+	}
+	
+	/**
+	 * Passes the samples <code>order[start]</code> to <code>order[end - 1]</code> through a replica as one batch.
+	 * 
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 * @param accumulator the worker's gradient accumulator
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @return actual output and error of each sample, in order
+	 */
+	private static <I extends ElementContainer<I>, O extends ElementContainer<O>> List<ForwardPassResult<O>> trainBatch(final GradientAccumulator<I, O> accumulator, final I[] inputs, final O[] expectedOutputs, final int[] order, final int start, final int end) {
+		final List<I> batchInputs = new ArrayList<>(end - start);
+		final List<O> batchExpectedOutputs = new ArrayList<>(end - start);
+		
+		for (int position = start; position < end; position++) {
+			batchInputs.add(inputs[order[position]]);
+			batchExpectedOutputs.add(expectedOutputs[order[position]]);
+		}
+		
+		return accumulator.trainBatch(batchInputs, batchExpectedOutputs);
+	}
+	
+	/**
+	 * Averages the state tensors assigned to the given worker across every replica, in place.
+	 * 
+	 * @param worker index of the worker
+	 */
+	private void average(final int worker) {
+		final double[] buffer = averageBuffers[worker];
+		final double scale = 1.0 / replicaParameters.length;
+		
+		for (final int parameter : averagedParameters[worker]) {
+			final ElementContainer<?> first = replicaParameters[0][parameter];
+			
+			for (int replica = 1; replica < replicaParameters.length; replica++) {
+				first.unsafeAddInPlace(replicaParameters[replica][parameter]);
+			}
+			
+			first.copyTo(buffer, 0);
+			
+			final int size = first.elementCount();
+			
+			for (int i = 0; i < size; i++) {
+				buffer[i] *= scale;
+			}
+			
+			for (int replica = 0; replica < replicaParameters.length; replica++) {
+				replicaParameters[replica][parameter].copyFrom(buffer, 0);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indices from zero to <code>count - 1</code> in a random order.
+	 * 
+	 * @param count number of indices
+	 * @return shuffled indices
+	 */
+	private int[] shuffledOrder(final int count) {
+		final int[] order = new int[count];
+		
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		
+		for (int i = count - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		
+		return order;
+	}
+	
+	/**
+	 * Shares the given state tensors out between the workers. The largest tensors are given out first, each to the worker
+	 * with the fewest elements so far.
+	 * 
+	 * @param parameters state tensors of one replica
+	 * @param threads number of workers
+	 * @return the indices of the tensors that each worker averages
+	 */
+	private static int[][] shareParameters(final ElementContainer<?>[] parameters, final int threads) {
+		final List<Integer> bySize = new ArrayList<>(parameters.length);
+		
+		for (int i = 0; i < parameters.length; i++) {
+			bySize.add(i);
+		}
+		
+		bySize.sort((a, b) -> Integer.compare(parameters[b].elementCount(), parameters[a].elementCount()));
+		
+		final List<List<Integer>> shares = new ArrayList<>(threads);
+		final long[] loads = new long[threads];
+		
+		for (int i = 0; i < threads; i++) {
+			shares.add(new ArrayList<>());
+		}
+		
+		for (final int parameter : bySize) {
+			int leastLoaded = 0;
+			
+			for (int i = 1; i < threads; i++) {
+				if (loads[i] < loads[leastLoaded]) {
+					leastLoaded = i;
+				}
+			}
+			
+			shares.get(leastLoaded).add(parameter);
+			loads[leastLoaded] += parameters[parameter].elementCount();
+		}
+		
+		final int[][] out = new int[threads][];
+		
+		for (int i = 0; i < threads; i++) {
+			out[i] = shares.get(i).stream().mapToInt(Integer::intValue).toArray();
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Waits for every result and adds them together.
+	 * 
+	 * @param results results of every worker
+	 * @return total
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 * @throws ExecutionException if a worker threw an exception
+	 */
+	private static Result sum(final List<Future<Result>> results) throws InterruptedException, ExecutionException {
+		Result total = new Result(0, 0, 0);
+		ExecutionException brokenBarrier = null;
+		
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				total = total.plus(results.get(i).get());
+			} catch (ExecutionException e) {
+				// Report the worker that failed rather than the workers that were released by it
+				if (!(e.getCause() instanceof BrokenBarrierException)) {
+					throw e;
+				}
+				
+				brokenBarrier = e;
+			}
+		}
+		
+		if (brokenBarrier != null) {
+			throw brokenBarrier;
+		}
+		
+		return total;
+	}
+}
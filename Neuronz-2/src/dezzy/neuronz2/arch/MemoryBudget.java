@@ -0,0 +1,186 @@
+package dezzy.neuronz2.arch;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Limits the number of samples in flight at once so that their activations fit in a fixed amount of memory. Every sample
+ * in flight keeps the inputs and outputs of every layer alive in its {@link ParallelForwardPass} until backpropagation is
+ * done, so with large inputs (for example; 256x256x3 images) the number of worker threads of a {@link DataParallelTrainer}
+ * is limited by the heap rather than by the number of cores. With a budget (see {@link DataParallelTrainer#setMemoryBudget(MemoryBudget)}),
+ * a worker waits before starting a sample until the activations of the samples already in flight and the new one all fit,
+ * so the trainer can have more threads than the budget allows samples, without running out of memory.
+ * <p>
+ * The activation size of one sample is estimated once from the shapes of the network's tensors
+ * ({@link #estimateSampleBytes(ParallelLayer, ElementContainer)}). Every sample of a network has the same shapes, so the
+ * budget admits a fixed number of samples at a time. Gradient buffers and parameters are not part of the budget: they do not
+ * depend on the number of samples in flight.
+ *
+ * @author Joe Desmond
+ */
+public class MemoryBudget {
+	
+	/**
+	 * The most memory that the activations of the samples in flight may use, in bytes
+	 */
+	public final long capacityBytes;
+	
+	/**
+	 * The estimated size of the activations of one sample, in bytes
+	 */
+	public final long sampleBytes;
+	
+	/**
+	 * The number of samples that fit in the budget (always at least one)
+	 */
+	public final int maxInFlight;
+	
+	/**
+	 * One permit per sample that fits in the budget
+	 */
+	private final Semaphore admitted;
+	
+	/**
+	 * The number of samples in flight
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	
+	/**
+	 * The most samples that have been in flight at once
+	 */
+	private final AtomicInteger peakInFlight = new AtomicInteger(0);
+	
+	/**
+	 * Creates a memory budget for samples of the given size. If one sample is bigger than the budget, samples are admitted
+	 * one at a time.
+	 * 
+	 * @param _capacityBytes the most memory that the activations of the samples in flight may use, in bytes
+	 * @param _sampleBytes the size of the activations of one sample, in bytes
+	 */
+	public MemoryBudget(final long _capacityBytes, final long _sampleBytes) {
+		capacityBytes = _capacityBytes;
+		sampleBytes = _sampleBytes;
+		maxInFlight = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacityBytes / Math.max(1, sampleBytes)));
+		admitted = new Semaphore(maxInFlight);
+	}
+	
+	/**
+	 * Creates a memory budget for a network, with the size of one sample's activations estimated by
+	 * {@link #estimateSampleBytes(ParallelLayer, ElementContainer)}.
+	 * 
+	 * @param <I> input tensor type
+	 * @param network the network that the samples go through
+	 * @param sampleInput an input to the network
+	 * @param capacityBytes the most memory that the activations of the samples in flight may use, in bytes
+	 * @return a memory budget for the network
+	 */
+	public static <I extends ElementContainer<I>> MemoryBudget forNetwork(final ParallelLayer<I, ?> network, final I sampleInput, final long capacityBytes) {
+		return new MemoryBudget(capacityBytes, estimateSampleBytes(network, sampleInput));
+	}
+	
+	/**
+	 * Estimates the memory used by the activations of one sample while it is in flight. One forward pass is run on
+	 * <code>sampleInput</code> to find the shape of every tensor that the pass keeps for backpropagation (see
+	 * {@link ParallelForwardPass#sizeInBytes()}). During backpropagation, the derivatives with respect to the output and the
+	 * input of a layer are alive at the same time, so room for two copies of the largest of these tensors is added.
+	 * <p>
+	 * The network must not be updated by another thread during this call.
+	 * 
+	 * @param <I> input tensor type
+	 * @param network the network that the samples go through
+	 * @param sampleInput an input to the network (only the shapes of the tensors are used)
+	 * @return estimated size of the activations of one sample, in bytes
+	 */
+	public static <I extends ElementContainer<I>> long estimateSampleBytes(final ParallelLayer<I, ?> network, final I sampleInput) {
+		final ParallelForwardPass<?> pass = network.parallelForwardPass(sampleInput);
+		long largest = pass.output.elementCount();
+		
+		for (int slot = 0; slot < pass.slotCount(); slot++) {
+			if (pass.latestInput(slot) != null) {
+				largest = Math.max(largest, pass.latestInput(slot).elementCount());
+			}
+			
+			if (pass.latestOutput(slot) != null) {
+				largest = Math.max(largest, pass.latestOutput(slot).elementCount());
+			}
+		}
+		
+		return pass.sizeInBytes() + (2 * largest * Double.BYTES);
+	}
+	
+	/**
+	 * Waits until one more sample fits in the budget, and admits it. Every call must be followed by a call to {@link #release()}
+	 * once the sample's activations are no longer needed.
+	 * 
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public void admit() throws InterruptedException {
+		admit(1);
+	}
+	
+	/**
+	 * Waits until <code>count</code> more samples fit in the budget, and counts them as in flight. A batch of samples that must
+	 * be in flight together (see {@link ParallelLayer#parallelForwardBatch(java.util.List)}) is admitted all at once, so that two
+	 * half-admitted batches never wait for each other. Every call must be followed by a call to {@link #release(int)} with the same
+	 * count, once the samples are done.
+	 * 
+	 * @param count number of samples, at most {@link #maxInFlight}
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void admit(final int count) throws InterruptedException {
+		if (count > maxInFlight) {
+			throw new IllegalArgumentException("Cannot admit " + count + " samples at once with a budget of " + maxInFlight);
+		}
+		
+		admitted.acquire(count);
+		
+		final int current = inFlight.addAndGet(count);
+		peakInFlight.accumulateAndGet(current, Math::max);
+	}
+	
+	/**
+	 * Releases the memory of a sample admitted by {@link #admit()}.
+	 */
+	public void release() {
+		release(1);
+	}
+	
+	/**
+	 * Marks <code>count</code> samples admitted by {@link #admit(int)} as done.
+	 * 
+	 * @param count number of samples
+	 */
+	public void release(final int count) {
+		inFlight.addAndGet(-count);
+		admitted.release(count);
+	}
+	
+	/**
+	 * Returns the number of samples in flight.
+	 * 
+	 * @return number of samples admitted and not yet released
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Returns the most samples that have been in flight at once since this budget was created.
+	 * 
+	 * @return peak number of samples in flight
+	 */
+	public int peakInFlight() {
+		return peakInFlight.get();
+	}
+	
+	/**
+	 * Returns the estimated memory used by the most samples that have been in flight at once.
+	 * 
+	 * @return peak estimated activation memory, in bytes
+	 */
+	public long peakBytes() {
+		return peakInFlight() * sampleBytes;
+	}
+}
@@ -0,0 +1,350 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Consistent, immutable snapshots of a model that is being trained, for serving predictions while training continues. A
+ * snapshot is a copy of the model (in inference mode) whose {@linkplain Layer#state() state} was copied from the live model
+ * in memory by {@link #capture()}; training keeps updating the live model, and never touches a snapshot. This replaces saving
+ * the model to disk and loading it again, which takes seconds.
+ * <p>
+ * Snapshots are reference counted. {@link #acquire()} returns the latest snapshot, which stays valid (and unchanged) until it
+ * is {@linkplain Snapshot#close() closed}, even if newer snapshots are captured in the meantime. Once a snapshot has been
+ * replaced and every reader has closed it, its copy of the model is reused by a later capture, so the number of copies only
+ * grows while readers hold on to old snapshots: usually there are two (the latest snapshot, and one being filled in).
+ * <p>
+ * {@link #capture()} must be called between updates of the live model, so that the snapshot is consistent; for example, by
+ * a {@link DataParallelTrainer} (see {@link DataParallelTrainer#setSnapshots(ModelSnapshots, int)}), or after
+ * {@link LayeredNetwork#update(double)} when training by hand. Copying the state takes about as long as one pass over the
+ * parameters, which is much shorter than an update.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class ModelSnapshots<I extends ElementContainer<I>, O extends ElementContainer<O>> {
+	
+	/**
+	 * The live model, which is being trained
+	 */
+	public final Layer<I, O> live;
+	
+	/**
+	 * The state of the live model
+	 */
+	private final List<ElementContainer<?>> liveState;
+	
+	/**
+	 * The latest snapshot
+	 */
+	private final AtomicReference<Version<I, O>> latest = new AtomicReference<>();
+	
+	/**
+	 * Copies of the model that no snapshot is using
+	 */
+	private final ArrayDeque<Replica<I, O>> free = new ArrayDeque<>();
+	
+	/**
+	 * The number of copies of the model that have been created
+	 */
+	private int replicas = 0;
+	
+	/**
+	 * The version of the latest snapshot
+	 */
+	private long version = 0;
+	
+	/**
+	 * Creates snapshots of the given model, and captures the first snapshot.
+	 * 
+	 * @param _live the model being trained
+	 */
+	public ModelSnapshots(final Layer<I, O> _live) {
+		live = _live;
+		liveState = live.state();
+		
+		capture();
+	}
+	
+	/**
+	 * Creates snapshots of the layers of a network, and captures the first snapshot.
+	 * 
+	 * @param network the network being trained
+	 */
+	public ModelSnapshots(final LayeredNetwork<I, O> network) {
+		this(network.network);
+	}
+	
+	/**
+	 * Copies the state of the live model into a copy that no reader is using (or a new copy, if every copy is in use), and
+	 * makes it the latest snapshot. Readers that already hold the previous snapshot keep using it until they close it. This
+	 * must not be called while the live model is being updated.
+	 * 
+	 * @return version of the new snapshot (the number of snapshots captured so far)
+	 */
+	public synchronized long capture() {
+		Replica<I, O> replica;
+		
+		synchronized (free) {
+			replica = free.poll();
+		}
+		
+		if (replica == null) {
+			replica = new Replica<>(Layer.copyOf(live));
+			replicas++;
+		}
+		
+		for (int i = 0; i < liveState.size(); i++) {
+			final ElementContainer<?> destination = replica.state.get(i);
+			
+			destination.clear();
+			destination.unsafeAddInPlace(liveState.get(i));
+		}
+		
+		version++;
+		
+		final Version<I, O> previous = latest.getAndSet(new Version<>(replica, version));
+		
+		if (previous != null) {
+			previous.release(this);
+		}
+		
+		return version;
+	}
+	
+	/**
+	 * Returns a new snapshot of the latest version. The snapshot must be {@linkplain Snapshot#close() closed} when the caller
+	 * is done with it; until then, it does not change.
+	 * 
+	 * @return a snapshot of the latest version
+	 */
+	public Snapshot<I, O> acquire() {
+		while (true) {
+			final Version<I, O> current = latest.get();
+			
+			if (current.retain()) {
+				return new Snapshot<>(this, current);
+			}
+			
+			// The version was replaced and released between reading it and retaining it, so read the new one
+		}
+	}
+	
+	/**
+	 * Returns the number of copies of the model that have been created for snapshots.
+	 * 
+	 * @return number of copies
+	 */
+	public synchronized int replicaCount() {
+		return replicas;
+	}
+	
+	/**
+	 * Returns a copy of the model that is no longer used by any snapshot.
+	 * 
+	 * @param replica unused copy
+	 */
+	private void recycle(final Replica<I, O> replica) {
+		synchronized (free) {
+			free.add(replica);
+		}
+	}
+	
+	/**
+	 * A copy of the model, and its state.
+	 * 
+	 * @author Joe Desmond
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 */
+	private static final class Replica<I extends ElementContainer<I>, O extends ElementContainer<O>> {
+		
+		/**
+		 * The copy, in inference mode
+		 */
+		final Layer<I, O> layer;
+		
+		/**
+		 * The state of the copy
+		 */
+		final List<ElementContainer<?>> state;
+		
+		/**
+		 * Wraps a new copy of the model.
+		 * 
+		 * @param _layer new copy of the model
+		 */
+		Replica(final Layer<I, O> _layer) {
+			layer = _layer;
+			state = layer.state();
+			
+			// A snapshot is never trained, so drop the copy of the optimizer state (such as momentum)
+			layer.setOptimizer(Optimizer.SGD);
+			layer.setTrainingMode(false);
+		}
+	}
+	
+	/**
+	 * One captured version of the model: a copy of the model, shared by every reader of that version.
+	 * 
+	 * @author Joe Desmond
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 */
+	private static final class Version<I extends ElementContainer<I>, O extends ElementContainer<O>> {
+		
+		/**
+		 * The version number; later versions have higher numbers
+		 */
+		final long number;
+		
+		/**
+		 * The copy of the model that this version uses
+		 */
+		final Replica<I, O> replica;
+		
+		/**
+		 * The number of open snapshots of this version, plus one while it is the latest version. The copy of the model is
+		 * recycled when this reaches zero
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+		
+		/**
+		 * Creates a version. The version starts with one reference, which belongs to {@link ModelSnapshots#latest}.
+		 * 
+		 * @param _replica the copy of the model that this version uses
+		 * @param _number the version number
+		 */
+		Version(final Replica<I, O> _replica, final long _number) {
+			replica = _replica;
+			number = _number;
+		}
+		
+		/**
+		 * Adds a reference, unless this version has already been released.
+		 * 
+		 * @return true if the reference was added
+		 */
+		boolean retain() {
+			while (true) {
+				final int count = references.get();
+				
+				if (count == 0) {
+					return false;
+				}
+				
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+		
+		/**
+		 * Removes a reference, and recycles the copy of the model once no reference is left.
+		 * 
+		 * @param owner the snapshots that this version belongs to
+		 */
+		void release(final ModelSnapshots<I, O> owner) {
+			if (references.decrementAndGet() == 0) {
+				owner.recycle(replica);
+			}
+		}
+	}
+	
+	/**
+	 * One reader's handle on an immutable version of the model. Every call to {@link ModelSnapshots#acquire()} returns a new
+	 * handle, which must be closed when the reader is done with it.
+	 * 
+	 * @author Joe Desmond
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 */
+	public static final class Snapshot<I extends ElementContainer<I>, O extends ElementContainer<O>> implements AutoCloseable {
+		
+		/**
+		 * The version of this snapshot; later snapshots have higher versions
+		 */
+		public final long version;
+		
+		/**
+		 * The snapshots that this belongs to
+		 */
+		private final ModelSnapshots<I, O> owner;
+		
+		/**
+		 * The version of the model that this snapshot holds a reference to
+		 */
+		private final Version<I, O> shared;
+		
+		/**
+		 * True once this snapshot has been closed
+		 */
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		
+		/**
+		 * Creates a snapshot that owns one (already added) reference to a version of the model.
+		 * 
+		 * @param _owner the snapshots that this belongs to
+		 * @param _shared the version of the model
+		 */
+		private Snapshot(final ModelSnapshots<I, O> _owner, final Version<I, O> _shared) {
+			owner = _owner;
+			shared = _shared;
+			version = shared.number;
+		}
+		
+		/**
+		 * Runs an input through this version of the model. If the model is a {@link ParallelLayer}, any number of threads
+		 * can do this at the same time; otherwise, the threads take turns.
+		 * 
+		 * @param input input to the model
+		 * @return output of the model
+		 * @throws IllegalStateException if this snapshot has been closed
+		 */
+		public O predict(final I input) {
+			final Layer<I, O> layer = layer();
+			
+			if (layer instanceof ParallelLayer) {
+				return ((ParallelLayer<I, O>) layer).parallelForwardPass(input).output;
+			}
+			
+			synchronized (layer) {
+				return layer.forwardPass(input);
+			}
+		}
+		
+		/**
+		 * Returns this version of the model, in inference mode. It must not be modified, and it must not be used after this
+		 * snapshot is closed.
+		 * 
+		 * @return the model
+		 * @throws IllegalStateException if this snapshot has been closed
+		 */
+		public Layer<I, O> layer() {
+			if (closed.get()) {
+				throw new IllegalStateException("Snapshot " + version + " has been closed");
+			}
+			
+			return shared.replica.layer;
+		}
+		
+		/**
+		 * Releases this reader's reference to the snapshot. The snapshot must not be used afterwards. Closing a snapshot again
+		 * does nothing.
+		 */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				shared.release(owner);
+			}
+		}
+	}
+}
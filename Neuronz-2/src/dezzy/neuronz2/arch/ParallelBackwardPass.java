@@ -1,13 +1,16 @@
 package dezzy.neuronz2.arch;
 
-import java.util.List;
-import java.util.Map;
-
-import dezzy.neuronz2.arch.layers.Layer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
- * The result of one backward pass through a {@link ParallelLayer}.
+ * The result of one backward pass through a {@link ParallelLayer}. The gradients of each layer (sub-layer)
+ * are stored in a preallocated array at the layer's slot (see {@link ParallelForwardPass}).
+ * <p>
+ * A layer can also report statistics that are not gradients, such as the input sums that a
+ * {@link dezzy.neuronz2.arch.layers.BatchNormLayer} uses to update its running mean and variance. They are summed over a
+ * minibatch like gradients, but they are kept apart from them: {@link #elementCount()}, {@link #copyTo(double[], int)} and
+ * {@link #copyFrom(double[], int)} only cover gradients, so codecs, error feedback and parameter servers never touch
+ * statistics.
  *
  * @author Joe Desmond
  * @param <I> input type
@@ -20,20 +23,288 @@ public class ParallelBackwardPass<I extends ElementContainer<I>> {
 	public final I errorInputDeriv;
 	
 	/**
-	 * Maps every layer (sub-layer) to its weight gradients (there may be several: for example, weights and biases may be separate)
+	 * The weight gradients of every layer (sub-layer), indexed by slot (there may be several: for example, weights and biases may be separate)
+	 */
+	private final ElementContainer<?>[][] gradients;
+	
+	/**
+	 * Statistics of every layer (sub-layer) that are not gradients, indexed by slot like {@link #gradients}
+	 */
+	private final ElementContainer<?>[][] statistics;
+	
+	/**
+	 * Index in {@link #gradients} of slot zero; nonzero if this is a {@linkplain #slice(int, int) slice} of another pass
+	 */
+	private final int offset;
+	
+	/**
+	 * The number of slots in this pass
+	 */
+	private final int slotCount;
+	
+	/**
+	 * Constructs a ParallelBackwardPass with the given derivative and room for the gradients of <code>_slotCount</code>
+	 * layers. The gradients are initially null.
+	 * 
+	 * @param _errorInputDeriv derivative of this layer's output with respect to its input
+	 * @param _slotCount number of sub-layers in the layer (one for a single layer)
 	 */
-	public final Map<Layer<?,?>, List<ElementContainer<?>>> gradients;
+	public ParallelBackwardPass(final I _errorInputDeriv, final int _slotCount) {
+		this(_errorInputDeriv, new ElementContainer<?>[_slotCount][], new ElementContainer<?>[_slotCount][], 0, _slotCount);
+	}
 	
 	/**
-	 * Constructs a ParallelBackwardPass with the given derivative and gradient mappings.
-	 * <p>
-	 * <b>Use {@link Map#of()} if creating this object with no gradients.</b>
+	 * Constructs a ParallelBackwardPass that shares the given arrays.
 	 * 
 	 * @param _errorInputDeriv derivative of this layer's output with respect to its input
 	 * @param _gradients gradients of each sub-layer
+	 * @param _statistics statistics of each sub-layer
+	 * @param _offset index of slot zero in the arrays
+	 * @param _slotCount number of slots
 	 */
-	public ParallelBackwardPass(final I _errorInputDeriv, final Map<Layer<?, ?>, List<ElementContainer<?>>> _gradients) {
+	private ParallelBackwardPass(final I _errorInputDeriv, final ElementContainer<?>[][] _gradients, final ElementContainer<?>[][] _statistics, final int _offset, final int _slotCount) {
 		errorInputDeriv = _errorInputDeriv;
 		gradients = _gradients;
+		statistics = _statistics;
+		offset = _offset;
+		slotCount = _slotCount;
+	}
+	
+	/**
+	 * Returns the number of slots in this pass.
+	 * 
+	 * @return number of slots
+	 */
+	public int slotCount() {
+		return slotCount;
+	}
+	
+	/**
+	 * Returns the gradients of the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @return gradients, or null if the layer has no learnable parameters
+	 */
+	public ElementContainer<?>[] gradients(final int slot) {
+		return gradients[offset + slot];
+	}
+	
+	/**
+	 * Sets the gradients of the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @param layerGradients gradients, in the order that the layer expects them in {@link ParallelLayer#parallelUpdate(ParallelBackwardPass, double)}
+	 */
+	public void setGradients(final int slot, final ElementContainer<?> ... layerGradients) {
+		gradients[offset + slot] = layerGradients;
+	}
+	
+	/**
+	 * Returns the statistics of the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @return statistics, or null if the layer did not report any
+	 */
+	public ElementContainer<?>[] statistics(final int slot) {
+		return statistics[offset + slot];
+	}
+	
+	/**
+	 * Sets the statistics of the layer at the given slot. Statistics are summed over a minibatch like gradients, but are not
+	 * part of the flat gradient layout.
+	 * 
+	 * @param slot slot of the layer
+	 * @param layerStatistics statistics, in the order that the layer expects them in {@link ParallelLayer#parallelUpdate(ParallelBackwardPass, double)}
+	 */
+	public void setStatistics(final int slot, final ElementContainer<?> ... layerStatistics) {
+		statistics[offset + slot] = layerStatistics;
+	}
+	
+	/**
+	 * Returns the total number of elements in every statistic of this pass. Slots without statistics are skipped.
+	 * 
+	 * @return number of statistic elements
+	 */
+	public int statisticsCount() {
+		return elementCount(statistics);
+	}
+	
+	/**
+	 * Copies every statistic of this pass into one flat array, slot by slot, like {@link #copyTo(double[], int)} does for
+	 * gradients.
+	 * 
+	 * @param array array to copy the statistics to, with room for {@link #statisticsCount()} elements
+	 * @param destIndex starting index in <code>array</code>
+	 */
+	public void copyStatisticsTo(final double[] array, final int destIndex) {
+		copyTo(statistics, array, destIndex);
+	}
+	
+	/**
+	 * Overwrites every statistic of this pass with values from a flat array, in the layout used by
+	 * {@link #copyStatisticsTo(double[], int)}.
+	 * 
+	 * @param array array to copy the statistics from
+	 * @param srcIndex starting index in <code>array</code>
+	 */
+	public void copyStatisticsFrom(final double[] array, final int srcIndex) {
+		copyFrom(statistics, array, srcIndex);
+	}
+	
+	/**
+	 * Sets every gradient and statistic of this pass to zero. The tensors are kept, so the pass can be reused for the next
+	 * minibatch.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < slotCount; slot++) {
+			clear(gradients[offset + slot]);
+			clear(statistics[offset + slot]);
+		}
+	}
+	
+	/**
+	 * Sets every tensor in a slot to zero.
+	 * 
+	 * @param tensors gradients or statistics of one layer, or null
+	 */
+	private static void clear(final ElementContainer<?>[] tensors) {
+		if (tensors != null) {
+			for (int i = 0; i < tensors.length; i++) {
+				tensors[i].clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the total number of elements in every gradient of this pass. Slots without gradients are skipped.
+	 * 
+	 * @return number of gradient elements
+	 */
+	public int elementCount() {
+		return elementCount(gradients);
+	}
+	
+	/**
+	 * Returns the total number of elements in one of the slot arrays of this pass.
+	 * 
+	 * @param slots {@link #gradients} or {@link #statistics}
+	 * @return number of elements
+	 */
+	private int elementCount(final ElementContainer<?>[][] slots) {
+		int count = 0;
+		
+		for (int slot = 0; slot < slotCount; slot++) {
+			final ElementContainer<?>[] layerGradients = slots[offset + slot];
+			
+			if (layerGradients != null) {
+				for (int i = 0; i < layerGradients.length; i++) {
+					count += layerGradients[i].elementCount();
+				}
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Copies every gradient of this pass into one flat array, slot by slot, so that it can be sent to another process. Passes
+	 * through copies of the same network with gradients in the same slots use the same layout.
+	 * 
+	 * @param array array to copy the gradients to, with room for {@link #elementCount()} elements
+	 * @param destIndex starting index in <code>array</code>
+	 */
+	public void copyTo(final double[] array, final int destIndex) {
+		copyTo(gradients, array, destIndex);
+	}
+	
+	/**
+	 * Copies one of the slot arrays of this pass into a flat array.
+	 * 
+	 * @param slots {@link #gradients} or {@link #statistics}
+	 * @param array array to copy to
+	 * @param destIndex starting index in <code>array</code>
+	 */
+	private void copyTo(final ElementContainer<?>[][] slots, final double[] array, final int destIndex) {
+		int index = destIndex;
+		
+		for (int slot = 0; slot < slotCount; slot++) {
+			final ElementContainer<?>[] layerGradients = slots[offset + slot];
+			
+			if (layerGradients != null) {
+				for (int i = 0; i < layerGradients.length; i++) {
+					layerGradients[i].copyTo(array, index);
+					index += layerGradients[i].elementCount();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Overwrites every gradient of this pass with values from a flat array, in the layout used by {@link #copyTo(double[], int)}.
+	 * 
+	 * @param array array to copy the gradients from
+	 * @param srcIndex starting index in <code>array</code>
+	 */
+	public void copyFrom(final double[] array, final int srcIndex) {
+		copyFrom(gradients, array, srcIndex);
+	}
+	
+	/**
+	 * Overwrites one of the slot arrays of this pass with values from a flat array.
+	 * 
+	 * @param slots {@link #gradients} or {@link #statistics}
+	 * @param array array to copy from
+	 * @param srcIndex starting index in <code>array</code>
+	 */
+	private void copyFrom(final ElementContainer<?>[][] slots, final double[] array, final int srcIndex) {
+		int index = srcIndex;
+		
+		for (int slot = 0; slot < slotCount; slot++) {
+			final ElementContainer<?>[] layerGradients = slots[offset + slot];
+			
+			if (layerGradients != null) {
+				for (int i = 0; i < layerGradients.length; i++) {
+					layerGradients[i].copyFrom(array, index);
+					index += layerGradients[i].elementCount();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copies every slot (gradients and statistics) of <code>part</code> into this pass, starting at <code>firstSlot</code>. Composite layers
+	 * use this to collect the passes of their parts.
+	 * 
+	 * @param part backward pass through a part of this layer
+	 * @param firstSlot slot of the first sub-layer in <code>part</code>
+	 */
+	public void putAll(final ParallelBackwardPass<?> part, final int firstSlot) {
+		System.arraycopy(part.gradients, part.offset, gradients, offset + firstSlot, part.slotCount);
+		System.arraycopy(part.statistics, part.offset, statistics, offset + firstSlot, part.slotCount);
+	}
+	
+	/**
+	 * Returns a pass with the given derivative that shares the gradients of this pass. Composite layers use this to
+	 * collect the gradients of their parts before the final derivative is known.
+	 * 
+	 * @param <T> input type
+	 * @param newErrorInputDeriv derivative of the error with respect to the layer's input
+	 * @return a pass with the given derivative and the same gradients as this pass
+	 */
+	public <T extends ElementContainer<T>> ParallelBackwardPass<T> withErrorInputDeriv(final T newErrorInputDeriv) {
+		return new ParallelBackwardPass<>(newErrorInputDeriv, gradients, statistics, offset, slotCount);
+	}
+	
+	/**
+	 * Returns a view of a range of slots in this pass, without copying. Composite layers use this to give each
+	 * of their parts the gradients that belong to it. The view has no derivative.
+	 * 
+	 * @param <T> input type of the part
+	 * @param firstSlot slot of the first sub-layer in the part
+	 * @param count number of sub-layers in the part
+	 * @return a pass where slot zero is <code>firstSlot</code> in this pass
+	 */
+	public <T extends ElementContainer<T>> ParallelBackwardPass<T> slice(final int firstSlot, final int count) {
+		return new ParallelBackwardPass<>(null, gradients, statistics, offset + firstSlot, count);
 	}
 }
@@ -1,48 +1,288 @@
 package dezzy.neuronz2.arch;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
-import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.saved.SavedTensor;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
  * Contains the result of one forward pass through a layer. This is used by
  * {@link ParallelLayer} to parallelize training.
+ * <p>
+ * Every layer (sub-layer) has a dense integer slot in the pass, equal to its position among the
+ * {@linkplain ParallelLayer#sublayers() sub-layers} of the layer that created the pass. A single layer
+ * always uses slot zero; a composite layer gives each of its parts the range of slots starting at the
+ * sum of the sub-layers before it. The latest inputs, latest outputs, and saved tensors are stored in
+ * preallocated arrays indexed by slot.
  *
  * @author Joe Desmond
  */
 public class ParallelForwardPass<O extends ElementContainer<O>> {
 	
+	/**
+	 * Empty tensor slots shared by every {@linkplain #passThrough(ElementContainer) pass-through} pass. Nothing is ever
+	 * written to them
+	 */
+	private static final ElementContainer<?>[] NO_TENSORS = new ElementContainer<?>[1];
+	
+	/**
+	 * Empty saved tensor slots shared by every {@linkplain #passThrough(ElementContainer) pass-through} pass
+	 */
+	private static final SavedTensor[] NO_SAVED_TENSORS = new SavedTensor[1];
+	
 	/**
 	 * The output of the layer
 	 */
 	public final O output;
 	
 	/**
-	 * Maps each layer to the latest input to that layer
+	 * The latest input to each layer, indexed by slot
+	 */
+	private final ElementContainer<?>[] latestInputs;
+	
+	/**
+	 * The latest output from each layer, indexed by slot
+	 */
+	private final ElementContainer<?>[] latestOutputs;
+	
+	/**
+	 * A compact tensor that each layer saved for backpropagation, indexed by slot, if the layer does not need
+	 * a full copy of its latest input or output (for example; a ReLU layer only needs to know which
+	 * outputs were positive)
 	 */
-	public final Map<Layer<?, ?>, ElementContainer<?>> latestInputs;
+	private final SavedTensor[] savedTensors;
 	
 	/**
-	 * Maps each layer to the latest output from that layer
+	 * Index in the arrays of slot zero; nonzero if this is a {@linkplain #slice(int, int) slice} of another pass
 	 */
-	public final Map<Layer<?, ?>, ElementContainer<?>> latestOutputs;
+	private final int offset;
 	
 	/**
-	 * Creates a ParallelForwardPass with the given output, latest input mappings,
-	 * and latest output mappings (optional, but some layers such as
-	 * {@link dezzy.neuronz2.ann.layers.SoftmaxLayer SoftmaxLayer} require it).
-	 * <p>
-	 * <b>If creating an object where one of the two Maps will not be needed, use
-	 * {@link Map#of()}.</b>
+	 * The number of slots in this pass
+	 */
+	private final int slotCount;
+	
+	/**
+	 * Creates a ParallelForwardPass with the given output and room for <code>_slotCount</code> layers.
+	 * Latest inputs, latest outputs, and saved tensors are all initially null.
+	 * 
+	 * @param _output output of the layer
+	 * @param _slotCount number of sub-layers in the layer (one for a single layer)
+	 */
+	public ParallelForwardPass(final O _output, final int _slotCount) {
+		this(_output, new ElementContainer<?>[_slotCount], new ElementContainer<?>[_slotCount], new SavedTensor[_slotCount], 0, _slotCount);
+	}
+	
+	/**
+	 * Creates a ParallelForwardPass that shares the given arrays.
 	 * 
 	 * @param _output output of the layer
 	 * @param _latestInputs latest inputs to each sub-layer
 	 * @param _latestOutputs latest outputs from each sub-layer
+	 * @param _savedTensors compact tensors saved by each sub-layer
+	 * @param _offset index of slot zero in the arrays
+	 * @param _slotCount number of slots
 	 */
-	public ParallelForwardPass(final O _output, final Map<Layer<?, ?>, ElementContainer<?>> _latestInputs, final Map<Layer<?, ?>, ElementContainer<?>> _latestOutputs) {
+	private ParallelForwardPass(final O _output, final ElementContainer<?>[] _latestInputs, final ElementContainer<?>[] _latestOutputs, final SavedTensor[] _savedTensors, final int _offset, final int _slotCount) {
 		output = _output;
 		latestInputs = _latestInputs;
 		latestOutputs = _latestOutputs;
+		savedTensors = _savedTensors;
+		offset = _offset;
+		slotCount = _slotCount;
+	}
+	
+	/**
+	 * Returns a one-slot pass with the given output and nothing saved, for a layer that passes its input through unchanged
+	 * (for example; a {@link dezzy.neuronz2.arch.layers.DropoutLayer} in inference mode). The slots are shared between all such
+	 * passes, so only the pass itself is allocated. The layer must not write to the returned pass.
+	 * 
+	 * @param <T> output type
+	 * @param output output of the layer
+	 * @return a pass with no saved tensors
+	 */
+	public static <T extends ElementContainer<T>> ParallelForwardPass<T> passThrough(final T output) {
+		return new ParallelForwardPass<>(output, NO_TENSORS, NO_TENSORS, NO_SAVED_TENSORS, 0, 1);
+	}
+	
+	/**
+	 * Returns the number of slots in this pass.
+	 * 
+	 * @return number of slots
+	 */
+	public int slotCount() {
+		return slotCount;
+	}
+	
+	/**
+	 * Returns the approximate number of bytes of tensors that this pass keeps alive until backpropagation: the output,
+	 * the latest inputs and outputs of every slot, and every saved tensor. A tensor that is the latest output of one
+	 * layer and the latest input of the next is only counted once.
+	 * 
+	 * @return size in bytes
+	 */
+	public long sizeInBytes() {
+		final Set<ElementContainer<?>> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+		long bytes = 0;
+		
+		if (output != null) {
+			counted.add(output);
+			bytes += output.elementCount() * (long) Double.BYTES;
+		}
+		
+		for (int i = offset; i < offset + slotCount; i++) {
+			if (latestInputs[i] != null && counted.add(latestInputs[i])) {
+				bytes += latestInputs[i].elementCount() * (long) Double.BYTES;
+			}
+			
+			if (latestOutputs[i] != null && counted.add(latestOutputs[i])) {
+				bytes += latestOutputs[i].elementCount() * (long) Double.BYTES;
+			}
+			
+			if (savedTensors[i] != null) {
+				bytes += savedTensors[i].sizeInBytes();
+			}
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Returns the latest input to the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @return latest input, or null if the layer did not save one
+	 */
+	public ElementContainer<?> latestInput(final int slot) {
+		return latestInputs[offset + slot];
+	}
+	
+	/**
+	 * Returns the latest output from the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @return latest output, or null if the layer did not save one
+	 */
+	public ElementContainer<?> latestOutput(final int slot) {
+		return latestOutputs[offset + slot];
+	}
+	
+	/**
+	 * Returns the compact tensor that the layer at the given slot saved for backpropagation.
+	 * 
+	 * @param slot slot of the layer
+	 * @return saved tensor, or null if the layer did not save one
+	 */
+	public SavedTensor savedTensor(final int slot) {
+		return savedTensors[offset + slot];
+	}
+	
+	/**
+	 * Sets the latest input to the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @param latestInput latest input
+	 */
+	public void setLatestInput(final int slot, final ElementContainer<?> latestInput) {
+		latestInputs[offset + slot] = latestInput;
+	}
+	
+	/**
+	 * Sets the latest output from the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @param latestOutput latest output
+	 */
+	public void setLatestOutput(final int slot, final ElementContainer<?> latestOutput) {
+		latestOutputs[offset + slot] = latestOutput;
+	}
+	
+	/**
+	 * Sets the compact tensor saved by the layer at the given slot.
+	 * 
+	 * @param slot slot of the layer
+	 * @param savedTensor saved tensor
+	 */
+	public void setSavedTensor(final int slot, final SavedTensor savedTensor) {
+		savedTensors[offset + slot] = savedTensor;
+	}
+	
+	/**
+	 * Copies every slot of <code>part</code> into this pass, starting at <code>firstSlot</code>. Composite layers
+	 * use this to collect the passes of their parts.
+	 * 
+	 * @param part forward pass through a part of this layer
+	 * @param firstSlot slot of the first sub-layer in <code>part</code>
+	 */
+	public void putAll(final ParallelForwardPass<?> part, final int firstSlot) {
+		System.arraycopy(part.latestInputs, part.offset, latestInputs, offset + firstSlot, part.slotCount);
+		System.arraycopy(part.latestOutputs, part.offset, latestOutputs, offset + firstSlot, part.slotCount);
+		System.arraycopy(part.savedTensors, part.offset, savedTensors, offset + firstSlot, part.slotCount);
+	}
+	
+	/**
+	 * Returns a pass with the given output that shares the slots of this pass. Composite layers use this to
+	 * collect the slots of their parts before the final output is known.
+	 * 
+	 * @param <T> output type
+	 * @param newOutput output of the layer
+	 * @return a pass with the given output and the same slots as this pass
+	 */
+	public <T extends ElementContainer<T>> ParallelForwardPass<T> withOutput(final T newOutput) {
+		return new ParallelForwardPass<>(newOutput, latestInputs, latestOutputs, savedTensors, offset, slotCount);
+	}
+	
+	/**
+	 * Returns a view of a range of slots in this pass, without copying. Composite layers use this to give each
+	 * of their parts the slots that belong to it. The view has no output.
+	 * 
+	 * @param <T> output type of the part
+	 * @param firstSlot slot of the first sub-layer in the part
+	 * @param count number of sub-layers in the part
+	 * @return a pass where slot zero is <code>firstSlot</code> in this pass
+	 */
+	public <T extends ElementContainer<T>> ParallelForwardPass<T> slice(final int firstSlot, final int count) {
+		return new ParallelForwardPass<>(null, latestInputs, latestOutputs, savedTensors, offset + firstSlot, count);
+	}
+	
+	/**
+	 * {@linkplain #slice(int, int) Slices} every pass in a batch. Composite layers use this to give each of their parts the
+	 * slots that belong to it in {@link ParallelLayer#accumulateBackpropBatch(List, List, boolean, dezzy.neuronz2.arch.ParallelBackwardPass)}.
+	 * 
+	 * @param <T> output type of the part
+	 * @param passes forward passes through the layer, one per sample
+	 * @param firstSlot slot of the first sub-layer in the part
+	 * @param count number of sub-layers in the part
+	 * @return a view of the part's slots in each pass
+	 */
+	public static <T extends ElementContainer<T>> List<ParallelForwardPass<T>> sliceAll(final List<? extends ParallelForwardPass<?>> passes, final int firstSlot, final int count) {
+		final List<ParallelForwardPass<T>> out = new ArrayList<>(passes.size());
+		
+		for (int i = 0; i < passes.size(); i++) {
+			out.add(passes.get(i).slice(firstSlot, count));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the output of every pass in a batch.
+	 * 
+	 * @param <T> output type
+	 * @param passes forward passes, one per sample
+	 * @return the output of each pass
+	 */
+	public static <T extends ElementContainer<T>> List<T> outputs(final List<ParallelForwardPass<T>> passes) {
+		final List<T> out = new ArrayList<>(passes.size());
+		
+		for (int i = 0; i < passes.size(); i++) {
+			out.add(passes.get(i).output);
+		}
+		
+		return out;
 	}
 }
@@ -5,6 +5,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import dezzy.neuronz2.arch.layers.Layer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
@@ -14,6 +16,10 @@ import dezzy.neuronz2.math.constructs.ElementContainer;
  * several forward/backward passes can be performed on this layer at the same time, and the resulting gradients
  * (returned by {@link #parallelBackprop(ParallelForwardPass, ElementContainer, boolean)}) can be summed
  * and propagated through the layer with {@link #parallelUpdate(ParallelBackwardPass, double)}.
+ * <p>
+ * A single layer stores its latest input, saved tensors, and gradients at slot zero of the passes it returns. A layer
+ * made of several parts gives each part a range of {@link #sublayers()} slots, in order, and hands each part a
+ * {@linkplain ParallelForwardPass#slice(int, int) slice} of the pass that covers only its own slots.
  *
  * @author Joe Desmond
  * @param <I> input tensor type
@@ -24,11 +30,11 @@ public interface ParallelLayer<I extends ElementContainer<I>, O extends ElementC
 	/**
 	 * A parallel forward pass through the layer. This function must not modify the state of the layer,
 	 * and it should function identically to {@link #forwardPass(ElementContainer)} with one exception:
-	 * Instead of saving the latest input to a local variable, this function should instead return a mapping
-	 * for it in the {@link ParallelForwardPass}. 
+	 * Instead of saving the latest input to a local variable, this function should instead store it at this
+	 * layer's slot in the {@link ParallelForwardPass}. 
 	 * 
 	 * @param prevActivations previous activations (output of the previous layer)
-	 * @return mappings for the latest input of each layer within this one
+	 * @return output of this layer and the latest input of each layer within this one
 	 */
 	public ParallelForwardPass<O> parallelForwardPass(final I prevActivations);
 	
@@ -48,6 +54,90 @@ public interface ParallelLayer<I extends ElementContainer<I>, O extends ElementC
 	 */
 	public ParallelBackwardPass<I> parallelBackprop(final ParallelForwardPass<O> prevForward, final O errorOutputDeriv, final boolean isFirstLayer);
 	
+	/**
+	 * Computes backpropagation like {@link #parallelBackprop(ParallelForwardPass, ElementContainer, boolean)}, but adds the
+	 * gradients to the ones already in <code>accumulator</code> instead of returning them. This lets one worker thread sum the
+	 * gradients of every sample it processes in one set of buffers (see {@link GradientAccumulator}).
+	 * <p>
+	 * The default implementation calls <code>parallelBackprop()</code> and adds the result to <code>accumulator</code>. Layers
+	 * with large gradients should override this to add their gradients directly, without creating a new tensor for every sample.
+	 * Layers made of several parts should override this to call it on each part with a
+	 * {@linkplain ParallelBackwardPass#slice(int, int) slice} of <code>accumulator</code>.
+	 * 
+	 * @param prevForward result of previous call to {@link #parallelForwardPass(ElementContainer)}
+	 * @param errorOutputDeriv (partial) derivative of the network's error with respect to the output of this layer
+	 * @param isFirstLayer true if this layer is the first in a network (see {@link #parallelBackprop(ParallelForwardPass, ElementContainer, boolean)})
+	 * @param accumulator gradients to add to, with the same slots as this layer. Slots without gradients are filled in
+	 * @return (partial) derivative of the network's error with respect to the input to this layer
+	 */
+	public default I accumulateBackprop(final ParallelForwardPass<O> prevForward, final O errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final ParallelBackwardPass<I> pass = parallelBackprop(prevForward, errorOutputDeriv, isFirstLayer);
+		GradientReducer.accumulate(accumulator, pass);
+		
+		return pass.errorInputDeriv;
+	}
+	
+	/**
+	 * Runs a forward pass for every input in a batch. Layers whose output depends on the whole batch (such as
+	 * {@link dezzy.neuronz2.arch.layers.BatchNormLayer}, which normalizes with the statistics of the batch) compute them here;
+	 * the passes returned must then be given together to
+	 * {@link #accumulateBackpropBatch(List, List, boolean, ParallelBackwardPass) accumulateBackpropBatch()}, in the same order.
+	 * <p>
+	 * The default implementation calls {@link #parallelForwardPass(ElementContainer)} for each input. Layers made of several
+	 * parts should override this to pass the whole batch through each part.
+	 * 
+	 * @param inputs input of each sample in the batch
+	 * @return forward pass for each sample, in the same order
+	 */
+	public default List<ParallelForwardPass<O>> parallelForwardBatch(final List<I> inputs) {
+		final List<ParallelForwardPass<O>> out = new ArrayList<>(inputs.size());
+		
+		for (int i = 0; i < inputs.size(); i++) {
+			out.add(parallelForwardPass(inputs.get(i)));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Computes backpropagation for every sample of a batch from {@link #parallelForwardBatch(List)}, and adds the gradients
+	 * (and statistics) to <code>accumulator</code>. Unlike calling
+	 * {@link #accumulateBackprop(ParallelForwardPass, ElementContainer, boolean, ParallelBackwardPass) accumulateBackprop()} once
+	 * per sample, this includes the gradient that flows through batch statistics.
+	 * <p>
+	 * The default implementation calls <code>accumulateBackprop()</code> for each sample. Layers made of several parts should
+	 * override this to pass the whole batch back through each part.
+	 * 
+	 * @param prevForwards the passes returned by <code>parallelForwardBatch()</code>, in the same order
+	 * @param errorOutputDerivs (partial) derivative of the network's error with respect to the output of each sample
+	 * @param isFirstLayer true if this layer is the first in a network (see {@link #parallelBackprop(ParallelForwardPass, ElementContainer, boolean)})
+	 * @param accumulator gradients to add to, with the same slots as this layer
+	 * @return (partial) derivative of the network's error with respect to the input of each sample
+	 */
+	public default List<I> accumulateBackpropBatch(final List<ParallelForwardPass<O>> prevForwards, final List<O> errorOutputDerivs, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final List<I> out = new ArrayList<>(prevForwards.size());
+		
+		for (int i = 0; i < prevForwards.size(); i++) {
+			out.add(accumulateBackprop(prevForwards.get(i), errorOutputDerivs.get(i), isFirstLayer, accumulator));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns true if this layer normalizes with statistics of the batch in training mode, so that it must be trained with
+	 * {@link #parallelForwardBatch(List)} and {@link #accumulateBackpropBatch(List, List, boolean, ParallelBackwardPass)}
+	 * rather than one sample at a time. Trainers check this to choose between the two. A layer that returns true still accepts
+	 * single samples, but treats each one as its own batch.
+	 * <p>
+	 * The default implementation returns false. Layers made of several parts should override this to return true if any part does.
+	 * 
+	 * @return true if this layer uses batch statistics
+	 */
+	public default boolean usesBatchStatistics() {
+		return false;
+	}
+	
 	/**
 	 * Propagates gradients back through the layer and updates any sub-layers.
 	 * 
@@ -56,6 +146,74 @@ public interface ParallelLayer<I extends ElementContainer<I>, O extends ElementC
 	 */
 	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate);
 	
+	/**
+	 * Applies a plain SGD step (<code>parameter -= learningRate * gradient</code>) directly to the parameters of the layer,
+	 * without locks and without using the layer's {@linkplain dezzy.neuronz2.arch.optimizers.Optimizer optimizer}. This is
+	 * used for Hogwild-style asynchronous training (see {@link DataParallelTrainer#trainEpochHogwild}), where several threads
+	 * update the same layer at the same time while other threads are running forward and backward passes through it.
+	 * <p>
+	 * The updates race: a thread may read parameters that another thread has only partly updated, and an update to an element
+	 * can be lost if two threads add to it at the same time. This is accepted in exchange for never waiting on other threads.
+	 * Optimizer state (momentum, etc.) is not shared between threads, so it is not used at all.
+	 * <p>
+	 * The default implementation does nothing if the layer has no learnable parameters, and throws an
+	 * {@link UnsupportedOperationException} otherwise. Layers that override this should also override {@link #supportsHogwild()}.
+	 * Layers made of several parts should override this to call it on each part with a
+	 * {@linkplain ParallelBackwardPass#slice(int, int) slice} of <code>gradients</code>.
+	 * 
+	 * @param gradients gradients from {@link #accumulateBackprop(ParallelForwardPass, ElementContainer, boolean, ParallelBackwardPass) accumulateBackprop()}
+	 * 			or {@link #parallelBackprop(ParallelForwardPass, ElementContainer, boolean) parallelBackprop()}
+	 * @param learningRate learning rate
+	 * @throws UnsupportedOperationException if the layer has learnable parameters and does not support lock-free updates
+	 */
+	public default void hogwildUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		if (parameterCount() != 0) {
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support lock-free (Hogwild) updates");
+		}
+	}
+	
+	/**
+	 * Returns true if {@link #hogwildUpdate(ParallelBackwardPass, double)} trains this layer the way
+	 * {@link #parallelUpdate(ParallelBackwardPass, double)} would. Because a Hogwild update is a plain SGD step, a layer that
+	 * supports Hogwild updates but has been {@linkplain #setOptimizer(dezzy.neuronz2.arch.optimizers.Optimizer) given} an optimizer
+	 * other than {@link dezzy.neuronz2.arch.optimizers.Optimizer#SGD} returns false, rather than silently being trained with a
+	 * different rule. {@link DataParallelTrainer#trainEpochHogwild} checks this before any worker starts.
+	 * <p>
+	 * The default implementation returns true if the layer has no learnable parameters. Layers made of several parts should
+	 * override this to return true only if every part supports Hogwild updates.
+	 * 
+	 * @return true if this layer can be trained with lock-free SGD updates
+	 */
+	public default boolean supportsHogwild() {
+		return parameterCount() == 0;
+	}
+	
+	/**
+	 * Returns the smallest parts that this layer can be split into for pipelining (see {@link PipelineTrainer}), in the order
+	 * that an input passes through them. The output of each part is the input to the next, and running the parts one after
+	 * another is equivalent to running this layer. A single layer returns a list containing only itself; layers made of
+	 * several parts should return the stages of every part, in order.
+	 * 
+	 * @return parts of this layer, in order
+	 */
+	public default List<ParallelLayer<?, ?>> pipelineStages() {
+		return List.of(this);
+	}
+	
+	/**
+	 * Creates a deep copy of a parallel layer network by serializing it in memory. The copy shares no state with the
+	 * original: it has its own parameters and its own optimizer state.
+	 * 
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 * @param layer parallel layer network to copy
+	 * @return a deep copy of <code>layer</code>
+	 * @throws IllegalArgumentException if the layer cannot be serialized
+	 */
+	public static <I extends ElementContainer<I>, O extends ElementContainer<O>> ParallelLayer<I, O> copyOf(final ParallelLayer<I, O> layer) {
+		return (ParallelLayer<I, O>) Layer.copyOf(layer);
+	}
+	
 	/**
 	 * ParallelLayer-specific version of {@link Layer#loadFrom(String)}:<br>
 	 * Saves this ParallelLayer network to a file so that it can be run/trained later.
@@ -0,0 +1,363 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Decides how to spend a number of cores on a minibatch: how many samples to process side by side (the number of threads
+ * to give a {@link DataParallelTrainer}), and how far to split the work of one sample in each layer (intra-op parallelism,
+ * see {@link IntraOpLayer}).
+ * <p>
+ * The cost of each layer is either estimated from the shapes of the layer and its input ({@link #planFromShapes(ParallelLayer, ElementContainer)}),
+ * or measured on a few warm-up passes ({@link #planFromWarmup(ParallelLayer, ElementContainer, int)}). For each possible
+ * number of concurrent samples, the cores left over for each sample are given to the layers that are expensive enough to
+ * be worth splitting, and the number of concurrent samples with the shortest estimated minibatch time is chosen. When the
+ * minibatch has at least as many samples as there are cores, this almost always means one sample per core and no
+ * splitting; when it has fewer, the big layers are split.
+ * <p>
+ * The decisions are returned as a {@link Plan}, which can be inspected (or printed) before it is {@linkplain Plan#apply(IntraOpExecutor) applied}.
+ *
+ * @author Joe Desmond
+ */
+public class ParallelismScheduler {
+	
+	/**
+	 * Floating point operations per nanosecond per core, used to turn shape estimates into times
+	 */
+	public static final double FLOPS_PER_NANO = 1.0;
+	
+	/**
+	 * Estimated cost of handing one range of work to another thread and waiting for it, in nanoseconds
+	 */
+	public static final double TASK_OVERHEAD_NANOS = 10_000;
+	
+	/**
+	 * A layer is only split into ranges that each take at least this long, in nanoseconds
+	 */
+	public static final double MIN_RANGE_NANOS = 50_000;
+	
+	/**
+	 * Number of cores to plan for
+	 */
+	public final int cores;
+	
+	/**
+	 * Number of samples in each minibatch
+	 */
+	public final int batchSize;
+	
+	/**
+	 * Creates a scheduler for the given number of cores and minibatch size.
+	 * 
+	 * @param _cores number of cores to plan for
+	 * @param _batchSize number of samples in each minibatch
+	 */
+	public ParallelismScheduler(final int _cores, final int _batchSize) {
+		cores = _cores;
+		batchSize = _batchSize;
+	}
+	
+	/**
+	 * Creates a scheduler for every core of this machine.
+	 * 
+	 * @param _batchSize number of samples in each minibatch
+	 */
+	public ParallelismScheduler(final int _batchSize) {
+		this(Runtime.getRuntime().availableProcessors(), _batchSize);
+	}
+	
+	/**
+	 * Plans the parallelism of a network, with the cost of each layer estimated from its shapes. Layers that do not support
+	 * intra-op parallelism are assumed to do a few operations per input element. One forward pass is run on
+	 * <code>sampleInput</code> to find the shape of each layer's input.
+	 * 
+	 * @param <I> input tensor type
+	 * @param network network to plan for
+	 * @param sampleInput an input to the network
+	 * @return the chosen parallelism
+	 */
+	public <I extends ElementContainer<I>> Plan planFromShapes(final ParallelLayer<I, ?> network, final I sampleInput) {
+		final List<ParallelLayer<?, ?>> stages = network.pipelineStages();
+		final double[] costs = new double[stages.size()];
+		ElementContainer<?> input = sampleInput;
+		
+		for (int i = 0; i < stages.size(); i++) {
+			final ParallelLayer<?, ?> stage = stages.get(i);
+			final long flops = (stage instanceof IntraOpLayer) ? ((IntraOpLayer) stage).estimateFlops(input) : 4L * input.elementCount();
+			
+			costs[i] = flops / FLOPS_PER_NANO;
+			input = forward(stage, input).output;
+		}
+		
+		return plan(stages, costs, false);
+	}
+	
+	/**
+	 * Plans the parallelism of a network, with the cost of each layer measured on warm-up forward and backward passes of
+	 * <code>sampleInput</code>. Each layer is timed on its own, with its work on one thread, and the fastest of
+	 * <code>repetitions</code> passes is used (after one pass that is not timed). Any intra-op parallelism that the layers
+	 * already have is turned off.
+	 * 
+	 * @param <I> input tensor type
+	 * @param network network to plan for
+	 * @param sampleInput an input to the network
+	 * @param repetitions number of timed passes
+	 * @return the chosen parallelism
+	 */
+	public <I extends ElementContainer<I>> Plan planFromWarmup(final ParallelLayer<I, ?> network, final I sampleInput, final int repetitions) {
+		final List<ParallelLayer<?, ?>> stages = network.pipelineStages();
+		final double[] costs = new double[stages.size()];
+		ElementContainer<?> input = sampleInput;
+		
+		for (int i = 0; i < stages.size(); i++) {
+			final ParallelLayer<?, ?> stage = stages.get(i);
+			
+			if (stage instanceof IntraOpLayer) {
+				((IntraOpLayer) stage).setIntraOpParallelism(null, 1);
+			}
+			
+			final ParallelBackwardPass<?> accumulator = new ParallelBackwardPass<>(null, stage.sublayers());
+			ParallelForwardPass<?> pass = null;
+			long fastest = Long.MAX_VALUE;
+			
+			for (int r = 0; r <= repetitions; r++) {
+				final long start = System.nanoTime();
+				pass = forward(stage, input);
+				
+				// The output is used as the error derivative; only its shape matters
+				backward(stage, pass, pass.output, i == 0, accumulator);
+				final long time = System.nanoTime() - start;
+				
+				if (r > 0) {
+					fastest = Math.min(fastest, time);
+				}
+			}
+			
+			costs[i] = (repetitions > 0) ? fastest : 0;
+			input = pass.output;
+		}
+		
+		return plan(stages, costs, true);
+	}
+	
+	/**
+	 * Chooses the number of concurrent samples and the intra-op degree of each layer, given the cost of each layer.
+	 * 
+	 * @param stages every layer in the network
+	 * @param costs cost of one forward and backward pass through each layer, in nanoseconds
+	 * @param measured true if the costs were measured
+	 * @return the chosen parallelism
+	 */
+	private Plan plan(final List<ParallelLayer<?, ?>> stages, final double[] costs, final boolean measured) {
+		Plan best = null;
+		
+		// Fewer concurrent samples are only chosen if they are strictly faster
+		for (int samples = Math.max(1, Math.min(cores, batchSize)); samples >= 1; samples--) {
+			final int coresPerSample = Math.max(1, cores / samples);
+			final int rounds = (batchSize + samples - 1) / samples;
+			final List<LayerDecision> decisions = new ArrayList<>(stages.size());
+			double sampleNanos = 0;
+			
+			for (int i = 0; i < stages.size(); i++) {
+				final ParallelLayer<?, ?> stage = stages.get(i);
+				final boolean splittable = stage instanceof IntraOpLayer;
+				int degree = 1;
+				
+				if (splittable) {
+					degree = (int) Math.max(1, Math.min(coresPerSample, Math.floor(costs[i] / MIN_RANGE_NANOS)));
+				}
+				
+				final double nanos = (costs[i] / degree) + ((degree - 1) * TASK_OVERHEAD_NANOS);
+				sampleNanos += nanos;
+				
+				decisions.add(new LayerDecision(stage, i + ": " + stage.getClass().getSimpleName(), costs[i], splittable, degree, nanos));
+			}
+			
+			final Plan plan = new Plan(samples, decisions, rounds * sampleNanos, measured);
+			
+			if (best == null || plan.estimatedBatchNanos < best.estimatedBatchNanos) {
+				best = plan;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Runs a forward pass through a layer whose input type is not known at compile time.
+	 * 
+	 * @param stage layer
+	 * @param input input to the layer
+	 * @return forward pass through the layer
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ParallelForwardPass<?> forward(final ParallelLayer stage, final ElementContainer<?> input) {
+		return stage.parallelForwardPass(input);
+	}
+	
+	/**
+	 * Runs a backward pass through a layer whose input and output types are not known at compile time.
+	 * 
+	 * @param stage layer
+	 * @param forward forward pass through the layer
+	 * @param errorOutputDeriv derivative of the error with respect to the layer's output
+	 * @param isFirstLayer true if the derivative with respect to the input is not needed
+	 * @param accumulator gradients to add to
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static void backward(final ParallelLayer stage, final ParallelForwardPass forward, final ElementContainer<?> errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		stage.accumulateBackprop(forward, errorOutputDeriv, isFirstLayer, accumulator);
+	}
+	
+	/**
+	 * The parallelism chosen for one layer
+	 * 
+	 * @author Joe Desmond
+	 */
+	public static class LayerDecision {
+		
+		/**
+		 * The layer
+		 */
+		public final ParallelLayer<?, ?> layer;
+		
+		/**
+		 * Position and class of the layer, for printing
+		 */
+		public final String name;
+		
+		/**
+		 * Cost of one forward and backward pass through the layer on one thread, in nanoseconds
+		 */
+		public final double costNanos;
+		
+		/**
+		 * True if the layer supports intra-op parallelism
+		 */
+		public final boolean splittable;
+		
+		/**
+		 * Number of ranges the work of one sample is split into
+		 */
+		public final int degree;
+		
+		/**
+		 * Estimated time of one forward and backward pass through the layer with the chosen degree, in nanoseconds
+		 */
+		public final double estimatedNanos;
+		
+		/**
+		 * Creates a layer decision.
+		 * 
+		 * @param _layer the layer
+		 * @param _name position and class of the layer
+		 * @param _costNanos cost on one thread, in nanoseconds
+		 * @param _splittable true if the layer supports intra-op parallelism
+		 * @param _degree chosen intra-op degree
+		 * @param _estimatedNanos estimated time with the chosen degree, in nanoseconds
+		 */
+		public LayerDecision(final ParallelLayer<?, ?> _layer, final String _name, final double _costNanos, final boolean _splittable, final int _degree, final double _estimatedNanos) {
+			layer = _layer;
+			name = _name;
+			costNanos = _costNanos;
+			splittable = _splittable;
+			degree = _degree;
+			estimatedNanos = _estimatedNanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%-28s cost %10.3f ms  degree %2d%s", name, costNanos / 1e6, degree, splittable ? "" : " (not splittable)");
+		}
+	}
+	
+	/**
+	 * The parallelism chosen for a network
+	 * 
+	 * @author Joe Desmond
+	 */
+	public static class Plan {
+		
+		/**
+		 * Number of samples to process side by side; the number of threads to give a {@link DataParallelTrainer}
+		 */
+		public final int concurrentSamples;
+		
+		/**
+		 * The decision for each layer, in order
+		 */
+		public final List<LayerDecision> layers;
+		
+		/**
+		 * Estimated time of one minibatch, in nanoseconds
+		 */
+		public final double estimatedBatchNanos;
+		
+		/**
+		 * True if the layer costs were measured, false if they were estimated from shapes
+		 */
+		public final boolean measured;
+		
+		/**
+		 * Creates a plan.
+		 * 
+		 * @param _concurrentSamples number of samples to process side by side
+		 * @param _layers decision for each layer
+		 * @param _estimatedBatchNanos estimated time of one minibatch, in nanoseconds
+		 * @param _measured true if the layer costs were measured
+		 */
+		public Plan(final int _concurrentSamples, final List<LayerDecision> _layers, final double _estimatedBatchNanos, final boolean _measured) {
+			concurrentSamples = _concurrentSamples;
+			layers = Collections.unmodifiableList(_layers);
+			estimatedBatchNanos = _estimatedBatchNanos;
+			measured = _measured;
+		}
+		
+		/**
+		 * Returns the number of intra-op threads needed so that every concurrent sample can split its most split layer at once.
+		 * The thread running each sample does one range itself.
+		 * 
+		 * @return number of intra-op threads; zero if no layer is split
+		 */
+		public int intraOpThreads() {
+			int maxDegree = 1;
+			
+			for (int i = 0; i < layers.size(); i++) {
+				maxDegree = Math.max(maxDegree, layers.get(i).degree);
+			}
+			
+			return concurrentSamples * (maxDegree - 1);
+		}
+		
+		/**
+		 * Sets the intra-op degree of every splittable layer.
+		 * 
+		 * @param executor threads to split the work across (see {@link #intraOpThreads()}); can be null if no layer is split
+		 */
+		public void apply(final IntraOpExecutor executor) {
+			for (int i = 0; i < layers.size(); i++) {
+				final LayerDecision decision = layers.get(i);
+				
+				if (decision.splittable) {
+					((IntraOpLayer) decision.layer).setIntraOpParallelism(executor, decision.degree);
+				}
+			}
+		}
+		
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%d concurrent samples, %d intra-op threads, estimated %.3f ms per minibatch (%s)%n",
+					concurrentSamples, intraOpThreads(), estimatedBatchNanos / 1e6, measured ? "measured" : "estimated from shapes"));
+			
+			for (int i = 0; i < layers.size(); i++) {
+				sb.append("  ").append(layers.get(i)).append(System.lineSeparator());
+			}
+			
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,649 @@
+package dezzy.neuronz2.arch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiPredicate;
+
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.error.CompleteErrorFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Trains a {@link ParallelLayer} with pipeline parallelism. The {@linkplain ParallelLayer#pipelineStages() parts} of the
+ * layer are split into contiguous stages (for example; the feature extractor, flattener, and classifier of a
+ * {@link dezzy.neuronz2.cnn.ParallelConvNet ParallelConvNet}, or ranges of a
+ * {@link dezzy.neuronz2.arch.layers.ParallelLayerSequence ParallelLayerSequence}), and each stage runs on its own thread.
+ * Micro-batches of samples flow forward from the first stage to the last, and their derivatives flow backward from the last
+ * stage to the first. Each stage sums the gradients of its own parts, and the layer is updated once at the end of every
+ * minibatch, so training is equivalent to ordinary minibatch gradient descent. Each micro-batch goes through every part as one
+ * batch (see {@link ParallelLayer#parallelForwardBatch(List)}), so parts that
+ * {@linkplain ParallelLayer#usesBatchStatistics() use batch statistics} normalize over the micro-batch.
+ * <p>
+ * Unlike {@link DataParallelTrainer}, the network is not replicated and only a bounded number of micro-batches are in flight
+ * at once, so the activations of every sample in a minibatch are never all alive at the same time. Each stage works on
+ * backward passes before forward passes, so finished micro-batches release their activations as soon as possible. The
+ * queues between stages never hold more than the number of micro-batches in flight, so no stage ever blocks on a full queue.
+ * <p>
+ * The fraction of time that each stage spent working during the latest epoch is available from {@link #stageUtilization()};
+ * a stage with a much higher utilization than the others is the bottleneck, and the stages should be split differently.
+ * <p>
+ * The stage threads are daemon threads, but they should still be stopped with {@link #close()} when the trainer is no longer needed.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class PipelineTrainer<I extends ElementContainer<I>, O extends ElementContainer<O>> implements AutoCloseable {
+	
+	/**
+	 * The layer (network) being trained
+	 */
+	public final ParallelLayer<I, O> layer;
+	
+	/**
+	 * Error function to use for calculating gradients
+	 */
+	public final CompleteErrorFunc<O> errorFunc;
+	
+	/**
+	 * The parts of the layer, in order
+	 */
+	private final List<ParallelLayer<?, ?>> parts;
+	
+	/**
+	 * The summed gradients of each part
+	 */
+	private final ParallelBackwardPass<?>[] partGradients;
+	
+	/**
+	 * The stages, in order. Each stage runs a contiguous range of parts
+	 */
+	private final List<Stage> stages;
+	
+	/**
+	 * Limits the number of micro-batches in flight
+	 */
+	private final Semaphore window;
+	
+	/**
+	 * Micro-batches that have been through every stage, in both directions
+	 */
+	private final BlockingQueue<MicroBatch> completed = new LinkedBlockingQueue<>();
+	
+	/**
+	 * Used to shuffle the training data at the beginning of each epoch
+	 */
+	private final Random random;
+	
+	/**
+	 * The time that the latest epoch took, in nanoseconds
+	 */
+	private long epochNanos = 0;
+	
+	/**
+	 * Creates a pipeline trainer with the given stages.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param stageStarts index of the first part (in {@link ParallelLayer#pipelineStages()}) of each stage, in strictly
+	 * 			increasing order. The first must be zero, and every index must be less than the number of parts
+	 * @param maxInFlight maximum number of micro-batches in the pipeline at once
+	 * @param _random used to shuffle the training data
+	 * @throws IllegalArgumentException if <code>stageStarts</code> is not valid for the layer, or <code>maxInFlight</code>
+	 * 			is less than one
+	 */
+	public PipelineTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final int[] stageStarts, final int maxInFlight, final Random _random) {
+		checkStages(stageStarts, _layer.pipelineStages().size());
+		
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("At least one micro-batch must be allowed in flight (got " + maxInFlight + ")");
+		}
+		
+		layer = _layer;
+		errorFunc = _errorFunc;
+		random = _random;
+		parts = layer.pipelineStages();
+		partGradients = new ParallelBackwardPass<?>[parts.size()];
+		window = new Semaphore(maxInFlight);
+		
+		for (int i = 0; i < parts.size(); i++) {
+			partGradients[i] = new ParallelBackwardPass<>(null, parts.get(i).sublayers());
+		}
+		
+		stages = new ArrayList<>(stageStarts.length);
+		
+		for (int i = 0; i < stageStarts.length; i++) {
+			final int end = (i + 1 < stageStarts.length) ? stageStarts[i + 1] : parts.size();
+			stages.add(new Stage(i, stageStarts[i], end, maxInFlight));
+		}
+		
+		for (int i = 0; i < stages.size(); i++) {
+			stages.get(i).start();
+		}
+	}
+	
+	/**
+	 * Creates a pipeline trainer with one stage per {@linkplain ParallelLayer#pipelineStages() part} of the layer, and up
+	 * to two micro-batches in flight per stage.
+	 * 
+	 * @param _layer parallel layer network to train
+	 * @param _errorFunc error function to use for calculating gradients
+	 */
+	public PipelineTrainer(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc) {
+		this(_layer, _errorFunc, everyPart(_layer), 2 * _layer.pipelineStages().size(), new Random());
+	}
+	
+	/**
+	 * Throws an exception if the given stage starts do not split the parts of a layer into non-empty, contiguous stages.
+	 * 
+	 * @param stageStarts index of the first part of each stage
+	 * @param partCount number of parts in the layer
+	 * @throws IllegalArgumentException if there are no stages, the first stage does not start at zero, the starts are not
+	 * 			strictly increasing, or a start is not less than <code>partCount</code>
+	 */
+	private static void checkStages(final int[] stageStarts, final int partCount) {
+		if (stageStarts.length == 0 || stageStarts[0] != 0) {
+			throw new IllegalArgumentException("The first stage must start at part 0 (got " + Arrays.toString(stageStarts) + ")");
+		}
+		
+		for (int i = 1; i < stageStarts.length; i++) {
+			if (stageStarts[i] <= stageStarts[i - 1]) {
+				throw new IllegalArgumentException("Stage starts must be strictly increasing (got " + Arrays.toString(stageStarts) + ")");
+			}
+		}
+		
+		if (stageStarts[stageStarts.length - 1] >= partCount) {
+			throw new IllegalArgumentException("Every stage must start before the last of the " + partCount + " parts (got " + Arrays.toString(stageStarts) + ")");
+		}
+	}
+	
+	/**
+	 * Returns the stage starts for one stage per part.
+	 * 
+	 * @param layer parallel layer network
+	 * @return the index of every part
+	 */
+	private static int[] everyPart(final ParallelLayer<?, ?> layer) {
+		final int[] out = new int[layer.pipelineStages().size()];
+		
+		for (int i = 0; i < out.length; i++) {
+			out[i] = i;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the number of stages (and stage threads).
+	 * 
+	 * @return number of stages
+	 */
+	public int stageCount() {
+		return stages.size();
+	}
+	
+	/**
+	 * Returns the fraction of the latest epoch (or evaluation) that each stage spent working, rather than waiting for
+	 * micro-batches.
+	 * 
+	 * @return utilization of each stage, from zero to one
+	 */
+	public double[] stageUtilization() {
+		final double[] out = new double[stages.size()];
+		
+		for (int i = 0; i < out.length; i++) {
+			out[i] = (epochNanos == 0) ? 0 : stages.get(i).busyNanos / (double) epochNanos;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Trains the layer for one epoch. The samples are shuffled and split into minibatches, and each minibatch is split into
+	 * micro-batches that are fed through the pipeline. The layer is updated with the summed gradients once every micro-batch
+	 * of a minibatch has been through the pipeline.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param minibatchSize number of samples in one minibatch
+	 * @param microbatchSize number of samples that are passed from one stage to the next at once
+	 * @param learningRate learning rate
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch. Each sample is measured
+	 * 			before the update for its minibatch
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the pipeline
+	 * @throws ExecutionException if a stage throws an exception
+	 */
+	public Result trainEpoch(final I[] inputs, final O[] expectedOutputs, final int minibatchSize, final int microbatchSize, final double learningRate, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = shuffledOrder(inputs.length);
+		final long start = startEpoch();
+		
+		Result total = new Result(0, 0, 0);
+		
+		for (int batchStart = 0; batchStart < order.length; batchStart += minibatchSize) {
+			final int batchEnd = Math.min(batchStart + minibatchSize, order.length);
+			
+			total = total.plus(runPipeline(inputs, expectedOutputs, order, batchStart, batchEnd, microbatchSize, true, successTest));
+			
+			for (int i = 0; i < parts.size(); i++) {
+				parts.get(i).parallelUpdate(partGradients[i], learningRate);
+			}
+			
+			clearGradients();
+		}
+		
+		epochNanos = System.nanoTime() - start;
+		
+		return total;
+	}
+	
+	/**
+	 * Runs every sample through the pipeline in inference mode (see {@link ParallelLayer#setTrainingMode(boolean)}), without
+	 * training. The layer is returned to training mode afterwards.
+	 * 
+	 * @param inputs test inputs
+	 * @param expectedOutputs expected output for each test input
+	 * @param microbatchSize number of samples that are passed from one stage to the next at once
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the pipeline
+	 * @throws ExecutionException if a stage throws an exception
+	 */
+	public Result evaluate(final I[] inputs, final O[] expectedOutputs, final int microbatchSize, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = new int[inputs.length];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		
+		layer.setTrainingMode(false);
+		
+		try {
+			final long start = startEpoch();
+			final Result result = runPipeline(inputs, expectedOutputs, order, 0, order.length, microbatchSize, false, successTest);
+			epochNanos = System.nanoTime() - start;
+			
+			return result;
+		} finally {
+			layer.setTrainingMode(true);
+		}
+	}
+	
+	/**
+	 * Stops the stage threads. The trainer cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		for (int i = 0; i < stages.size(); i++) {
+			stages.get(i).interrupt();
+		}
+	}
+	
+	/**
+	 * Resets the busy time of every stage.
+	 * 
+	 * @return the start time of the epoch
+	 */
+	private long startEpoch() {
+		for (int i = 0; i < stages.size(); i++) {
+			stages.get(i).busyNanos = 0;
+		}
+		
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Feeds the samples <code>order[start]</code> to <code>order[end - 1]</code> through the pipeline in micro-batches, and
+	 * waits for all of them to come out.
+	 * 
+	 * @param inputs inputs
+	 * @param expectedOutputs expected output for each input
+	 * @param order sample indices
+	 * @param start first position in <code>order</code>
+	 * @param end last position in <code>order</code> (exclusive)
+	 * @param microbatchSize number of samples in each micro-batch
+	 * @param training true if the micro-batches should also be propagated backward
+	 * @param successTest success test, or null
+	 * @return number of samples, total error, and number of successes
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the pipeline
+	 * @throws ExecutionException if a stage throws an exception
+	 */
+	private Result runPipeline(final I[] inputs, final O[] expectedOutputs, final int[] order, final int start, final int end, final int microbatchSize, final boolean training, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		int fed = 0;
+		
+		for (int position = start; position < end; position += microbatchSize) {
+			final int size = Math.min(microbatchSize, end - position);
+			final MicroBatch microbatch = new MicroBatch(size, parts.size(), training, expectedOutputs, successTest);
+			
+			for (int i = 0; i < size; i++) {
+				microbatch.samples[i] = order[position + i];
+				microbatch.values[i] = inputs[microbatch.samples[i]];
+			}
+			
+			window.acquire();
+			stages.get(0).queue.putLast(microbatch);
+			fed++;
+		}
+		
+		Result total = new Result(0, 0, 0);
+		Throwable failure = null;
+		
+		for (int i = 0; i < fed; i++) {
+			final MicroBatch microbatch = completed.take();
+			
+			if (microbatch.failure != null && failure == null) {
+				failure = microbatch.failure;
+			}
+			
+			total = total.plus(new Result(microbatch.samples.length, microbatch.errorSum, microbatch.successes));
+		}
+		
+		if (failure != null) {
+			clearGradients();
+			throw new ExecutionException(failure);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Sets every gradient and statistic of every part to zero.
+	 */
+	private void clearGradients() {
+		for (int i = 0; i < partGradients.length; i++) {
+			partGradients[i].clear();
+		}
+	}
+	
+	/**
+	 * Returns the indices from zero to <code>count - 1</code> in a random order.
+	 * 
+	 * @param count number of indices
+	 * @return shuffled indices
+	 */
+	private int[] shuffledOrder(final int count) {
+		final int[] order = new int[count];
+		
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		
+		for (int i = count - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		
+		return order;
+	}
+	
+	/**
+	 * Forward pass of a micro-batch through one part, without knowing its exact types. The micro-batch is one batch (see
+	 * {@link ParallelLayer#parallelForwardBatch(List)}), so parts that use batch statistics normalize over it.
+	 * 
+	 * @param part part of the layer
+	 * @param inputs input of each sample to the part
+	 * @return forward pass of each sample through the part
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static List<ParallelForwardPass<?>> forwardBatch(final ParallelLayer part, final List<ElementContainer<?>> inputs) {
+		return part.parallelForwardBatch(inputs);
+	}
+	
+	/**
+	 * Backward pass of a micro-batch through one part, without knowing its exact types.
+	 * 
+	 * @param part part of the layer
+	 * @param forwardPasses forward pass of each sample through the part
+	 * @param errorOutputDerivs derivative of the error with respect to the part's output, for each sample
+	 * @param isFirstLayer true if this is the first part of the layer
+	 * @param accumulator gradients of the part
+	 * @return derivative of the error with respect to the part's input, for each sample
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static List<ElementContainer<?>> backwardBatch(final ParallelLayer part, final List<ParallelForwardPass<?>> forwardPasses, final List<ElementContainer<?>> errorOutputDerivs, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		return part.accumulateBackpropBatch((List) forwardPasses, errorOutputDerivs, isFirstLayer, accumulator);
+	}
+	
+	/**
+	 * A group of samples that moves through the pipeline together.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private class MicroBatch {
+		
+		/**
+		 * Index of each sample
+		 */
+		final int[] samples;
+		
+		/**
+		 * The current value of each sample: the input to the next stage going forward, or the derivative of the error with
+		 * respect to the output of the next stage going backward
+		 */
+		final ElementContainer<?>[] values;
+		
+		/**
+		 * The forward pass through every part for each sample, kept until the part's backward pass
+		 */
+		final ParallelForwardPass<?>[][] forwardPasses;
+		
+		/**
+		 * True if this micro-batch should be propagated backward after it reaches the last stage
+		 */
+		final boolean training;
+		
+		/**
+		 * Expected output for every input
+		 */
+		final O[] expectedOutputs;
+		
+		/**
+		 * Success test, or null
+		 */
+		final BiPredicate<O, O> successTest;
+		
+		/**
+		 * True once this micro-batch has reached the last stage and is going backward
+		 */
+		boolean backward = false;
+		
+		/**
+		 * The sum of the errors of every sample
+		 */
+		double errorSum = 0;
+		
+		/**
+		 * The number of samples that passed the success test
+		 */
+		int successes = 0;
+		
+		/**
+		 * The exception thrown by a stage, if there was one
+		 */
+		Throwable failure = null;
+		
+		/**
+		 * Creates an empty micro-batch.
+		 * 
+		 * @param size number of samples
+		 * @param partCount number of parts in the layer
+		 * @param _training true if the micro-batch should be propagated backward
+		 * @param _expectedOutputs expected output for every input
+		 * @param _successTest success test, or null
+		 */
+		MicroBatch(final int size, final int partCount, final boolean _training, final O[] _expectedOutputs, final BiPredicate<O, O> _successTest) {
+			samples = new int[size];
+			values = new ElementContainer<?>[size];
+			forwardPasses = new ParallelForwardPass<?>[size][partCount];
+			training = _training;
+			expectedOutputs = _expectedOutputs;
+			successTest = _successTest;
+		}
+	}
+	
+	/**
+	 * One stage of the pipeline, and the thread that runs it.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private class Stage extends Thread {
+		
+		/**
+		 * Position of this stage in the pipeline
+		 */
+		final int index;
+		
+		/**
+		 * The first part in this stage
+		 */
+		final int firstPart;
+		
+		/**
+		 * The last part in this stage (exclusive)
+		 */
+		final int endPart;
+		
+		/**
+		 * Micro-batches waiting for this stage. Backward micro-batches are put at the front, and forward micro-batches at the back
+		 */
+		final BlockingDeque<MicroBatch> queue;
+		
+		/**
+		 * Time spent working since the start of the epoch, in nanoseconds
+		 */
+		volatile long busyNanos = 0;
+		
+		/**
+		 * Creates a stage.
+		 * 
+		 * @param _index position of the stage in the pipeline
+		 * @param _firstPart the first part in the stage
+		 * @param _endPart the last part in the stage (exclusive)
+		 * @param capacity maximum number of micro-batches in flight
+		 */
+		Stage(final int _index, final int _firstPart, final int _endPart, final int capacity) {
+			super("PipelineTrainer-stage-" + _index);
+			index = _index;
+			firstPart = _firstPart;
+			endPart = _endPart;
+			queue = new LinkedBlockingDeque<>(capacity);
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final MicroBatch microbatch = queue.takeFirst();
+					final long start = System.nanoTime();
+					
+					try {
+						process(microbatch);
+					} catch (RuntimeException | Error e) {
+						microbatch.failure = e;
+						complete(microbatch);
+					}
+					
+					busyNanos += System.nanoTime() - start;
+				}
+			} catch (InterruptedException e) {
+				// The trainer was closed
+			}
+		}
+		
+		/**
+		 * Runs one micro-batch through this stage, and passes it on.
+		 * 
+		 * @param microbatch micro-batch to process
+		 * @throws InterruptedException if this thread is interrupted while passing the micro-batch on
+		 */
+		@SuppressWarnings("unchecked")
+		private void process(final MicroBatch microbatch) throws InterruptedException {
+			if (!microbatch.backward) {
+				for (int part = firstPart; part < endPart; part++) {
+					final List<ParallelForwardPass<?>> forwardPasses = forwardBatch(parts.get(part), Arrays.asList(microbatch.values));
+					
+					for (int i = 0; i < microbatch.samples.length; i++) {
+						microbatch.values[i] = forwardPasses.get(i).output;
+						
+						if (microbatch.training) {
+							microbatch.forwardPasses[i][part] = forwardPasses.get(i);
+						}
+					}
+				}
+				
+				if (index + 1 < stages.size()) {
+					stages.get(index + 1).queue.putLast(microbatch);
+					return;
+				}
+				
+				// This is the last stage: measure the error and turn around
+				for (int i = 0; i < microbatch.samples.length; i++) {
+					final O actualOutput = (O) microbatch.values[i];
+					final O expectedOutput = microbatch.expectedOutputs[microbatch.samples[i]];
+					final double error = errorFunc.errorFunction.condense(expectedOutput, actualOutput);
+					
+					microbatch.errorSum += error;
+					
+					if (microbatch.successTest != null && microbatch.successTest.test(actualOutput, expectedOutput)) {
+						microbatch.successes++;
+					}
+					
+					microbatch.values[i] = errorFunc.errorFunctionDerivative.calculate(expectedOutput, actualOutput, error);
+				}
+				
+				if (!microbatch.training) {
+					complete(microbatch);
+					return;
+				}
+				
+				microbatch.backward = true;
+			}
+			
+			for (int part = endPart - 1; part >= firstPart; part--) {
+				final List<ParallelForwardPass<?>> forwardPasses = new ArrayList<>(microbatch.samples.length);
+				
+				for (int i = 0; i < microbatch.samples.length; i++) {
+					forwardPasses.add(microbatch.forwardPasses[i][part]);
+					
+					// Release the activations of this part as soon as they are no longer needed
+					microbatch.forwardPasses[i][part] = null;
+				}
+				
+				final List<ElementContainer<?>> derivatives = backwardBatch(parts.get(part), forwardPasses, Arrays.asList(microbatch.values), part == 0, partGradients[part]);
+				
+				for (int i = 0; i < microbatch.samples.length; i++) {
+					microbatch.values[i] = derivatives.get(i);
+				}
+			}
+			
+			if (index > 0) {
+				stages.get(index - 1).queue.putFirst(microbatch);
+			} else {
+				complete(microbatch);
+			}
+		}
+		
+		/**
+		 * Hands a finished micro-batch back to the calling thread.
+		 * 
+		 * @param microbatch finished micro-batch
+		 */
+		private void complete(final MicroBatch microbatch) {
+			completed.add(microbatch);
+			window.release();
+		}
+	}
+}
@@ -0,0 +1,775 @@
+package dezzy.neuronz2.arch.layers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.arch.GradientReducer;
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+import dezzy.neuronz2.arch.ParallelForwardPass;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
+import dezzy.neuronz2.arch.optimizers.OptimizerState;
+import dezzy.neuronz2.arch.saved.SavedTensor;
+import dezzy.neuronz2.cnn.layers.ConvolutionLayer2;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.Tensor3;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * A batch normalization layer. Normalizes every channel of the input with the mean and variance of the batch, then scales
+ * and shifts it with a learnable scale (gamma) and shift (beta). For {@linkplain Tensor3 rank 3 tensors},
+ * each layer (matrix) of the tensor is a channel; for {@linkplain Vector vectors}, each element is a channel.
+ * <p>
+ * In training mode, {@link #parallelForwardBatch(List)} normalizes every sample with the statistics of the whole batch, and
+ * {@link #accumulateBackpropBatch(List, List, boolean, ParallelBackwardPass)} propagates the gradient through those statistics.
+ * The trainers pass batches through layers that {@linkplain #usesBatchStatistics() use batch statistics}; a batch is usually
+ * one worker's share of a minibatch. A single sample given to {@link #parallelForwardPass(ElementContainer)} is its own batch,
+ * which for a rank 3 tensor still has one statistic per channel over every position in the channel. Only when a batch has a
+ * single input per channel (one vector) does the layer fall back to the running statistics, treated as constants.
+ * <p>
+ * Each batch reports the sum and sum of squares of each channel as {@linkplain ParallelBackwardPass#statistics(int) statistics},
+ * which are kept apart from the gradients. When a minibatch is summed and passed to
+ * {@link #parallelUpdate(ParallelBackwardPass, double)}, the running statistics are moved towards the statistics of that
+ * minibatch. In inference mode, the layer always normalizes with the running statistics.
+ * <p>
+ * Because the layer is a per-channel affine transformation in inference mode, it can be
+ * {@linkplain DenseLayer#foldBatchNorm(BatchNormLayer) folded} into a preceding {@link DenseLayer} or {@link ConvolutionLayer2}
+ * for inference (see {@link ParallelLayerSequence#foldBatchNorm()}).
+ *
+ * @author Joe Desmond
+ * @param <T> tensor type (vector, rank 3 tensor, etc.)
+ */
+public class BatchNormLayer<T extends ElementContainer<T>> implements ParallelLayer<T, T> {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -1580233469815758612L;
+	
+	/**
+	 * Number of channels in the input
+	 */
+	private final int channels;
+	
+	/**
+	 * Small value added to the variance to avoid division by zero
+	 */
+	private final double epsilon;
+	
+	/**
+	 * Weight of a new minibatch's statistics when the running statistics are updated
+	 */
+	private final double momentum;
+	
+	/**
+	 * Learnable scale for each channel
+	 */
+	private final Vector gamma;
+	
+	/**
+	 * Learnable shift for each channel
+	 */
+	private final Vector beta;
+	
+	/**
+	 * Running mean of each channel
+	 */
+	private final double[] runningMean;
+	
+	/**
+	 * Running variance of each channel
+	 */
+	private final double[] runningVariance;
+	
+	/**
+	 * False until the running statistics have been set from the first minibatch
+	 */
+	private boolean statisticsInitialized = false;
+	
+	/**
+	 * True if this layer should normalize with batch statistics and gather statistics for the running mean and variance
+	 */
+	private boolean training = true;
+	
+	/**
+	 * The latest forward pass through this layer, from {@link #forwardPass(ElementContainer)}
+	 */
+	private transient ParallelForwardPass<T> latestForward = null;
+	
+	/**
+	 * Accumulated gradients and statistics, from calls to {@link #backprop(ElementContainer, boolean)}
+	 */
+	private transient ParallelBackwardPass<T> serialGradients = null;
+	
+	/**
+	 * Update rule for gamma and beta
+	 */
+	private Optimizer optimizer = Optimizer.SGD;
+	
+	/**
+	 * Optimizer state for gamma, created on the first update
+	 */
+	private OptimizerState gammaState = null;
+	
+	/**
+	 * Optimizer state for beta, created on the first update
+	 */
+	private OptimizerState betaState = null;
+	
+	/**
+	 * Creates a batch normalization layer. Gamma starts at 1, beta starts at 0, and the running statistics
+	 * start at a mean of 0 and a variance of 1.
+	 * 
+	 * @param _channels number of channels in the input (layers in a rank 3 tensor, or elements in a vector)
+	 * @param _epsilon small value added to the variance to avoid division by zero (usually 1e-5)
+	 * @param _momentum weight of a new minibatch's statistics when the running statistics are updated (usually 0.1)
+	 */
+	public BatchNormLayer(final int _channels, final double _epsilon, final double _momentum) {
+		channels = _channels;
+		epsilon = _epsilon;
+		momentum = _momentum;
+		
+		gamma = Vector.generate(i -> 1, channels);
+		beta = new Vector(new double[channels]);
+		runningMean = new double[channels];
+		runningVariance = new double[channels];
+		
+		for (int i = 0; i < channels; i++) {
+			runningVariance[i] = 1;
+		}
+	}
+	
+	/**
+	 * Creates a batch normalization layer with an epsilon of 1e-5 and a momentum of 0.1.
+	 * 
+	 * @param _channels number of channels in the input (layers in a rank 3 tensor, or elements in a vector)
+	 */
+	public BatchNormLayer(final int _channels) {
+		this(_channels, 1e-5, 0.1);
+	}
+	
+	/**
+	 * Returns the factor that each channel is multiplied by in inference mode: <code>gamma / sqrt(variance + epsilon)</code>,
+	 * with the running variance.
+	 * 
+	 * @return scale of each channel
+	 */
+	public double[] scales() {
+		final double[] scales = new double[channels];
+		
+		for (int c = 0; c < channels; c++) {
+			scales[c] = gamma.get(c) / Math.sqrt(runningVariance[c] + epsilon);
+		}
+		
+		return scales;
+	}
+	
+	/**
+	 * Returns the value added to each channel in inference mode after it is scaled: <code>beta - (mean * scale)</code>,
+	 * with the running mean.
+	 * 
+	 * @return shift of each channel
+	 */
+	public double[] shifts() {
+		final double[] scales = scales();
+		final double[] shifts = new double[channels];
+		
+		for (int c = 0; c < channels; c++) {
+			shifts[c] = beta.get(c) - (runningMean[c] * scales[c]);
+		}
+		
+		return shifts;
+	}
+	
+	/**
+	 * Normalizes, scales, and shifts every channel of the input with the running statistics.
+	 * 
+	 * @param input input tensor
+	 * @return forward pass with the output, and the input at slot zero
+	 */
+	private ParallelForwardPass<T> runningForwardPass(final T input) {
+		final double[] values = new double[input.elementCount()];
+		input.copyTo(values, 0);
+		
+		final int groupSize = values.length / channels;
+		final double[] scales = scales();
+		final double[] shifts = shifts();
+		
+		for (int c = 0; c < channels; c++) {
+			final double scale = scales[c];
+			final double shift = shifts[c];
+			final int end = (c + 1) * groupSize;
+			
+			for (int i = c * groupSize; i < end; i++) {
+				values[i] = (values[i] * scale) + shift;
+			}
+		}
+		
+		final ParallelForwardPass<T> out = new ParallelForwardPass<>(input.withElements(values, 0), 1);
+		out.setLatestInput(0, input);
+		
+		return out;
+	}
+	
+	/**
+	 * Adds the gamma and beta gradients for one sample that was normalized with the running statistics to the given arrays,
+	 * and, in training mode, the per-channel sums and sums of squares of the input. The running statistics are treated
+	 * as constants.
+	 * 
+	 * @param input input to this layer in the forward pass
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param isFirstLayer true if the derivative with respect to the input is not needed
+	 * @param gammaGradient gamma gradient, added to
+	 * @param betaGradient beta gradient, added to
+	 * @param inputSums per-channel sums of the input, added to
+	 * @param inputSumSquares per-channel sums of the squared input, added to
+	 * @return derivative of the error with respect to this layer's input, or null if <code>isFirstLayer</code> is true
+	 */
+	private T runningBackprop(final T input, final T errorOutputDeriv, final boolean isFirstLayer, final double[] gammaGradient, final double[] betaGradient, final double[] inputSums, final double[] inputSumSquares) {
+		final double[] inputs = new double[input.elementCount()];
+		final double[] derivatives = new double[inputs.length];
+		input.copyTo(inputs, 0);
+		errorOutputDeriv.copyTo(derivatives, 0);
+		
+		final int groupSize = inputs.length / channels;
+		final double[] scales = scales();
+		
+		for (int c = 0; c < channels; c++) {
+			final double mean = runningMean[c];
+			final double inverseDeviation = 1.0 / Math.sqrt(runningVariance[c] + epsilon);
+			final int end = (c + 1) * groupSize;
+			
+			for (int i = c * groupSize; i < end; i++) {
+				final double x = inputs[i];
+				final double deriv = derivatives[i];
+				
+				gammaGradient[c] += deriv * (x - mean) * inverseDeviation;
+				betaGradient[c] += deriv;
+				inputSums[c] += x;
+				inputSumSquares[c] += x * x;
+				
+				derivatives[i] = deriv * scales[c];
+			}
+		}
+		
+		return isFirstLayer ? null : errorOutputDeriv.withElements(derivatives, 0);
+	}
+	
+	/**
+	 * Adds the gamma and beta gradients of a batch that was normalized with its own statistics to the given arrays, and
+	 * returns the derivative of the error with respect to each input. The derivative includes the gradient through the
+	 * batch mean and variance:
+	 * <code>dx = (gamma * invStd / m) * (m * dy - sum(dy) - xhat * sum(dy * xhat))</code>, where <code>m</code> is the
+	 * number of inputs per channel in the batch and <code>xhat</code> is the normalized input.
+	 * 
+	 * @param inputs input of each sample in the forward pass
+	 * @param errorOutputDerivs derivative of the error with respect to the output of each sample
+	 * @param statistics statistics of the batch
+	 * @param isFirstLayer true if the derivatives with respect to the inputs are not needed
+	 * @param gammaGradient gamma gradient, added to
+	 * @param betaGradient beta gradient, added to
+	 * @return derivative of the error with respect to each input, or nulls if <code>isFirstLayer</code> is true
+	 */
+	private List<T> batchBackprop(final List<T> inputs, final List<T> errorOutputDerivs, final BatchStatistics statistics, final boolean isFirstLayer, final double[] gammaGradient, final double[] betaGradient) {
+		final int batchSize = inputs.size();
+		final double[][] values = new double[batchSize][];
+		final double[][] derivatives = new double[batchSize][];
+		
+		for (int b = 0; b < batchSize; b++) {
+			values[b] = new double[inputs.get(b).elementCount()];
+			derivatives[b] = new double[values[b].length];
+			inputs.get(b).copyTo(values[b], 0);
+			errorOutputDerivs.get(b).copyTo(derivatives[b], 0);
+		}
+		
+		final int groupSize = values[0].length / channels;
+		final double count = statistics.count;
+		
+		for (int c = 0; c < channels; c++) {
+			final double mean = statistics.mean[c];
+			final double inverseDeviation = statistics.inverseDeviation[c];
+			final int start = c * groupSize;
+			final int end = start + groupSize;
+			
+			double derivSum = 0;
+			double derivNormalizedSum = 0;
+			
+			for (int b = 0; b < batchSize; b++) {
+				for (int i = start; i < end; i++) {
+					derivSum += derivatives[b][i];
+					derivNormalizedSum += derivatives[b][i] * (values[b][i] - mean) * inverseDeviation;
+				}
+			}
+			
+			gammaGradient[c] += derivNormalizedSum;
+			betaGradient[c] += derivSum;
+			
+			if (isFirstLayer) {
+				continue;
+			}
+			
+			final double factor = gamma.get(c) * inverseDeviation / count;
+			
+			for (int b = 0; b < batchSize; b++) {
+				for (int i = start; i < end; i++) {
+					final double normalized = (values[b][i] - mean) * inverseDeviation;
+					derivatives[b][i] = factor * ((count * derivatives[b][i]) - derivSum - (normalized * derivNormalizedSum));
+				}
+			}
+		}
+		
+		final List<T> out = new ArrayList<>(batchSize);
+		
+		for (int b = 0; b < batchSize; b++) {
+			out.add(isFirstLayer ? null : errorOutputDerivs.get(b).withElements(derivatives[b], 0));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Updates gamma and beta with this layer's {@link Optimizer}.
+	 * 
+	 * @param gammaGradient gamma gradient
+	 * @param betaGradient beta gradient
+	 * @param learningRate learning rate
+	 */
+	private void applyGradients(final Vector gammaGradient, final Vector betaGradient, final double learningRate) {
+		if (optimizer == null) {
+			optimizer = Optimizer.SGD;
+		}
+		
+		if (gammaState == null) {
+			gammaState = optimizer.createState(channels);
+			betaState = optimizer.createState(channels);
+		}
+		
+		optimizer.update(gamma, gammaGradient, gammaState, learningRate);
+		optimizer.update(beta, betaGradient, betaState, learningRate);
+	}
+	
+	/**
+	 * Moves the running statistics towards the statistics of the latest minibatch.
+	 * 
+	 * @param inputSums per-channel sums of the inputs in the minibatch
+	 * @param inputSumSquares per-channel sums of the squared inputs in the minibatch
+	 * @param inputCount number of inputs in each channel in the minibatch
+	 */
+	private void updateStatistics(final Vector inputSums, final Vector inputSumSquares, final double inputCount) {
+		if (inputCount == 0) {
+			return;
+		}
+		
+		for (int c = 0; c < channels; c++) {
+			final double mean = inputSums.get(c) / inputCount;
+			final double variance = Math.max(0, (inputSumSquares.get(c) / inputCount) - (mean * mean));
+			
+			if (statisticsInitialized) {
+				runningMean[c] = ((1 - momentum) * runningMean[c]) + (momentum * mean);
+				runningVariance[c] = ((1 - momentum) * runningVariance[c]) + (momentum * variance);
+			} else {
+				runningMean[c] = mean;
+				runningVariance[c] = variance;
+			}
+		}
+		
+		statisticsInitialized = true;
+	}
+	
+	/**
+	 * Runs a forward pass with this sample as its own batch (see {@link #parallelForwardPass(ElementContainer)}), and keeps it
+	 * for {@link #backprop(ElementContainer, boolean)}.
+	 * 
+	 * @param prevActivations input to this layer
+	 * @return output of this layer
+	 */
+	@Override
+	public T forwardPass(final T prevActivations) {
+		latestForward = parallelForwardPass(prevActivations);
+		return latestForward.output;
+	}
+	
+	@Override
+	public T backprop(final T errorOutputDeriv, final boolean isFirstLayer) {
+		if (serialGradients == null) {
+			serialGradients = new ParallelBackwardPass<>(null, 1);
+		}
+		
+		return accumulateBackprop(latestForward, errorOutputDeriv, isFirstLayer, serialGradients);
+	}
+	
+	@Override
+	public void update(final double learningRate) {
+		if (serialGradients != null) {
+			parallelUpdate(serialGradients, learningRate);
+			serialGradients = null;
+		}
+	}
+	
+	@Override
+	public void setOptimizer(final Optimizer _optimizer) {
+		optimizer = _optimizer;
+		gammaState = null;
+		betaState = null;
+	}
+	
+	/**
+	 * Enables or disables training mode. In training mode, inputs are normalized with batch statistics, and the running
+	 * statistics are gathered; in inference mode, inputs are normalized with the running statistics.
+	 * 
+	 * @param _training true for training mode, false for inference mode
+	 */
+	@Override
+	public void setTrainingMode(final boolean _training) {
+		training = _training;
+	}
+	
+	/**
+	 * Returns the number of learnable parameters in this layer: one scale and one shift for every channel.
+	 * The running statistics are not learned by gradient descent, so they are not counted.
+	 * 
+	 * @return number of learnable parameters
+	 */
+	@Override
+	public int parameterCount() {
+		return 2 * channels;
+	}
+	
+	/**
+	 * Returns the scales (gamma) and shifts (beta) of this layer, in the same order as the gradients. The running
+	 * statistics are not included.
+	 * 
+	 * @return learnable parameters
+	 */
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		return List.of(gamma, beta);
+	}
+	
+	/**
+	 * Returns the scales (gamma) and shifts (beta), followed by the running mean and variance. The running statistics are
+	 * returned as vectors that share this layer's arrays, so they can be copied in place.
+	 * 
+	 * @return inference state of this layer
+	 */
+	@Override
+	public List<ElementContainer<?>> state() {
+		return List.of(gamma, beta, new Vector(runningMean), new Vector(runningVariance));
+	}
+	
+	@Override
+	public int sublayers() {
+		return 1;
+	}
+	
+	/**
+	 * Runs a forward pass for one sample. In training mode, the sample is its own batch (see {@link #parallelForwardBatch(List)}).
+	 * 
+	 * @param prevActivations input to this layer
+	 * @return output of this layer, with the input and batch statistics at slot zero
+	 */
+	@Override
+	public ParallelForwardPass<T> parallelForwardPass(final T prevActivations) {
+		return parallelForwardBatch(Collections.singletonList(prevActivations)).get(0);
+	}
+	
+	/**
+	 * Normalizes every sample with the mean and variance of each channel over the whole batch, in training mode. The statistics
+	 * are shared by every pass in the batch, at slot zero. The passes must be given together to
+	 * {@link #accumulateBackpropBatch(List, List, boolean, ParallelBackwardPass)}. In inference mode, or if the batch has only
+	 * one input per channel, every sample is normalized with the running statistics instead.
+	 * 
+	 * @param inputs input of each sample in the batch
+	 * @return forward pass for each sample
+	 */
+	@Override
+	public List<ParallelForwardPass<T>> parallelForwardBatch(final List<T> inputs) {
+		final int batchSize = inputs.size();
+		final List<ParallelForwardPass<T>> out = new ArrayList<>(batchSize);
+		
+		if (batchSize == 0) {
+			return out;
+		}
+		
+		final int elementCount = inputs.get(0).elementCount();
+		final int groupSize = elementCount / channels;
+		
+		if (!training || (batchSize * groupSize) < 2) {
+			for (int b = 0; b < batchSize; b++) {
+				out.add(runningForwardPass(inputs.get(b)));
+			}
+			
+			return out;
+		}
+		
+		final double[][] values = new double[batchSize][];
+		
+		for (int b = 0; b < batchSize; b++) {
+			values[b] = new double[elementCount];
+			inputs.get(b).copyTo(values[b], 0);
+		}
+		
+		final BatchStatistics statistics = new BatchStatistics(channels, elementCount, batchSize * groupSize);
+		
+		for (int c = 0; c < channels; c++) {
+			final int start = c * groupSize;
+			final int end = start + groupSize;
+			
+			double sum = 0;
+			double sumSquare = 0;
+			
+			for (int b = 0; b < batchSize; b++) {
+				for (int i = start; i < end; i++) {
+					sum += values[b][i];
+					sumSquare += values[b][i] * values[b][i];
+				}
+			}
+			
+			final double mean = sum / statistics.count;
+			double squaredDeviations = 0;
+			
+			for (int b = 0; b < batchSize; b++) {
+				for (int i = start; i < end; i++) {
+					final double deviation = values[b][i] - mean;
+					squaredDeviations += deviation * deviation;
+				}
+			}
+			
+			statistics.sums[c] = sum;
+			statistics.sumSquares[c] = sumSquare;
+			statistics.mean[c] = mean;
+			statistics.inverseDeviation[c] = 1.0 / Math.sqrt((squaredDeviations / statistics.count) + epsilon);
+			
+			final double scale = gamma.get(c) * statistics.inverseDeviation[c];
+			final double shift = beta.get(c) - (mean * scale);
+			
+			for (int b = 0; b < batchSize; b++) {
+				for (int i = start; i < end; i++) {
+					values[b][i] = (values[b][i] * scale) + shift;
+				}
+			}
+		}
+		
+		for (int b = 0; b < batchSize; b++) {
+			final ParallelForwardPass<T> pass = new ParallelForwardPass<>(inputs.get(b).withElements(values[b], 0), 1);
+			pass.setLatestInput(0, inputs.get(b));
+			pass.setSavedTensor(0, statistics);
+			out.add(pass);
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Computes backpropagation for one sample and returns gamma and beta gradients, and, in training mode, the per-channel
+	 * sums, sums of squares, and number of inputs per channel as {@linkplain ParallelBackwardPass#statistics(int) statistics}.
+	 * 
+	 * @param prevForward result of the previous forward pass
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param isFirstLayer true if the derivative with respect to the input is not needed
+	 * @return derivative of the error with respect to this layer's input, gradients, and statistics
+	 */
+	@Override
+	public ParallelBackwardPass<T> parallelBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer) {
+		final ParallelBackwardPass<T> out = new ParallelBackwardPass<>(null, 1);
+		final T errorInputDeriv = accumulateBackprop(prevForward, errorOutputDeriv, isFirstLayer, out);
+		
+		return out.withErrorInputDeriv(errorInputDeriv);
+	}
+	
+	@Override
+	public T accumulateBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		return accumulateBackpropBatch(Collections.singletonList(prevForward), Collections.singletonList(errorOutputDeriv), isFirstLayer, accumulator).get(0);
+	}
+	
+	/**
+	 * Computes backpropagation for a batch from {@link #parallelForwardBatch(List)}, through the batch statistics, and adds the
+	 * gamma and beta gradients and the per-channel sums, sums of squares, and number of inputs per channel to <code>accumulator</code>.
+	 * 
+	 * @param prevForwards every forward pass of the batch, in the same order
+	 * @param errorOutputDerivs derivative of the error with respect to the output of each sample
+	 * @param isFirstLayer true if the derivatives with respect to the inputs are not needed
+	 * @param accumulator gradients and statistics to add to
+	 * @return derivative of the error with respect to each input
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<T> accumulateBackpropBatch(final List<ParallelForwardPass<T>> prevForwards, final List<T> errorOutputDerivs, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final int batchSize = prevForwards.size();
+		final List<T> inputs = new ArrayList<>(batchSize);
+		
+		for (int b = 0; b < batchSize; b++) {
+			inputs.add((T) prevForwards.get(b).latestInput(0));
+		}
+		
+		final double[] gammaGradient = new double[channels];
+		final double[] betaGradient = new double[channels];
+		final double[] inputSums = new double[channels];
+		final double[] inputSumSquares = new double[channels];
+		final double inputCount;
+		final List<T> out;
+		
+		final SavedTensor saved = (batchSize == 0) ? null : prevForwards.get(0).savedTensor(0);
+		
+		if (saved instanceof BatchStatistics) {
+			final BatchStatistics statistics = (BatchStatistics) saved;
+			
+			out = batchBackprop(inputs, errorOutputDerivs, statistics, isFirstLayer, gammaGradient, betaGradient);
+			System.arraycopy(statistics.sums, 0, inputSums, 0, channels);
+			System.arraycopy(statistics.sumSquares, 0, inputSumSquares, 0, channels);
+			inputCount = statistics.count;
+		} else {
+			out = new ArrayList<>(batchSize);
+			
+			for (int b = 0; b < batchSize; b++) {
+				out.add(runningBackprop(inputs.get(b), errorOutputDerivs.get(b), isFirstLayer, gammaGradient, betaGradient, inputSums, inputSumSquares));
+			}
+			
+			inputCount = training ? batchSize * (inputs.isEmpty() ? 0 : inputs.get(0).elementCount() / channels) : 0;
+		}
+		
+		final ParallelBackwardPass<T> pass = new ParallelBackwardPass<>(null, 1);
+		pass.setGradients(0, new Vector(gammaGradient), new Vector(betaGradient));
+		
+		if (inputCount != 0) {
+			pass.setStatistics(0, new Vector(inputSums), new Vector(inputSumSquares), new Vector(inputCount));
+		}
+		
+		GradientReducer.accumulate(accumulator, pass);
+		
+		return out;
+	}
+	
+	/**
+	 * Returns true: in training mode, this layer normalizes with the statistics of the batch.
+	 * 
+	 * @return true
+	 */
+	@Override
+	public boolean usesBatchStatistics() {
+		return true;
+	}
+	
+	/**
+	 * Updates gamma and beta with the summed gradients, and moves the running statistics towards the summed
+	 * {@linkplain ParallelBackwardPass#statistics(int) statistics}, if there are any.
+	 * 
+	 * @param gradients summed gradients and statistics of a minibatch
+	 * @param learningRate learning rate
+	 */
+	@Override
+	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		final ElementContainer<?>[] gradientList = gradients.gradients(0);
+		
+		if (gradientList != null) {
+			applyGradients((Vector) gradientList[0], (Vector) gradientList[1], learningRate);
+		}
+		
+		final ElementContainer<?>[] statistics = gradients.statistics(0);
+		
+		if (statistics != null) {
+			updateStatistics((Vector) statistics[0], (Vector) statistics[1], ((Vector) statistics[2]).get(0));
+		}
+	}
+	
+	/**
+	 * Returns a copy of the given list of layers where every batch normalization layer that directly follows a {@link DenseLayer}
+	 * or {@link ConvolutionLayer2} is folded into that layer. Nested {@linkplain LayerSequence layer sequences} are folded as well.
+	 * Layers that are not folded are not copied.
+	 * 
+	 * @param <L> layer type
+	 * @param layers list of layers
+	 * @return a new list of layers with batch normalization folded in where possible
+	 */
+	@SuppressWarnings("unchecked")
+	static <L extends Layer<?, ?>> List<L> fold(final List<L> layers) {
+		final List<L> folded = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			final L layer = layers.get(i);
+			final L next = (i + 1 < layers.size()) ? layers.get(i + 1) : null;
+			
+			if (next instanceof BatchNormLayer && layer instanceof DenseLayer) {
+				folded.add((L) ((DenseLayer) layer).foldBatchNorm((BatchNormLayer<Vector>) next));
+				i++;
+			} else if (next instanceof BatchNormLayer && layer instanceof ConvolutionLayer2) {
+				folded.add((L) ((ConvolutionLayer2) layer).foldBatchNorm((BatchNormLayer<Tensor3>) next));
+				i++;
+			} else if (layer instanceof ParallelLayerSequence) {
+				folded.add((L) ((ParallelLayerSequence<?>) layer).foldBatchNorm());
+			} else if (layer instanceof LayerSequence) {
+				folded.add((L) ((LayerSequence<?>) layer).foldBatchNorm());
+			} else {
+				folded.add(layer);
+			}
+		}
+		
+		return folded;
+	}
+	
+	/**
+	 * The statistics of one batch, shared by the forward pass of every sample in the batch.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private static final class BatchStatistics implements SavedTensor {
+		
+		/**
+		 * Number of elements in the input of one sample
+		 */
+		final int elementCount;
+		
+		/**
+		 * Number of inputs in each channel over the whole batch
+		 */
+		final double count;
+		
+		/**
+		 * Mean of each channel over the batch
+		 */
+		final double[] mean;
+		
+		/**
+		 * <code>1 / sqrt(variance + epsilon)</code> for each channel over the batch
+		 */
+		final double[] inverseDeviation;
+		
+		/**
+		 * Sum of the inputs in each channel over the batch
+		 */
+		final double[] sums;
+		
+		/**
+		 * Sum of the squared inputs in each channel over the batch
+		 */
+		final double[] sumSquares;
+		
+		/**
+		 * Creates empty statistics for a batch.
+		 * 
+		 * @param channels number of channels
+		 * @param _elementCount number of elements in the input of one sample
+		 * @param _count number of inputs in each channel over the whole batch
+		 */
+		BatchStatistics(final int channels, final int _elementCount, final double _count) {
+			elementCount = _elementCount;
+			count = _count;
+			mean = new double[channels];
+			inverseDeviation = new double[channels];
+			sums = new double[channels];
+			sumSquares = new double[channels];
+		}
+		
+		@Override
+		public int elementCount() {
+			return elementCount;
+		}
+		
+		@Override
+		public long sizeInBytes() {
+			return 4L * mean.length * Double.BYTES;
+		}
+	}
+}
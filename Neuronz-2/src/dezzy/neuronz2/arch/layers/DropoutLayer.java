@@ -0,0 +1,299 @@
+package dezzy.neuronz2.arch.layers;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.util.SplittableRandom;
+
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+import dezzy.neuronz2.arch.ParallelForwardPass;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.saved.BitMask;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * A dropout layer. In {@linkplain #setTrainingMode(boolean) training mode}, every element of the input is set to zero with
+ * probability {@link #rate}, and the remaining elements are scaled by <code>1 / (1 - rate)</code> so that the expected
+ * output does not change. In inference mode, the input is returned as-is.
+ * <p>
+ * Each thread draws its masks from its own {@link SplittableRandom}, split from one root generator, so worker threads
+ * running parallel forward passes never wait on each other for random numbers. The mask for each sample is stored as a
+ * {@link BitMask} in the {@link ParallelForwardPass}. A copy made by {@link Layer#copyOf(Layer)} or loaded from a file gets a
+ * new seed, so replicas of a network do not drop the same elements; use {@link #setSeed(long)} to choose the seeds.
+ *
+ * @author Joe Desmond
+ * @param <T> tensor type (vector, matrix, etc.)
+ */
+public class DropoutLayer<T extends ElementContainer<T>> implements ParallelLayer<T, T> {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 6320934155813409146L;
+	
+	/**
+	 * The probability that an element is dropped
+	 */
+	private final double rate;
+	
+	/**
+	 * The seed of the root random number generator
+	 */
+	private long seed;
+	
+	/**
+	 * True if this layer should drop elements; false for a pass-through in inference mode
+	 */
+	private boolean training = true;
+	
+	/**
+	 * Root generator that every thread's generator is split from. Created lazily because {@link SplittableRandom}
+	 * is not serializable
+	 */
+	private transient SplittableRandom root;
+	
+	/**
+	 * Each thread's own generator. Created lazily because {@link ThreadLocal} is not serializable
+	 */
+	private transient volatile ThreadLocal<SplittableRandom> threadRandom;
+	
+	/**
+	 * The mask from the latest call to {@link #forwardPass(ElementContainer)}, or null if the latest
+	 * forward pass was in inference mode
+	 */
+	private transient BitMask latestMask;
+	
+	/**
+	 * Creates a dropout layer with the given dropout rate and seed.
+	 * 
+	 * @param _rate probability that an element is dropped (for example; 0.5)
+	 * @param _seed seed of the root random number generator
+	 */
+	public DropoutLayer(final double _rate, final long _seed) {
+		checkRate(_rate);
+		
+		rate = _rate;
+		seed = _seed;
+	}
+	
+	/**
+	 * Creates a dropout layer with the given dropout rate and a random seed.
+	 * 
+	 * @param _rate probability that an element is dropped (for example; 0.5)
+	 */
+	public DropoutLayer(final double _rate) {
+		this(_rate, System.nanoTime());
+	}
+	
+	/**
+	 * Throws an exception if a dropout rate is not between zero (inclusive) and one (exclusive). A rate of one would drop
+	 * every element and scale by infinity.
+	 * 
+	 * @param rate dropout rate
+	 * @throws IllegalArgumentException if <code>rate</code> is not in <code>[0, 1)</code>
+	 */
+	private static void checkRate(final double rate) {
+		if (!(rate >= 0 && rate < 1)) {
+			throw new IllegalArgumentException("Dropout rate must satisfy 0 <= rate < 1 (got " + rate + ")");
+		}
+	}
+	
+	/**
+	 * Reads this layer from a stream and gives it a new seed, so that a copy does not draw the same masks as the original.
+	 * 
+	 * @param in stream to read from
+	 * @throws IOException if there is a problem reading from the stream, or the dropout rate is invalid
+	 * @throws ClassNotFoundException if a serialized class cannot be found
+	 */
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		try {
+			checkRate(rate);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidObjectException(e.getMessage());
+		}
+		
+		seed = new SplittableRandom().nextLong();
+	}
+	
+	/**
+	 * Restarts this layer's random number generators from the given seed. Threads that already used this layer get new
+	 * generators split from the new root generator.
+	 * 
+	 * @param _seed seed of the root random number generator
+	 */
+	public synchronized void setSeed(final long _seed) {
+		seed = _seed;
+		threadRandom = null;
+	}
+	
+	/**
+	 * Returns the calling thread's random number generator, splitting a new one from the root
+	 * generator if this thread has not used this layer before.
+	 * 
+	 * @return this thread's random number generator
+	 */
+	private SplittableRandom random() {
+		ThreadLocal<SplittableRandom> local = threadRandom;
+		
+		if (local == null) {
+			synchronized (this) {
+				if (threadRandom == null) {
+					root = new SplittableRandom(seed);
+					threadRandom = ThreadLocal.withInitial(this::split);
+				}
+				
+				local = threadRandom;
+			}
+		}
+		
+		return local.get();
+	}
+	
+	/**
+	 * Splits a new generator from the root generator. Called once per thread.
+	 * 
+	 * @return a new random number generator
+	 */
+	private synchronized SplittableRandom split() {
+		return root.split();
+	}
+	
+	/**
+	 * Draws a mask and applies it to the input.
+	 * 
+	 * @param input input tensor
+	 * @param mask mask to fill; a set bit means that the element is kept
+	 * @return the input with dropped elements set to zero and kept elements scaled
+	 */
+	private T drop(final T input, final BitMask mask) {
+		final SplittableRandom random = random();
+		final double scale = 1.0 / (1.0 - rate);
+		final double[] values = new double[input.elementCount()];
+		input.copyTo(values, 0);
+		
+		for (int i = 0; i < values.length; i++) {
+			if (random.nextDouble() >= rate) {
+				mask.set(i);
+				values[i] *= scale;
+			} else {
+				values[i] = 0;
+			}
+		}
+		
+		return input.withElements(values, 0);
+	}
+	
+	/**
+	 * Applies a mask to the derivative of the error with respect to this layer's output.
+	 * 
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param mask mask from the forward pass
+	 * @return derivative of the error with respect to this layer's input
+	 */
+	private T applyMask(final T errorOutputDeriv, final BitMask mask) {
+		final double scale = 1.0 / (1.0 - rate);
+		final double[] derivatives = new double[errorOutputDeriv.elementCount()];
+		errorOutputDeriv.copyTo(derivatives, 0);
+		
+		for (int i = 0; i < derivatives.length; i++) {
+			derivatives[i] = mask.get(i) ? derivatives[i] * scale : 0;
+		}
+		
+		return errorOutputDeriv.withElements(derivatives, 0);
+	}
+	
+	@Override
+	public T forwardPass(final T prevActivations) {
+		if (!training) {
+			latestMask = null;
+			return prevActivations;
+		}
+		
+		latestMask = new BitMask(prevActivations.elementCount());
+		return drop(prevActivations, latestMask);
+	}
+	
+	@Override
+	public T backprop(final T errorOutputDeriv, final boolean isFirstLayer) {
+		if (latestMask == null) {
+			return errorOutputDeriv;
+		}
+		
+		return applyMask(errorOutputDeriv, latestMask);
+	}
+	
+	/**
+	 * Not implemented: there are no weights in this layer.
+	 * 
+	 * @param learningRate unused
+	 */
+	@Override
+	public void update(final double learningRate) {
+		
+	}
+	
+	/**
+	 * Enables or disables dropout. In inference mode, this layer returns its input unchanged.
+	 * 
+	 * @param _training true for training mode, false for inference mode
+	 */
+	@Override
+	public void setTrainingMode(final boolean _training) {
+		training = _training;
+	}
+	
+	/**
+	 * Returns zero because there are no learnable parameters in this layer.
+	 * 
+	 * @return zero
+	 */
+	@Override
+	public int parameterCount() {
+		return 0;
+	}
+	
+	@Override
+	public int sublayers() {
+		return 1;
+	}
+	
+	/**
+	 * In training mode, drops elements of the input and saves the mask. In inference mode, returns the input in a
+	 * {@linkplain ParallelForwardPass#passThrough(ElementContainer) pass-through} pass, without drawing or allocating a mask.
+	 * 
+	 * @param prevActivations output from the previous layer
+	 * @return output from this layer, and the mask if any
+	 */
+	@Override
+	public ParallelForwardPass<T> parallelForwardPass(final T prevActivations) {
+		if (!training) {
+			return ParallelForwardPass.passThrough(prevActivations);
+		}
+		
+		final BitMask mask = new BitMask(prevActivations.elementCount());
+		final T output = drop(prevActivations, mask);
+		
+		final ParallelForwardPass<T> out = new ParallelForwardPass<>(output, 1);
+		out.setSavedTensor(0, mask);
+		
+		return out;
+	}
+	
+	@Override
+	public ParallelBackwardPass<T> parallelBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer) {
+		final BitMask mask = (BitMask) prevForward.savedTensor(0);
+		
+		if (mask == null) {
+			return new ParallelBackwardPass<>(errorOutputDeriv, 1);
+		}
+		
+		return new ParallelBackwardPass<>(applyMask(errorOutputDeriv, mask), 1);
+	}
+	
+	@Override
+	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		
+	}
+}
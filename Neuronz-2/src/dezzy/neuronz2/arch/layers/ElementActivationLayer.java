@@ -1,11 +1,11 @@
 package dezzy.neuronz2.arch.layers;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.saved.BitMask;
+import dezzy.neuronz2.arch.saved.FloatTensor;
+import dezzy.neuronz2.arch.saved.SavedTensor;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.FuncDerivPair;
 
@@ -29,31 +29,47 @@ public class ElementActivationLayer<T extends ElementContainer<T>> implements Pa
 	private final FuncDerivPair activationFunction;
 	
 	/**
-	 * The latest input to this layer. May be used in backpropagation
-	 * 
-	 * TODO: Implement this
+	 * The latest output of this layer. Used in backpropagation
 	 */
-	@SuppressWarnings("unused")
-	private T latestInput;
+	private T latestOutput;
 	
 	/**
-	 * The latest output of this layer. Used in backpropagation
+	 * True if {@link #parallelForwardPass(ElementContainer)} should save a {@linkplain FloatTensor single-precision copy}
+	 * of the output for activation functions without a {@linkplain FuncDerivPair#twoValuedDerivative two-valued derivative}.
+	 * If this is false, the layer saves a full copy of the output for these functions. Functions with a two-valued derivative
+	 * always save a {@linkplain BitMask bit mask}, which loses no precision.
 	 */
-	private T latestOutput;
+	private final boolean reducedPrecision;
 	
 	/**
-	 * Constructs the activation layer given an activation function and its derivative.
+	 * Constructs the activation layer given an activation function and its derivative. Approximate activation functions
+	 * (such as {@link FuncDerivPair#FAST_SIGMOID}) can be used to trade a small, bounded error for speed.
 	 * 
 	 * @param _activationFunction the activation function and its derivative
 	 */
 	public ElementActivationLayer(final FuncDerivPair _activationFunction) {
+		this(_activationFunction, false);
+	}
+	
+	/**
+	 * Constructs the activation layer given an activation function and its derivative, and chooses how the output is
+	 * saved for parallel backpropagation. Only a bit per element is saved for functions like ReLU, because that is exact.
+	 * By default, other functions save a full double-precision copy of the output. With <code>_reducedPrecision</code> set,
+	 * they save a single-precision copy instead. That halves the memory per sample in flight, but rounds the derivatives
+	 * slightly: their relative error is about the float rounding error times the sensitivity of the activation's derivative.
+	 * 
+	 * @param _activationFunction the activation function and its derivative
+	 * @param _reducedPrecision true to save a single-precision copy of the output during a parallel forward pass
+	 */
+	public ElementActivationLayer(final FuncDerivPair _activationFunction, final boolean _reducedPrecision) {
 		activationFunction = _activationFunction;
+		reducedPrecision = _reducedPrecision;
 	}
 	
 	/**
 	 * Applies {@linkplain #activationFunction this} activation function element-wise to
 	 * <code>prevActivations</code>. Saves the application of the activation function internally
-	 * as well as the input to the function (for backpropagation). Returns the application
+	 * for backpropagation. Returns the application
 	 * of the activation function on <code>prevActivations</code>.
 	 * 
 	 * 
@@ -62,7 +78,6 @@ public class ElementActivationLayer<T extends ElementContainer<T>> implements Pa
 	 */
 	@Override
 	public T forwardPass(final T prevActivations) {
-		latestInput = prevActivations;
 		latestOutput = prevActivations.transform(activationFunction.function);
 		return latestOutput;
 	}
@@ -109,30 +124,88 @@ public class ElementActivationLayer<T extends ElementContainer<T>> implements Pa
 		return 0;
 	}
 
+	/**
+	 * Applies the activation function element-wise to <code>prevActivations</code>. If the activation function has a
+	 * {@linkplain FuncDerivPair#twoValuedDerivative two-valued derivative}, the output is saved as a {@link BitMask} recording
+	 * which of the two derivative values applies to each element. Otherwise a full copy of the output is saved, or a
+	 * {@link FloatTensor} if this layer was created with <code>reducedPrecision</code> set.
+	 * 
+	 * @param prevActivations output from the previous layer
+	 * @return output from this layer, and the saved output
+	 */
 	@Override
 	public ParallelForwardPass<T> parallelForwardPass(final T prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		final Map<Layer<?, ?>, ElementContainer<?>> latestOutputs = new HashMap<>();
+		final T output = prevActivations.transform(activationFunction.function);
 		
-		latestInputs.put(this, prevActivations);
+		final ParallelForwardPass<T> out = new ParallelForwardPass<>(output, 1);
 		
-		final T output = prevActivations.transform(activationFunction.function);
+		if (activationFunction.twoValuedDerivative || reducedPrecision) {
+			out.setSavedTensor(0, save(output));
+		} else {
+			out.setLatestOutput(0, output);
+		}
 		
-		latestOutputs.put(this, output);
+		return out;
+	}
+	
+	/**
+	 * Saves the information needed to compute this layer's derivative from its output.
+	 * 
+	 * @param output output of this layer
+	 * @return a bit mask or single-precision copy of <code>output</code>
+	 */
+	private SavedTensor save(final T output) {
+		final double[] values = new double[output.elementCount()];
+		output.copyTo(values, 0);
+		
+		if (!activationFunction.twoValuedDerivative) {
+			return new FloatTensor(values);
+		}
 		
-		return new ParallelForwardPass<>(output, latestInputs, latestOutputs);
+		final BitMask mask = new BitMask(values.length);
+		
+		for (int i = 0; i < values.length; i++) {
+			if (activationFunction.derivative.apply(values[i]) == activationFunction.highDerivative) {
+				mask.set(i);
+			}
+		}
+		
+		return mask;
 	}
 
 	@Override
 	public ParallelBackwardPass<T> parallelBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer) {
-		@SuppressWarnings("unchecked")
-		final T prevLatestOutput = (T) prevForward.latestOutputs.get(this);
+		final SavedTensor saved = prevForward.savedTensor(0);
+		
+		if (saved == null) {
+			@SuppressWarnings("unchecked")
+			final T prevLatestOutput = (T) prevForward.latestOutput(0);
+			
+			final T outputInputDeriv = prevLatestOutput.transform(activationFunction.derivative);
+			
+			return new ParallelBackwardPass<>(errorOutputDeriv.hadamard(outputInputDeriv), 1);
+		}
 		
-		final T outputInputDeriv = prevLatestOutput.transform(activationFunction.derivative);
+		final double[] derivatives = new double[errorOutputDeriv.elementCount()];
+		errorOutputDeriv.copyTo(derivatives, 0);
 		
-		final T output = errorOutputDeriv.hadamard(outputInputDeriv);
+		if (saved instanceof BitMask) {
+			final BitMask mask = (BitMask) saved;
+			final double high = activationFunction.highDerivative;
+			final double low = activationFunction.lowDerivative;
+			
+			for (int i = 0; i < derivatives.length; i++) {
+				derivatives[i] *= mask.get(i) ? high : low;
+			}
+		} else {
+			final FloatTensor savedOutput = (FloatTensor) saved;
+			
+			for (int i = 0; i < derivatives.length; i++) {
+				derivatives[i] *= activationFunction.derivative.apply(savedOutput.get(i));
+			}
+		}
 		
-		return new ParallelBackwardPass<>(output, Map.of());
+		return new ParallelBackwardPass<>(errorOutputDeriv.withElements(derivatives, 0), 1);
 	}
 
 	@Override
@@ -1,12 +1,16 @@
 package dezzy.neuronz2.arch.layers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.List;
 
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.cnn.layers.PoolingLayer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
@@ -64,6 +68,29 @@ public interface Layer<I extends ElementContainer<I>, O extends ElementContainer
 	 */
 	public void update(final double learningRate);
 	
+	/**
+	 * Sets the {@link Optimizer} that this layer uses to update its learnable parameters in {@link #update(double)}.
+	 * Any optimizer state (such as momentum) that this layer has accumulated is discarded. Layers without learnable
+	 * parameters do not need to implement this, and layers composed of sublayers should pass the optimizer on to
+	 * every sublayer.
+	 * 
+	 * @param optimizer update rule for this layer's learnable parameters
+	 */
+	public default void setOptimizer(final Optimizer optimizer) {
+		
+	}
+	
+	/**
+	 * Switches this layer between training mode and inference mode. Most layers behave the same in both modes, but some
+	 * (such as {@link BatchNormLayer}, which normalizes with batch statistics and gathers running statistics) only do so while training. Layers composed of sublayers should pass
+	 * the mode on to every sublayer. Layers start in training mode.
+	 * 
+	 * @param training true for training mode, false for inference mode
+	 */
+	public default void setTrainingMode(final boolean training) {
+		
+	}
+	
 	/**
 	 * Returns the total number of learnable parameters in this network.
 	 * 
@@ -71,6 +98,34 @@ public interface Layer<I extends ElementContainer<I>, O extends ElementContainer
 	 */
 	public int parameterCount();
 	
+	/**
+	 * Returns the learnable parameters of this layer, in a fixed order. The returned tensors belong to the layer, so
+	 * modifying them in place modifies the layer; this lets the parameters of several copies of a network be compared,
+	 * averaged, or exchanged without knowing what kind of layers the network is made of. The total number of elements
+	 * in the tensors is {@link #parameterCount()}. Layers without learnable parameters do not need to implement this,
+	 * and layers composed of sublayers should return the parameters of every sublayer, in order.
+	 * 
+	 * @return learnable parameters of this layer
+	 */
+	public default List<ElementContainer<?>> parameters() {
+		return List.of();
+	}
+	
+	/**
+	 * Returns every tensor that the output of this layer depends on in inference mode, in a fixed order: the
+	 * {@linkplain #parameters() learnable parameters}, and any statistics that are not learned with gradients (such as the
+	 * running statistics of a {@link BatchNormLayer}). Like the parameters, the returned tensors belong to the layer. Copying
+	 * the state of one copy of a network into another makes the second compute the same function as the first.
+	 * <p>
+	 * The default implementation returns the learnable parameters. Layers with other statistics should add them after the
+	 * parameters, and layers composed of sublayers should return the state of every sublayer, in order.
+	 * 
+	 * @return inference state of this layer
+	 */
+	public default List<ElementContainer<?>> state() {
+		return parameters();
+	}
+	
 	/**
 	 * Returns the total number of sub-layers contained in this layer. Layers can be composed of one or more
 	 * "sub-layers" chained together, and this function returns the number of layers that have been
@@ -97,6 +152,35 @@ public interface Layer<I extends ElementContainer<I>, O extends ElementContainer
 		oos.close();
 	}
 	
+	/**
+	 * Creates a deep copy of a layer network by serializing it in memory. The copy shares no state with the original: it
+	 * has its own parameters and its own optimizer state.
+	 * 
+	 * @param <I> input tensor type
+	 * @param <O> output tensor type
+	 * @param layer layer network to copy
+	 * @return a deep copy of <code>layer</code>
+	 * @throws IllegalArgumentException if the layer cannot be serialized
+	 */
+	@SuppressWarnings("unchecked")
+	public static <I extends ElementContainer<I>, O extends ElementContainer<O>> Layer<I, O> copyOf(final Layer<I, O> layer) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			
+			oos.writeObject(layer);
+			oos.close();
+			
+			final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			final Layer<I, O> copy = (Layer<I, O>) ois.readObject();
+			
+			ois.close();
+			return copy;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalArgumentException(layer.getClass().getSimpleName() + " could not be copied", e);
+		}
+	}
+	
 	/**
 	 * Loads a layer from a file. Layers can be saved to a file by {@link Layer#saveAs}.
 	 * 
@@ -1,7 +1,9 @@
 package dezzy.neuronz2.arch.layers;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
@@ -86,6 +88,42 @@ public final class LayerSequence<T extends ElementContainer<T>> implements Layer
 		}
 	}
 	
+	/**
+	 * Sets the optimizer of every layer in this sequence.
+	 * 
+	 * @param optimizer update rule for the learnable parameters in this sequence
+	 */
+	@Override
+	public void setOptimizer(final Optimizer optimizer) {
+		for (int i = 0; i < layers.size(); i++) {
+			layers.get(i).setOptimizer(optimizer);
+		}
+	}
+	
+	/**
+	 * Sets the training mode of every layer in this sequence.
+	 * 
+	 * @param training true for training mode, false for inference mode
+	 */
+	@Override
+	public void setTrainingMode(final boolean training) {
+		for (int i = 0; i < layers.size(); i++) {
+			layers.get(i).setTrainingMode(training);
+		}
+	}
+	
+	/**
+	 * Returns a copy of this sequence for inference, where every {@link BatchNormLayer} that directly follows a
+	 * {@link dezzy.neuronz2.ann.layers.DenseLayer DenseLayer} or {@link dezzy.neuronz2.cnn.layers.ConvolutionLayer2 ConvolutionLayer2}
+	 * has been folded into that layer's weights and biases. The folded sequence produces the same output as this sequence
+	 * in inference mode, without the cost of the batch normalization layers. Layers that are not folded are shared with this sequence.
+	 * 
+	 * @return a new sequence with batch normalization folded in where possible
+	 */
+	public LayerSequence<T> foldBatchNorm() {
+		return new LayerSequence<>(BatchNormLayer.fold(layers));
+	}
+	
 	/**
 	 * Returns the number of learnable parameters in this layer sequence, which is the sum of all the learnable parameters
 	 * in the {@linkplain #layers layer list}.
@@ -103,6 +141,38 @@ public final class LayerSequence<T extends ElementContainer<T>> implements Layer
 		return sum;
 	}
 	
+	/**
+	 * Returns the learnable parameters of every layer in the {@linkplain #layers layer list}, in order.
+	 * 
+	 * @return learnable parameters in this layer sequence
+	 */
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		final List<ElementContainer<?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			out.addAll(layers.get(i).parameters());
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the {@linkplain Layer#state() inference state} of every layer in the {@linkplain #layers layer list}, in order.
+	 * 
+	 * @return inference state of this layer sequence
+	 */
+	@Override
+	public List<ElementContainer<?>> state() {
+		final List<ElementContainer<?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			out.addAll(layers.get(i).state());
+		}
+		
+		return out;
+	}
+	
 	/**
 	 * Returns the total number of sub-layers in this layer sequence, which is the sum of all the sub-layers
 	 * in the {@linkplain #layers layer list}.
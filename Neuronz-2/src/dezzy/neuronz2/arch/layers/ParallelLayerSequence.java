@@ -1,12 +1,14 @@
 package dezzy.neuronz2.arch.layers;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
@@ -28,6 +30,13 @@ public class ParallelLayerSequence<T extends ElementContainer<T>> implements Par
 	 */
 	private final List<ParallelLayer<T, T>> layers;
 	
+	/**
+	 * The first slot of each layer in the {@link ParallelForwardPass} and {@link ParallelBackwardPass}, followed
+	 * by the total number of slots. Layer <code>i</code> uses the slots from <code>firstSlots[i]</code> up to
+	 * (but not including) <code>firstSlots[i + 1]</code>.
+	 */
+	private transient int[] firstSlots;
+	
 	/**
 	 * Constructs a ParallelLayerSequence with the given layers. The layers are connected in the order
 	 * that they are provided.
@@ -36,6 +45,35 @@ public class ParallelLayerSequence<T extends ElementContainer<T>> implements Par
 	 */
 	public ParallelLayerSequence(final List<ParallelLayer<T, T>> _layers) {
 		layers = _layers;
+		firstSlots = assignSlots(layers);
+	}
+	
+	/**
+	 * Gives each layer a range of slots, in order, with as many slots as the layer has {@linkplain #sublayers() sub-layers}.
+	 * 
+	 * @param layers sequence of layers
+	 * @return the first slot of each layer, followed by the total number of slots
+	 */
+	private static int[] assignSlots(final List<? extends ParallelLayer<?, ?>> layers) {
+		final int[] slots = new int[layers.size() + 1];
+		
+		for (int i = 0; i < layers.size(); i++) {
+			slots[i + 1] = slots[i] + layers.get(i).sublayers();
+		}
+		
+		return slots;
+	}
+	
+	/**
+	 * Reads this sequence from a stream and assigns slots to its layers.
+	 * 
+	 * @param in stream to read from
+	 * @throws IOException if there is a problem reading from the stream
+	 * @throws ClassNotFoundException if the class of a serialized layer cannot be found
+	 */
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		firstSlots = assignSlots(layers);
 	}
 	
 	/**
@@ -87,6 +125,58 @@ public class ParallelLayerSequence<T extends ElementContainer<T>> implements Par
 			layers.get(i).update(learningRate);
 		}
 	}
+	
+	/**
+	 * Sets the optimizer of every layer in this sequence.
+	 * 
+	 * @param optimizer update rule for the learnable parameters in this sequence
+	 */
+	@Override
+	public void setOptimizer(final Optimizer optimizer) {
+		for (int i = 0; i < layers.size(); i++) {
+			layers.get(i).setOptimizer(optimizer);
+		}
+	}
+	
+	/**
+	 * Sets the training mode of every layer in this sequence.
+	 * 
+	 * @param training true for training mode, false for inference mode
+	 */
+	@Override
+	public void setTrainingMode(final boolean training) {
+		for (int i = 0; i < layers.size(); i++) {
+			layers.get(i).setTrainingMode(training);
+		}
+	}
+	
+	/**
+	 * Returns the pipeline stages of every layer in this sequence, in order.
+	 * 
+	 * @return parts of this sequence, in order
+	 */
+	@Override
+	public List<ParallelLayer<?, ?>> pipelineStages() {
+		final List<ParallelLayer<?, ?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			out.addAll(layers.get(i).pipelineStages());
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns a copy of this sequence for inference, where every {@link BatchNormLayer} that directly follows a
+	 * {@link dezzy.neuronz2.ann.layers.DenseLayer DenseLayer} or {@link dezzy.neuronz2.cnn.layers.ConvolutionLayer2 ConvolutionLayer2}
+	 * has been folded into that layer's weights and biases. The folded sequence produces the same output as this sequence
+	 * in inference mode, without the cost of the batch normalization layers. Layers that are not folded are shared with this sequence.
+	 * 
+	 * @return a new sequence with batch normalization folded in where possible
+	 */
+	public ParallelLayerSequence<T> foldBatchNorm() {
+		return new ParallelLayerSequence<>(BatchNormLayer.fold(layers));
+	}
 
 	/**
 	 * Returns the number of learnable parameters in this layer sequence, which is the sum of all the learnable parameters
@@ -105,6 +195,38 @@ public class ParallelLayerSequence<T extends ElementContainer<T>> implements Par
 		return sum;
 	}
 	
+	/**
+	 * Returns the learnable parameters of every layer in the {@linkplain #layers layer list}, in order.
+	 * 
+	 * @return learnable parameters in this layer sequence
+	 */
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		final List<ElementContainer<?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			out.addAll(layers.get(i).parameters());
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the {@linkplain Layer#state() inference state} of every layer in the {@linkplain #layers layer list}, in order.
+	 * 
+	 * @return inference state of this layer sequence
+	 */
+	@Override
+	public List<ElementContainer<?>> state() {
+		final List<ElementContainer<?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < layers.size(); i++) {
+			out.addAll(layers.get(i).state());
+		}
+		
+		return out;
+	}
+	
 	/**
 	 * Returns the total number of sub-layers in this layer sequence, which is the sum of all the sub-layers
 	 * in the {@linkplain #layers layer list}.
@@ -124,43 +246,123 @@ public class ParallelLayerSequence<T extends ElementContainer<T>> implements Par
 
 	@Override
 	public ParallelForwardPass<T> parallelForwardPass(final T prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		final Map<Layer<?, ?>, ElementContainer<?>> latestOutputs = new HashMap<>();
+		final ParallelForwardPass<T> slots = new ParallelForwardPass<>(null, firstSlots[layers.size()]);
 		
-		ParallelForwardPass<T> activations = new ParallelForwardPass<>(prevActivations, Map.of(), Map.of());
+		T activations = prevActivations;
 		
 		for (int i = 0; i < layers.size(); i++) {
-			activations = layers.get(i).parallelForwardPass(activations.output);
-			latestInputs.putAll(activations.latestInputs);
-			latestOutputs.putAll(activations.latestOutputs);
+			final ParallelForwardPass<T> layerPass = layers.get(i).parallelForwardPass(activations);
+			slots.putAll(layerPass, firstSlots[i]);
+			activations = layerPass.output;
 		}
 		
-		final T output = activations.output;
-		
-		return new ParallelForwardPass<>(output, latestInputs, latestOutputs);
+		return slots.withOutput(activations);
 	}
 
 	@Override
 	public ParallelBackwardPass<T> parallelBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer) {
-		final Map<Layer<?, ?>, List<ElementContainer<?>>> gradients = new HashMap<>();
+		final ParallelBackwardPass<T> gradients = new ParallelBackwardPass<>(null, firstSlots[layers.size()]);
 		
-		ParallelBackwardPass<T> derivative = new ParallelBackwardPass<>(errorOutputDeriv, Map.of());
+		T derivative = errorOutputDeriv;
 		
-		for (int i = layers.size() - 1; i >= 1; i--) {
-			derivative = layers.get(i).parallelBackprop(prevForward, derivative.errorInputDeriv, false);
-			gradients.putAll(derivative.gradients);
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			final ParallelForwardPass<T> layerForward = prevForward.slice(firstSlots[i], firstSlots[i + 1] - firstSlots[i]);
+			final ParallelBackwardPass<T> layerPass = layers.get(i).parallelBackprop(layerForward, derivative, isFirstLayer && i == 0);
+			gradients.putAll(layerPass, firstSlots[i]);
+			derivative = layerPass.errorInputDeriv;
 		}
 		
-		final ParallelBackwardPass<T> out = layers.get(0).parallelBackprop(prevForward, derivative.errorInputDeriv, isFirstLayer);
-		gradients.putAll(out.gradients);
+		return gradients.withErrorInputDeriv(derivative);
+	}
+
+	@Override
+	public T accumulateBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		T derivative = errorOutputDeriv;
+		
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			final int firstSlot = firstSlots[i];
+			final int slotCount = firstSlots[i + 1] - firstSlot;
+			
+			derivative = layers.get(i).accumulateBackprop(prevForward.slice(firstSlot, slotCount), derivative, isFirstLayer && i == 0, accumulator.slice(firstSlot, slotCount));
+		}
 		
-		return new ParallelBackwardPass<>(out.errorInputDeriv, gradients);
+		return derivative;
 	}
 
+	@Override
+	public List<ParallelForwardPass<T>> parallelForwardBatch(final List<T> inputs) {
+		final List<ParallelForwardPass<T>> slots = new ArrayList<>(inputs.size());
+		
+		for (int sample = 0; sample < inputs.size(); sample++) {
+			slots.add(new ParallelForwardPass<>(null, firstSlots[layers.size()]));
+		}
+		
+		List<T> activations = inputs;
+		
+		for (int i = 0; i < layers.size(); i++) {
+			final List<ParallelForwardPass<T>> layerPasses = layers.get(i).parallelForwardBatch(activations);
+			
+			for (int sample = 0; sample < layerPasses.size(); sample++) {
+				slots.get(sample).putAll(layerPasses.get(sample), firstSlots[i]);
+			}
+			
+			activations = ParallelForwardPass.outputs(layerPasses);
+		}
+		
+		for (int sample = 0; sample < slots.size(); sample++) {
+			slots.set(sample, slots.get(sample).withOutput(activations.get(sample)));
+		}
+		
+		return slots;
+	}
+	
+	@Override
+	public List<T> accumulateBackpropBatch(final List<ParallelForwardPass<T>> prevForwards, final List<T> errorOutputDerivs, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		List<T> derivatives = errorOutputDerivs;
+		
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			final int firstSlot = firstSlots[i];
+			final int slotCount = firstSlots[i + 1] - firstSlot;
+			
+			derivatives = layers.get(i).accumulateBackpropBatch(ParallelForwardPass.sliceAll(prevForwards, firstSlot, slotCount), derivatives, isFirstLayer && i == 0, accumulator.slice(firstSlot, slotCount));
+		}
+		
+		return derivatives;
+	}
+	
+	@Override
+	public boolean usesBatchStatistics() {
+		for (int i = 0; i < layers.size(); i++) {
+			if (layers.get(i).usesBatchStatistics()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
 	@Override
 	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
 		for (int i = 0; i < layers.size(); i++) {
-			layers.get(i).parallelUpdate(gradients, learningRate);
+			layers.get(i).parallelUpdate(gradients.slice(firstSlots[i], firstSlots[i + 1] - firstSlots[i]), learningRate);
+		}
+	}
+	
+	@Override
+	public void hogwildUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		for (int i = 0; i < layers.size(); i++) {
+			layers.get(i).hogwildUpdate(gradients.slice(firstSlots[i], firstSlots[i + 1] - firstSlots[i]), learningRate);
 		}
+	}
+	
+	@Override
+	public boolean supportsHogwild() {
+		for (int i = 0; i < layers.size(); i++) {
+			if (!layers.get(i).supportsHogwild()) {
+				return false;
+			}
+		}
+		
+		return true;
 	}	
 }
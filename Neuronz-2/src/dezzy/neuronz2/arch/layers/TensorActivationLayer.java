@@ -1,8 +1,5 @@
 package dezzy.neuronz2.arch.layers;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
@@ -104,23 +101,22 @@ public class TensorActivationLayer<T extends ElementContainer<T>> implements Par
 
 	@Override
 	public ParallelForwardPass<T> parallelForwardPass(final T prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		
-		latestInputs.put(this, prevActivations);
-		
 		final T output = activationFunction.function.apply(prevActivations);
 		
-		return new ParallelForwardPass<>(output, latestInputs, Map.of());
+		final ParallelForwardPass<T> out = new ParallelForwardPass<>(output, 1);
+		out.setLatestInput(0, prevActivations);
+		
+		return out;
 	}
 
 	@Override
 	public ParallelBackwardPass<T> parallelBackprop(final ParallelForwardPass<T> prevForward, final T errorOutputDeriv, final boolean isFirstLayer) {
 		@SuppressWarnings("unchecked")
-		final T prevLatestInput = (T) prevForward.latestInputs.get(this);
+		final T prevLatestInput = (T) prevForward.latestInput(0);
 		
 		final T outputInputDeriv = activationFunction.derivative.apply(prevLatestInput);
 		
-		return new ParallelBackwardPass<>(errorOutputDeriv.hadamard(outputInputDeriv), Map.of());
+		return new ParallelBackwardPass<>(errorOutputDeriv.hadamard(outputInputDeriv), 1);
 	}
 
 	@Override
@@ -0,0 +1,78 @@
+package dezzy.neuronz2.arch.optimizers;
+
+/**
+ * The Adam optimizer. Keeps moving averages of the gradient (first moment) and the squared gradient (second moment)
+ * for every parameter, corrects them for their bias towards zero in the first few steps, and uses their ratio as the step.
+ *
+ * @author Joe Desmond
+ */
+public final class AdamOptimizer implements Optimizer {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 8148800813424966958L;
+
+	/**
+	 * Decay rate of the first moment
+	 */
+	private final double beta1;
+	
+	/**
+	 * Decay rate of the second moment
+	 */
+	private final double beta2;
+	
+	/**
+	 * Small value added to the denominator to avoid division by zero
+	 */
+	private final double epsilon;
+	
+	/**
+	 * Creates an Adam optimizer with the given hyperparameters.
+	 * 
+	 * @param _beta1 decay rate of the first moment (usually 0.9)
+	 * @param _beta2 decay rate of the second moment (usually 0.999)
+	 * @param _epsilon small value added to the denominator to avoid division by zero (usually 1e-8)
+	 */
+	public AdamOptimizer(final double _beta1, final double _beta2, final double _epsilon) {
+		beta1 = _beta1;
+		beta2 = _beta2;
+		epsilon = _epsilon;
+	}
+	
+	/**
+	 * Creates an Adam optimizer with the usual hyperparameters: <code>beta1 = 0.9</code>, <code>beta2 = 0.999</code>,
+	 * and <code>epsilon = 1e-8</code>.
+	 */
+	public AdamOptimizer() {
+		this(0.9, 0.999, 1e-8);
+	}
+
+	@Override
+	public OptimizerState createState(final int parameterCount) {
+		return new OptimizerState(parameterCount, 2);
+	}
+
+	@Override
+	public void computeStep(final double[] gradient, final OptimizerState state, final double learningRate) {
+		final double[] firstMoment = state.moments[0];
+		final double[] secondMoment = state.moments[1];
+		
+		state.steps++;
+		
+		final double firstCorrection = 1 - Math.pow(beta1, state.steps);
+		final double secondCorrection = 1 - Math.pow(beta2, state.steps);
+		
+		for (int i = 0; i < gradient.length; i++) {
+			final double g = gradient[i];
+			final double m = (beta1 * firstMoment[i]) + ((1 - beta1) * g);
+			final double v = (beta2 * secondMoment[i]) + ((1 - beta2) * g * g);
+			
+			firstMoment[i] = m;
+			secondMoment[i] = v;
+			
+			gradient[i] = learningRate * (m / firstCorrection) / (Math.sqrt(v / secondCorrection) + epsilon);
+		}
+	}
+}
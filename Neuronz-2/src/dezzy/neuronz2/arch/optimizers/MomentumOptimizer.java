@@ -0,0 +1,67 @@
+package dezzy.neuronz2.arch.optimizers;
+
+/**
+ * Stochastic gradient descent with momentum. Keeps a velocity buffer <code>v</code> for every parameter,
+ * which is updated with <code>v = (momentum * v) + gradient</code> on every step. The step is
+ * <code>(learningRate * v)</code>, or <code>learningRate * (gradient + (momentum * v))</code> if Nesterov
+ * momentum is used.
+ *
+ * @author Joe Desmond
+ */
+public final class MomentumOptimizer implements Optimizer {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 2750806357811358327L;
+
+	/**
+	 * The fraction of the previous velocity that is kept on each step
+	 */
+	private final double momentum;
+	
+	/**
+	 * True if Nesterov momentum should be used
+	 */
+	private final boolean nesterov;
+	
+	/**
+	 * Creates a momentum optimizer with the given momentum coefficient.
+	 * 
+	 * @param _momentum fraction of the previous velocity that is kept on each step (usually 0.9)
+	 * @param _nesterov true to use Nesterov momentum, which looks ahead along the velocity before stepping
+	 */
+	public MomentumOptimizer(final double _momentum, final boolean _nesterov) {
+		momentum = _momentum;
+		nesterov = _nesterov;
+	}
+
+	@Override
+	public OptimizerState createState(final int parameterCount) {
+		return new OptimizerState(parameterCount, 1);
+	}
+
+	@Override
+	public void computeStep(final double[] gradient, final OptimizerState state, final double learningRate) {
+		final double[] velocity = state.moments[0];
+		
+		if (nesterov) {
+			for (int i = 0; i < gradient.length; i++) {
+				final double g = gradient[i];
+				final double v = (momentum * velocity[i]) + g;
+				
+				velocity[i] = v;
+				gradient[i] = learningRate * (g + (momentum * v));
+			}
+		} else {
+			for (int i = 0; i < gradient.length; i++) {
+				final double v = (momentum * velocity[i]) + gradient[i];
+				
+				velocity[i] = v;
+				gradient[i] = learningRate * v;
+			}
+		}
+		
+		state.steps++;
+	}
+}
@@ -0,0 +1,62 @@
+package dezzy.neuronz2.arch.optimizers;
+
+import java.io.Serializable;
+
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * An update rule for the learnable parameters of a layer. Layers with learnable parameters (such as
+ * {@link dezzy.neuronz2.ann.layers.DenseLayer DenseLayer}) give their parameters and accumulated gradients
+ * to an optimizer in {@link dezzy.neuronz2.arch.layers.Layer#update(double) update()} and
+ * {@link dezzy.neuronz2.arch.ParallelLayer#parallelUpdate(dezzy.neuronz2.arch.ParallelBackwardPass, double) parallelUpdate()}.
+ * <p>
+ * An optimizer does not store any per-parameter state itself, so one optimizer can be shared by every layer
+ * in a network. Each parameter tensor has its own {@link OptimizerState}, which is created by
+ * {@link #createState(int)} and updated in place on every step.
+ *
+ * @author Joe Desmond
+ */
+public interface Optimizer extends Serializable {
+	
+	/**
+	 * Plain stochastic gradient descent: every parameter is moved by <code>(-learningRate * gradient)</code>.
+	 * This is what every layer used before optimizers existed, and it is the default.
+	 */
+	public static final Optimizer SGD = new SGDOptimizer();
+	
+	/**
+	 * Creates the state buffers that this optimizer needs for a single parameter tensor.
+	 * 
+	 * @param parameterCount number of elements in the parameter tensor
+	 * @return new optimizer state for one parameter tensor
+	 */
+	public OptimizerState createState(final int parameterCount);
+	
+	/**
+	 * Converts a flattened gradient into the step that will be subtracted from the parameters. The step is written
+	 * over the gradient in <code>gradient</code>, and the state buffers in <code>state</code> are updated in place.
+	 * 
+	 * @param gradient flattened gradient; overwritten with the step
+	 * @param state state for the parameter tensor, created by {@link #createState(int)}
+	 * @param learningRate learning rate
+	 */
+	public void computeStep(final double[] gradient, final OptimizerState state, final double learningRate);
+	
+	/**
+	 * Updates a parameter tensor in place given its gradient. The gradient is flattened into the
+	 * {@linkplain OptimizerState#buffer(int) scratch buffer} in <code>state</code>, converted into a step with
+	 * {@link #computeStep(double[], OptimizerState, double)}, and then subtracted from the parameters.
+	 * 
+	 * @param parameter learnable parameters; modified in place
+	 * @param gradient gradient of the error with respect to <code>parameter</code>
+	 * @param state state for <code>parameter</code>, created by {@link #createState(int)}
+	 * @param learningRate learning rate
+	 */
+	public default void update(final ElementContainer<?> parameter, final ElementContainer<?> gradient, final OptimizerState state, final double learningRate) {
+		final double[] buffer = state.buffer(gradient.elementCount());
+		
+		gradient.copyTo(buffer, 0);
+		computeStep(buffer, state, learningRate);
+		parameter.addFrom(buffer, 0, -1.0);
+	}
+}
@@ -0,0 +1,61 @@
+package dezzy.neuronz2.arch.optimizers;
+
+import java.io.Serializable;
+
+/**
+ * The state that an {@link Optimizer} keeps for one parameter tensor. Every buffer is allocated once
+ * (the moments when the state is created, and the scratch buffer on the first step) and is updated in
+ * place after that, so a training step does not allocate any optimizer memory.
+ *
+ * @author Joe Desmond
+ */
+public final class OptimizerState implements Serializable {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 5436297186011862340L;
+
+	/**
+	 * Scratch buffer with one element per parameter. The flattened gradient is copied here, and the optimizer
+	 * turns it into the step that is subtracted from the parameters. Not saved with the state; created again
+	 * on the first step after loading
+	 */
+	private transient double[] buffer;
+	
+	/**
+	 * Per-parameter moment buffers (for example; velocity for momentum, or the first and second moments for Adam).
+	 * Each buffer has one element per parameter
+	 */
+	public final double[][] moments;
+	
+	/**
+	 * The number of steps that have been taken with this state
+	 */
+	public long steps = 0;
+	
+	/**
+	 * Creates optimizer state for a parameter tensor with the given number of elements.
+	 * 
+	 * @param parameterCount number of elements in the parameter tensor
+	 * @param momentBuffers number of per-parameter moment buffers that the optimizer needs
+	 */
+	public OptimizerState(final int parameterCount, final int momentBuffers) {
+		buffer = new double[parameterCount];
+		moments = new double[momentBuffers][parameterCount];
+	}
+	
+	/**
+	 * Returns the scratch buffer, creating it if this state was just loaded.
+	 * 
+	 * @param parameterCount number of elements in the parameter tensor
+	 * @return scratch buffer with at least <code>parameterCount</code> elements
+	 */
+	public double[] buffer(final int parameterCount) {
+		if (buffer == null || buffer.length < parameterCount) {
+			buffer = new double[parameterCount];
+		}
+		
+		return buffer;
+	}
+}
@@ -0,0 +1,63 @@
+package dezzy.neuronz2.arch.optimizers;
+
+/**
+ * RMSProp. Keeps a moving average <code>s</code> of the squared gradient for every parameter, and divides
+ * each gradient by <code>sqrt(s)</code> so that every parameter takes a step of roughly the same size.
+ *
+ * @author Joe Desmond
+ */
+public final class RMSPropOptimizer implements Optimizer {
+	
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -5567208012232574466L;
+
+	/**
+	 * Decay rate of the moving average of the squared gradient
+	 */
+	private final double decay;
+	
+	/**
+	 * Small value added to the denominator to avoid division by zero
+	 */
+	private final double epsilon;
+	
+	/**
+	 * Creates an RMSProp optimizer with the given hyperparameters.
+	 * 
+	 * @param _decay decay rate of the moving average of the squared gradient (usually 0.9)
+	 * @param _epsilon small value added to the denominator to avoid division by zero (usually 1e-8)
+	 */
+	public RMSPropOptimizer(final double _decay, final double _epsilon) {
+		decay = _decay;
+		epsilon = _epsilon;
+	}
+	
+	/**
+	 * Creates an RMSProp optimizer with a decay rate of 0.9 and an epsilon of 1e-8.
+	 */
+	public RMSPropOptimizer() {
+		this(0.9, 1e-8);
+	}
+
+	@Override
+	public OptimizerState createState(final int parameterCount) {
+		return new OptimizerState(parameterCount, 1);
+	}
+
+	@Override
+	public void computeStep(final double[] gradient, final OptimizerState state, final double learningRate) {
+		final double[] meanSquare = state.moments[0];
+		
+		for (int i = 0; i < gradient.length; i++) {
+			final double g = gradient[i];
+			final double s = (decay * meanSquare[i]) + ((1 - decay) * g * g);
+			
+			meanSquare[i] = s;
+			gradient[i] = learningRate * g / (Math.sqrt(s) + epsilon);
+		}
+		
+		state.steps++;
+	}
+}
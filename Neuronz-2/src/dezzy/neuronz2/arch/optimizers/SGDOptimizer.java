@@ -0,0 +1,37 @@
+package dezzy.neuronz2.arch.optimizers;
+
+/**
+ * Plain stochastic gradient descent. Keeps no state other than the scratch buffer.
+ *
+ * @author Joe Desmond
+ */
+final class SGDOptimizer implements Optimizer {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -3183409542713049573L;
+
+	@Override
+	public OptimizerState createState(final int parameterCount) {
+		return new OptimizerState(parameterCount, 0);
+	}
+
+	@Override
+	public void computeStep(final double[] gradient, final OptimizerState state, final double learningRate) {
+		for (int i = 0; i < gradient.length; i++) {
+			gradient[i] = learningRate * gradient[i];
+		}
+		
+		state.steps++;
+	}
+	
+	/**
+	 * Replaces a deserialized copy with {@link Optimizer#SGD}, so that layers can compare their optimizer with it.
+	 * 
+	 * @return {@link Optimizer#SGD}
+	 */
+	private Object readResolve() {
+		return SGD;
+	}
+}
@@ -0,0 +1,60 @@
+package dezzy.neuronz2.arch.saved;
+
+/**
+ * One bit per element of a tensor, packed into <code>long</code>s. Used when a layer only needs to remember
+ * which of two cases each element fell into; for example, whether a ReLU was active. Compared to a full copy of a
+ * <code>double</code> tensor, a bit mask is 64 times smaller.
+ *
+ * @author Joe Desmond
+ */
+public final class BitMask implements SavedTensor {
+	
+	/**
+	 * The packed bits; bit <code>i</code> is stored in bit <code>(i % 64)</code> of <code>words[i / 64]</code>
+	 */
+	private final long[] words;
+	
+	/**
+	 * The number of bits in this mask
+	 */
+	private final int size;
+	
+	/**
+	 * Creates a bit mask with the given number of bits, all cleared.
+	 * 
+	 * @param _size number of bits
+	 */
+	public BitMask(final int _size) {
+		size = _size;
+		words = new long[(size + 63) >>> 6];
+	}
+	
+	/**
+	 * Sets a bit.
+	 * 
+	 * @param index index of the bit to set
+	 */
+	public final void set(final int index) {
+		words[index >>> 6] |= 1L << index;
+	}
+	
+	/**
+	 * Returns true if a bit is set.
+	 * 
+	 * @param index index of the bit
+	 * @return true if the bit at <code>index</code> is set
+	 */
+	public final boolean get(final int index) {
+		return (words[index >>> 6] & (1L << index)) != 0;
+	}
+	
+	@Override
+	public final int elementCount() {
+		return size;
+	}
+	
+	@Override
+	public final long sizeInBytes() {
+		return words.length * 8L;
+	}
+}
@@ -0,0 +1,49 @@
+package dezzy.neuronz2.arch.saved;
+
+/**
+ * A single-precision copy of a tensor, in the order used by
+ * {@link dezzy.neuronz2.math.constructs.ElementContainer#copyTo(double[], int) copyTo()}. Half the size of a
+ * full copy; each element keeps about 7 significant digits, which is enough for computing derivatives.
+ *
+ * @author Joe Desmond
+ */
+public final class FloatTensor implements SavedTensor {
+	
+	/**
+	 * The saved elements
+	 */
+	private final float[] values;
+	
+	/**
+	 * Creates a single-precision copy of the given elements.
+	 * 
+	 * @param _values elements to copy
+	 */
+	public FloatTensor(final double[] _values) {
+		values = new float[_values.length];
+		
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float) _values[i];
+		}
+	}
+	
+	/**
+	 * Returns a saved element.
+	 * 
+	 * @param index index of the element
+	 * @return the element at <code>index</code>
+	 */
+	public final double get(final int index) {
+		return values[index];
+	}
+	
+	@Override
+	public final int elementCount() {
+		return values.length;
+	}
+	
+	@Override
+	public final long sizeInBytes() {
+		return values.length * 4L;
+	}
+}
@@ -0,0 +1,26 @@
+package dezzy.neuronz2.arch.saved;
+
+/**
+ * A compact copy of a tensor (or of some information about a tensor) that a layer saves during a
+ * {@linkplain dezzy.neuronz2.arch.ParallelLayer#parallelForwardPass(dezzy.neuronz2.math.constructs.ElementContainer) parallel forward pass}
+ * so that it can compute gradients later. Saved tensors are smaller than the full <code>double</code> tensors they replace,
+ * so more samples can be in flight at the same time.
+ *
+ * @author Joe Desmond
+ */
+public interface SavedTensor {
+	
+	/**
+	 * Returns the number of elements in the tensor that this was saved from.
+	 * 
+	 * @return number of elements
+	 */
+	public int elementCount();
+	
+	/**
+	 * Returns the approximate number of bytes used to store this saved tensor.
+	 * 
+	 * @return size in bytes
+	 */
+	public long sizeInBytes();
+}
@@ -0,0 +1,83 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.Random;
+
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks how {@link ElementActivationLayer} saves its output for parallel backpropagation. By default, and for functions with
+ * a two-valued derivative in either mode, the parallel derivatives must equal the serial ones exactly. With reduced precision,
+ * the output is saved as floats, so the derivative of each element may be off by at most the float rounding error of the
+ * output times the largest slope of the activation's derivative (written in terms of the output). For sigmoid and tanh that
+ * bound is <code>2<sup>-23</sup></code> times the incoming derivative.
+ *
+ * @author Joe Desmond
+ */
+public final class ActivationPrecisionTest {
+	
+	/**
+	 * Number of elements in each input
+	 */
+	private static final int SIZE = 10_000;
+	
+	/**
+	 * Largest allowed error of a reduced precision derivative, relative to the incoming derivative
+	 */
+	private static final double REDUCED_BOUND = Math.scalb(1.0, -23);
+	
+	public static final void main(final String[] args) {
+		final Random random = new Random(28);
+		final Vector input = Vector.generate(i -> 6 * random.nextGaussian(), SIZE);
+		final Vector errorOutputDeriv = Vector.generate(i -> random.nextGaussian(), SIZE);
+		
+		check("sigmoid", FuncDerivPair.SIGMOID, input, errorOutputDeriv, false, 0);
+		check("tanh", FuncDerivPair.TANH, input, errorOutputDeriv, false, 0);
+		check("ReLU", FuncDerivPair.RELU, input, errorOutputDeriv, false, 0);
+		
+		final double sigmoidError = check("reduced sigmoid", FuncDerivPair.SIGMOID, input, errorOutputDeriv, true, REDUCED_BOUND);
+		final double tanhError = check("reduced tanh", FuncDerivPair.TANH, input, errorOutputDeriv, true, REDUCED_BOUND);
+		check("reduced ReLU", FuncDerivPair.RELU, input, errorOutputDeriv, true, 0);
+		
+		if (sigmoidError == 0 && tanhError == 0) {
+			throw new IllegalStateException("Reduced precision did not save a single-precision copy");
+		}
+		
+		System.out.println("All activation precision tests passed");
+	}
+	
+	/**
+	 * Compares the parallel derivative of a layer with the serial derivative, which always uses the full output.
+	 * 
+	 * @param name name of the check, for messages
+	 * @param function activation function
+	 * @param input input to the layer
+	 * @param errorOutputDeriv derivative of the error with respect to the layer's output
+	 * @param reducedPrecision true to save a single-precision copy of the output
+	 * @param bound largest allowed error, relative to the incoming derivative
+	 * @return the largest error found, relative to the incoming derivative
+	 */
+	private static final double check(final String name, final FuncDerivPair function, final Vector input, final Vector errorOutputDeriv, final boolean reducedPrecision, final double bound) {
+		final ElementActivationLayer<Vector> layer = new ElementActivationLayer<>(function, reducedPrecision);
+		
+		layer.forwardPass(input);
+		final Vector serial = layer.backprop(errorOutputDeriv, false);
+		final Vector parallel = layer.parallelBackprop(layer.parallelForwardPass(input), errorOutputDeriv, false).errorInputDeriv;
+		
+		double worst = 0;
+		
+		for (int i = 0; i < SIZE; i++) {
+			final double error = Math.abs(parallel.get(i) - serial.get(i)) / Math.abs(errorOutputDeriv.get(i));
+			worst = Math.max(worst, error);
+		}
+		
+		System.out.println(name + ": largest relative derivative error " + worst);
+		
+		if (worst > bound) {
+			throw new IllegalStateException(name + ": derivative error " + worst + " is larger than " + bound);
+		}
+		
+		return worst;
+	}
+}
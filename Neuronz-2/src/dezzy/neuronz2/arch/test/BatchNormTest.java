@@ -0,0 +1,453 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+import dezzy.neuronz2.arch.ParallelForwardPass;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.BatchNormLayer;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Tensor3;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Checks the behaviour of {@link BatchNormLayer}:
+ * <ul>
+ * <li>In training mode, the output of a batch has a mean of zero and a variance of one in every channel, and after training,
+ * the inference mode output (with the running statistics) on new data from the same distribution is close to that.</li>
+ * <li>The derivatives with respect to every input of a batch, gamma, and beta (including the gradient through the batch
+ * statistics) match finite differences, for rank 3 tensors and for vectors.</li>
+ * <li>A classifier on badly scaled inputs trains to a lower loss with batch normalization than without it, and the
+ * trained network is accurate in inference mode.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class BatchNormTest {
+	
+	/**
+	 * Mean of the data in each channel
+	 */
+	private static final double[] MEANS = {5, -3, 0.5};
+	
+	/**
+	 * Standard deviation of the data in each channel
+	 */
+	private static final double[] DEVIATIONS = {2, 0.5, 10};
+	
+	/**
+	 * Rows and columns of each channel
+	 */
+	private static final int SIZE = 4;
+	
+	/**
+	 * Number of samples in each minibatch
+	 */
+	private static final int MINIBATCH_SIZE = 32;
+	
+	/**
+	 * Number of classes in the training test
+	 */
+	private static final int CLASSES = 4;
+	
+	/**
+	 * Size of each input in the training test
+	 */
+	private static final int INPUT_SIZE = 16;
+	
+	/**
+	 * Source of the data
+	 */
+	private static final Random RANDOM = new Random(29);
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		checkNormalization();
+		checkGradients();
+		checkTraining();
+		
+		System.out.println("All batch normalization tests passed");
+	}
+	
+	/**
+	 * Trains a layer on random data, and checks the mean and variance of its output in each channel, with batch statistics
+	 * and with running statistics.
+	 */
+	private static final void checkNormalization() {
+		final BatchNormLayer<Tensor3> layer = new BatchNormLayer<>(MEANS.length);
+		
+		for (int minibatch = 0; minibatch < 200; minibatch++) {
+			final List<Tensor3> batch = samples(MINIBATCH_SIZE);
+			final List<ParallelForwardPass<Tensor3>> forwards = layer.parallelForwardBatch(batch);
+			
+			if (minibatch == 0) {
+				checkMoments("Training mode", ParallelForwardPass.outputs(forwards), 1e-9, 1e-6);
+			}
+			
+			final ParallelBackwardPass<Tensor3> gradients = new ParallelBackwardPass<>(null, 1);
+			layer.accumulateBackpropBatch(forwards, zeros(batch), false, gradients);
+			
+			if (gradients.elementCount() != layer.parameterCount()) {
+				throw new IllegalStateException("Gradients have " + gradients.elementCount() + " elements, but the layer has " + layer.parameterCount() + " parameters");
+			}
+			
+			// A learning rate of zero keeps gamma at 1 and beta at 0, so only the running statistics change
+			layer.parallelUpdate(gradients, 0);
+		}
+		
+		layer.setTrainingMode(false);
+		checkMoments("Inference mode", ParallelForwardPass.outputs(layer.parallelForwardBatch(samples(2000))), 0.05, 0.1);
+	}
+	
+	/**
+	 * Throws an exception if the mean of every channel over a batch of outputs is not near zero, or the variance is not near one.
+	 * 
+	 * @param name name of the check, for messages
+	 * @param outputs outputs of the layer
+	 * @param meanTolerance largest allowed distance of the mean from zero
+	 * @param varianceTolerance largest allowed distance of the variance from one
+	 */
+	private static final void checkMoments(final String name, final List<Tensor3> outputs, final double meanTolerance, final double varianceTolerance) {
+		final int perChannel = outputs.size() * SIZE * SIZE;
+		final double[] sums = new double[MEANS.length];
+		final double[] sumSquares = new double[MEANS.length];
+		final double[] values = new double[MEANS.length * SIZE * SIZE];
+		
+		for (int i = 0; i < outputs.size(); i++) {
+			outputs.get(i).copyTo(values, 0);
+			
+			for (int j = 0; j < values.length; j++) {
+				final int c = j / (SIZE * SIZE);
+				sums[c] += values[j];
+				sumSquares[c] += values[j] * values[j];
+			}
+		}
+		
+		for (int c = 0; c < MEANS.length; c++) {
+			final double mean = sums[c] / perChannel;
+			final double variance = (sumSquares[c] / perChannel) - (mean * mean);
+			
+			System.out.println(name + ", channel " + c + ": mean " + mean + ", variance " + variance);
+			
+			// Epsilon makes the batch variance slightly less than one
+			if (Math.abs(mean) > meanTolerance || Math.abs(variance - 1) > varianceTolerance + 1e-3) {
+				throw new IllegalStateException(name + ": channel " + c + " is not normalized: mean " + mean + ", variance " + variance);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the derivatives of a rank 3 tensor layer and of a vector layer against finite differences.
+	 */
+	private static final void checkGradients() {
+		final BatchNormLayer<Tensor3> tensorLayer = new BatchNormLayer<>(MEANS.length);
+		final List<Tensor3> tensorWeights = new ArrayList<>();
+		
+		for (int i = 0; i < 3; i++) {
+			tensorWeights.add(Tensor3.generate(j -> RANDOM.nextGaussian(), MEANS.length, SIZE, SIZE));
+		}
+		
+		checkGradients("Tensor3", tensorLayer, samples(3), tensorWeights);
+		
+		final BatchNormLayer<Vector> vectorLayer = new BatchNormLayer<>(5);
+		final List<Vector> vectors = new ArrayList<>();
+		final List<Vector> vectorWeights = new ArrayList<>();
+		
+		for (int i = 0; i < 6; i++) {
+			vectors.add(Vector.generate(j -> 3 + ((1 + j[0]) * RANDOM.nextGaussian()), 5));
+			vectorWeights.add(Vector.generate(j -> RANDOM.nextGaussian(), 5));
+		}
+		
+		checkGradients("Vector", vectorLayer, vectors, vectorWeights);
+	}
+	
+	/**
+	 * Compares the derivatives of a weighted sum of a layer's output over a whole batch with central finite differences.
+	 * 
+	 * @param <T> tensor type
+	 * @param name name of the check, for messages
+	 * @param layer layer to check
+	 * @param batch inputs of the batch
+	 * @param weights weight of each output element, for each sample
+	 */
+	private static final <T extends ElementContainer<T>> void checkGradients(final String name, final BatchNormLayer<T> layer, final List<T> batch, final List<T> weights) {
+		final ElementContainer<?> gamma = layer.parameters().get(0);
+		final ElementContainer<?> beta = layer.parameters().get(1);
+		final double[] gammaValues = new double[gamma.elementCount()];
+		final double[] betaValues = new double[beta.elementCount()];
+		
+		for (int c = 0; c < gammaValues.length; c++) {
+			gammaValues[c] = 0.5 + RANDOM.nextDouble();
+			betaValues[c] = RANDOM.nextGaussian();
+		}
+		
+		gamma.copyFrom(gammaValues, 0);
+		beta.copyFrom(betaValues, 0);
+		
+		final ParallelBackwardPass<T> gradients = new ParallelBackwardPass<>(null, 1);
+		final List<T> inputDerivs = layer.accumulateBackpropBatch(layer.parallelForwardBatch(batch), weights, false, gradients);
+		
+		final List<T> varied = new ArrayList<>(batch);
+		
+		for (int b = 0; b < batch.size(); b++) {
+			final double[] inputValues = new double[batch.get(b).elementCount()];
+			final double[] derivs = new double[inputValues.length];
+			batch.get(b).copyTo(inputValues, 0);
+			inputDerivs.get(b).copyTo(derivs, 0);
+			
+			for (int i = 0; i < inputValues.length; i++) {
+				final double original = inputValues[i];
+				final double step = 1e-5 * Math.max(1, Math.abs(original));
+				
+				inputValues[i] = original + step;
+				varied.set(b, batch.get(b).withElements(inputValues, 0));
+				final double above = weightedOutput(layer, varied, weights);
+				inputValues[i] = original - step;
+				varied.set(b, batch.get(b).withElements(inputValues, 0));
+				final double below = weightedOutput(layer, varied, weights);
+				inputValues[i] = original;
+				varied.set(b, batch.get(b));
+				
+				check(name + " input " + b + ", " + i, derivs[i], (above - below) / (2 * step));
+			}
+		}
+		
+		checkParameter(name + " gamma", layer, gamma, gradients.gradients(0)[0], batch, weights);
+		checkParameter(name + " beta", layer, beta, gradients.gradients(0)[1], batch, weights);
+		
+		System.out.println(name + " derivatives match finite differences");
+	}
+	
+	/**
+	 * Compares the derivative of a weighted sum of the layer's output with respect to every element of a parameter with
+	 * central finite differences.
+	 * 
+	 * @param <T> tensor type
+	 * @param name name of the parameter, for error messages
+	 * @param layer layer being checked
+	 * @param parameter parameter of the layer
+	 * @param gradient derivative with respect to the parameter, computed by the layer
+	 * @param batch inputs to the layer
+	 * @param weights weight of each output element
+	 */
+	private static final <T extends ElementContainer<T>> void checkParameter(final String name, final BatchNormLayer<T> layer, final ElementContainer<?> parameter, final ElementContainer<?> gradient, final List<T> batch, final List<T> weights) {
+		final double[] values = new double[parameter.elementCount()];
+		final double[] derivs = new double[values.length];
+		parameter.copyTo(values, 0);
+		gradient.copyTo(derivs, 0);
+		
+		for (int i = 0; i < values.length; i++) {
+			final double original = values[i];
+			final double step = 1e-5;
+			
+			values[i] = original + step;
+			parameter.copyFrom(values, 0);
+			final double above = weightedOutput(layer, batch, weights);
+			values[i] = original - step;
+			parameter.copyFrom(values, 0);
+			final double below = weightedOutput(layer, batch, weights);
+			values[i] = original;
+			parameter.copyFrom(values, 0);
+			
+			check(name + " " + i, derivs[i], (above - below) / (2 * step));
+		}
+	}
+	
+	/**
+	 * Returns the sum of the layer's output elements over a batch, each multiplied by its weight. The derivative of this with
+	 * respect to each output is its weight.
+	 * 
+	 * @param <T> tensor type
+	 * @param layer layer to run
+	 * @param batch inputs to the layer
+	 * @param weights weight of each output element
+	 * @return weighted sum of the output
+	 */
+	private static final <T extends ElementContainer<T>> double weightedOutput(final BatchNormLayer<T> layer, final List<T> batch, final List<T> weights) {
+		final List<ParallelForwardPass<T>> forwards = layer.parallelForwardBatch(batch);
+		double sum = 0;
+		
+		for (int b = 0; b < batch.size(); b++) {
+			final double[] output = new double[batch.get(b).elementCount()];
+			final double[] weightValues = new double[output.length];
+			forwards.get(b).output.copyTo(output, 0);
+			weights.get(b).copyTo(weightValues, 0);
+			
+			for (int i = 0; i < output.length; i++) {
+				sum += output[i] * weightValues[i];
+			}
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Trains the same classifier with and without batch normalization on inputs with a large offset and very different
+	 * scales, and checks that batch normalization reaches a lower training loss and a high test accuracy in inference mode.
+	 * 
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static final void checkTraining() throws InterruptedException, ExecutionException {
+		final Random random = new Random(3);
+		final Vector[] centers = new Vector[CLASSES];
+		final double[] scales = new double[INPUT_SIZE];
+		
+		for (int i = 0; i < INPUT_SIZE; i++) {
+			scales[i] = Math.pow(10, random.nextInt(3));
+		}
+		
+		for (int i = 0; i < CLASSES; i++) {
+			centers[i] = Vector.generate(j -> random.nextGaussian(), INPUT_SIZE);
+		}
+		
+		final Vector[] trainingInputs = new Vector[2000];
+		final Vector[] trainingOutputs = new Vector[trainingInputs.length];
+		final Vector[] testInputs = new Vector[500];
+		final Vector[] testOutputs = new Vector[testInputs.length];
+		
+		generate(random, centers, scales, trainingInputs, trainingOutputs);
+		generate(random, centers, scales, testInputs, testOutputs);
+		
+		final double plainLoss = train("Without batch normalization", classifier(false), trainingInputs, trainingOutputs, testInputs, testOutputs).meanError();
+		final DataParallelTrainer.Result normalizedTest = train("With batch normalization", classifier(true), trainingInputs, trainingOutputs, testInputs, testOutputs);
+		
+		if (normalizedTest.meanError() >= plainLoss) {
+			throw new IllegalStateException("Batch normalization did not lower the loss (" + normalizedTest.meanError() + " >= " + plainLoss + ")");
+		}
+		
+		if (normalizedTest.successRate() < 0.9) {
+			throw new IllegalStateException("Batch normalized network has a test accuracy of " + normalizedTest.successRate());
+		}
+	}
+	
+	/**
+	 * Trains a classifier for a few epochs with two workers, and measures it in inference mode on the test data.
+	 * 
+	 * @param name name of the classifier, for messages
+	 * @param network network to train
+	 * @param trainingInputs training inputs
+	 * @param trainingOutputs expected training outputs
+	 * @param testInputs test inputs
+	 * @param testOutputs expected test outputs
+	 * @return test loss and accuracy
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static final Result train(final String name, final ParallelLayer<Vector, Vector> network, final Vector[] trainingInputs, final Vector[] trainingOutputs, final Vector[] testInputs, final Vector[] testOutputs) throws InterruptedException, ExecutionException {
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY, 2, new Random(4))) {
+			Result training = null;
+			
+			for (int epoch = 0; epoch < 5; epoch++) {
+				training = trainer.trainEpoch(trainingInputs, trainingOutputs, MINIBATCH_SIZE, 0.01, null);
+			}
+			
+			final Result test = trainer.evaluate(testInputs, testOutputs, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+			System.out.println(name + ": training loss " + training.meanError() + ", test loss " + test.meanError() + ", test accuracy " + test.successRate());
+			
+			return test;
+		}
+	}
+	
+	/**
+	 * Creates a classifier with one hidden layer. Classifiers with and without batch normalization have the same initial weights.
+	 * 
+	 * @param batchNorm true to normalize the hidden layer's input to the activation function
+	 * @return a new classifier
+	 */
+	private static final ParallelLayer<Vector, Vector> classifier(final boolean batchNorm) {
+		final Random random = new Random(5);
+		final List<ParallelLayer<Vector, Vector>> layers = new ArrayList<>();
+		
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, INPUT_SIZE, 32));
+		
+		if (batchNorm) {
+			layers.add(new BatchNormLayer<>(32));
+		}
+		
+		layers.add(new ElementActivationLayer<>(FuncDerivPair.SIGMOID));
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 32, CLASSES));
+		layers.add(new SoftmaxLayer());
+		
+		return new ParallelLayerSequence<>(layers);
+	}
+	
+	/**
+	 * Fills the given arrays with noisy samples around randomly chosen centers. Every element of each input is multiplied by
+	 * its scale and offset by 50.
+	 * 
+	 * @param random used to choose centers and generate noise
+	 * @param centers center of each class
+	 * @param scales scale of each input element
+	 * @param inputs array to fill with inputs
+	 * @param outputs array to fill with one-hot expected outputs
+	 */
+	private static final void generate(final Random random, final Vector[] centers, final double[] scales, final Vector[] inputs, final Vector[] outputs) {
+		for (int i = 0; i < inputs.length; i++) {
+			final int label = random.nextInt(CLASSES);
+			final double[] expected = new double[CLASSES];
+			expected[label] = 1;
+			
+			inputs[i] = Vector.generate(j -> 50 + (scales[j[0]] * (centers[label].get(j[0]) + (0.5 * random.nextGaussian()))), INPUT_SIZE);
+			outputs[i] = new Vector(expected);
+		}
+	}
+	
+	/**
+	 * Throws an exception if a derivative does not match its finite difference.
+	 * 
+	 * @param name name of the derivative, for error messages
+	 * @param analytic derivative computed by the layer
+	 * @param numeric finite difference
+	 */
+	private static final void check(final String name, final double analytic, final double numeric) {
+		if (Math.abs(analytic - numeric) > 1e-6 * Math.max(1, Math.abs(numeric))) {
+			throw new IllegalStateException("Derivative of " + name + " is " + analytic + ", but the finite difference is " + numeric);
+		}
+	}
+	
+	/**
+	 * Generates a batch of samples, with the mean and standard deviation of each channel given by {@link #MEANS} and
+	 * {@link #DEVIATIONS}.
+	 * 
+	 * @param count number of samples
+	 * @return random samples
+	 */
+	private static final List<Tensor3> samples(final int count) {
+		final List<Tensor3> out = new ArrayList<>(count);
+		
+		for (int i = 0; i < count; i++) {
+			out.add(Tensor3.generate(j -> MEANS[j[0]] + (DEVIATIONS[j[0]] * RANDOM.nextGaussian()), MEANS.length, SIZE, SIZE));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns a zero derivative for every sample in a batch.
+	 * 
+	 * @param batch samples
+	 * @return one zero tensor per sample
+	 */
+	private static final List<Tensor3> zeros(final List<Tensor3> batch) {
+		final List<Tensor3> out = new ArrayList<>(batch.size());
+		
+		for (int i = 0; i < batch.size(); i++) {
+			out.add(new Tensor3(new double[MEANS.length][SIZE][SIZE]));
+		}
+		
+		return out;
+	}
+}
@@ -0,0 +1,235 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dezzy.neuronz2.arch.ComputeScheduler;
+import dezzy.neuronz2.arch.ComputeScheduler.Priority;
+import dezzy.neuronz2.arch.IntraOpExecutor;
+
+/**
+ * Checks {@link ComputeScheduler} with one thread, which is kept busy by a blocking task while other tasks are queued:
+ * <ul>
+ * <li>Queued tasks run in order of priority, and tasks of the same priority in order of deadline.</li>
+ * <li>{@link ComputeScheduler#runPending(Priority)} runs only the tasks with a higher priority, on the calling thread.</li>
+ * <li>An executor view is only terminated once it is shut down and its tasks are done, and <code>shutdownNow()</code>
+ * returns and removes the tasks that never started.</li>
+ * <li>Intra-op ranges that the calling thread runs itself do not stay queued.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class ComputeSchedulerTest {
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		checkOrdering();
+		checkRunPending();
+		checkTermination();
+		checkIntraOp();
+		
+		System.out.println("All compute scheduler tests passed");
+	}
+	
+	/**
+	 * Queues tasks out of order behind a blocking task, and checks the order in which they run.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 * @throws ExecutionException if a task throws an exception
+	 */
+	private static final void checkOrdering() throws InterruptedException, ExecutionException {
+		try (ComputeScheduler scheduler = new ComputeScheduler(1, 0)) {
+			final CountDownLatch release = block(scheduler);
+			final List<String> order = Collections.synchronizedList(new ArrayList<>());
+			final List<Future<?>> futures = new ArrayList<>();
+			
+			futures.add(scheduler.submit(Priority.TRAINING, TimeUnit.SECONDS.toNanos(60), () -> order.add("late training")));
+			futures.add(scheduler.submit(Priority.INTRA_OP, TimeUnit.SECONDS.toNanos(1), () -> order.add("intra-op")));
+			futures.add(scheduler.submit(Priority.TRAINING, TimeUnit.SECONDS.toNanos(1), () -> order.add("early training")));
+			futures.add(scheduler.submitInference(() -> order.add("inference")));
+			
+			release.countDown();
+			
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+			}
+			
+			final List<String> expected = List.of("inference", "intra-op", "early training", "late training");
+			System.out.println("Run order: " + order);
+			
+			if (!order.equals(expected)) {
+				throw new IllegalStateException("Tasks ran in the order " + order + ", not " + expected);
+			}
+		}
+	}
+	
+	/**
+	 * Queues an inference task and a training task behind a blocking task, and runs the pending tasks from this thread.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 * @throws ExecutionException if a task throws an exception
+	 */
+	private static final void checkRunPending() throws InterruptedException, ExecutionException {
+		try (ComputeScheduler scheduler = new ComputeScheduler(1, 0)) {
+			final CountDownLatch release = block(scheduler);
+			final Thread caller = Thread.currentThread();
+			final Future<Thread> inference = scheduler.submitInference(Thread::currentThread);
+			final Future<Thread> training = scheduler.submit(Priority.TRAINING, Priority.TRAINING.defaultBudgetNanos, Thread::currentThread);
+			
+			if (scheduler.runPending(Priority.INFERENCE) != 0) {
+				throw new IllegalStateException("runPending(INFERENCE) ran a task without a higher priority");
+			}
+			
+			final int ran = scheduler.runPending(Priority.TRAINING);
+			
+			if (ran != 1 || !inference.isDone() || inference.get() != caller || training.isDone() || scheduler.queued() != 1) {
+				throw new IllegalStateException("runPending(TRAINING) should run only the inference task, on the calling thread (ran " + ran + ")");
+			}
+			
+			release.countDown();
+			
+			if (training.get() == caller) {
+				throw new IllegalStateException("The training task should run on the scheduler's thread");
+			}
+			
+			System.out.println("runPending(TRAINING) ran the inference task on the calling thread and left the training task queued");
+		}
+	}
+	
+	/**
+	 * Checks the termination of executor views, with <code>shutdown()</code> and <code>shutdownNow()</code>.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 */
+	private static final void checkTermination() throws InterruptedException {
+		try (ComputeScheduler scheduler = new ComputeScheduler(1, 0)) {
+			final ExecutorService view = scheduler.executor(Priority.TRAINING);
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			
+			view.execute(() -> {
+				started.countDown();
+				awaitUninterruptibly(release);
+			});
+			started.await();
+			view.shutdown();
+			
+			if (view.isTerminated() || view.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("An executor view was terminated while its task was running");
+			}
+			
+			try {
+				view.execute(() -> {});
+				throw new IllegalStateException("A shut down executor view accepted a task");
+			} catch (IllegalStateException e) {
+				if (!e.getMessage().contains("shut down")) {
+					throw e;
+				}
+			}
+			
+			release.countDown();
+			
+			if (!view.awaitTermination(5, TimeUnit.SECONDS) || !view.isTerminated()) {
+				throw new IllegalStateException("An executor view was not terminated after its task finished");
+			}
+			
+			final CountDownLatch releaseBlocker = block(scheduler);
+			final ExecutorService other = scheduler.executor(Priority.TRAINING);
+			final AtomicInteger ran = new AtomicInteger(0);
+			
+			for (int i = 0; i < 3; i++) {
+				other.execute(ran::incrementAndGet);
+			}
+			
+			final List<Runnable> neverStarted = other.shutdownNow();
+			
+			if (neverStarted.size() != 3 || scheduler.queued() != 0 || !other.isTerminated()) {
+				throw new IllegalStateException("shutdownNow() returned " + neverStarted.size() + " tasks and left " + scheduler.queued() + " queued");
+			}
+			
+			releaseBlocker.countDown();
+			Thread.sleep(100);
+			
+			if (ran.get() != 0) {
+				throw new IllegalStateException("A task returned by shutdownNow() ran");
+			}
+			
+			System.out.println("Executor views terminate only when their tasks are done; shutdownNow() removed 3 queued tasks");
+		}
+	}
+	
+	/**
+	 * Splits work into ranges while the scheduler's thread is busy, so that the calling thread runs every range, and checks
+	 * that no range is left in the queue.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 */
+	private static final void checkIntraOp() throws InterruptedException {
+		try (ComputeScheduler scheduler = new ComputeScheduler(1, 0); IntraOpExecutor executor = new IntraOpExecutor(scheduler)) {
+			final CountDownLatch release = block(scheduler);
+			final int[] covered = new int[100];
+			
+			executor.forEachRange(4, covered.length, (start, end) -> {
+				for (int i = start; i < end; i++) {
+					covered[i]++;
+				}
+			});
+			
+			for (int i = 0; i < covered.length; i++) {
+				if (covered[i] != 1) {
+					throw new IllegalStateException("Item " + i + " was covered " + covered[i] + " times");
+				}
+			}
+			
+			if (scheduler.queued() != 0) {
+				throw new IllegalStateException(scheduler.queued() + " ranges run by the calling thread are still queued");
+			}
+			
+			release.countDown();
+			System.out.println("Ranges run by the calling thread were removed from the queue");
+		}
+	}
+	
+	/**
+	 * Occupies the scheduler's only thread until the returned latch is released.
+	 * 
+	 * @param scheduler scheduler with one thread
+	 * @return latch that releases the thread
+	 * @throws InterruptedException if this thread is interrupted while waiting for the blocking task to start
+	 */
+	private static final CountDownLatch block(final ComputeScheduler scheduler) throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		scheduler.submit(Priority.TRAINING, Priority.TRAINING.defaultBudgetNanos, () -> {
+			started.countDown();
+			awaitUninterruptibly(release);
+			return null;
+		});
+		started.await();
+		
+		return release;
+	}
+	
+	/**
+	 * Waits for a latch, ignoring interrupts.
+	 * 
+	 * @param latch latch to wait for
+	 */
+	private static final void awaitUninterruptibly(final CountDownLatch latch) {
+		while (true) {
+			try {
+				latch.await();
+				return;
+			} catch (InterruptedException e) {
+				// Keep waiting
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ElasticWorkers;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks that workers can join and leave a {@link DataParallelTrainer} with {@link ElasticWorkers} in the middle of an epoch.
+ * The trainer starts with two workers, and hill climbing adds a third after the first window. Halfway through the epoch, another
+ * thread caps the trainer at one worker. The epoch must still use every sample once, the worker count must follow these
+ * changes, and since every minibatch sums the same gradients whatever the number of workers, the parameters must match a
+ * trainer with one fixed worker.
+ *
+ * @author Joe Desmond
+ */
+public final class ElasticWorkersTest {
+	
+	/**
+	 * Size of each input
+	 */
+	private static final int INPUT_SIZE = 10;
+	
+	/**
+	 * Number of classes
+	 */
+	private static final int CLASSES = 3;
+	
+	/**
+	 * Number of training samples
+	 */
+	private static final int SAMPLES = 600;
+	
+	/**
+	 * Number of samples in each minibatch
+	 */
+	private static final int MINIBATCH_SIZE = 20;
+	
+	/**
+	 * Learning rate
+	 */
+	private static final double LEARNING_RATE = 0.05;
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		final Random random = new Random(47);
+		final Vector[] inputs = new Vector[SAMPLES];
+		final Vector[] expectedOutputs = new Vector[SAMPLES];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final int label = random.nextInt(CLASSES);
+			final double[] expected = new double[CLASSES];
+			expected[label] = 1;
+			
+			inputs[i] = Vector.generate(j -> ((j[0] % CLASSES) == label ? 1 : 0) + random.nextGaussian(), INPUT_SIZE);
+			expectedOutputs[i] = new Vector(expected);
+		}
+		
+		final ParallelLayer<Vector, Vector> reference = network();
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(reference, VectorErrorFunctions.CROSS_ENTROPY, 1, new Random(3))) {
+			trainer.trainEpoch(inputs, expectedOutputs, MINIBATCH_SIZE, LEARNING_RATE, null);
+		}
+		
+		final ParallelLayer<Vector, Vector> elastic = network();
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(elastic, VectorErrorFunctions.CROSS_ENTROPY, 1, new Random(3))) {
+			final ElasticWorkers workers = new ElasticWorkers(1, 2, 4, 2, ElasticWorkers.DEFAULT_TOLERANCE);
+			trainer.setElasticWorkers(workers);
+			
+			// Records the number of workers whenever it changes, as seen by the workers themselves
+			final List<Integer> counts = new ArrayList<>();
+			final AtomicInteger seen = new AtomicInteger(0);
+			
+			final Result result = trainer.trainEpoch(inputs, expectedOutputs, MINIBATCH_SIZE, LEARNING_RATE, (actual, expected) -> {
+				synchronized (counts) {
+					if (counts.isEmpty() || counts.get(counts.size() - 1) != trainer.threads()) {
+						counts.add(trainer.threads());
+					}
+				}
+				
+				if (seen.incrementAndGet() == SAMPLES / 2) {
+					// A worker leaves: another thread caps the trainer, as when the machine starts serving inference
+					final Thread capper = new Thread(() -> workers.setLimit(1));
+					capper.start();
+					
+					try {
+						capper.join();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				
+				return true;
+			});
+			
+			System.out.println("Worker counts during the epoch: " + counts);
+			
+			if (result.samples != SAMPLES) {
+				throw new IllegalStateException("The epoch used " + result.samples + " samples instead of " + SAMPLES);
+			}
+			
+			if (counts.size() < 3 || counts.get(0) != 2 || counts.get(1) != 3 || counts.get(counts.size() - 1) != 1 || trainer.threads() != 1) {
+				throw new IllegalStateException("Expected a worker to join (2 to 3) and the workers to be capped at 1, got " + counts);
+			}
+		}
+		
+		final double difference = largestDifference(reference, elastic);
+		System.out.println("Parameters differ from a single fixed worker by at most " + difference);
+		
+		if (difference > 1e-12) {
+			throw new IllegalStateException("Changing the number of workers mid-epoch changed the update by " + difference);
+		}
+		
+		System.out.println("All elastic worker tests passed");
+	}
+	
+	/**
+	 * Returns the largest difference between corresponding parameters of two networks with the same architecture.
+	 * 
+	 * @param a first network
+	 * @param b second network
+	 * @return largest absolute difference
+	 */
+	private static final double largestDifference(final ParallelLayer<Vector, Vector> a, final ParallelLayer<Vector, Vector> b) {
+		final List<ElementContainer<?>> aParameters = a.parameters();
+		final List<ElementContainer<?>> bParameters = b.parameters();
+		double largest = 0;
+		
+		for (int i = 0; i < aParameters.size(); i++) {
+			final double[] aValues = new double[aParameters.get(i).elementCount()];
+			final double[] bValues = new double[aValues.length];
+			aParameters.get(i).copyTo(aValues, 0);
+			bParameters.get(i).copyTo(bValues, 0);
+			
+			for (int j = 0; j < aValues.length; j++) {
+				largest = Math.max(largest, Math.abs(aValues[j] - bValues[j]));
+			}
+		}
+		
+		return largest;
+	}
+	
+	/**
+	 * Creates a small classifier. Every classifier has the same initial weights.
+	 * 
+	 * @return a new classifier
+	 */
+	private static final ParallelLayer<Vector, Vector> network() {
+		final Random random = new Random(5);
+		
+		return new ParallelLayerSequence<>(List.of(
+			DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, INPUT_SIZE, 16),
+			new ElementActivationLayer<>(FuncDerivPair.TANH),
+			DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 16, CLASSES),
+			new SoftmaxLayer()
+		));
+	}
+}
@@ -0,0 +1,176 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Compares the convergence and speed of Hogwild-style asynchronous training
+ * ({@link DataParallelTrainer#trainEpochHogwild}) against synchronous minibatch training
+ * ({@link DataParallelTrainer#trainEpoch}). Two copies of the same network are trained from the same initial weights
+ * on a synthetic classification problem (noisy clusters around random centers), and the time, training error, and test
+ * accuracy of both are printed after every epoch.
+ * <p>
+ * The number of worker threads can be given as the first argument; the default is one per core.
+ *
+ * @author Joe Desmond
+ */
+public final class HogwildBenchmark {
+	
+	/**
+	 * Number of classes (clusters) in the synthetic data
+	 */
+	private static final int CLASSES = 10;
+	
+	/**
+	 * Size of each input
+	 */
+	private static final int INPUT_SIZE = 64;
+	
+	/**
+	 * Number of neurons in the hidden layer
+	 */
+	private static final int HIDDEN_SIZE = 128;
+	
+	/**
+	 * Number of training samples
+	 */
+	private static final int TRAINING_SAMPLES = 20_000;
+	
+	/**
+	 * Number of test samples
+	 */
+	private static final int TEST_SAMPLES = 5_000;
+	
+	/**
+	 * Number of epochs to train each network for
+	 */
+	private static final int EPOCHS = 10;
+	
+	/**
+	 * Minibatch size for synchronous training
+	 */
+	private static final int MINIBATCH_SIZE = 32;
+	
+	/**
+	 * Learning rate for both kinds of training. Synchronous training sums the gradients of a minibatch, so every sample
+	 * contributes the same amount to the parameters in both cases
+	 */
+	private static final double LEARNING_RATE = 0.02;
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final Random random = new Random(0);
+		
+		final Vector[] centers = new Vector[CLASSES];
+		
+		for (int i = 0; i < CLASSES; i++) {
+			centers[i] = randomVector(random, 1);
+		}
+		
+		final Vector[] trainingInputs = new Vector[TRAINING_SAMPLES];
+		final Vector[] trainingOutputs = new Vector[TRAINING_SAMPLES];
+		final Vector[] testInputs = new Vector[TEST_SAMPLES];
+		final Vector[] testOutputs = new Vector[TEST_SAMPLES];
+		
+		generateSamples(random, centers, trainingInputs, trainingOutputs);
+		generateSamples(random, centers, testInputs, testOutputs);
+		
+		final ParallelLayer<Vector, Vector> syncNetwork = createNetwork(new Random(1));
+		final ParallelLayer<Vector, Vector> hogwildNetwork = createNetwork(new Random(1));
+		
+		System.out.println(threads + " threads, " + TRAINING_SAMPLES + " training samples, minibatch size " + MINIBATCH_SIZE);
+		System.out.println("epoch\tsync ms\tsync error\tsync accuracy\thogwild ms\thogwild error\thogwild accuracy");
+		
+		try (
+			DataParallelTrainer<Vector, Vector> syncTrainer = new DataParallelTrainer<>(syncNetwork, VectorErrorFunctions.CROSS_ENTROPY, threads, new Random(2));
+			DataParallelTrainer<Vector, Vector> hogwildTrainer = new DataParallelTrainer<>(hogwildNetwork, VectorErrorFunctions.CROSS_ENTROPY, threads, new Random(2));
+		) {
+			long syncTotal = 0;
+			long hogwildTotal = 0;
+			
+			for (int epoch = 1; epoch <= EPOCHS; epoch++) {
+				long start = System.nanoTime();
+				final Result syncResult = syncTrainer.trainEpoch(trainingInputs, trainingOutputs, MINIBATCH_SIZE, LEARNING_RATE, null);
+				final long syncTime = (System.nanoTime() - start) / 1_000_000;
+				
+				start = System.nanoTime();
+				final Result hogwildResult = hogwildTrainer.trainEpochHogwild(trainingInputs, trainingOutputs, 1, LEARNING_RATE, null);
+				final long hogwildTime = (System.nanoTime() - start) / 1_000_000;
+				
+				syncTotal += syncTime;
+				hogwildTotal += hogwildTime;
+				
+				final Result syncTest = syncTrainer.evaluate(testInputs, testOutputs, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+				final Result hogwildTest = hogwildTrainer.evaluate(testInputs, testOutputs, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+				
+				System.out.printf("%d\t%d\t%.5f\t\t%.4f\t\t%d\t\t%.5f\t\t%.4f%n", epoch, syncTime, syncResult.meanError(), syncTest.successRate(), hogwildTime, hogwildResult.meanError(), hogwildTest.successRate());
+			}
+			
+			System.out.println("Total training time: sync " + syncTotal + " ms, hogwild " + hogwildTotal + " ms");
+		}
+	}
+	
+	/**
+	 * Creates a two-layer classifier. Networks created with equally seeded random number generators have the same weights.
+	 * 
+	 * @param random used to initialize the weights
+	 * @return a new network
+	 */
+	private static final ParallelLayer<Vector, Vector> createNetwork(final Random random) {
+		final DenseLayer hidden = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, INPUT_SIZE, HIDDEN_SIZE);
+		final DenseLayer output = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, HIDDEN_SIZE, CLASSES);
+		
+		return new ParallelLayerSequence<>(List.of(hidden, new ElementActivationLayer<>(FuncDerivPair.SIGMOID), output, new SoftmaxLayer()));
+	}
+	
+	/**
+	 * Fills the given arrays with samples from randomly chosen clusters. Each input is its cluster's center plus noise,
+	 * and each expected output is a one-hot vector for the cluster.
+	 * 
+	 * @param random used to choose clusters and generate noise
+	 * @param centers center of each cluster
+	 * @param inputs array to fill with inputs
+	 * @param outputs array to fill with expected outputs
+	 */
+	private static final void generateSamples(final Random random, final Vector[] centers, final Vector[] inputs, final Vector[] outputs) {
+		for (int i = 0; i < inputs.length; i++) {
+			final int cluster = random.nextInt(CLASSES);
+			final double[] expected = new double[CLASSES];
+			expected[cluster] = 1;
+			
+			inputs[i] = centers[cluster].plus(randomVector(random, 1.5));
+			outputs[i] = new Vector(expected);
+		}
+	}
+	
+	/**
+	 * Creates a vector of normally distributed values.
+	 * 
+	 * @param random random number generator
+	 * @param deviation standard deviation of each component
+	 * @return a new vector of size {@link #INPUT_SIZE}
+	 */
+	private static final Vector randomVector(final Random random, final double deviation) {
+		final double[] components = new double[INPUT_SIZE];
+		
+		for (int i = 0; i < components.length; i++) {
+			components[i] = random.nextGaussian() * deviation;
+		}
+		
+		return new Vector(components);
+	}
+}
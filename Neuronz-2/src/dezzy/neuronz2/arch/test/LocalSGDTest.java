@@ -0,0 +1,191 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.GradientAccumulator;
+import dezzy.neuronz2.arch.LocalSGDTrainer;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.BatchNormLayer;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Checks {@link LocalSGDTrainer}:
+ * <ul>
+ * <li>With one minibatch per worker and one average per epoch, every replica starts from the same parameters, so the average
+ * of the replicas must equal one serial minibatch over all the data with the learning rate divided by the number of replicas.</li>
+ * <li>After every epoch, every replica has exactly the same state, including the running statistics of a
+ * {@link BatchNormLayer}, and the training loss falls.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class LocalSGDTest {
+	
+	/**
+	 * Number of worker threads (and replicas)
+	 */
+	private static final int THREADS = 3;
+	
+	/**
+	 * Size of each input
+	 */
+	private static final int INPUT_SIZE = 8;
+	
+	/**
+	 * Number of classes
+	 */
+	private static final int CLASSES = 3;
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		final Random random = new Random(36);
+		final Vector[] inputs = new Vector[THREADS * 100];
+		final Vector[] expectedOutputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final int label = random.nextInt(CLASSES);
+			final double[] expected = new double[CLASSES];
+			expected[label] = 1;
+			
+			inputs[i] = Vector.generate(j -> ((j[0] % CLASSES) == label ? 1 : 0) + (0.5 * random.nextGaussian()), INPUT_SIZE);
+			expectedOutputs[i] = new Vector(expected);
+		}
+		
+		checkAverage(inputs, expectedOutputs);
+		checkReplicas(inputs, expectedOutputs);
+		
+		System.out.println("All local SGD tests passed");
+	}
+	
+	/**
+	 * Trains one epoch with a single minibatch per worker, and compares the result with a serial minibatch over all the data.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected outputs
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static final void checkAverage(final Vector[] inputs, final Vector[] expectedOutputs) throws InterruptedException, ExecutionException {
+		final double learningRate = 0.1;
+		final ParallelLayer<Vector, Vector> network = classifier(false);
+		final ParallelLayer<Vector, Vector> serial = ParallelLayer.copyOf(network);
+		
+		try (LocalSGDTrainer<Vector, Vector> trainer = new LocalSGDTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY, THREADS, new Random(1))) {
+			trainer.trainEpoch(inputs, expectedOutputs, inputs.length, 1, learningRate, null);
+		}
+		
+		final GradientAccumulator<Vector, Vector> accumulator = new GradientAccumulator<>(serial, VectorErrorFunctions.CROSS_ENTROPY);
+		
+		for (int i = 0; i < inputs.length; i++) {
+			accumulator.train(inputs[i], expectedOutputs[i]);
+		}
+		
+		serial.parallelUpdate(accumulator.gradients(), learningRate / THREADS);
+		
+		final double difference = largestDifference(network, serial);
+		System.out.println("Averaged replicas differ from the serial update by at most " + difference);
+		
+		if (difference > 1e-12) {
+			throw new IllegalStateException("Averaged replicas differ from the serial update by " + difference);
+		}
+	}
+	
+	/**
+	 * Trains a network with batch normalization for a few epochs, averaging every two minibatches, and checks that the replicas
+	 * are identical after every epoch and that the loss falls.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected outputs
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static final void checkReplicas(final Vector[] inputs, final Vector[] expectedOutputs) throws InterruptedException, ExecutionException {
+		try (LocalSGDTrainer<Vector, Vector> trainer = new LocalSGDTrainer<>(classifier(true), VectorErrorFunctions.CROSS_ENTROPY, THREADS, new Random(2))) {
+			double firstLoss = 0;
+			Result result = null;
+			
+			for (int epoch = 0; epoch < 5; epoch++) {
+				result = trainer.trainEpoch(inputs, expectedOutputs, 10, 2, 0.05, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+				
+				if (epoch == 0) {
+					firstLoss = result.meanError();
+				}
+				
+				for (int replica = 1; replica < THREADS; replica++) {
+					final double difference = largestDifference(trainer.replica(0), trainer.replica(replica));
+					
+					if (difference != 0) {
+						throw new IllegalStateException("Replica " + replica + " differs from replica 0 by " + difference + " after epoch " + epoch);
+					}
+				}
+			}
+			
+			System.out.println("Replicas are identical after every epoch; loss went from " + firstLoss + " to " + result.meanError());
+			
+			if (result.meanError() >= firstLoss) {
+				throw new IllegalStateException("Training loss did not fall (" + firstLoss + " to " + result.meanError() + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Returns the largest difference between corresponding state elements of two networks with the same architecture.
+	 * 
+	 * @param a first network
+	 * @param b second network
+	 * @return largest absolute difference
+	 */
+	private static final double largestDifference(final ParallelLayer<Vector, Vector> a, final ParallelLayer<Vector, Vector> b) {
+		final List<ElementContainer<?>> aState = a.state();
+		final List<ElementContainer<?>> bState = b.state();
+		double largest = 0;
+		
+		for (int i = 0; i < aState.size(); i++) {
+			final double[] aValues = new double[aState.get(i).elementCount()];
+			final double[] bValues = new double[aValues.length];
+			aState.get(i).copyTo(aValues, 0);
+			bState.get(i).copyTo(bValues, 0);
+			
+			for (int j = 0; j < aValues.length; j++) {
+				largest = Math.max(largest, Math.abs(aValues[j] - bValues[j]));
+			}
+		}
+		
+		return largest;
+	}
+	
+	/**
+	 * Creates a small classifier, with or without batch normalization. Every classifier has the same initial weights.
+	 * 
+	 * @param batchNorm true to normalize the hidden layer
+	 * @return a new classifier
+	 */
+	private static final ParallelLayer<Vector, Vector> classifier(final boolean batchNorm) {
+		final Random random = new Random(5);
+		final List<ParallelLayer<Vector, Vector>> layers = new ArrayList<>();
+		
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, INPUT_SIZE, 12));
+		
+		if (batchNorm) {
+			layers.add(new BatchNormLayer<>(12));
+		}
+		
+		layers.add(new ElementActivationLayer<>(FuncDerivPair.SIGMOID));
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 12, CLASSES));
+		layers.add(new SoftmaxLayer());
+		
+		return new ParallelLayerSequence<>(layers);
+	}
+}
@@ -0,0 +1,171 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.MemoryBudget;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks that a {@link MemoryBudget} refuses samples that do not fit:
+ * <ul>
+ * <li>Once the budget is full, another sample waits until one is released.</li>
+ * <li>A batch larger than the budget is rejected instead of waiting forever.</li>
+ * <li>A {@link DataParallelTrainer} with more workers than the budget allows samples never has more samples in flight than
+ * the budget, and still trains.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class MemoryBudgetTest {
+	
+	/**
+	 * Number of samples that fit in the budgets of this test
+	 */
+	private static final int FITS = 2;
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		checkWaiting();
+		checkBatchTooLarge();
+		checkTrainer();
+		
+		System.out.println("All memory budget tests passed");
+	}
+	
+	/**
+	 * Fills a budget, and checks that a sample admitted by another thread waits until a sample is released.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 */
+	private static final void checkWaiting() throws InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(FITS * 1000 + 999, 1000);
+		
+		if (budget.maxInFlight != FITS) {
+			throw new IllegalStateException("A budget of " + budget.capacityBytes + " bytes should fit " + FITS + " samples of 1000 bytes, not " + budget.maxInFlight);
+		}
+		
+		for (int i = 0; i < FITS; i++) {
+			budget.admit();
+		}
+		
+		final CountDownLatch admitted = new CountDownLatch(1);
+		final Thread waiter = new Thread(() -> {
+			try {
+				budget.admit();
+				admitted.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiter.start();
+		
+		if (admitted.await(200, TimeUnit.MILLISECONDS)) {
+			throw new IllegalStateException("A sample was admitted to a full budget");
+		}
+		
+		budget.release();
+		
+		if (!admitted.await(5, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("A waiting sample was not admitted after another was released");
+		}
+		
+		waiter.join();
+		
+		if (budget.inFlight() != FITS || budget.peakInFlight() != FITS || budget.peakBytes() > budget.capacityBytes) {
+			throw new IllegalStateException("The budget counted " + budget.inFlight() + " samples in flight, with a peak of " + budget.peakInFlight());
+		}
+		
+		System.out.println("A full budget made a sample wait until another was released");
+	}
+	
+	/**
+	 * Checks that a batch that can never fit is rejected.
+	 * 
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 */
+	private static final void checkBatchTooLarge() throws InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(FITS * 1000, 1000);
+		
+		try {
+			budget.admit(FITS + 1);
+			throw new IllegalStateException("A batch larger than the budget was admitted");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Rejected: " + e.getMessage());
+		}
+		
+		if (budget.inFlight() != 0) {
+			throw new IllegalStateException("A rejected batch was counted as in flight");
+		}
+	}
+	
+	/**
+	 * Trains with four workers and a budget for two samples, and checks the peak number of samples in flight.
+	 * 
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a worker throws an exception
+	 */
+	private static final void checkTrainer() throws InterruptedException, ExecutionException {
+		final Random random = new Random(43);
+		final DenseLayer hidden = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 20, 50);
+		final DenseLayer output = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 50, 2);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(hidden, new ElementActivationLayer<>(FuncDerivPair.SIGMOID), output, new SoftmaxLayer()));
+		
+		final Vector[] inputs = new Vector[400];
+		final Vector[] expectedOutputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final boolean positive = random.nextBoolean();
+			inputs[i] = Vector.generate(j -> (positive ? 0.5 : -0.5) + random.nextGaussian(), 20);
+			expectedOutputs[i] = positive ? new Vector(1, 0) : new Vector(0, 1);
+		}
+		
+		final long sampleBytes = MemoryBudget.estimateSampleBytes(network, inputs[0]);
+		
+		if (sampleBytes < network.parallelForwardPass(inputs[0]).sizeInBytes()) {
+			throw new IllegalStateException("The estimated sample size is smaller than a forward pass");
+		}
+		
+		final MemoryBudget budget = MemoryBudget.forNetwork(network, inputs[0], FITS * sampleBytes);
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY, 4, new Random(1))) {
+			trainer.setMemoryBudget(budget);
+			
+			double firstLoss = 0;
+			double lastLoss = 0;
+			
+			for (int epoch = 0; epoch < 5; epoch++) {
+				lastLoss = trainer.trainEpoch(inputs, expectedOutputs, 20, 0.1, null).meanError();
+				
+				if (epoch == 0) {
+					firstLoss = lastLoss;
+				}
+			}
+			
+			System.out.println("4 workers with a budget of " + budget.maxInFlight + " samples: peak " + budget.peakInFlight() + " in flight (" + budget.peakBytes() + " of " + budget.capacityBytes + " bytes); loss " + firstLoss + " to " + lastLoss);
+			
+			if (budget.peakInFlight() > budget.maxInFlight || budget.peakBytes() > budget.capacityBytes) {
+				throw new IllegalStateException("The trainer had more samples in flight than the budget allows");
+			}
+			
+			if (budget.inFlight() != 0) {
+				throw new IllegalStateException(budget.inFlight() + " samples were never released");
+			}
+			
+			if (lastLoss >= firstLoss) {
+				throw new IllegalStateException("The trainer did not train with a memory budget");
+			}
+		}
+	}
+}
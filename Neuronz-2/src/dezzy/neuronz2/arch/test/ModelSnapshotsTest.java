@@ -0,0 +1,122 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.List;
+import java.util.Random;
+
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.arch.ModelSnapshots;
+import dezzy.neuronz2.arch.ModelSnapshots.Snapshot;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks {@link ModelSnapshots}:
+ * <ul>
+ * <li>A snapshot keeps computing the output of the version it was captured from while the live model changes.</li>
+ * <li>Once every reader has closed an old snapshot, its copy of the model is reused by a later capture.</li>
+ * <li>Closing a snapshot twice releases only one reference, so another reader of the same version is not affected, and a closed
+ * snapshot can no longer be used.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class ModelSnapshotsTest {
+	
+	public static final void main(final String[] args) {
+		final Random random = new Random(46);
+		final DenseLayer live = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 4, 3);
+		final Vector input = Vector.generate(i -> random.nextGaussian(), 4);
+		final ModelSnapshots<Vector, Vector> snapshots = new ModelSnapshots<>(live);
+		
+		final Snapshot<Vector, Vector> first = snapshots.acquire();
+		final Vector firstOutput = first.predict(input);
+		check(firstOutput, live.parallelForwardPass(input).output, "The first snapshot does not compute the live output");
+		
+		change(live);
+		snapshots.capture();
+		
+		final Snapshot<Vector, Vector> second = snapshots.acquire();
+		final Snapshot<Vector, Vector> secondAgain = snapshots.acquire();
+		final Vector secondOutput = second.predict(input);
+		check(first.predict(input), firstOutput, "The first snapshot changed after a capture");
+		check(secondOutput, live.parallelForwardPass(input).output, "The second snapshot does not compute the live output");
+		
+		if (second.version != 2 || secondAgain.version != 2 || snapshots.replicaCount() != 2) {
+			throw new IllegalStateException("Expected two readers of version 2 and two copies, got " + snapshots.replicaCount() + " copies");
+		}
+		
+		first.close();
+		first.close();
+		
+		try {
+			first.predict(input);
+			throw new IllegalStateException("A closed snapshot was used");
+		} catch (IllegalStateException e) {
+			if (!e.getMessage().contains("closed")) {
+				throw e;
+			}
+		}
+		
+		change(live);
+		snapshots.capture();
+		
+		if (snapshots.replicaCount() != 2) {
+			throw new IllegalStateException("The copy of the closed first snapshot was not reused (" + snapshots.replicaCount() + " copies)");
+		}
+		
+		// Version 2 is no longer the latest, and one of its two readers closes twice: the other reader must keep it
+		second.close();
+		second.close();
+		change(live);
+		snapshots.capture();
+		check(secondAgain.predict(input), secondOutput, "Closing a snapshot twice released another reader's version");
+		
+		if (snapshots.replicaCount() != 3) {
+			throw new IllegalStateException("A copy still held by a reader was reused (" + snapshots.replicaCount() + " copies)");
+		}
+		
+		secondAgain.close();
+		change(live);
+		snapshots.capture();
+		
+		try (Snapshot<Vector, Vector> latest = snapshots.acquire()) {
+			check(latest.predict(input), live.parallelForwardPass(input).output, "The latest snapshot does not compute the live output");
+			
+			if (latest.version != 5 || snapshots.replicaCount() != 3) {
+				throw new IllegalStateException("Expected version 5 with 3 copies, got version " + latest.version + " with " + snapshots.replicaCount());
+			}
+		}
+		
+		System.out.println("Snapshots kept their versions, copies were reused after closing, and double closes were ignored");
+		System.out.println("All model snapshot tests passed");
+	}
+	
+	/**
+	 * Changes every parameter of the live model, as an update would.
+	 * 
+	 * @param live live model
+	 */
+	private static final void change(final DenseLayer live) {
+		final List<ElementContainer<?>> state = live.state();
+		
+		for (int i = 0; i < state.size(); i++) {
+			state.get(i).unsafeAddInPlace(state.get(i));
+		}
+	}
+	
+	/**
+	 * Checks that two vectors are equal.
+	 * 
+	 * @param actual actual vector
+	 * @param expected expected vector
+	 * @param message message of the exception if they differ
+	 */
+	private static final void check(final Vector actual, final Vector expected, final String message) {
+		for (int i = 0; i < expected.dimension; i++) {
+			if (actual.get(i) != expected.get(i)) {
+				throw new IllegalStateException(message + " (" + actual + " instead of " + expected + ")");
+			}
+		}
+	}
+}
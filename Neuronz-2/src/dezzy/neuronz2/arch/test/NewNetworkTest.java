@@ -6,7 +6,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
-import java.util.zip.DataFormatException;
 
 import dezzy.neuronz2.ann.error.VectorErrorFunctions;
 import dezzy.neuronz2.ann.layers.DenseLayer;
@@ -22,9 +21,7 @@ import dezzy.neuronz2.cnn.layers.ConvFlattener;
 import dezzy.neuronz2.cnn.layers.ConvolutionLayer2;
 import dezzy.neuronz2.cnn.layers.PoolingLayer;
 import dezzy.neuronz2.cnn.pooling.PoolingOperation;
-import dezzy.neuronz2.dataio.MnistConvLoader;
-import dezzy.neuronz2.dataio.MnistLoader;
-import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.dataio.MnistSamples;
 import dezzy.neuronz2.math.constructs.FuncDerivPair;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Tensor3;
@@ -47,18 +44,148 @@ public class NewNetworkTest {
 	 * @param args unused
 	 * @throws IOException if there is a problem saving/loading files
 	 * @throws ClassNotFoundException if there is a problem deserializing networks from files
-	 * @throws DataFormatException if the mnist data file does not have the correct format
 	 */
-	public static final void main(final String[] args) throws IOException, ClassNotFoundException, DataFormatException {
+	public static final void main(final String[] args) throws IOException, ClassNotFoundException {
 		//andGateTest();
 		//lrnLoadTest();
 		//andGateTest2();
 		//mnistANNTest();
 		//mnistANNSoftmaxTest();
 		//leNetSizeTest();
+		//mnistApproximationReport();
 		mnistCNNTest();
 	}
 	
+	/**
+	 * Measures the effect of the approximate activation functions on MNIST accuracy. Two copies of the network in
+	 * {@link #mnistANNSoftmaxTest()} are trained from the same initial weights on the same data: one with the exact
+	 * sigmoid and softmax functions, and one with {@link FuncDerivPair#FAST_SIGMOID} and an approximate softmax.
+	 * After every epoch, the test accuracy of both networks and the number of test images on which they disagree are printed.
+	 * 
+	 * @throws IOException if there is a problem loading the MNIST data
+	 */
+	private static final void mnistApproximationReport() throws IOException {
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples test = MnistSamples.open("data/mnist/test-images.idx3-ubyte", "data/mnist/test-labels.idx1-ubyte");
+		final MnistSamples.Buffer trainingBuffer = training.newBuffer();
+		final MnistSamples.Buffer testBuffer = test.newBuffer();
+		
+		final long seed = 0;
+		final LayeredNetwork<Vector, Vector> exactNetwork = softmaxANN(new Random(seed), false);
+		final LayeredNetwork<Vector, Vector> approximateNetwork = softmaxANN(new Random(seed), true);
+		
+		final Integer[] order = new Integer[training.size];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		
+		final Random shuffler = new Random(seed);
+		final int minibatchSize = 10;
+		final double learningRate = 2.0;
+		
+		for (int epoch = 0; epoch < 10; epoch++) {
+			Collections.shuffle(Arrays.asList(order), shuffler);
+			
+			long exactMillis = 0;
+			long approximateMillis = 0;
+			
+			for (int index = 0; index < order.length; index += minibatchSize) {
+				final long startMillis = System.currentTimeMillis();
+				trainMinibatch(exactNetwork, training, trainingBuffer, order, index, minibatchSize, learningRate);
+				final long midMillis = System.currentTimeMillis();
+				trainMinibatch(approximateNetwork, training, trainingBuffer, order, index, minibatchSize, learningRate);
+				final long endMillis = System.currentTimeMillis();
+				
+				exactMillis += midMillis - startMillis;
+				approximateMillis += endMillis - midMillis;
+			}
+			
+			int exactCorrect = 0;
+			int approximateCorrect = 0;
+			int disagreements = 0;
+			
+			for (int i = 0; i < test.size; i++) {
+				final Vector input = testBuffer.vector(i);
+				final int exactDigit = argmax(exactNetwork.network.forwardPass(input));
+				final int approximateDigit = argmax(approximateNetwork.network.forwardPass(input));
+				
+				if (exactDigit == test.digit(i)) {
+					exactCorrect++;
+				}
+				
+				if (approximateDigit == test.digit(i)) {
+					approximateCorrect++;
+				}
+				
+				if (exactDigit != approximateDigit) {
+					disagreements++;
+				}
+			}
+			
+			System.out.println("Epoch " + epoch + ": exact " + exactCorrect + "/" + test.size + " (" + exactMillis + " ms), approximate " +
+					approximateCorrect + "/" + test.size + " (" + approximateMillis + " ms), " + disagreements + " disagreements");
+		}
+	}
+	
+	/**
+	 * Creates the network used in {@link #mnistANNSoftmaxTest()}, with either exact or approximate activation functions.
+	 * 
+	 * @param random random number generator for the initial weights
+	 * @param approximate true to use the approximate sigmoid and softmax functions
+	 * @return a new network for MNIST
+	 */
+	private static final LayeredNetwork<Vector, Vector> softmaxANN(final Random random, final boolean approximate) {
+		final DenseLayer inputLayer = DenseLayer.generate(random, WeightInitFunc.STANDARD_NORMAL_INIT, WeightInitFunc.STANDARD_NORMAL_INIT, 784, 30);
+		final ElementActivationLayer<Vector> sigmoid0 = new ElementActivationLayer<>(approximate ? FuncDerivPair.FAST_SIGMOID : FuncDerivPair.SIGMOID);
+		final DenseLayer hiddenLayer = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.XAVIER_INIT, 30, 10);
+		final SoftmaxLayer softmax = new SoftmaxLayer(approximate);
+		
+		final List<Layer<Vector, Vector>> layers = List.of(inputLayer, sigmoid0, hiddenLayer, softmax);
+		
+		return new LayeredNetwork<>(new LayerSequence<>(layers), VectorErrorFunctions.CROSS_ENTROPY);
+	}
+	
+	/**
+	 * Trains a network on one minibatch.
+	 * 
+	 * @param network network to train
+	 * @param samples training samples
+	 * @param buffer buffer to decode the training images into
+	 * @param order order in which to visit the training data
+	 * @param start index in <code>order</code> of the first sample in the minibatch
+	 * @param minibatchSize minibatch size
+	 * @param learningRate learning rate
+	 */
+	private static final void trainMinibatch(final LayeredNetwork<Vector, Vector> network, final MnistSamples samples, final MnistSamples.Buffer buffer, final Integer[] order, final int start, final int minibatchSize, final double learningRate) {
+		for (int i = start; i < start + minibatchSize; i++) {
+			final Vector input = buffer.vector(order[i]);
+			final Vector expectedOutput = samples.expectedOutput(order[i]);
+			
+			final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
+			network.backprop(expectedOutput, result.actualOutput, result.error);
+		}
+		
+		network.update(learningRate / minibatchSize);
+	}
+	
+	/**
+	 * Returns the index of the greatest element in a vector.
+	 * 
+	 * @param vector vector
+	 * @return index of the greatest element
+	 */
+	private static final int argmax(final Vector vector) {
+		int greatestIndex = 0;
+		
+		for (int i = 1; i < vector.dimension; i++) {
+			if (vector.get(i) > vector.get(greatestIndex)) {
+				greatestIndex = i;
+			}
+		}
+		
+		return greatestIndex;
+	}
+	
 	private static final void leNetSizeTest() {
 		final Random random = new Random();
 		
@@ -80,59 +207,13 @@ public class NewNetworkTest {
 		System.out.println(output.shape());
 	}
 	
-	private static final void mnistCNNTest() throws IOException, DataFormatException {
-		
-		/**
-		 * 28 x 28 x 1 tensors, 28 pixels wide by 28 pixels tall, 1 layer deep for grayscale image (training images)
-		 */
-		final Tensor3[] trainingInputs = MnistConvLoader.loadImages("data/mnist/train-images.idx3-ubyte");
-		
-		/**
-		 * Expected digits for each MNIST training image
-		 */
-		final byte[] trainingDigits = MnistLoader.loadLabels("data/mnist/train-labels.idx1-ubyte");
-		
-		/**
-		 * One-hot expected training digit vectors
-		 */
-		final Vector[] trainingOutputs = new Vector[trainingInputs.length];
-		
-		for (int i = 0; i < trainingDigits.length; i++) {
-			final double[] values = new double[10];
-			values[trainingDigits[i]] = 1;
-			trainingOutputs[i] = new Vector(values);
-		}
-		
-		/**
-		 * 28 x 28 x 1 tensors, 28 pixels wide by 28 pixels tall, 1 layer deep for grayscale image (test images)
-		 */
-		final Tensor3[] testInputs = MnistConvLoader.loadImages("data/mnist/test-images.idx3-ubyte");
-		
-		/**
-		 * Expected digits for each MNIST test image
-		 */
-		final byte[] testDigits = MnistLoader.loadLabels("data/mnist/test-labels.idx1-ubyte");
+	private static final void mnistCNNTest() throws IOException {
 		
 		/**
-		 * One-hot expected test digit vectors
+		 * 28 x 28 x 1 tensors, 28 pixels wide by 28 pixels tall, 1 layer deep for grayscale image, decoded when they are used
 		 */
-		final Vector[] testOutputs = new Vector[testInputs.length];
-		
-		for (int i = 0; i < testDigits.length; i++) {
-			final double[] values = new double[10];
-			values[testDigits[i]] = 1;
-			testOutputs[i] = new Vector(values);
-		}
-		
-		final InputOutputPair<Tensor3, Vector>[] trainingData = (InputOutputPair<Tensor3, Vector>[]) new InputOutputPair<?, ?>[trainingInputs.length];
-		for (int i = 0; i < trainingInputs.length; i++) {
-			trainingData[i] = new InputOutputPair<>(trainingInputs[i], trainingOutputs[i]);
-		}
-		
-		final InputOutputPair<Tensor3, Vector>[] testData = (InputOutputPair<Tensor3, Vector>[]) new InputOutputPair<?, ?>[testInputs.length];
-		for (int i = 0; i < testInputs.length; i++) {
-			testData[i] = new InputOutputPair<>(testInputs[i], testOutputs[i]);
-		}
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples.Buffer trainingBuffer = training.newBuffer();
 		
 		final Random random = new Random();
 		
@@ -171,8 +252,8 @@ public class NewNetworkTest {
 			while (index < 100) {
 				
 				for (int i = 0; i < minibatchSize; i++) {
-					final Tensor3 input = trainingData[index].input;
-					final Vector expectedOutput = trainingData[index].output;
+					final Tensor3 input = trainingBuffer.tensor(index);
+					final Vector expectedOutput = training.expectedOutput(index);
 					
 					final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 					network.backprop(expectedOutput, result.actualOutput, result.error);
@@ -187,12 +268,12 @@ public class NewNetworkTest {
 			//Test images
 			int correct = 0;
 			for (int i = 0; i < 100; i++) {
-				final Tensor3 input = trainingData[i].input;
-				final Vector expectedOutput = trainingData[i].output;
+				final Tensor3 input = trainingBuffer.tensor(i);
+				final Vector expectedOutput = training.expectedOutput(i);
 				
 				final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 				final Vector actual = result.actualOutput;
-								
+				
 				int greatestIndex = 0;
 				double greatestValue = 0;
 				
@@ -220,59 +301,20 @@ public class NewNetworkTest {
 	 * Same as {@link #mnistANNTest()}, except the softmax activation function is used as the last layer (instead of sigmoid)
 	 * and the network is trained with cross-entropy instead of mean-square-error.
 	 * 
-	 * @throws IOException if there is a problem saving the network
+	 * @throws IOException if there is a problem loading the MNIST data or saving the network
 	 */
 	private static final void mnistANNSoftmaxTest() throws IOException {
 		/**
-		 * Vectors of length 784, MNIST training image data
-		 */
-		final Vector[] trainingInputs = MnistLoader.loadImages("data/mnist/train-images.idx3-ubyte");
-		
-		/**
-		 * Expected digits for each MNIST training image
-		 */
-		final byte[] expectedDigits = MnistLoader.loadLabels("data/mnist/train-labels.idx1-ubyte");
-		
-		/**
-		 * One-hot expected training digit vectors
-		 */
-		final Vector[] trainingOutputs = new Vector[trainingInputs.length];
-		
-		for (int i = 0; i < expectedDigits.length; i++) {
-			final double[] values = new double[10];
-			values[expectedDigits[i]] = 1;
-			trainingOutputs[i] = new Vector(values);
-		}
-		
-		/**
-		 * Vectors of length 784, MNIST test image data
+		 * MNIST training and test images (vectors of length 784), decoded when they are used
 		 */
-		final Vector[] testInputs = MnistLoader.loadImages("data/mnist/test-images.idx3-ubyte");
-		
-		/**
-		 * Expected digits for each MNIST test image
-		 */
-		final byte[] testDigits = MnistLoader.loadLabels("data/mnist/test-labels.idx1-ubyte");
-		
-		/**
-		 * One-hot expected test digit vectors
-		 */
-		final Vector[] testOutputs = new Vector[testInputs.length];
-		
-		for (int i = 0; i < testDigits.length; i++) {
-			final double[] values = new double[10];
-			values[testDigits[i]] = 1;
-			testOutputs[i] = new Vector(values);
-		}
-		
-		final InputOutputPair<Vector, Vector>[] trainingData = (InputOutputPair<Vector, Vector>[]) new InputOutputPair<?, ?>[trainingInputs.length];
-		for (int i = 0; i < trainingInputs.length; i++) {
-			trainingData[i] = new InputOutputPair<>(trainingInputs[i], trainingOutputs[i]);
-		}
-		
-		final InputOutputPair<Vector, Vector>[] testData = (InputOutputPair<Vector, Vector>[]) new InputOutputPair<?, ?>[testInputs.length];
-		for (int i = 0; i < testInputs.length; i++) {
-			testData[i] = new InputOutputPair<>(testInputs[i], testOutputs[i]);
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples test = MnistSamples.open("data/mnist/test-images.idx3-ubyte", "data/mnist/test-labels.idx1-ubyte");
+		final MnistSamples.Buffer trainingBuffer = training.newBuffer();
+		final MnistSamples.Buffer testBuffer = test.newBuffer();
+		final Integer[] order = new Integer[training.size];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
 		}
 		
 		final Random random = new Random();
@@ -292,15 +334,15 @@ public class NewNetworkTest {
 		final double learningRate = 2.0;
 		
 		for (int epoch = 0; epoch < 30; epoch++) {
-			Collections.shuffle(Arrays.asList(trainingData));
+			Collections.shuffle(Arrays.asList(order));
 			
 			//Training images			
 			int index = 0;
-			while (index < trainingData.length) {
+			while (index < training.size) {
 				
 				for (int i = 0; i < minibatchSize; i++) {
-					final Vector input = trainingData[index].input;
-					final Vector expectedOutput = trainingData[index].output;
+					final Vector input = trainingBuffer.vector(order[index]);
+					final Vector expectedOutput = training.expectedOutput(order[index]);
 					
 					final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 					network.backprop(expectedOutput, result.actualOutput, result.error);
@@ -313,13 +355,13 @@ public class NewNetworkTest {
 			
 			//Test images
 			int correct = 0;
-			for (int i = 0; i < testData.length; i++) {
-				final Vector input = testData[i].input;
-				final Vector expectedOutput = testData[i].output;
+			for (int i = 0; i < test.size; i++) {
+				final Vector input = testBuffer.vector(i);
+				final Vector expectedOutput = test.expectedOutput(i);
 				
 				final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 				final Vector actual = result.actualOutput;
-								
+				
 				int greatestIndex = 0;
 				double greatestValue = 0;
 				
@@ -337,7 +379,7 @@ public class NewNetworkTest {
 				}
 			}
 			
-			System.out.println("Epoch " + epoch + ": " + correct + "/" + testData.length);
+			System.out.println("Epoch " + epoch + ": " + correct + "/" + test.size);
 			network.saveAs("networks/new-arch-test/mnist-ann-softmax.lrn");
 		}
 	}
@@ -346,61 +388,21 @@ public class NewNetworkTest {
 	 * Tests the MNIST handwritten digit dataset on a fully connected neural network with 1 hidden layer
 	 * consisting of 30 neurons. The neural network is constructed using the new layer architecture.
 	 * 
-	 * @throws IOException if there is a problem saving the network
+	 * @throws IOException if there is a problem loading the MNIST data or saving the network
 	 */
 	private static final void mnistANNTest() throws IOException {
 		
 		/**
-		 * Vectors of length 784, MNIST training image data
-		 */
-		final Vector[] trainingInputs = MnistLoader.loadImages("data/mnist/train-images.idx3-ubyte");
-		
-		
-		/**
-		 * Expected digits for each MNIST training image
+		 * MNIST training and test images (vectors of length 784), decoded when they are used
 		 */
-		final byte[] expectedDigits = MnistLoader.loadLabels("data/mnist/train-labels.idx1-ubyte");
-		
-		/**
-		 * One-hot expected training digit vectors
-		 */
-		final Vector[] trainingOutputs = new Vector[trainingInputs.length];
-		
-		for (int i = 0; i < expectedDigits.length; i++) {
-			final double[] values = new double[10];
-			values[expectedDigits[i]] = 1;
-			trainingOutputs[i] = new Vector(values);
-		}
-		
-		/**
-		 * Vectors of length 784, MNIST test image data
-		 */
-		final Vector[] testInputs = MnistLoader.loadImages("data/mnist/test-images.idx3-ubyte");
-		
-		/**
-		 * Expected digits for each MNIST test image
-		 */
-		final byte[] testDigits = MnistLoader.loadLabels("data/mnist/test-labels.idx1-ubyte");
-		
-		/**
-		 * One-hot expected test digit vectors
-		 */
-		final Vector[] testOutputs = new Vector[testInputs.length];
-		
-		for (int i = 0; i < testDigits.length; i++) {
-			final double[] values = new double[10];
-			values[testDigits[i]] = 1;
-			testOutputs[i] = new Vector(values);
-		}
-		
-		final InputOutputPair<Vector, Vector>[] trainingData = (InputOutputPair<Vector, Vector>[]) new InputOutputPair<?, ?>[trainingInputs.length];
-		for (int i = 0; i < trainingInputs.length; i++) {
-			trainingData[i] = new InputOutputPair<>(trainingInputs[i], trainingOutputs[i]);
-		}
-		
-		final InputOutputPair<Vector, Vector>[] testData = (InputOutputPair<Vector, Vector>[]) new InputOutputPair<?, ?>[testInputs.length];
-		for (int i = 0; i < testInputs.length; i++) {
-			testData[i] = new InputOutputPair<>(testInputs[i], testOutputs[i]);
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples test = MnistSamples.open("data/mnist/test-images.idx3-ubyte", "data/mnist/test-labels.idx1-ubyte");
+		final MnistSamples.Buffer trainingBuffer = training.newBuffer();
+		final MnistSamples.Buffer testBuffer = test.newBuffer();
+		final Integer[] order = new Integer[training.size];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
 		}
 		
 		final Random random = new Random();
@@ -420,15 +422,15 @@ public class NewNetworkTest {
 		final double learningRate = 2.0;
 		
 		for (int epoch = 0; epoch < 30; epoch++) {
-			Collections.shuffle(Arrays.asList(trainingData));
+			Collections.shuffle(Arrays.asList(order));
 			
 			//Training images			
 			int index = 0;
-			while (index < trainingData.length) {
+			while (index < training.size) {
 				
 				for (int i = 0; i < minibatchSize; i++) {
-					final Vector input = trainingData[index].input;
-					final Vector expectedOutput = trainingData[index].output;
+					final Vector input = trainingBuffer.vector(order[index]);
+					final Vector expectedOutput = training.expectedOutput(order[index]);
 					
 					final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 					network.backprop(expectedOutput, result.actualOutput, result.error);
@@ -441,13 +443,13 @@ public class NewNetworkTest {
 			
 			//Test images
 			int correct = 0;
-			for (int i = 0; i < testData.length; i++) {
-				final Vector input = testData[i].input;
-				final Vector expectedOutput = testData[i].output;
+			for (int i = 0; i < test.size; i++) {
+				final Vector input = testBuffer.vector(i);
+				final Vector expectedOutput = test.expectedOutput(i);
 				
 				final ForwardPassResult<Vector> result = network.forwardPass(input, expectedOutput);
 				final Vector actual = result.actualOutput;
-								
+				
 				int greatestIndex = 0;
 				double greatestValue = 0;
 				
@@ -465,42 +467,11 @@ public class NewNetworkTest {
 				}
 			}
 			
-			System.out.println("Epoch " + epoch + ": " + correct + "/" + testData.length);
+			System.out.println("Epoch " + epoch + ": " + correct + "/" + test.size);
 			network.saveAs("networks/new-arch-test/mnist-ann.lrn");
 		}
 	}
 	
-	/**
-	 * An input to a neural network and the expected output, for that input.
-	 *
-	 * @author Joe Desmond
-	 * @param <I> input tensor type
-	 * @param <O> output tensor type
-	 */
-	private static final class InputOutputPair<I extends ElementContainer<I>, O extends ElementContainer<O>> {
-		
-		/**
-		 * Input tensor
-		 */
-		final I input;
-		
-		/**
-		 * Expected output tensor
-		 */
-		final O output;
-		
-		/**
-		 * Creates an {@link InputOutputPair} with the given input and expected output tensors.
-		 * 
-		 * @param _input input tensor
-		 * @param _output expected output tensor
-		 */
-		InputOutputPair(final I _input, final O _output) {
-			input = _input;
-			output = _output;
-		}
-	}
-	
 	/**
 	 * Tests the and-gate network using better weight initialization strategies.
 	 * @throws IOException if the network cannot be saved
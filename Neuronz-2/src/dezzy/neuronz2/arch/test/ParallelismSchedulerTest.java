@@ -0,0 +1,108 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.List;
+import java.util.Random;
+
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.IntraOpExecutor;
+import dezzy.neuronz2.arch.IntraOpLayer;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.ParallelismScheduler;
+import dezzy.neuronz2.arch.ParallelismScheduler.LayerDecision;
+import dezzy.neuronz2.arch.ParallelismScheduler.Plan;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks the decisions of {@link ParallelismScheduler} on shape estimates, which do not depend on the machine:
+ * <ul>
+ * <li>A minibatch with at least as many samples as cores runs one sample per core, without splitting any layer.</li>
+ * <li>A minibatch of one sample splits the expensive layer across every core, and never splits cheap or unsplittable layers.</li>
+ * <li>A layer too cheap to be worth a range per core is not split, even when cores are left over.</li>
+ * <li>Applying a plan sets the chosen degrees, and the split network computes the same output.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class ParallelismSchedulerTest {
+	
+	/**
+	 * Number of cores to plan for
+	 */
+	private static final int CORES = 8;
+	
+	public static final void main(final String[] args) {
+		final Random random = new Random(42);
+		final DenseLayer big = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 1000, 1000);
+		final DenseLayer small = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 1000, 10);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(big, new ElementActivationLayer<>(FuncDerivPair.TANH), small, new SoftmaxLayer()));
+		final Vector input = Vector.generate(i -> random.nextGaussian(), 1000);
+		
+		final Plan largeBatch = new ParallelismScheduler(CORES, 64).planFromShapes(network, input);
+		System.out.print("Minibatch of 64: " + largeBatch);
+		
+		if (largeBatch.concurrentSamples != CORES || largeBatch.intraOpThreads() != 0) {
+			throw new IllegalStateException("A large minibatch should run one sample per core without splitting");
+		}
+		
+		final Plan oneSample = new ParallelismScheduler(CORES, 1).planFromShapes(network, input);
+		System.out.print("Minibatch of 1: " + oneSample);
+		
+		if (oneSample.concurrentSamples != 1 || decision(oneSample, big).degree != CORES || oneSample.intraOpThreads() != CORES - 1) {
+			throw new IllegalStateException("A single sample should split the big layer across every core");
+		}
+		
+		for (int i = 0; i < oneSample.layers.size(); i++) {
+			final LayerDecision layer = oneSample.layers.get(i);
+			
+			if (layer.layer != big && layer.degree != 1) {
+				throw new IllegalStateException(layer.name + " should not be split");
+			}
+			
+			if (!layer.splittable && layer.layer instanceof IntraOpLayer) {
+				throw new IllegalStateException(layer.name + " supports intra-op parallelism, but was marked as unsplittable");
+			}
+		}
+		
+		final Vector serialOutput = network.parallelForwardPass(input).output;
+		
+		try (IntraOpExecutor executor = new IntraOpExecutor(oneSample.intraOpThreads())) {
+			oneSample.apply(executor);
+			
+			if (big.intraOpDegree() != CORES || small.intraOpDegree() != 1) {
+				throw new IllegalStateException("Applying the plan did not set the chosen degrees");
+			}
+			
+			final Vector splitOutput = network.parallelForwardPass(input).output;
+			
+			for (int i = 0; i < serialOutput.dimension; i++) {
+				if (Math.abs(serialOutput.get(i) - splitOutput.get(i)) > 1e-12) {
+					throw new IllegalStateException("The split network computes a different output");
+				}
+			}
+		}
+		
+		System.out.println("All parallelism scheduler tests passed");
+	}
+	
+	/**
+	 * Returns the decision for a layer in a plan.
+	 * 
+	 * @param plan plan
+	 * @param layer layer in the planned network
+	 * @return the decision for <code>layer</code>
+	 */
+	private static final LayerDecision decision(final Plan plan, final ParallelLayer<?, ?> layer) {
+		for (int i = 0; i < plan.layers.size(); i++) {
+			if (plan.layers.get(i).layer == layer) {
+				return plan.layers.get(i);
+			}
+		}
+		
+		throw new IllegalStateException("The plan has no decision for " + layer);
+	}
+}
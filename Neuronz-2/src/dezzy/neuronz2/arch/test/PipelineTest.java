@@ -0,0 +1,156 @@
+package dezzy.neuronz2.arch.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.PipelineTrainer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * Checks {@link PipelineTrainer}:
+ * <ul>
+ * <li>Invalid stage starts are rejected.</li>
+ * <li>One pipelined minibatch over the whole data set changes the parameters exactly as much as one minibatch of a
+ * {@link DataParallelTrainer}, for several stage splits and micro-batch sizes. Both sum the same gradients, so only the order
+ * of the sums (and rounding) differs.</li>
+ * </ul>
+ *
+ * @author Joe Desmond
+ */
+public final class PipelineTest {
+	
+	/**
+	 * Size of each input
+	 */
+	private static final int INPUT_SIZE = 10;
+	
+	/**
+	 * Number of classes
+	 */
+	private static final int CLASSES = 4;
+	
+	/**
+	 * Learning rate of the single update
+	 */
+	private static final double LEARNING_RATE = 0.05;
+	
+	public static final void main(final String[] args) throws InterruptedException, ExecutionException {
+		checkValidation();
+		
+		final Random random = new Random(38);
+		final Vector[] inputs = new Vector[150];
+		final Vector[] expectedOutputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final int label = random.nextInt(CLASSES);
+			final double[] expected = new double[CLASSES];
+			expected[label] = 1;
+			
+			inputs[i] = Vector.generate(j -> ((j[0] % CLASSES) == label ? 1 : 0) + random.nextGaussian(), INPUT_SIZE);
+			expectedOutputs[i] = new Vector(expected);
+		}
+		
+		final ParallelLayer<Vector, Vector> reference = network();
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(reference, VectorErrorFunctions.CROSS_ENTROPY, 3, new Random(1))) {
+			trainer.trainEpoch(inputs, expectedOutputs, inputs.length, LEARNING_RATE, null);
+		}
+		
+		checkPipeline(new int[] {0}, 1, inputs, expectedOutputs, reference);
+		checkPipeline(new int[] {0, 2, 3}, 7, inputs, expectedOutputs, reference);
+		checkPipeline(new int[] {0, 1, 2, 3, 4}, 16, inputs, expectedOutputs, reference);
+		
+		System.out.println("All pipeline tests passed");
+	}
+	
+	/**
+	 * Checks that invalid stage starts are rejected.
+	 */
+	private static final void checkValidation() {
+		final int[][] invalid = {{}, {1, 2}, {0, 2, 2}, {0, 3, 1}, {0, 5}};
+		
+		for (int i = 0; i < invalid.length; i++) {
+			try (PipelineTrainer<Vector, Vector> trainer = new PipelineTrainer<>(network(), VectorErrorFunctions.CROSS_ENTROPY, invalid[i], 4, new Random())) {
+				throw new IllegalStateException("Stage starts " + Arrays.toString(invalid[i]) + " were accepted");
+			} catch (IllegalArgumentException e) {
+				System.out.println("Rejected: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Trains a fresh network for one pipelined minibatch over the whole data set, and compares its parameters with the reference.
+	 * 
+	 * @param stageStarts first part of each stage
+	 * @param microbatchSize number of samples in each micro-batch
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected outputs
+	 * @param reference network after one data parallel minibatch
+	 * @throws InterruptedException if the trainer is interrupted
+	 * @throws ExecutionException if a stage throws an exception
+	 */
+	private static final void checkPipeline(final int[] stageStarts, final int microbatchSize, final Vector[] inputs, final Vector[] expectedOutputs, final ParallelLayer<Vector, Vector> reference) throws InterruptedException, ExecutionException {
+		final ParallelLayer<Vector, Vector> pipelined = network();
+		
+		try (PipelineTrainer<Vector, Vector> trainer = new PipelineTrainer<>(pipelined, VectorErrorFunctions.CROSS_ENTROPY, stageStarts, 3, new Random(2))) {
+			trainer.trainEpoch(inputs, expectedOutputs, inputs.length, microbatchSize, LEARNING_RATE, null);
+		}
+		
+		final List<ElementContainer<?>> expected = reference.parameters();
+		final List<ElementContainer<?>> actual = pipelined.parameters();
+		final List<ElementContainer<?>> initial = network().parameters();
+		double largest = 0;
+		double largestChange = 0;
+		
+		for (int i = 0; i < expected.size(); i++) {
+			final double[] expectedValues = new double[expected.get(i).elementCount()];
+			final double[] actualValues = new double[expectedValues.length];
+			final double[] initialValues = new double[expectedValues.length];
+			expected.get(i).copyTo(expectedValues, 0);
+			actual.get(i).copyTo(actualValues, 0);
+			initial.get(i).copyTo(initialValues, 0);
+			
+			for (int j = 0; j < expectedValues.length; j++) {
+				largest = Math.max(largest, Math.abs(expectedValues[j] - actualValues[j]));
+				largestChange = Math.max(largestChange, Math.abs(expectedValues[j] - initialValues[j]));
+			}
+		}
+		
+		System.out.println(stageStarts.length + " stages, micro-batches of " + microbatchSize + ": parameters differ by at most " + largest + " (largest update " + largestChange + ")");
+		
+		if (largestChange == 0 || largest > 1e-12) {
+			throw new IllegalStateException("Pipelined update differs from the data parallel update by " + largest);
+		}
+	}
+	
+	/**
+	 * Creates a network with five parts. Every network has the same initial weights.
+	 * 
+	 * @return a new network
+	 */
+	private static final ParallelLayer<Vector, Vector> network() {
+		final Random random = new Random(5);
+		final List<ParallelLayer<Vector, Vector>> layers = new ArrayList<>();
+		
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, INPUT_SIZE, 16));
+		layers.add(new ElementActivationLayer<>(FuncDerivPair.TANH));
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 16, 12));
+		layers.add(DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 12, CLASSES));
+		layers.add(new SoftmaxLayer());
+		
+		return new ParallelLayerSequence<>(layers);
+	}
+}
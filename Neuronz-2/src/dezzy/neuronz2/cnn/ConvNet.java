@@ -1,6 +1,11 @@
 package dezzy.neuronz2.cnn;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.layers.LayerSequence;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 /**
@@ -71,6 +76,35 @@ public class ConvNet<I extends ElementContainer<I>, O extends ElementContainer<O
 		featureExtractor.update(learningRate);
 	}
 	
+	@Override
+	public void setOptimizer(final Optimizer optimizer) {
+		classifier.setOptimizer(optimizer);
+		flattener.setOptimizer(optimizer);
+		featureExtractor.setOptimizer(optimizer);
+	}
+	
+	@Override
+	public void setTrainingMode(final boolean training) {
+		classifier.setTrainingMode(training);
+		flattener.setTrainingMode(training);
+		featureExtractor.setTrainingMode(training);
+	}
+	
+	/**
+	 * Returns a copy of this network for inference, where batch normalization layers in the feature extractor and classifier
+	 * have been folded into the preceding layers (see {@link LayerSequence#foldBatchNorm()}). Only the feature extractor and
+	 * classifier are folded, and only if they are layer sequences.
+	 * 
+	 * @return a new network with batch normalization folded in where possible
+	 */
+	@SuppressWarnings("unchecked")
+	public ConvNet<I, O> foldBatchNorm() {
+		final Layer<I, I> foldedFeatureExtractor = (featureExtractor instanceof LayerSequence) ? ((LayerSequence<I>) featureExtractor).foldBatchNorm() : featureExtractor;
+		final Layer<O, O> foldedClassifier = (classifier instanceof LayerSequence) ? ((LayerSequence<O>) classifier).foldBatchNorm() : classifier;
+		
+		return new ConvNet<>(foldedFeatureExtractor, flattener, foldedClassifier);
+	}
+	
 	/**
 	 * Adds the total number of learnable parameters in the three component layers of this
 	 * convolutional neural network.
@@ -82,6 +116,35 @@ public class ConvNet<I extends ElementContainer<I>, O extends ElementContainer<O
 		return featureExtractor.parameterCount() + flattener.parameterCount() + classifier.parameterCount();
 	}
 	
+	/**
+	 * Returns the learnable parameters of the feature extractor, flattener, and classifier, in that order.
+	 * 
+	 * @return learnable parameters in this network
+	 */
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		final List<ElementContainer<?>> out = new ArrayList<>(featureExtractor.parameters());
+		out.addAll(flattener.parameters());
+		out.addAll(classifier.parameters());
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the {@linkplain dezzy.neuronz2.arch.layers.Layer#state() inference state} of the feature extractor, flattener,
+	 * and classifier, in that order.
+	 * 
+	 * @return inference state of this network
+	 */
+	@Override
+	public List<ElementContainer<?>> state() {
+		final List<ElementContainer<?>> out = new ArrayList<>(featureExtractor.state());
+		out.addAll(flattener.state());
+		out.addAll(classifier.state());
+		
+		return out;
+	}
+	
 	/**
 	 * Returns the sum of the sublayers in the {@linkplain #featureExtractor feature extractor},
 	 * {@linkplain #flattener flattener}, and {@linkplain #classifier classifier}.
@@ -1,13 +1,15 @@
 package dezzy.neuronz2.cnn;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
-import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 
 public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementContainer<O>> implements ParallelLayer<I, O> {
@@ -33,6 +35,12 @@ public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementCon
 	 */
 	private final ParallelLayer<O, O> classifier;
 	
+	/**
+	 * The first slot of the feature extractor, flattener, and classifier in the {@link ParallelForwardPass}
+	 * and {@link ParallelBackwardPass}, followed by the total number of slots
+	 */
+	private transient int[] firstSlots;
+	
 	/**
 	 * Creates a convolutional neural network from the given components, which may also be smaller networks in themselves.
 	 * 
@@ -44,6 +52,31 @@ public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementCon
 		featureExtractor = _featureExtractor;
 		flattener = _flattener;
 		classifier = _classifier;
+		firstSlots = assignSlots();
+	}
+	
+	/**
+	 * Gives the feature extractor, flattener, and classifier each a range of slots, in that order.
+	 * 
+	 * @return the first slot of each component, followed by the total number of slots
+	 */
+	private int[] assignSlots() {
+		final int flattenerSlot = featureExtractor.sublayers();
+		final int classifierSlot = flattenerSlot + flattener.sublayers();
+		
+		return new int[] {0, flattenerSlot, classifierSlot, classifierSlot + classifier.sublayers()};
+	}
+	
+	/**
+	 * Reads this network from a stream and assigns slots to its components.
+	 * 
+	 * @param in stream to read from
+	 * @throws IOException if there is a problem reading from the stream
+	 * @throws ClassNotFoundException if the class of a serialized layer cannot be found
+	 */
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		firstSlots = assignSlots();
 	}
 	
 	@Override
@@ -70,6 +103,49 @@ public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementCon
 		flattener.update(learningRate);
 		featureExtractor.update(learningRate);
 	}
+	
+	@Override
+	public void setOptimizer(final Optimizer optimizer) {
+		classifier.setOptimizer(optimizer);
+		flattener.setOptimizer(optimizer);
+		featureExtractor.setOptimizer(optimizer);
+	}
+	
+	@Override
+	public void setTrainingMode(final boolean training) {
+		classifier.setTrainingMode(training);
+		flattener.setTrainingMode(training);
+		featureExtractor.setTrainingMode(training);
+	}
+	
+	/**
+	 * Returns the pipeline stages of the feature extractor, flattener, and classifier, in that order.
+	 * 
+	 * @return parts of this network, in order
+	 */
+	@Override
+	public List<ParallelLayer<?, ?>> pipelineStages() {
+		final List<ParallelLayer<?, ?>> out = new ArrayList<>(featureExtractor.pipelineStages());
+		out.addAll(flattener.pipelineStages());
+		out.addAll(classifier.pipelineStages());
+		
+		return out;
+	}
+	
+	/**
+	 * Returns a copy of this network for inference, where batch normalization layers in the feature extractor and classifier
+	 * have been folded into the preceding layers (see {@link ParallelLayerSequence#foldBatchNorm()}). Only the feature extractor and
+	 * classifier are folded, and only if they are layer sequences.
+	 * 
+	 * @return a new network with batch normalization folded in where possible
+	 */
+	@SuppressWarnings("unchecked")
+	public ParallelConvNet<I, O> foldBatchNorm() {
+		final ParallelLayer<I, I> foldedFeatureExtractor = (featureExtractor instanceof ParallelLayerSequence) ? ((ParallelLayerSequence<I>) featureExtractor).foldBatchNorm() : featureExtractor;
+		final ParallelLayer<O, O> foldedClassifier = (classifier instanceof ParallelLayerSequence) ? ((ParallelLayerSequence<O>) classifier).foldBatchNorm() : classifier;
+		
+		return new ParallelConvNet<>(foldedFeatureExtractor, flattener, foldedClassifier);
+	}
 
 	/**
 	 * Adds the total number of learnable parameters in the three component layers of this
@@ -82,6 +158,35 @@ public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementCon
 		return featureExtractor.parameterCount() + flattener.parameterCount() + classifier.parameterCount();
 	}
 	
+	/**
+	 * Returns the learnable parameters of the feature extractor, flattener, and classifier, in that order.
+	 * 
+	 * @return learnable parameters in this network
+	 */
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		final List<ElementContainer<?>> out = new ArrayList<>(featureExtractor.parameters());
+		out.addAll(flattener.parameters());
+		out.addAll(classifier.parameters());
+		
+		return out;
+	}
+	
+	/**
+	 * Returns the {@linkplain dezzy.neuronz2.arch.layers.Layer#state() inference state} of the feature extractor, flattener,
+	 * and classifier, in that order.
+	 * 
+	 * @return inference state of this network
+	 */
+	@Override
+	public List<ElementContainer<?>> state() {
+		final List<ElementContainer<?>> out = new ArrayList<>(featureExtractor.state());
+		out.addAll(flattener.state());
+		out.addAll(classifier.state());
+		
+		return out;
+	}
+	
 	/**
 	 * Returns the sum of the sublayers in the {@linkplain #featureExtractor feature extractor},
 	 * {@linkplain #flattener flattener}, and {@linkplain #classifier classifier}.
@@ -99,42 +204,100 @@ public class ParallelConvNet<I extends ElementContainer<I>, O extends ElementCon
 		final ParallelForwardPass<O> flattenedFeatures = flattener.parallelForwardPass(featureMaps.output);
 		final ParallelForwardPass<O> finalOutput = classifier.parallelForwardPass(flattenedFeatures.output);
 		
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		final Map<Layer<?, ?>, ElementContainer<?>> latestOutputs = new HashMap<>();
-		
-		latestInputs.putAll(featureMaps.latestInputs);
-		latestInputs.putAll(flattenedFeatures.latestInputs);
-		latestInputs.putAll(finalOutput.latestInputs);
+		final ParallelForwardPass<O> out = new ParallelForwardPass<>(finalOutput.output, firstSlots[3]);
 		
-		latestOutputs.putAll(featureMaps.latestOutputs);
-		latestOutputs.putAll(flattenedFeatures.latestOutputs);
-		latestOutputs.putAll(finalOutput.latestOutputs);
+		out.putAll(featureMaps, firstSlots[0]);
+		out.putAll(flattenedFeatures, firstSlots[1]);
+		out.putAll(finalOutput, firstSlots[2]);
 		
-		return new ParallelForwardPass<>(finalOutput.output, latestInputs, latestOutputs);
+		return out;
 	}
 
 	@Override
 	public ParallelBackwardPass<I> parallelBackprop(final ParallelForwardPass<O> prevForward, final O errorOutputDeriv, final boolean isFirstLayer) {
-		final ParallelForwardPass<I> forwardI = new ParallelForwardPass<>(null, prevForward.latestInputs, prevForward.latestOutputs);
+		final ParallelForwardPass<I> featureForward = prevForward.slice(firstSlots[0], firstSlots[1] - firstSlots[0]);
+		final ParallelForwardPass<O> flattenerForward = prevForward.slice(firstSlots[1], firstSlots[2] - firstSlots[1]);
+		final ParallelForwardPass<O> classifierForward = prevForward.slice(firstSlots[2], firstSlots[3] - firstSlots[2]);
 		
-		final ParallelBackwardPass<O> classifierDeriv = classifier.parallelBackprop(prevForward, errorOutputDeriv, false);
-		final ParallelBackwardPass<I> unflattenedDeriv = flattener.parallelBackprop(prevForward, classifierDeriv.errorInputDeriv, false);
-		final ParallelBackwardPass<I> errorInputDeriv = featureExtractor.parallelBackprop(forwardI, unflattenedDeriv.errorInputDeriv, isFirstLayer);
+		final ParallelBackwardPass<O> classifierDeriv = classifier.parallelBackprop(classifierForward, errorOutputDeriv, false);
+		final ParallelBackwardPass<I> unflattenedDeriv = flattener.parallelBackprop(flattenerForward, classifierDeriv.errorInputDeriv, false);
+		final ParallelBackwardPass<I> errorInputDeriv = featureExtractor.parallelBackprop(featureForward, unflattenedDeriv.errorInputDeriv, isFirstLayer);
 		
-		final Map<Layer<?, ?>, List<ElementContainer<?>>> gradients = new HashMap<>();
+		final ParallelBackwardPass<I> out = new ParallelBackwardPass<>(errorInputDeriv.errorInputDeriv, firstSlots[3]);
 		
-		gradients.putAll(classifierDeriv.gradients);
-		gradients.putAll(unflattenedDeriv.gradients);
-		gradients.putAll(errorInputDeriv.gradients);
+		out.putAll(errorInputDeriv, firstSlots[0]);
+		out.putAll(unflattenedDeriv, firstSlots[1]);
+		out.putAll(classifierDeriv, firstSlots[2]);
 		
-		return new ParallelBackwardPass<>(errorInputDeriv.errorInputDeriv, gradients);
+		return out;
 	}
 
+	@Override
+	public I accumulateBackprop(final ParallelForwardPass<O> prevForward, final O errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final ParallelForwardPass<I> featureForward = prevForward.slice(firstSlots[0], firstSlots[1] - firstSlots[0]);
+		final ParallelForwardPass<O> flattenerForward = prevForward.slice(firstSlots[1], firstSlots[2] - firstSlots[1]);
+		final ParallelForwardPass<O> classifierForward = prevForward.slice(firstSlots[2], firstSlots[3] - firstSlots[2]);
+		
+		final O classifierDeriv = classifier.accumulateBackprop(classifierForward, errorOutputDeriv, false, accumulator.slice(firstSlots[2], firstSlots[3] - firstSlots[2]));
+		final I unflattenedDeriv = flattener.accumulateBackprop(flattenerForward, classifierDeriv, false, accumulator.slice(firstSlots[1], firstSlots[2] - firstSlots[1]));
+		
+		return featureExtractor.accumulateBackprop(featureForward, unflattenedDeriv, isFirstLayer, accumulator.slice(firstSlots[0], firstSlots[1] - firstSlots[0]));
+	}
+
+	@Override
+	public List<ParallelForwardPass<O>> parallelForwardBatch(final List<I> inputs) {
+		final List<ParallelForwardPass<I>> featureMaps = featureExtractor.parallelForwardBatch(inputs);
+		final List<ParallelForwardPass<O>> flattenedFeatures = flattener.parallelForwardBatch(ParallelForwardPass.outputs(featureMaps));
+		final List<ParallelForwardPass<O>> finalOutputs = classifier.parallelForwardBatch(ParallelForwardPass.outputs(flattenedFeatures));
+		
+		final List<ParallelForwardPass<O>> out = new ArrayList<>(inputs.size());
+		
+		for (int i = 0; i < inputs.size(); i++) {
+			final ParallelForwardPass<O> pass = new ParallelForwardPass<>(finalOutputs.get(i).output, firstSlots[3]);
+			
+			pass.putAll(featureMaps.get(i), firstSlots[0]);
+			pass.putAll(flattenedFeatures.get(i), firstSlots[1]);
+			pass.putAll(finalOutputs.get(i), firstSlots[2]);
+			out.add(pass);
+		}
+		
+		return out;
+	}
+	
+	@Override
+	public List<I> accumulateBackpropBatch(final List<ParallelForwardPass<O>> prevForwards, final List<O> errorOutputDerivs, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final List<ParallelForwardPass<I>> featureForwards = ParallelForwardPass.sliceAll(prevForwards, firstSlots[0], firstSlots[1] - firstSlots[0]);
+		final List<ParallelForwardPass<O>> flattenerForwards = ParallelForwardPass.sliceAll(prevForwards, firstSlots[1], firstSlots[2] - firstSlots[1]);
+		final List<ParallelForwardPass<O>> classifierForwards = ParallelForwardPass.sliceAll(prevForwards, firstSlots[2], firstSlots[3] - firstSlots[2]);
+		
+		final List<O> classifierDerivs = classifier.accumulateBackpropBatch(classifierForwards, errorOutputDerivs, false, accumulator.slice(firstSlots[2], firstSlots[3] - firstSlots[2]));
+		final List<I> unflattenedDerivs = flattener.accumulateBackpropBatch(flattenerForwards, classifierDerivs, false, accumulator.slice(firstSlots[1], firstSlots[2] - firstSlots[1]));
+		
+		return featureExtractor.accumulateBackpropBatch(featureForwards, unflattenedDerivs, isFirstLayer, accumulator.slice(firstSlots[0], firstSlots[1] - firstSlots[0]));
+	}
+	
+	@Override
+	public boolean usesBatchStatistics() {
+		return featureExtractor.usesBatchStatistics() || flattener.usesBatchStatistics() || classifier.usesBatchStatistics();
+	}
+	
 	@Override
 	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
-		classifier.parallelUpdate(gradients, learningRate);
-		flattener.parallelUpdate(gradients, learningRate);
-		featureExtractor.parallelUpdate(gradients, learningRate);
+		classifier.parallelUpdate(gradients.slice(firstSlots[2], firstSlots[3] - firstSlots[2]), learningRate);
+		flattener.parallelUpdate(gradients.slice(firstSlots[1], firstSlots[2] - firstSlots[1]), learningRate);
+		featureExtractor.parallelUpdate(gradients.slice(firstSlots[0], firstSlots[1] - firstSlots[0]), learningRate);
+	}
+	
+	@Override
+	public void hogwildUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		classifier.hogwildUpdate(gradients.slice(firstSlots[2], firstSlots[3] - firstSlots[2]), learningRate);
+		flattener.hogwildUpdate(gradients.slice(firstSlots[1], firstSlots[2] - firstSlots[1]), learningRate);
+		featureExtractor.hogwildUpdate(gradients.slice(firstSlots[0], firstSlots[1] - firstSlots[0]), learningRate);
+	}
+	
+	@Override
+	public boolean supportsHogwild() {
+		return featureExtractor.supportsHogwild() && flattener.supportsHogwild() && classifier.supportsHogwild();
 	}
 	
 }
@@ -1,7 +1,5 @@
 package dezzy.neuronz2.cnn.layers;
 
-import java.util.Map;
-
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
@@ -138,7 +136,7 @@ public class ConvFlattener implements ParallelLayer<Tensor3, Vector> {
 			layer.copyTo(out, l * layer.rows * layer.cols);
 		}
 		
-		return new ParallelForwardPass<>(new Vector(out), Map.of(), Map.of());
+		return new ParallelForwardPass<>(new Vector(out), 1);
 	}
 
 	@Override
@@ -159,7 +157,7 @@ public class ConvFlattener implements ParallelLayer<Tensor3, Vector> {
 			out[l] = new Matrix(vectors);
 		}
 		
-		return new ParallelBackwardPass<>(new Tensor3(out), Map.of());
+		return new ParallelBackwardPass<>(new Tensor3(out), 1);
 	}
 
 	@Override
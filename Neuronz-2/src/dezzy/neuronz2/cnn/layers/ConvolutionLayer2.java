@@ -1,15 +1,17 @@
 package dezzy.neuronz2.cnn.layers;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
+import dezzy.neuronz2.arch.IntraOpExecutor;
+import dezzy.neuronz2.arch.IntraOpLayer;
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
 import dezzy.neuronz2.arch.init.WeightInitFunc;
-import dezzy.neuronz2.arch.layers.Layer;
+import dezzy.neuronz2.arch.layers.BatchNormLayer;
+import dezzy.neuronz2.arch.optimizers.Optimizer;
+import dezzy.neuronz2.arch.optimizers.OptimizerState;
 import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Tensor3;
@@ -23,11 +25,13 @@ import dezzy.neuronz2.math.utility.DoubleApplier;
  * A convolutional layer in a convolutional neural network. Uses 3D filters 
  * ({@linkplain Tensor3 rank 3 tensors}); works on input with 1 or more channels. 
  * Multiple filters can be used, so the filters are represented as a 
- * {@linkplain Tensor4 rank 4 tensor}.
+ * {@linkplain Tensor4 rank 4 tensor}. In the parallel architecture, the filters (and the input channels, for the
+ * derivative with respect to the input) can be split across threads with
+ * {@link #setIntraOpParallelism(IntraOpExecutor, int)}.
  *
  * @author Joe Desmond
  */
-public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
+public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3>, IntraOpLayer {
 	
 	/**
 	 * 
@@ -46,14 +50,20 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 	private Vector biases;
 	
 	/**
-	 * The accumulated filter gradients from calls to {@link #backprop(Tensor3, boolean)}
+	 * The accumulated filter gradients from calls to {@link #backprop(Tensor3, boolean)}. Created by the first call and
+	 * cleared (not freed) by every update, so that gradients are summed in place
 	 */
-	private Tensor4 filterDeltas;
+	private transient Tensor4 filterDeltas;
 	
 	/**
 	 * The accumulated bias gradients from calls to {@link #backprop(Tensor3, boolean)}
 	 */
-	private Vector biasDeltas;
+	private transient Vector biasDeltas;
+	
+	/**
+	 * True if {@link #backprop(Tensor3, boolean)} has added gradients since the last update
+	 */
+	private transient boolean deltasPending = false;
 	
 	/**
 	 * The latest input to this layer (latest input to {@link #forwardPass(Tensor3)},
@@ -61,6 +71,32 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 	 */
 	private Tensor3 latestInput;
 	
+	/**
+	 * Update rule for the filters and biases. If this is null (for example; if this layer was saved
+	 * before optimizers existed), {@link Optimizer#SGD} is used
+	 */
+	private Optimizer optimizer = Optimizer.SGD;
+	
+	/**
+	 * Optimizer state for the filters, created on the first update
+	 */
+	private OptimizerState filterState = null;
+	
+	/**
+	 * Optimizer state for the biases, created on the first update
+	 */
+	private OptimizerState biasState = null;
+	
+	/**
+	 * Threads to split the work of one sample across, or null to use only the calling thread
+	 */
+	private transient IntraOpExecutor intraOp = null;
+	
+	/**
+	 * Number of ranges the work of one sample is split into
+	 */
+	private transient int intraOpDegree = 1;
+	
 	/**
 	 * Defined explicitly and used in convolutions, because {@link Matrix#convolve(Matrix, int, DoubleApplier)}
 	 * requires a functional parameter
@@ -142,9 +178,8 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 	 * layer in <code>errorOutputDeriv</code>.</li>
 	 * <li>Computes the bias gradients. There is one bias for every filter, and the bias gradient for a
 	 * filter is simply the sum of every element in the filter's layer in <code>errorOutputDeriv</code>.</li>
-	 * <li>Updates the internal filter and matrix gradients. These gradients are not propagated to the
-	 * actual filters and biases until {@link #update(double)} is called. Until then, a sum of the gradients
-	 * is kept.</li>
+	 * <li>Adds the filter and bias gradients to the internal sums, in place. These gradients are not propagated to the
+	 * actual filters and biases until {@link #update(double)} is called.</li>
 	 * <li>Checks if this is the first layer in the network (if <code>isFirstLayer</code> is set to true)
 	 * and returns immediately, since the remainder of the function calculates the derivative of the error
 	 * with respect to this layer's input. This derivative is not needed if this is the first layer;
@@ -164,102 +199,93 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 	 */
 	@Override
 	public Tensor3 backprop(final Tensor3 errorOutputDeriv, final boolean isFirstLayer) {
-		final Tensor3[] newFilterDeltas = new Tensor3[filters.dimension];
-		final double[] newBiasDeltas = new double[filters.dimension];
-		
-		// Calculate filter and bias gradients
-		for (int i = 0; i < errorOutputDeriv.dimension; i++) {
-			final Matrix derivMatrix = errorOutputDeriv.getLayer(i);
-			final Matrix[] channelGradients = new Matrix[latestInput.dimension];
-			
-			for (int m = 0; m < latestInput.dimension; m++) {
-				final Matrix channel = latestInput.getLayer(m);
-				
-				channelGradients[m] = channel.convolve(derivMatrix, 1, NON_MODIFIER);
-			}
-			
-			newFilterDeltas[i] = new Tensor3(channelGradients);
-			
-			newBiasDeltas[i] = derivMatrix.sum();
-		}
-		
-		// Update filter deltas
-		final Tensor4 filterGradient = new Tensor4(newFilterDeltas);
-		
 		if (filterDeltas == null) {
-			filterDeltas = filterGradient;
-		} else {
-			filterDeltas = filterDeltas.plus(filterGradient);
+			filterDeltas = filters.withElements(new double[filters.elementCount()], 0);
+			biasDeltas = new Vector(new double[filters.dimension]);
 		}
 		
-		// Update bias deltas
-		final Vector biasGradient = new Vector(newBiasDeltas);
-		
-		if (biasDeltas == null) {
-			biasDeltas = biasGradient;
-		} else {
-			biasDeltas = biasDeltas.plus(biasGradient);
-		}
+		addGradients(filterDeltas, biasDeltas, latestInput, errorOutputDeriv);
+		deltasPending = true;
 		
 		if (isFirstLayer) {
 			return null;
 		}
 		
+		return inputDerivative(errorOutputDeriv, latestInput.dimension);
+	}
+	
+	/**
+	 * Gives the accumulated filter and bias gradients to this layer's {@link Optimizer}, which
+	 * updates this layer's filters and biases in place. The sums are then cleared, and their buffers are kept for the
+	 * next minibatch. Does nothing if no gradients have been accumulated since the last update.
+	 * 
+	 * @param learningRate the learning rate
+	 */
+	@Override
+	public void update(final double learningRate) {
+		if (!deltasPending) {
+			return;
+		}
 		
-		// Create padded versions of the derivative matrices to compute the next derivatives with
-		final Matrix[] paddedDerivatives = new Matrix[errorOutputDeriv.dimension];
+		applyGradients(filterDeltas, biasDeltas, learningRate);
 		
-		for (int i = 0; i < paddedDerivatives.length; i++) {
-			final Matrix derivative = errorOutputDeriv.getLayer(i);
-			final Matrix filterLayer = filters.getTensor(i).getLayer(0);
-			final int padRows = filterLayer.rows - 1;
-			final int padCols = filterLayer.cols - 1;
-			
-			final Matrix padded = derivative.padZero(padRows, padCols);
-			paddedDerivatives[i] = padded;
+		filterDeltas.clear();
+		biasDeltas.clear();
+		deltasPending = false;
+	}
+	
+	@Override
+	public void setOptimizer(final Optimizer _optimizer) {
+		optimizer = _optimizer;
+		filterState = null;
+		biasState = null;
+	}
+	
+	/**
+	 * Updates the filters and biases in place with the given gradients, using this layer's {@link Optimizer}.
+	 * 
+	 * @param filterGradient gradient of the error with respect to the filters
+	 * @param biasGradient gradient of the error with respect to the biases
+	 * @param learningRate learning rate
+	 */
+	private void applyGradients(final Tensor4 filterGradient, final Vector biasGradient, final double learningRate) {
+		if (optimizer == null) {
+			optimizer = Optimizer.SGD;
 		}
 		
-		// Compute the derivative of the error with respect to this layer's input
-		final Matrix[] output = new Matrix[latestInput.dimension];		
-		
-		for (int channel = 0; channel < output.length; channel++) {
-			Matrix deltas = null;
-			
-			for (int filterIndex = 0; filterIndex < filters.dimension; filterIndex++) {
-				final Matrix derivative = paddedDerivatives[filterIndex];
-				final Matrix filter = filters.getTensor(filterIndex).getLayer(channel).rotate180();
-				
-				final Matrix convolved = derivative.convolve(filter, 1, NON_MODIFIER);
-				
-				if (deltas == null) {
-					deltas = convolved;
-				} else {
-					deltas = deltas.plus(convolved);
-				}
-			}
-			
-			output[channel] = deltas;
+		if (filterState == null) {
+			filterState = optimizer.createState(filters.elementCount());
+			biasState = optimizer.createState(biases.elementCount());
 		}
 		
-		return new Tensor3(output);
+		optimizer.update(filters, filterGradient, filterState, learningRate);
+		optimizer.update(biases, biasGradient, biasState, learningRate);
 	}
 	
 	/**
-	 * Multiplies the accumulated filter and bias gradients by the learning rate, and uses
-	 * gradient descent to update this layer's filters and biases.
+	 * Creates a new convolutional layer that computes the same function as this layer followed by the given batch normalization
+	 * layer in inference mode. Each filter and its bias are multiplied by the output channel's
+	 * {@linkplain BatchNormLayer#scales() batch normalization scale}, and the {@linkplain BatchNormLayer#shifts() shift}
+	 * is added to the bias. This layer is not modified.
 	 * 
-	 * @param learningRate the learning rate
+	 * @param batchNorm batch normalization layer that follows this layer, with one channel per filter
+	 * @return a new convolutional layer with the batch normalization folded in
 	 */
-	@Override
-	public void update(final double learningRate) {
-		final Tensor4 scaledFilterGradient = filterDeltas.transform(w -> learningRate * w);
-		final Vector scaledBiasGradient = biasDeltas.transform(w -> learningRate * w);
+	public ConvolutionLayer2 foldBatchNorm(final BatchNormLayer<Tensor3> batchNorm) {
+		final double[] scales = batchNorm.scales();
+		final double[] shifts = batchNorm.shifts();
 		
-		filters = filters.minus(scaledFilterGradient);
-		biases = biases.minus(scaledBiasGradient);
+		final Tensor3[] foldedFilters = new Tensor3[filters.dimension];
+		final double[] foldedBiases = new double[biases.dimension];
+		
+		for (int i = 0; i < filters.dimension; i++) {
+			final double scale = scales[i];
+			
+			foldedFilters[i] = filters.getTensor(i).transform(w -> w * scale);
+			foldedBiases[i] = (biases.get(i) * scale) + shifts[i];
+		}
 		
-		filterDeltas = null;
-		biasDeltas = null;
+		return new ConvolutionLayer2(new Tensor4(foldedFilters), new Vector(foldedBiases));
 	}
 	
 	/**
@@ -274,6 +300,11 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 		return biases.dimension + (filters.dimension * t.dimension * m.rows * m.cols);
 	}
 	
+	@Override
+	public List<ElementContainer<?>> parameters() {
+		return List.of(filters, biases);
+	}
+	
 	/**
 	 * Returns one because this layer is not composed of any sublayers.
 	 * 
@@ -285,64 +316,134 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 	}
 
 	@Override
-	public ParallelForwardPass<Tensor3> parallelForwardPass(final Tensor3 prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		latestInputs.put(this, prevActivations);
+	public void setIntraOpParallelism(final IntraOpExecutor executor, final int degree) {
+		intraOp = executor;
+		intraOpDegree = degree;
+	}
+	
+	@Override
+	public int intraOpDegree() {
+		return Math.max(1, intraOpDegree);
+	}
+	
+	/**
+	 * Estimates the floating point operations in one forward pass and one backward pass. The backward pass has two
+	 * convolutions of about the same size as the forward pass: one for the filter gradients, and one for the
+	 * derivative with respect to the input.
+	 * 
+	 * @param input input tensor; only its shape is used
+	 * @return about three times the multiply-adds of the forward convolutions
+	 */
+	@Override
+	public long estimateFlops(final ElementContainer<?> input) {
+		final Tensor3 tensor = (Tensor3) input;
+		final Matrix filterLayer = filters.getTensor(0).getLayer(0);
+		final int outputRows = tensor.getLayer(0).rows - filterLayer.rows + 1;
+		final int outputCols = tensor.getLayer(0).cols - filterLayer.cols + 1;
+		
+		final long forward = 2L * filters.dimension * tensor.dimension * filterLayer.rows * filterLayer.cols * outputRows * outputCols;
 		
+		return 3 * forward;
+	}
+	
+	@Override
+	public ParallelForwardPass<Tensor3> parallelForwardPass(final Tensor3 prevActivations) {
 		final Matrix[] output = new Matrix[filters.dimension];
 		
-		for (int i = 0; i < filters.dimension; i++) {
-			final Tensor3 kernel = filters.getTensor(i);
-			final Tensor3 convolved = prevActivations.convolve(kernel, 1, NON_MODIFIER);
-			final Matrix result = convolved.getLayer(0);
-			final double bias = biases.get(i);
-			
-			output[i] = result.transform(d -> d + bias);
-		}
+		IntraOpExecutor.run(intraOp, intraOpDegree, filters.dimension, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				final Tensor3 kernel = filters.getTensor(i);
+				final Tensor3 convolved = prevActivations.convolve(kernel, 1, NON_MODIFIER);
+				final Matrix result = convolved.getLayer(0);
+				final double bias = biases.get(i);
+				
+				output[i] = result.transform(d -> d + bias);
+			}
+		});
 		
 		final Tensor3 nextActivations = new Tensor3(output);
 		
-		return new ParallelForwardPass<>(nextActivations, latestInputs, Map.of());
+		final ParallelForwardPass<Tensor3> out = new ParallelForwardPass<>(nextActivations, 1);
+		out.setLatestInput(0, prevActivations);
+		
+		return out;
 	}
 
 	@Override
 	public ParallelBackwardPass<Tensor3> parallelBackprop(final ParallelForwardPass<Tensor3> prevForward, final Tensor3 errorOutputDeriv, final boolean isFirstLayer) {
-		final Map<Layer<?, ?>, List<ElementContainer<?>>> gradients = new HashMap<>();
+		final Tensor3 prevLatestInput = (Tensor3) prevForward.latestInput(0);
+		final Tensor4 filterGradient = filters.withElements(new double[filters.elementCount()], 0);
+		final Vector biasGradient = new Vector(new double[filters.dimension]);
 		
-		final Tensor3[] newFilterDeltas = new Tensor3[filters.dimension];
-		final double[] newBiasDeltas = new double[filters.dimension];
+		addGradients(filterGradient, biasGradient, prevLatestInput, errorOutputDeriv);
 		
-		final Tensor3 prevLatestInput = (Tensor3) prevForward.latestInputs.get(this);
-		
-		// Calculate filter and bias gradients
-		for (int i = 0; i < errorOutputDeriv.dimension; i++) {
-			final Matrix derivMatrix = errorOutputDeriv.getLayer(i);
-			final Matrix[] channelGradients = new Matrix[prevLatestInput.dimension];
-			
-			for (int m = 0; m < prevLatestInput.dimension; m++) {
-				final Matrix channel = prevLatestInput.getLayer(m);
-				
-				channelGradients[m] = channel.convolve(derivMatrix, 1, NON_MODIFIER);
-			}
-			
-			newFilterDeltas[i] = new Tensor3(channelGradients);
-			
-			newBiasDeltas[i] = derivMatrix.sum();
-		}
+		final Tensor3 errorInputDeriv = isFirstLayer ? null : inputDerivative(errorOutputDeriv, prevLatestInput.dimension);
 		
-		// Update filter deltas
-		final Tensor4 filterGradient = new Tensor4(newFilterDeltas);
+		final ParallelBackwardPass<Tensor3> out = new ParallelBackwardPass<>(errorInputDeriv, 1);
+		out.setGradients(0, filterGradient, biasGradient);
 		
-		// Update bias deltas
-		final Vector biasGradient = new Vector(newBiasDeltas);
+		return out;
+	}
+	
+	@Override
+	public Tensor3 accumulateBackprop(final ParallelForwardPass<Tensor3> prevForward, final Tensor3 errorOutputDeriv, final boolean isFirstLayer, final ParallelBackwardPass<?> accumulator) {
+		final Tensor3 prevLatestInput = (Tensor3) prevForward.latestInput(0);
 		
-		gradients.put(this, List.of(filterGradient, biasGradient));
+		ElementContainer<?>[] gradientList = accumulator.gradients(0);
 		
-		if (isFirstLayer) {
-			return new ParallelBackwardPass<>(null, gradients);
+		if (gradientList == null) {
+			gradientList = new ElementContainer<?>[] {filters.withElements(new double[filters.elementCount()], 0), new Vector(new double[filters.dimension])};
+			accumulator.setGradients(0, gradientList);
 		}
 		
+		addGradients((Tensor4) gradientList[0], (Vector) gradientList[1], prevLatestInput, errorOutputDeriv);
+		
+		return isFirstLayer ? null : inputDerivative(errorOutputDeriv, prevLatestInput.dimension);
+	}
+	
+	/**
+	 * Adds the filter and bias gradients of one sample to <code>filterGradient</code> and <code>biasGradient</code>, in place,
+	 * with the filters split across the intra-op threads. The gradient of each filter's channel is the convolution of the
+	 * input channel with the derivative of the error with respect to the filter's output, and the gradient of each bias is the
+	 * sum of that derivative.
+	 * 
+	 * @param filterGradient filter gradients to add to
+	 * @param biasGradient bias gradients to add to
+	 * @param input input to this layer
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 */
+	private void addGradients(final Tensor4 filterGradient, final Vector biasGradient, final Tensor3 input, final Tensor3 errorOutputDeriv) {
+		final double[] newBiasDeltas = new double[filters.dimension];
+		
+		IntraOpExecutor.run(intraOp, intraOpDegree, errorOutputDeriv.dimension, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				final Matrix derivMatrix = errorOutputDeriv.getLayer(i);
+				final Tensor3 filterSum = filterGradient.getTensor(i);
+				
+				for (int m = 0; m < input.dimension; m++) {
+					final Matrix channel = input.getLayer(m);
+					
+					filterSum.getLayer(m).addInPlace(channel.convolve(derivMatrix, 1, NON_MODIFIER));
+				}
+				
+				newBiasDeltas[i] = derivMatrix.sum();
+			}
+		});
 		
+		biasGradient.addFrom(newBiasDeltas, 0, 1);
+	}
+	
+	/**
+	 * Computes the derivative of the error with respect to this layer's input, with the input channels split across the
+	 * intra-op threads. Each layer of <code>errorOutputDeriv</code> is padded so that a full convolution can be performed, and
+	 * the derivative for each channel is the sum of the convolutions of the padded layers with the channel of each filter
+	 * (rotated 180 degrees).
+	 * 
+	 * @param errorOutputDeriv derivative of the error with respect to this layer's output
+	 * @param channels number of channels in the input to this layer
+	 * @return derivative of the error with respect to this layer's input
+	 */
+	private Tensor3 inputDerivative(final Tensor3 errorOutputDeriv, final int channels) {
 		// Create padded versions of the derivative matrices to compute the next derivatives with
 		final Matrix[] paddedDerivatives = new Matrix[errorOutputDeriv.dimension];
 		
@@ -356,42 +457,52 @@ public class ConvolutionLayer2 implements ParallelLayer<Tensor3, Tensor3> {
 			paddedDerivatives[i] = padded;
 		}
 		
-		// Compute the derivative of the error with respect to this layer's input
-		final Matrix[] output = new Matrix[prevLatestInput.dimension];		
+		final Matrix[] output = new Matrix[channels];
 		
-		for (int channel = 0; channel < output.length; channel++) {
-			Matrix deltas = null;
-			
-			for (int filterIndex = 0; filterIndex < filters.dimension; filterIndex++) {
-				final Matrix derivative = paddedDerivatives[filterIndex];
-				final Matrix filter = filters.getTensor(filterIndex).getLayer(channel).rotate180();
+		IntraOpExecutor.run(intraOp, intraOpDegree, output.length, (start, end) -> {
+			for (int channel = start; channel < end; channel++) {
+				Matrix deltas = null;
 				
-				final Matrix convolved = derivative.convolve(filter, 1, NON_MODIFIER);
-				
-				if (deltas == null) {
-					deltas = convolved;
-				} else {
-					deltas = deltas.plus(convolved);
+				for (int filterIndex = 0; filterIndex < filters.dimension; filterIndex++) {
+					final Matrix derivative = paddedDerivatives[filterIndex];
+					final Matrix filter = filters.getTensor(filterIndex).getLayer(channel).rotate180();
+					
+					final Matrix convolved = derivative.convolve(filter, 1, NON_MODIFIER);
+					
+					if (deltas == null) {
+						deltas = convolved;
+					} else {
+						deltas = deltas.plus(convolved);
+					}
 				}
+				
+				output[channel] = deltas;
 			}
-			
-			output[channel] = deltas;
-		}
+		});
 		
-		return new ParallelBackwardPass<>(new Tensor3(output), gradients);
+		return new Tensor3(output);
 	}
-
+	
 	@Override
-	public void parallelUpdate(final ParallelBackwardPass<?> gradients, double learningRate) {
-		final List<ElementContainer<?>> gradientList = gradients.gradients.get(this);
+	public void parallelUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		final ElementContainer<?>[] gradientList = gradients.gradients(0);
 		
-		final Tensor4 prevFilterDeltas = (Tensor4) gradientList.get(0);
-		final Vector prevBiasDeltas = (Vector) gradientList.get(1);
+		final Tensor4 prevFilterDeltas = (Tensor4) gradientList[0];
+		final Vector prevBiasDeltas = (Vector) gradientList[1];
 		
-		final Tensor4 scaledFilterGradient = prevFilterDeltas.transform(w -> learningRate * w);
-		final Vector scaledBiasGradient = prevBiasDeltas.transform(w -> learningRate * w);
+		applyGradients(prevFilterDeltas, prevBiasDeltas, learningRate);
+	}
+	
+	@Override
+	public void hogwildUpdate(final ParallelBackwardPass<?> gradients, final double learningRate) {
+		final ElementContainer<?>[] gradientList = gradients.gradients(0);
 		
-		filters = filters.minus(scaledFilterGradient);
-		biases = biases.minus(scaledBiasGradient);
+		filters.addScaledInPlace((Tensor4) gradientList[0], -learningRate);
+		biases.addScaledInPlace((Vector) gradientList[1], -learningRate);
+	}
+	
+	@Override
+	public boolean supportsHogwild() {
+		return optimizer == null || optimizer == Optimizer.SGD;
 	}
 }
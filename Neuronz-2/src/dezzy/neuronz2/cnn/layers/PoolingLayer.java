@@ -1,14 +1,9 @@
 package dezzy.neuronz2.cnn.layers;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
-import dezzy.neuronz2.arch.layers.Layer;
 import dezzy.neuronz2.cnn.pooling.PoolingOperation;
-import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Tensor3;
 
@@ -145,8 +140,6 @@ public class PoolingLayer implements ParallelLayer<Tensor3, Tensor3> {
 
 	@Override
 	public ParallelForwardPass<Tensor3> parallelForwardPass(final Tensor3 prevActivations) {
-		final Map<Layer<?, ?>, ElementContainer<?>> latestInputs = new HashMap<>();
-		
 		final Matrix[] output = new Matrix[prevActivations.dimension];
 		
 		for (int i = 0; i < prevActivations.dimension; i++) {
@@ -155,14 +148,15 @@ public class PoolingLayer implements ParallelLayer<Tensor3, Tensor3> {
 			output[i] = result;
 		}
 		
-		latestInputs.put(this, prevActivations);
+		final ParallelForwardPass<Tensor3> out = new ParallelForwardPass<>(new Tensor3(output), 1);
+		out.setLatestInput(0, prevActivations);
 		
-		return new ParallelForwardPass<>(new Tensor3(output), latestInputs, Map.of());
+		return out;
 	}
 
 	@Override
 	public ParallelBackwardPass<Tensor3> parallelBackprop(final ParallelForwardPass<Tensor3> prevForward, final Tensor3 errorOutputDeriv, final boolean isFirstLayer) {
-		final Tensor3 prevLatestInput = (Tensor3) prevForward.latestInputs.get(this);
+		final Tensor3 prevLatestInput = (Tensor3) prevForward.latestInput(0);
 		
 		final Matrix[] errorInputDeriv = new Matrix[errorOutputDeriv.dimension];
 		
@@ -173,7 +167,7 @@ public class PoolingLayer implements ParallelLayer<Tensor3, Tensor3> {
 			errorInputDeriv[m] = poolingOperation.backprop(input, pooled, windowRows, windowCols, rowStride, colStride);
 		}
 		
-		return new ParallelBackwardPass<>(new Tensor3(errorInputDeriv), Map.of());
+		return new ParallelBackwardPass<>(new Tensor3(errorInputDeriv), 1);
 	}
 
 	@Override
@@ -0,0 +1,232 @@
+package dezzy.neuronz2.dataio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+
+/**
+ * A memory-mapped IDX file (the format of the MNIST dataset). The file is mapped into memory instead of being read, so
+ * opening it is instant, and the operating system pages in only the parts that are used. Nothing is decoded up front:
+ * {@link #read(int, double[])} decodes one item at a time into a buffer that the caller reuses, so a dataset of any size takes
+ * no more heap than one item. Items can be read in any order (for example; the shuffled order of an epoch), and any number
+ * of threads can read at the same time.
+ * <p>
+ * Only files of unsigned bytes (type <code>0x08</code>, which is what MNIST uses) are supported. The first dimension is the
+ * number of items; the rest are the shape of each item (for example; 28 rows and 28 columns for MNIST images, or nothing
+ * for labels).
+ *
+ * @author Joe Desmond
+ */
+public final class IdxFile {
+	
+	/**
+	 * Type code of unsigned bytes
+	 */
+	private static final int UNSIGNED_BYTE = 0x08;
+	
+	/**
+	 * The contents of the file
+	 */
+	private final MappedByteBuffer data;
+	
+	/**
+	 * The position of the first item in the file (after the header)
+	 */
+	private final int offset;
+	
+	/**
+	 * The number of items
+	 */
+	public final int items;
+	
+	/**
+	 * The shape of each item (every dimension after the first)
+	 */
+	private final int[] shape;
+	
+	/**
+	 * The number of values in each item
+	 */
+	public final int itemSize;
+	
+	/**
+	 * Wraps a mapped IDX file whose header has been read.
+	 * 
+	 * @param _data contents of the file
+	 * @param _offset position of the first item
+	 * @param _items number of items
+	 * @param _shape shape of each item
+	 * @param _itemSize number of values in each item
+	 */
+	private IdxFile(final MappedByteBuffer _data, final int _offset, final int _items, final int[] _shape, final int _itemSize) {
+		data = _data;
+		offset = _offset;
+		items = _items;
+		shape = _shape;
+		itemSize = _itemSize;
+	}
+	
+	/**
+	 * Maps an IDX file into memory and reads its header.
+	 * 
+	 * @param path path to the IDX file
+	 * @return the mapped file
+	 * @throws IOException if there is a problem opening or mapping the file
+	 * @throws DataFormatException if the file is not an IDX file of unsigned bytes, has a negative size in its header, or is
+	 *             shorter than its header says
+	 */
+	public static final IdxFile open(final String path) throws IOException, DataFormatException {
+		final MappedByteBuffer data;
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new DataFormatException("IDX file is too large to map: " + path);
+			}
+			
+			// The mapping stays valid after the channel is closed
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if (data.capacity() < 4 || data.get(0) != 0 || data.get(1) != 0) {
+			throw new DataFormatException("Not an IDX file: " + path);
+		}
+		
+		if (MnistLoader.unsigned(data.get(2)) != UNSIGNED_BYTE) {
+			throw new DataFormatException("Only IDX files of unsigned bytes are supported: " + path);
+		}
+		
+		final int dimensions = MnistLoader.unsigned(data.get(3));
+		final int offset = 4 + (4 * dimensions);
+		
+		if (dimensions < 1 || data.capacity() < offset) {
+			throw new DataFormatException("IDX header is incomplete: " + path);
+		}
+		
+		final int items = data.getInt(4);
+		final int[] shape = new int[dimensions - 1];
+		long itemSize = 1;
+		
+		if (items < 0) {
+			throw new DataFormatException("IDX file has a negative number of items: " + path);
+		}
+		
+		for (int i = 0; i < shape.length; i++) {
+			shape[i] = data.getInt(8 + (4 * i));
+			
+			if (shape[i] < 0) {
+				throw new DataFormatException("IDX file has a negative size in dimension " + (i + 1) + ": " + path);
+			}
+			
+			// Anything above Integer.MAX_VALUE is too large either way, so clamping keeps the products from overflowing
+			itemSize = Math.min(itemSize * shape[i], Integer.MAX_VALUE + 1L);
+		}
+		
+		if (itemSize > Integer.MAX_VALUE) {
+			throw new DataFormatException("IDX file has items that are too large: " + path);
+		}
+		
+		// Both factors are at most Integer.MAX_VALUE, so the product fits in a long
+		if (offset + (items * itemSize) > data.capacity()) {
+			throw new DataFormatException("IDX file is shorter than its header says: " + path);
+		}
+		
+		return new IdxFile(data, offset, items, shape, (int) itemSize);
+	}
+	
+	/**
+	 * Returns the size of one dimension of each item.
+	 * 
+	 * @param dimension index of the dimension, not counting the first dimension (the number of items)
+	 * @return size of the dimension
+	 */
+	public int dimension(final int dimension) {
+		return shape[dimension];
+	}
+	
+	/**
+	 * Returns the number of dimensions of each item (zero for labels).
+	 * 
+	 * @return number of dimensions of an item
+	 */
+	public int dimensions() {
+		return shape.length;
+	}
+	
+	/**
+	 * Returns one value of an item, as an unsigned byte.
+	 * 
+	 * @param item index of the item
+	 * @param index index of the value within the item
+	 * @return value from 0 to 255
+	 * @throws IndexOutOfBoundsException if <code>item</code> or <code>index</code> is out of range
+	 */
+	public int unsignedByte(final int item, final int index) {
+		Objects.checkIndex(item, items);
+		Objects.checkIndex(index, itemSize);
+		
+		return MnistLoader.unsigned(data.get(offset + (item * itemSize) + index));
+	}
+	
+	/**
+	 * Returns the label of an item, for a file with one value per item (such as an MNIST label file).
+	 * 
+	 * @param item index of the item
+	 * @return label
+	 * @throws IndexOutOfBoundsException if <code>item</code> is out of range, or the items are empty
+	 */
+	public byte label(final int item) {
+		Objects.checkIndex(item, items);
+		Objects.checkIndex(0, itemSize);
+		
+		return data.get(offset + (item * itemSize));
+	}
+	
+	/**
+	 * Decodes an item into <code>destination</code>, with every value scaled to the range from -0.5 to 0.5 (as in
+	 * {@link MnistLoader#loadImages(String)}). A {@link dezzy.neuronz2.math.constructs.Vector} created on
+	 * <code>destination</code> sees the new values without being created again.
+	 * 
+	 * @param item index of the item
+	 * @param destination array with at least {@link #itemSize} elements
+	 * @return <code>destination</code>
+	 * @throws IndexOutOfBoundsException if <code>item</code> is out of range, or <code>destination</code> is too short
+	 */
+	public double[] read(final int item, final double[] destination) {
+		Objects.checkIndex(item, items);
+		Objects.checkFromIndexSize(0, itemSize, destination.length);
+		
+		final int start = offset + (item * itemSize);
+		
+		for (int i = 0; i < itemSize; i++) {
+			destination[i] = (MnistLoader.unsigned(data.get(start + i)) / 255.0) - 0.5;
+		}
+		
+		return destination;
+	}
+	
+	/**
+	 * Copies the raw bytes of an item into <code>destination</code>. One byte per value is an eighth of the memory of
+	 * decoded values, for callers that keep items around.
+	 * 
+	 * @param item index of the item
+	 * @param destination array with at least {@link #itemSize} elements
+	 * @return <code>destination</code>
+	 * @throws IndexOutOfBoundsException if <code>item</code> is out of range, or <code>destination</code> is too short
+	 */
+	public byte[] readBytes(final int item, final byte[] destination) {
+		Objects.checkIndex(item, items);
+		Objects.checkFromIndexSize(0, itemSize, destination.length);
+		
+		final int start = offset + (item * itemSize);
+		
+		for (int i = 0; i < itemSize; i++) {
+			destination[i] = data.get(start + i);
+		}
+		
+		return destination;
+	}
+}
@@ -1,8 +1,6 @@
 package dezzy.neuronz2.dataio;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.zip.DataFormatException;
 
 import dezzy.neuronz2.math.constructs.Matrix;
@@ -17,14 +15,10 @@ import dezzy.neuronz2.math.constructs.Tensor3;
  */
 public class MnistConvLoader {
 	
-	/**
-	 * MNIST image file identifier
-	 */
-	private static final int IMAGE_MAGIC_NUMBER = 0x803;
-	
 	/**
 	 * Loads the MNIST data from a file and returns a {@link Tensor3} array, where each tensor contains
-	 * an image. Labels for the data can be loaded with {@link MnistLoader#loadLabels(String)}.
+	 * an image. Labels for the data can be loaded with {@link MnistLoader#loadLabels(String)}. To decode images one at a
+	 * time into a reused tensor instead of loading all of them, use {@link MnistSamples}.
 	 * 
 	 * @param imagePath path to MNIST image file
 	 * @return MNIST images
@@ -32,31 +26,25 @@ public class MnistConvLoader {
 	 * @throws DataFormatException if there is a problem interpreting the data
 	 */
 	public static final Tensor3[] loadImages(final String imagePath) throws IOException, DataFormatException {		
-		byte[] file = Files.readAllBytes(Paths.get(imagePath));
+		final IdxFile file = IdxFile.open(imagePath);
 		
-		int magicNum = MnistLoader.concatenateUnsignedBytes(file[0], file[1], file[2], file[3]);
-		
-		if (magicNum != IMAGE_MAGIC_NUMBER) {
-			throw new DataFormatException("MNIST Image magic number is not equal to expected magic number!");
+		if (file.dimensions() != 2) {
+			throw new DataFormatException("MNIST Image file does not contain 2D images!");
 		}
 		
-		final int items = MnistLoader.concatenateUnsignedBytes(file[4], file[5], file[6], file[7]);
-		final int rows = MnistLoader.concatenateUnsignedBytes(file[8], file[9], file[10], file[11]);
-		final int cols = MnistLoader.concatenateUnsignedBytes(file[12], file[13], file[14], file[15]);
-		
-		final int offset = 16;
+		final int rows = file.dimension(0);
+		final int cols = file.dimension(1);
+		final double[] pixels = new double[file.itemSize];
 		
-		final Tensor3[] data = new Tensor3[items];
+		final Tensor3[] data = new Tensor3[file.items];
 		
-		for (int i = 0; i < items; i++) {
+		for (int i = 0; i < file.items; i++) {
 			final double[][] image = new double[rows][cols];
 			
+			file.read(i, pixels);
+			
 			for (int row = 0; row < rows; row++) {
-				for (int col = 0; col < cols; col++) {
-					int pixel = (row * cols) + col;
-					int pixValue = MnistLoader.unsigned(file[(pixel + offset + (i * rows * cols))]);
-					image[row][col] = (pixValue / (double)255.0) - 0.5;
-				}
+				System.arraycopy(pixels, row * cols, image[row], 0, cols);
 			}
 			
 			data[i] = new Tensor3(new Matrix(image));
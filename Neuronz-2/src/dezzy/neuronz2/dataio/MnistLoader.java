@@ -1,68 +1,37 @@
 package dezzy.neuronz2.dataio;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.zip.DataFormatException;
 
 import dezzy.neuronz2.math.constructs.Vector;
 
 /**
- * Loads MNIST handwritten image data.
+ * Loads MNIST handwritten image data. The files are read with {@link IdxFile}, and every image is decoded up front; to
+ * decode images one at a time into reused buffers instead, use {@link MnistSamples}.
  *
  * @author Joe Desmond
  */
 public final class MnistLoader {
 	
-	/**
-	 * MNIST image file identifier
-	 */
-	private static final int IMAGE_MAGIC_NUMBER = 0x803;
-	
-	/**
-	 * MNIST label file identifier
-	 */
-	private static final int LABEL_MAGIC_NUMBER = 0x801;
-	
 	/**
 	 * Loads MNIST images from a file and returns a Vector array containing each image. Each image is stored in one Vector with pixels corresponding to Vector components.
 	 * The pixel colors are grayscale, normalized doubles.
 	 * 
 	 * @param imagePath path to image file
 	 * @return MNIST images
+	 * @throws IOException if there is a problem reading the file, or if it is not an MNIST image file
 	 */
-	public static final Vector[] loadImages(final String imagePath) {
-		Vector[] data = null;
+	public static final Vector[] loadImages(final String imagePath) throws IOException {
+		final IdxFile file = open(imagePath);
 		
-		try {
-			byte[] file = Files.readAllBytes(Paths.get(imagePath));
-			int magicNum = concatenateUnsignedBytes(file[0], file[1], file[2], file[3]);
-			
-			if (magicNum != IMAGE_MAGIC_NUMBER) {
-				System.out.println("MNIST Image magic number is not equal to expected magic number!");
-			}
-			
-			int items = concatenateUnsignedBytes(file[4], file[5], file[6], file[7]);
-			int rows = concatenateUnsignedBytes(file[8], file[9], file[10], file[11]);
-			int cols = concatenateUnsignedBytes(file[12], file[13], file[14], file[15]);
-			
-			int offset = 16;
-			
-			data = new Vector[items];
-			
-			for (int i = 0; i < items; i++) {
-				double[] image = new double[rows * cols];
-				
-				for (int pixel = 0; pixel < (rows * cols); pixel++) {
-					//image[pixel] = unsigned(file[(pixel + offset + (i * rows * cols))]) > 80 ? 1.7 : -1.7;
-					int pixValue = unsigned(file[pixel + offset + (i * rows * cols)]);
-					image[pixel] = (pixValue / (double)255.0) - 0.5;
-				}
-				
-				data[i] = new Vector(image);
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (file.dimensions() != 2) {
+			throw new IOException("MNIST image file does not contain 2D images: " + imagePath);
+		}
+		
+		final Vector[] data = new Vector[file.items];
+		
+		for (int i = 0; i < file.items; i++) {
+			data[i] = new Vector(file.read(i, new double[file.itemSize]));
 		}
 		
 		return data;
@@ -73,44 +42,37 @@ public final class MnistLoader {
 	 * 
 	 * @param labelPath path to MNIST label file
 	 * @return MNIST labels
+	 * @throws IOException if there is a problem reading the file, or if it is not an MNIST label file
 	 */
-	public static final byte[] loadLabels(final String labelPath) {
-		byte[] data = null;
+	public static final byte[] loadLabels(final String labelPath) throws IOException {
+		final IdxFile file = open(labelPath);
 		
-		try {
-			byte[] file = Files.readAllBytes(Paths.get(labelPath));
-			int magicNum = concatenateUnsignedBytes(file[0], file[1], file[2], file[3]);
-			
-			if (magicNum != LABEL_MAGIC_NUMBER) {
-				System.out.println("MNIST Label magic number is not equal to expected magic number!");
-			}
-			
-			int items = concatenateUnsignedBytes(file[4], file[5], file[6], file[7]);
-			
-			int offset = 8;
-			data = new byte[items];
-			for (int i = 0; i < items; i++) {
-				data[i] = file[i + offset];
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (file.dimensions() != 0) {
+			throw new IOException("MNIST label file does not contain one label per item: " + labelPath);
+		}
+		
+		final byte[] data = new byte[file.items];
+		
+		for (int i = 0; i < file.items; i++) {
+			data[i] = file.label(i);
 		}
 		
 		return data;
 	}
 	
 	/**
-	 * Concatenates unsigned bytes into an int.
+	 * Opens an IDX file, reporting a malformed file as an {@link IOException}.
 	 * 
-	 * @param b0 first byte
-	 * @param b1 second byte
-	 * @param b2 third byte
-	 * @param b3 fourth byte
-	 * @return (first + second + third + fourth), where + is a concatenation operator
+	 * @param path path to the IDX file
+	 * @return the mapped file
+	 * @throws IOException if there is a problem reading the file, or if it is not an IDX file
 	 */
-	static final int concatenateUnsignedBytes(final byte b0, final byte b1, final byte b2, final byte b3) {
-		return (unsigned(b0) << 24) | (unsigned(b1) << 16) | (unsigned(b2) << 8) | unsigned(b3);
+	private static final IdxFile open(final String path) throws IOException {
+		try {
+			return IdxFile.open(path);
+		} catch (DataFormatException e) {
+			throw new IOException("Not an MNIST file: " + e.getMessage(), e);
+		}
 	}
 	
 	/**
@@ -0,0 +1,217 @@
+package dezzy.neuronz2.dataio;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+
+import dezzy.neuronz2.math.constructs.Matrix;
+import dezzy.neuronz2.math.constructs.Tensor3;
+import dezzy.neuronz2.math.constructs.Vector;
+
+/**
+ * MNIST images and their labels, read by index. Unlike {@link MnistLoader#loadImages(String)} and
+ * {@link MnistConvLoader#loadImages(String)}, nothing is decoded up front: the files are mapped with {@link IdxFile}, and
+ * each image is decoded when it is needed into a {@link Buffer} that the caller reuses, so the whole dataset takes no more
+ * heap than one image per buffer. Samples can be read in any order (for example; the shuffled order of an epoch).
+ * <p>
+ * Any number of threads can read at the same time, as long as each thread has its own buffers.
+ *
+ * @author Joe Desmond
+ */
+public final class MnistSamples {
+	
+	/**
+	 * Number of digits (and the length of each expected output)
+	 */
+	public static final int DIGITS = 10;
+	
+	/**
+	 * The image file
+	 */
+	private final IdxFile images;
+	
+	/**
+	 * The label file
+	 */
+	private final IdxFile labels;
+	
+	/**
+	 * One-hot expected output for each digit, shared by every sample with that digit
+	 */
+	private final Vector[] expectedOutputs = new Vector[DIGITS];
+	
+	/**
+	 * The number of samples
+	 */
+	public final int size;
+	
+	/**
+	 * Number of rows in each image
+	 */
+	public final int rows;
+	
+	/**
+	 * Number of columns in each image
+	 */
+	public final int cols;
+	
+	/**
+	 * Wraps an image file and a label file that have been checked.
+	 * 
+	 * @param _images the image file
+	 * @param _labels the label file
+	 */
+	private MnistSamples(final IdxFile _images, final IdxFile _labels) {
+		images = _images;
+		labels = _labels;
+		size = images.items;
+		rows = images.dimension(0);
+		cols = images.dimension(1);
+		
+		for (int digit = 0; digit < DIGITS; digit++) {
+			final double[] values = new double[DIGITS];
+			values[digit] = 1;
+			expectedOutputs[digit] = new Vector(values);
+		}
+	}
+	
+	/**
+	 * Maps an MNIST image file and the matching label file. Only the headers and the labels are checked; no image is decoded.
+	 * 
+	 * @param imagePath path to the MNIST image file
+	 * @param labelPath path to the MNIST label file
+	 * @return the samples
+	 * @throws IOException if there is a problem reading either file, if the files are not MNIST image and label files, if
+	 *             they have different numbers of items, or if a label is not a digit
+	 */
+	public static final MnistSamples open(final String imagePath, final String labelPath) throws IOException {
+		final IdxFile images;
+		final IdxFile labels;
+		
+		try {
+			images = IdxFile.open(imagePath);
+			labels = IdxFile.open(labelPath);
+		} catch (DataFormatException e) {
+			throw new IOException("Not an MNIST file: " + e.getMessage(), e);
+		}
+		
+		if (images.dimensions() != 2) {
+			throw new IOException("MNIST image file does not contain 2D images: " + imagePath);
+		}
+		
+		if (labels.dimensions() != 0) {
+			throw new IOException("MNIST label file does not contain one label per item: " + labelPath);
+		}
+		
+		if (images.items != labels.items) {
+			throw new IOException("MNIST image and label files have different numbers of items (" + images.items + " and " + labels.items + ")");
+		}
+		
+		for (int i = 0; i < labels.items; i++) {
+			final int label = labels.label(i);
+			
+			if (label < 0 || label >= DIGITS) {
+				throw new IOException("Label " + label + " of item " + i + " is not a digit: " + labelPath);
+			}
+		}
+		
+		return new MnistSamples(images, labels);
+	}
+	
+	/**
+	 * Returns the digit shown in an image.
+	 * 
+	 * @param index index of the sample
+	 * @return digit from 0 to 9
+	 * @throws IndexOutOfBoundsException if <code>index</code> is out of range
+	 */
+	public int digit(final int index) {
+		return labels.label(index);
+	}
+	
+	/**
+	 * Returns the expected output of a sample: a one-hot vector with a 1 at the sample's digit. The vector is shared by every
+	 * sample with the same digit, so it must not be modified.
+	 * 
+	 * @param index index of the sample
+	 * @return expected output
+	 * @throws IndexOutOfBoundsException if <code>index</code> is out of range
+	 */
+	public Vector expectedOutput(final int index) {
+		return expectedOutputs[digit(index)];
+	}
+	
+	/**
+	 * Creates a buffer to decode images into. Each thread needs its own buffers.
+	 * 
+	 * @return a new buffer
+	 */
+	public Buffer newBuffer() {
+		return new Buffer();
+	}
+	
+	/**
+	 * Space for one decoded image, as a {@link Vector} (for fully connected networks) and as a {@link Tensor3} with one
+	 * channel (for convolutional networks). The vector and the tensor are created once and overwritten by every read, so an
+	 * image returned by this buffer is only valid until the next read. {@link Vector#length} is not recalculated.
+	 * 
+	 * @author Joe Desmond
+	 */
+	public final class Buffer {
+		
+		/**
+		 * Decoded pixels, shared with {@link #vector}
+		 */
+		private final double[] pixels = new double[images.itemSize];
+		
+		/**
+		 * Vector view of {@link #pixels}
+		 */
+		private final Vector vector = new Vector(pixels);
+		
+		/**
+		 * Rows of {@link #tensor}
+		 */
+		private final double[][] tensorRows = new double[rows][cols];
+		
+		/**
+		 * Tensor with one channel, backed by {@link #tensorRows}
+		 */
+		private final Tensor3 tensor = new Tensor3(new Matrix(tensorRows));
+		
+		/**
+		 * Creates an empty buffer.
+		 */
+		private Buffer() {
+		}
+		
+		/**
+		 * Decodes an image into this buffer as a vector, with one component per pixel.
+		 * 
+		 * @param index index of the sample
+		 * @return the image, valid until the next read from this buffer
+		 * @throws IndexOutOfBoundsException if <code>index</code> is out of range
+		 */
+		public Vector vector(final int index) {
+			images.read(index, pixels);
+			
+			return vector;
+		}
+		
+		/**
+		 * Decodes an image into this buffer as a tensor with one channel.
+		 * 
+		 * @param index index of the sample
+		 * @return the image, valid until the next read from this buffer
+		 * @throws IndexOutOfBoundsException if <code>index</code> is out of range
+		 */
+		public Tensor3 tensor(final int index) {
+			images.read(index, pixels);
+			
+			for (int row = 0; row < rows; row++) {
+				System.arraycopy(pixels, row * cols, tensorRows[row], 0, cols);
+			}
+			
+			return tensor;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package dezzy.neuronz2.distributed;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A gradient codec that encodes every gradient separately, in the same number of bytes. Any range of gradients can then be
+ * encoded and decoded on its own, so {@link RingAllReduce} can sum the encoded gradients inside the ring (decoding, adding,
+ * and encoding each chunk again as it is passed on) instead of gathering every process's encoded gradients.
+ * <p>
+ * The range methods never touch any state in the codec (such as the residual of an {@link ErrorFeedbackCodec}), so they can
+ * be called from any thread.
+ *
+ * @author Joe Desmond
+ */
+public interface DenseGradientCodec extends GradientCodec {
+	
+	/**
+	 * Returns the number of bytes that one encoded gradient takes.
+	 * 
+	 * @return bytes per gradient
+	 */
+	public int bytesPerElement();
+	
+	/**
+	 * Encodes a range of gradients into a buffer, without error feedback and without a header.
+	 * 
+	 * @param values gradients to encode; not modified
+	 * @param start first index to encode
+	 * @param end last index to encode (exclusive)
+	 * @param out buffer to write the encoded gradients to, starting at its position
+	 */
+	public void encodeRange(final double[] values, final int start, final int end, final ByteBuffer out);
+	
+	/**
+	 * Decodes a range of gradients encoded by {@link #encodeRange(double[], int, int, ByteBuffer)}.
+	 * 
+	 * @param in buffer to read the encoded gradients from, starting at its position
+	 * @param values array to decode the gradients into
+	 * @param start first index to decode
+	 * @param end last index to decode (exclusive)
+	 * @param add true to add the decoded gradients to <code>values</code>, false to overwrite it
+	 */
+	public void decodeRange(final ByteBuffer in, final double[] values, final int start, final int end, final boolean add);
+}
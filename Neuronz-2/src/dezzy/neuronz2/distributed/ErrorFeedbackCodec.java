@@ -0,0 +1,80 @@
+package dezzy.neuronz2.distributed;
+
+/**
+ * A lossy gradient codec that can keep what it loses. With error feedback, the codec keeps a residual: the difference
+ * between the gradients it was asked to encode (plus the previous residual) and what the encoded gradients decode to. The
+ * residual is added to the next gradients before they are compressed, so small gradients that are dropped or rounded away
+ * are eventually sent once they add up. This keeps aggressive compression (such as {@link TopKCodec} and {@link SignCodec})
+ * from stopping a network from converging.
+ * <p>
+ * The residual is as long as the gradients, so error feedback doubles the memory used for them.
+ *
+ * @author Joe Desmond
+ */
+public abstract class ErrorFeedbackCodec implements GradientCodec {
+	
+	/**
+	 * True if the residual is kept
+	 */
+	public final boolean errorFeedback;
+	
+	/**
+	 * What has been lost by compression so far, or null if nothing has been encoded yet
+	 */
+	private double[] residual = null;
+	
+	/**
+	 * Creates a codec with or without error feedback.
+	 * 
+	 * @param _errorFeedback true to keep the residual
+	 */
+	protected ErrorFeedbackCodec(final boolean _errorFeedback) {
+		errorFeedback = _errorFeedback;
+	}
+	
+	/**
+	 * Compresses gradients, without error feedback.
+	 * 
+	 * @param gradients flattened gradients; not modified
+	 * @return encoded gradients, which can be decoded by {@link #decodeAdd(byte[], double[])}
+	 */
+	protected abstract byte[] compress(final double[] gradients);
+	
+	@Override
+	public byte[] encode(final double[] gradients) {
+		if (!errorFeedback) {
+			return compress(gradients);
+		}
+		
+		if (residual == null || residual.length != gradients.length) {
+			residual = new double[gradients.length];
+		}
+		
+		for (int i = 0; i < gradients.length; i++) {
+			residual[i] += gradients[i];
+		}
+		
+		final byte[] encoded = compress(residual);
+		
+		// residual = corrected - decoded, computed in place as -((-corrected) + decoded)
+		for (int i = 0; i < residual.length; i++) {
+			residual[i] = -residual[i];
+		}
+		
+		decodeAdd(encoded, residual);
+		
+		for (int i = 0; i < residual.length; i++) {
+			residual[i] = -residual[i];
+		}
+		
+		return encoded;
+	}
+	
+	/**
+	 * Forgets the residual. This should be done if the gradients being encoded stop being related to the earlier ones (for
+	 * example; if the network is replaced).
+	 */
+	public void resetResidual() {
+		residual = null;
+	}
+}
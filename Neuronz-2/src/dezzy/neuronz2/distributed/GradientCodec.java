@@ -0,0 +1,75 @@
+package dezzy.neuronz2.distributed;
+
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+
+/**
+ * Compresses flattened gradients before they are sent to another process. Most codecs are lossy; a codec with error
+ * feedback (see {@link ErrorFeedbackCodec}) remembers what it lost and adds it to the next gradients it encodes, so that
+ * nothing is lost over many steps.
+ * <p>
+ * Encoding may update state in the codec, so each process (and each stream of gradients within a process) needs its own
+ * codec. Decoding never changes any state, so the process that receives encoded gradients can decode them with any codec
+ * of the same kind.
+ *
+ * @author Joe Desmond
+ */
+public interface GradientCodec {
+	
+	/**
+	 * Encodes flattened gradients.
+	 * 
+	 * @param gradients flattened gradients; not modified
+	 * @return encoded gradients
+	 */
+	public byte[] encode(final double[] gradients);
+	
+	/**
+	 * Decodes gradients encoded by {@link #encode(double[])}, and adds them to <code>sum</code>.
+	 * 
+	 * @param encoded encoded gradients
+	 * @param sum array to add the decoded gradients to; must be as long as the encoded gradients
+	 * @throws IllegalArgumentException if <code>sum</code> is not the same length as the encoded gradients
+	 */
+	public void decodeAdd(final byte[] encoded, final double[] sum);
+	
+	/**
+	 * Encodes the gradients in a backward pass, through a flat copy.
+	 * 
+	 * @param gradients gradients to encode; not modified
+	 * @return encoded gradients
+	 */
+	public default byte[] encode(final ParallelBackwardPass<?> gradients) {
+		final double[] flat = new double[gradients.elementCount()];
+		gradients.copyTo(flat, 0);
+		
+		return encode(flat);
+	}
+	
+	/**
+	 * Decodes gradients encoded by {@link #encode(ParallelBackwardPass)}, and adds them to the gradients in a backward pass
+	 * with the same slots and shapes.
+	 * 
+	 * @param encoded encoded gradients
+	 * @param sum backward pass to add the decoded gradients to
+	 * @throws IllegalArgumentException if <code>sum</code> does not have the same number of gradients as the encoded gradients
+	 */
+	public default void decodeAdd(final byte[] encoded, final ParallelBackwardPass<?> sum) {
+		final double[] flat = new double[sum.elementCount()];
+		sum.copyTo(flat, 0);
+		decodeAdd(encoded, flat);
+		sum.copyFrom(flat, 0);
+	}
+	
+	/**
+	 * Checks the element count at the start of some encoded gradients.
+	 * 
+	 * @param encodedCount number of elements in the encoded gradients
+	 * @param length length of the array the gradients are being decoded into
+	 * @throws IllegalArgumentException if the lengths are different
+	 */
+	public static void checkLength(final int encodedCount, final int length) {
+		if (encodedCount != length) {
+			throw new IllegalArgumentException("Encoded gradients have " + encodedCount + " elements, but the array has " + length);
+		}
+	}
+}
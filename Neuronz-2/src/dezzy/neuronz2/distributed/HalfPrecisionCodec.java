@@ -0,0 +1,220 @@
+package dezzy.neuronz2.distributed;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends every gradient as a 16-bit float, so the encoded gradients are about four times smaller than the doubles they came
+ * from. Two formats are supported: IEEE half precision ({@link Format#FP16}), which is more precise but can only hold
+ * magnitudes from about 6e-8 to 65504, and bfloat16 ({@link Format#BF16}), which has the range of a float but only 8 bits
+ * of precision. FP16 values that are too large are clamped to the largest finite half.
+ * <p>
+ * Both formats round to the nearest representable value. Error feedback is optional; it keeps tiny FP16 gradients that
+ * would otherwise round to zero.
+ * <p>
+ * Every gradient is encoded separately, so {@link RingAllReduce} sums half precision gradients inside the ring, and each
+ * process sends only about twice the encoded gradients no matter how many processes there are.
+ *
+ * @author Joe Desmond
+ */
+public class HalfPrecisionCodec extends ErrorFeedbackCodec implements DenseGradientCodec {
+	
+	/**
+	 * A 16-bit floating point format
+	 * 
+	 * @author Joe Desmond
+	 */
+	public static enum Format {
+		
+		/**
+		 * IEEE 754 half precision: 1 sign bit, 5 exponent bits, 10 mantissa bits
+		 */
+		FP16,
+		
+		/**
+		 * bfloat16: 1 sign bit, 8 exponent bits, 7 mantissa bits (the upper half of a float)
+		 */
+		BF16
+	}
+	
+	/**
+	 * The format that gradients are sent in
+	 */
+	public final Format format;
+	
+	/**
+	 * Creates a half precision codec without error feedback.
+	 * 
+	 * @param _format 16-bit format to use
+	 */
+	public HalfPrecisionCodec(final Format _format) {
+		this(_format, false);
+	}
+	
+	/**
+	 * Creates a half precision codec.
+	 * 
+	 * @param _format 16-bit format to use
+	 * @param errorFeedback true to keep the rounding error, and add it to the next gradients
+	 */
+	public HalfPrecisionCodec(final Format _format, final boolean errorFeedback) {
+		super(errorFeedback);
+		format = _format;
+	}
+	
+	@Override
+	protected byte[] compress(final double[] gradients) {
+		final ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + (gradients.length * Short.BYTES));
+		out.putInt(gradients.length);
+		encodeRange(gradients, 0, gradients.length, out);
+		
+		return out.array();
+	}
+	
+	@Override
+	public void decodeAdd(final byte[] encoded, final double[] sum) {
+		final ByteBuffer in = ByteBuffer.wrap(encoded);
+		GradientCodec.checkLength(in.getInt(), sum.length);
+		decodeRange(in, sum, 0, sum.length, true);
+	}
+	
+	@Override
+	public int bytesPerElement() {
+		return Short.BYTES;
+	}
+	
+	@Override
+	public void encodeRange(final double[] values, final int start, final int end, final ByteBuffer out) {
+		if (format == Format.FP16) {
+			for (int i = start; i < end; i++) {
+				out.putShort(toHalf((float) values[i]));
+			}
+		} else {
+			for (int i = start; i < end; i++) {
+				out.putShort(toBFloat16((float) values[i]));
+			}
+		}
+	}
+	
+	@Override
+	public void decodeRange(final ByteBuffer in, final double[] values, final int start, final int end, final boolean add) {
+		if (format == Format.FP16) {
+			for (int i = start; i < end; i++) {
+				final double value = fromHalf(in.getShort());
+				values[i] = add ? (values[i] + value) : value;
+			}
+		} else {
+			for (int i = start; i < end; i++) {
+				final double value = fromBFloat16(in.getShort());
+				values[i] = add ? (values[i] + value) : value;
+			}
+		}
+	}
+	
+	/**
+	 * Converts a float to IEEE half precision, rounding to the nearest half (ties to even). Magnitudes that are too large
+	 * become the largest finite half.
+	 * 
+	 * @param value float to convert
+	 * @return bits of the half
+	 */
+	public static short toHalf(final float value) {
+		final int bits = Float.floatToRawIntBits(value);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int floatExponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+		
+		if (floatExponent == 0xFF) {
+			// Infinity stays infinity, and NaN stays NaN
+			return (short) (sign | 0x7C00 | ((mantissa != 0) ? 0x200 : 0));
+		}
+		
+		final int exponent = floatExponent - 127 + 15;
+		
+		if (exponent >= 31) {
+			return (short) (sign | 0x7BFF);
+		}
+		
+		if (exponent <= 0) {
+			// Subnormal half, or zero
+			if (exponent < -10) {
+				return (short) sign;
+			}
+			
+			mantissa |= 0x800000;
+			final int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			final int remainder = mantissa & ((1 << shift) - 1);
+			final int halfway = 1 << (shift - 1);
+			
+			if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+				half++;
+			}
+			
+			return (short) (sign | half);
+		}
+		
+		int half = (exponent << 10) | (mantissa >> 13);
+		final int remainder = mantissa & 0x1FFF;
+		
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+			half++;
+		}
+		
+		// Rounding up may have carried into the exponent and made the half infinite
+		if (half >= 0x7C00) {
+			half = 0x7BFF;
+		}
+		
+		return (short) (sign | half);
+	}
+	
+	/**
+	 * Converts an IEEE half to a float, exactly.
+	 * 
+	 * @param half bits of the half
+	 * @return the same value as a float
+	 */
+	public static float fromHalf(final short half) {
+		final int bits = half & 0xFFFF;
+		final int sign = (bits & 0x8000) << 16;
+		final int exponent = (bits >>> 10) & 0x1F;
+		final int mantissa = bits & 0x3FF;
+		
+		if (exponent == 0) {
+			final float magnitude = mantissa * 0x1p-24f;
+			return (sign == 0) ? magnitude : -magnitude;
+		}
+		
+		if (exponent == 31) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+	
+	/**
+	 * Converts a float to bfloat16, rounding to the nearest value (ties to even).
+	 * 
+	 * @param value float to convert
+	 * @return bits of the bfloat16
+	 */
+	public static short toBFloat16(final float value) {
+		final int bits = Float.floatToRawIntBits(value);
+		
+		if (Float.isNaN(value)) {
+			return (short) ((bits >>> 16) | 0x40);
+		}
+		
+		return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+	}
+	
+	/**
+	 * Converts a bfloat16 to a float, exactly.
+	 * 
+	 * @param bfloat16 bits of the bfloat16
+	 * @return the same value as a float
+	 */
+	public static float fromBFloat16(final short bfloat16) {
+		return Float.intBitsToFloat((bfloat16 & 0xFFFF) << 16);
+	}
+}
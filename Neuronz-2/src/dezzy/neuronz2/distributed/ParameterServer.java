@@ -0,0 +1,630 @@
+package dezzy.neuronz2.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Holds the authoritative parameters of a network for asynchronous multi-process training. Worker processes (see
+ * {@link ParameterServerWorker}) pull the current parameters, compute gradients on their own data, and push the gradients
+ * back without waiting for each other. The server applies every accepted push with the optimizer of each layer, through
+ * {@link ParallelLayer#parallelUpdate(ParallelBackwardPass, double)}.
+ * <p>
+ * The parameters are split into one shard per layer with learnable parameters (in the order given by
+ * {@link ParallelLayer#pipelineStages()}), and each shard has its own lock. A push is applied one shard at a time, so pushes
+ * from different workers can update different layers at the same time, and a pull only waits for the layer it is reading.
+ * Every layer with learnable parameters must have gradients of the same shapes as its parameters, and no state besides
+ * them (for example; {@link dezzy.neuronz2.ann.layers.DenseLayer} and {@link dezzy.neuronz2.cnn.layers.ConvolutionLayer2},
+ * but not {@link dezzy.neuronz2.arch.layers.BatchNormLayer}, whose running statistics are not gradients and never reach the
+ * server). Networks with other layers are rejected by the constructor.
+ * <p>
+ * The server counts accepted pushes as the version of the parameters. A push carries the version that its gradients were
+ * computed from, and it is rejected if more than <code>stalenessBound</code> other pushes have been accepted since then. A
+ * bound of zero only accepts gradients computed from the newest parameters. A push reserves its version (atomically, with
+ * the staleness check) before its gradients are applied, so concurrent pushes cannot all pass the check against the same
+ * version. A pull reports the number of pushes that had been completely applied when it started, which never overstates how
+ * new the parameters it reads are.
+ * <p>
+ * An exception while accepting or serving a worker (other than a worker disconnecting) does not stop the server, but it is
+ * recorded: {@link #failures()} returns the recorded exceptions, {@link #throughputReport()} counts them, and
+ * {@link #awaitWorkers(int)} and {@link #checkFailures()} throw them.
+ * <p>
+ * The server can be run as its own process with {@link #main(String[])}, or inside another process.
+ *
+ * @author Joe Desmond
+ */
+public class ParameterServer implements Closeable {
+	
+	/**
+	 * Request to read the parameters
+	 */
+	static final byte PULL = 1;
+	
+	/**
+	 * Request to apply gradients
+	 */
+	static final byte PUSH = 2;
+	
+	/**
+	 * Sent by a worker when it is finished
+	 */
+	static final byte DONE = 3;
+	
+	/**
+	 * Number of doubles sent or received at a time
+	 */
+	static final int SEGMENT_SIZE = 8192;
+	
+	/**
+	 * The network being trained
+	 */
+	public final ParallelLayer<?, ?> layer;
+	
+	/**
+	 * Learning rate used for every push
+	 */
+	public final double learningRate;
+	
+	/**
+	 * The greatest number of pushes that may be accepted between the pull that a push's gradients were computed from and the push itself
+	 */
+	public final int stalenessBound;
+	
+	/**
+	 * One shard per layer with learnable parameters
+	 */
+	private final List<Shard> shards = new ArrayList<>();
+	
+	/**
+	 * Total number of parameters in every shard
+	 */
+	private final int parameterCount;
+	
+	/**
+	 * Accepts connections from workers
+	 */
+	private final ServerSocket server;
+	
+	/**
+	 * Number of pushes that have been accepted (including pushes that are still being applied)
+	 */
+	private final AtomicLong version = new AtomicLong(0);
+	
+	/**
+	 * Number of accepted pushes that have been completely applied
+	 */
+	private final AtomicLong applied = new AtomicLong(0);
+	
+	/**
+	 * Number of pulls that have been served
+	 */
+	private final AtomicLong pulls = new AtomicLong(0);
+	
+	/**
+	 * Number of pushes that were rejected because they were too stale
+	 */
+	private final AtomicLong rejected = new AtomicLong(0);
+	
+	/**
+	 * Number of bytes received from workers
+	 */
+	private final AtomicLong bytesIn = new AtomicLong(0);
+	
+	/**
+	 * Number of bytes sent to workers
+	 */
+	private final AtomicLong bytesOut = new AtomicLong(0);
+	
+	/**
+	 * Exceptions thrown while accepting or serving workers, in the order that they were recorded
+	 */
+	private final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Released once for every worker that finishes or disconnects
+	 */
+	private final Semaphore finished = new Semaphore(0);
+	
+	/**
+	 * Time at which the server started, from {@link System#nanoTime()}
+	 */
+	private final long startTime;
+	
+	/**
+	 * Creates a parameter server for the given network and starts listening for workers.
+	 * 
+	 * @param _layer network to train; its parameters are updated in place
+	 * @param port port to listen on
+	 * @param _learningRate learning rate used for every push
+	 * @param _stalenessBound the greatest number of pushes that may be accepted between the pull that a push's gradients were
+	 * 			computed from and the push itself
+	 * @throws IOException if the server cannot listen on <code>port</code>
+	 * @throws UnsupportedOperationException if a layer with learnable parameters cannot be a shard (see {@link #shardLayers(ParallelLayer)})
+	 */
+	public ParameterServer(final ParallelLayer<?, ?> _layer, final int port, final double _learningRate, final int _stalenessBound) throws IOException {
+		layer = _layer;
+		learningRate = _learningRate;
+		stalenessBound = _stalenessBound;
+		
+		final List<ParallelLayer<?, ?>> parts = shardLayers(layer);
+		int count = 0;
+		
+		for (int i = 0; i < parts.size(); i++) {
+			final Shard shard = new Shard(parts.get(i));
+			shards.add(shard);
+			count += shard.elementCount;
+		}
+		
+		parameterCount = count;
+		
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		
+		startTime = System.nanoTime();
+		
+		final Thread acceptor = new Thread(this::acceptWorkers, "ParameterServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * Returns the layers of a network that have learnable parameters, in the order that their gradients appear in a
+	 * {@link ParallelBackwardPass} for the whole network. These are the shards of a parameter server. A shard must be a
+	 * single layer, and its {@linkplain ParallelLayer#state() state} must be exactly its parameters: the server only receives
+	 * gradients of the parameters, so any other state (such as running statistics) would never be updated.
+	 * 
+	 * @param layer network
+	 * @return layers with learnable parameters
+	 * @throws UnsupportedOperationException if a layer with learnable parameters has several sublayers, or state besides its parameters
+	 */
+	static List<ParallelLayer<?, ?>> shardLayers(final ParallelLayer<?, ?> layer) {
+		final List<ParallelLayer<?, ?>> stages = layer.pipelineStages();
+		final List<ParallelLayer<?, ?>> out = new ArrayList<>();
+		
+		for (int i = 0; i < stages.size(); i++) {
+			final ParallelLayer<?, ?> stage = stages.get(i);
+			
+			if (stage.parameterCount() != 0) {
+				if (stage.sublayers() != 1) {
+					throw new UnsupportedOperationException(stage.getClass().getSimpleName() + " has several sublayers, and cannot be a parameter server shard");
+				}
+				
+				if (!sameTensors(stage.state(), stage.parameters())) {
+					throw new UnsupportedOperationException(stage.getClass().getSimpleName() + " has state besides its learnable parameters, and cannot be a parameter server shard");
+				}
+				
+				out.add(stage);
+			}
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Returns true if two lists hold the same tensors with the same shapes, in the same order. Layers may return new wrappers
+	 * around the same data from {@link ParallelLayer#state()}, so tensors are compared by size.
+	 * 
+	 * @param state state of a layer
+	 * @param parameters learnable parameters of the layer
+	 * @return true if the state is the parameters
+	 */
+	private static boolean sameTensors(final List<ElementContainer<?>> state, final List<ElementContainer<?>> parameters) {
+		if (state.size() != parameters.size()) {
+			return false;
+		}
+		
+		for (int i = 0; i < state.size(); i++) {
+			if (state.get(i).elementCount() != parameters.get(i).elementCount()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Waits until the given number of workers have finished or disconnected, and then throws any failure that the server recorded.
+	 * 
+	 * @param count number of workers to wait for
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 * @throws IOException if the server failed while accepting or serving a worker (see {@link #checkFailures()})
+	 */
+	public void awaitWorkers(final int count) throws InterruptedException, IOException {
+		finished.acquire(count);
+		checkFailures();
+	}
+	
+	/**
+	 * Returns every exception that was thrown while accepting or serving workers, in the order that they were recorded.
+	 * 
+	 * @return recorded failures; empty if there were none
+	 */
+	public List<Exception> failures() {
+		return new ArrayList<>(failures);
+	}
+	
+	/**
+	 * Throws an exception if the server failed while accepting or serving a worker. The first failure is the cause, and the
+	 * others are suppressed.
+	 * 
+	 * @throws IOException if any failure was recorded
+	 */
+	public void checkFailures() throws IOException {
+		final List<Exception> recorded = failures();
+		
+		if (recorded.isEmpty()) {
+			return;
+		}
+		
+		final IOException out = new IOException("The parameter server failed " + recorded.size() + " time(s) while serving workers", recorded.get(0));
+		
+		for (int i = 1; i < recorded.size(); i++) {
+			out.addSuppressed(recorded.get(i));
+		}
+		
+		throw out;
+	}
+	
+	/**
+	 * Returns the number of pushes that have been accepted, which is the version of the parameters.
+	 * 
+	 * @return number of accepted pushes
+	 */
+	public long version() {
+		return version.get();
+	}
+	
+	/**
+	 * Returns the number of pushes that were rejected because they were too stale.
+	 * 
+	 * @return number of rejected pushes
+	 */
+	public long rejectedPushes() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Describes the number of pushes and pulls served so far, the number of failures, and the push, pull, and network throughput
+	 * since the server started.
+	 * 
+	 * @return throughput report
+	 */
+	public String throughputReport() {
+		final double seconds = (System.nanoTime() - startTime) / 1e9;
+		final long pushes = version.get();
+		final long pullCount = pulls.get();
+		final long rejectedCount = rejected.get();
+		
+		return String.format("%d pushes (%.1f/s), %d rejected, %d pulls (%.1f/s), %d failed, %.1f MB/s in, %.1f MB/s out",
+				pushes, pushes / seconds, rejectedCount, pullCount, pullCount / seconds, failures.size(),
+				bytesIn.get() / seconds / 1e6, bytesOut.get() / seconds / 1e6);
+	}
+	
+	/**
+	 * Accepts workers until the server is closed, and serves each one on its own thread. Failures are recorded.
+	 */
+	private void acceptWorkers() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				
+				final Thread handler = new Thread(() -> serve(socket), "ParameterServer-" + socket.getRemoteSocketAddress());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (SocketException e) {
+				// The server was closed
+			} catch (IOException e) {
+				failures.add(e);
+			}
+		}
+	}
+	
+	/**
+	 * Serves requests from one worker until it finishes or disconnects. Failures (including exceptions thrown by a layer
+	 * while applying gradients) are recorded, and end the connection.
+	 * 
+	 * @param socket connection to the worker
+	 */
+	private void serve(final Socket socket) {
+		try (socket) {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			final ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE * Double.BYTES);
+			final double[] flat = new double[parameterCount];
+			
+			// Tell the worker the size of each shard, so it can check that it has the same network
+			out.writeInt(shards.size());
+			
+			for (int i = 0; i < shards.size(); i++) {
+				out.writeInt(shards.get(i).elementCount);
+			}
+			
+			out.flush();
+			
+			while (true) {
+				final byte request = in.readByte();
+				
+				if (request == PULL) {
+					// Every push counted here is already in the parameters; later pushes may or may not be
+					out.writeLong(applied.get());
+					int index = 0;
+					
+					for (int i = 0; i < shards.size(); i++) {
+						index = shards.get(i).read(flat, index);
+					}
+					
+					writeDoubles(out, flat, buffer);
+					out.flush();
+					
+					pulls.incrementAndGet();
+					bytesOut.addAndGet(Long.BYTES + (long) parameterCount * Double.BYTES);
+				} else if (request == PUSH) {
+					final long baseVersion = in.readLong();
+					readDoubles(in, flat, buffer);
+					bytesIn.addAndGet(Long.BYTES + (long) parameterCount * Double.BYTES);
+					
+					final boolean accepted = push(flat, baseVersion);
+					
+					out.writeBoolean(accepted);
+					out.writeLong(version.get());
+					out.flush();
+				} else if (request == DONE) {
+					break;
+				} else {
+					throw new IOException("Unknown request: " + request);
+				}
+			}
+		} catch (EOFException e) {
+			// The worker disconnected without saying it was done
+		} catch (IOException | RuntimeException e) {
+			failures.add(e);
+		} finally {
+			finished.release();
+		}
+	}
+	
+	/**
+	 * Applies flattened gradients to every shard, unless they are too stale.
+	 * 
+	 * @param gradients flattened gradients of every shard
+	 * @param baseVersion version of the parameters the gradients were computed from
+	 * @return true if the gradients were applied
+	 */
+	private boolean push(final double[] gradients, final long baseVersion) {
+		long current;
+		
+		do {
+			current = version.get();
+			
+			if (current - baseVersion > stalenessBound) {
+				rejected.incrementAndGet();
+				return false;
+			}
+		} while (!version.compareAndSet(current, current + 1));
+		
+		int index = 0;
+		
+		for (int i = 0; i < shards.size(); i++) {
+			index = shards.get(i).apply(gradients, index);
+		}
+		
+		applied.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Writes an array in segments.
+	 * 
+	 * @param out stream to write to
+	 * @param data array to write
+	 * @param buffer buffer for one segment
+	 * @throws IOException if there is a problem writing
+	 */
+	static void writeDoubles(final DataOutputStream out, final double[] data, final ByteBuffer buffer) throws IOException {
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		
+		for (int segment = 0; segment < data.length; segment += SEGMENT_SIZE) {
+			final int length = Math.min(SEGMENT_SIZE, data.length - segment);
+			
+			doubles.clear();
+			doubles.put(data, segment, length);
+			out.write(buffer.array(), 0, length * Double.BYTES);
+		}
+	}
+	
+	/**
+	 * Reads an array in segments.
+	 * 
+	 * @param in stream to read from
+	 * @param data array to fill
+	 * @param buffer buffer for one segment
+	 * @throws IOException if there is a problem reading
+	 */
+	static void readDoubles(final DataInputStream in, final double[] data, final ByteBuffer buffer) throws IOException {
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		
+		for (int segment = 0; segment < data.length; segment += SEGMENT_SIZE) {
+			final int length = Math.min(SEGMENT_SIZE, data.length - segment);
+			
+			in.readFully(buffer.array(), 0, length * Double.BYTES);
+			doubles.clear();
+			doubles.get(data, segment, length);
+		}
+	}
+	
+	/**
+	 * Stops accepting workers. Workers that are already connected are served until they finish.
+	 * 
+	 * @throws IOException if there is a problem closing the server socket
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+	
+	/**
+	 * Runs a parameter server as its own process. The network is loaded from a file, trained until the given number of workers
+	 * have finished, and then saved back to the same file. The throughput is printed every ten seconds. If the server failed
+	 * while serving a worker, the failure is thrown and the network is not saved.
+	 * <p>
+	 * Arguments: <code>&lt;network file&gt; &lt;port&gt; &lt;learning rate&gt; &lt;staleness bound&gt; &lt;workers&gt;</code>
+	 * 
+	 * @param args command line arguments
+	 * @throws IOException if the network cannot be loaded or saved, the server cannot listen on the port, or the server failed
+	 * 			while serving a worker
+	 * @throws ClassNotFoundException if the network file contains an unknown class
+	 * @throws InterruptedException if the main thread is interrupted while waiting for the workers
+	 * @throws UnsupportedOperationException if the network cannot be trained with a parameter server
+	 */
+	public static void main(final String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+		if (args.length != 5) {
+			System.err.println("Usage: ParameterServer <network file> <port> <learning rate> <staleness bound> <workers>");
+			System.exit(1);
+		}
+		
+		final String path = args[0];
+		final ParallelLayer<?, ?> network = ParallelLayer.loadFrom(path);
+		final int workers = Integer.parseInt(args[4]);
+		
+		try (ParameterServer server = new ParameterServer(network, Integer.parseInt(args[1]), Double.parseDouble(args[2]), Integer.parseInt(args[3]))) {
+			System.out.println("Serving " + server.parameterCount + " parameters in " + server.shards.size() + " shards");
+			
+			int waitedFor = 0;
+			
+			while (waitedFor < workers) {
+				if (server.finished.tryAcquire(10, TimeUnit.SECONDS)) {
+					waitedFor++;
+				} else {
+					System.out.println(server.throughputReport());
+				}
+			}
+			
+			System.out.println(server.throughputReport());
+			server.checkFailures();
+		}
+		
+		ParallelLayer.saveAs(network, path);
+	}
+	
+	/**
+	 * The parameters of one layer, with a lock so that pushes and pulls see whole updates
+	 * 
+	 * @author Joe Desmond
+	 */
+	private class Shard {
+		
+		/**
+		 * The layer that owns the parameters
+		 */
+		final ParallelLayer<?, ?> part;
+		
+		/**
+		 * The layer's parameters
+		 */
+		final List<ElementContainer<?>> parameters;
+		
+		/**
+		 * Gradient buffers, in the same shapes as {@link #parameters}; guarded by {@link #lock}
+		 */
+		final ParallelBackwardPass<?> gradients;
+		
+		/**
+		 * Number of parameters in the layer
+		 */
+		final int elementCount;
+		
+		/**
+		 * Read by pulls, written by pushes
+		 */
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		
+		/**
+		 * Creates a shard for the given layer.
+		 * 
+		 * @param _part layer with learnable parameters
+		 */
+		Shard(final ParallelLayer<?, ?> _part) {
+			part = _part;
+			parameters = part.parameters();
+			elementCount = part.parameterCount();
+			
+			final ElementContainer<?>[] buffers = new ElementContainer<?>[parameters.size()];
+			
+			for (int i = 0; i < buffers.length; i++) {
+				final ElementContainer<?> parameter = parameters.get(i);
+				buffers[i] = (ElementContainer<?>) parameter.withElements(new double[parameter.elementCount()], 0);
+			}
+			
+			gradients = new ParallelBackwardPass<>(null, 1);
+			gradients.setGradients(0, buffers);
+		}
+		
+		/**
+		 * Copies the parameters into a flat array.
+		 * 
+		 * @param array array to copy into
+		 * @param index index of the first parameter in <code>array</code>
+		 * @return index after the last parameter
+		 */
+		int read(final double[] array, final int index) {
+			lock.readLock().lock();
+			
+			try {
+				int i = index;
+				
+				for (int p = 0; p < parameters.size(); p++) {
+					parameters.get(p).copyTo(array, i);
+					i += parameters.get(p).elementCount();
+				}
+				
+				return i;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Updates the parameters with flattened gradients.
+		 * 
+		 * @param array array with the flattened gradients
+		 * @param index index of the first gradient in <code>array</code>
+		 * @return index after the last gradient
+		 */
+		int apply(final double[] array, final int index) {
+			lock.writeLock().lock();
+			
+			try {
+				gradients.copyFrom(array, index);
+				part.parallelUpdate(gradients, learningRate);
+				
+				return index + elementCount;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package dezzy.neuronz2.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
+
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ForwardPassResult;
+import dezzy.neuronz2.arch.GradientAccumulator;
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.error.CompleteErrorFunc;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+
+/**
+ * Trains a local replica of a network against a {@link ParameterServer}. The worker computes the summed gradients of each
+ * minibatch with its replica, and pushes them to the server on a separate thread while it computes the next minibatch, so
+ * communication overlaps computation. The replica is never updated locally; instead, the worker pulls the server's
+ * parameters whenever its copy is about to become too stale for the server to accept its pushes, or when a push has been
+ * rejected. To tell when that is, the worker measures how far the server's version advances during one of its minibatches:
+ * this counts its own push and the pushes of every other worker, however many there are and however fast they run.
+ * <p>
+ * The worker and the server must have the same network (for example; loaded from the same file). Only the parameters are
+ * sent, so every layer with learnable parameters must have gradients of the same shapes as its parameters, as described in
+ * {@link ParameterServer}.
+ *
+ * @author Joe Desmond
+ * @param <I> input tensor type
+ * @param <O> output tensor type
+ */
+public class ParameterServerWorker<I extends ElementContainer<I>, O extends ElementContainer<O>> implements Closeable {
+	
+	/**
+	 * How long to keep trying to connect to the server, in milliseconds
+	 */
+	private static final long CONNECT_TIMEOUT = 60_000;
+	
+	/**
+	 * The local replica of the network
+	 */
+	public final ParallelLayer<I, O> layer;
+	
+	/**
+	 * Error function to use for calculating gradients
+	 */
+	public final CompleteErrorFunc<O> errorFunc;
+	
+	/**
+	 * Layers with learnable parameters, in the same order as the server's shards
+	 */
+	private final List<ParallelLayer<?, ?>> shardLayers;
+	
+	/**
+	 * The first slot of each layer in {@link #shardLayers}, in a backward pass through the whole network
+	 */
+	private final int[] shardSlots;
+	
+	/**
+	 * Total number of parameters in every shard
+	 */
+	private final int parameterCount;
+	
+	/**
+	 * Connection to the server
+	 */
+	private final Socket socket;
+	
+	/**
+	 * Stream to the server; used by the {@link #sender} thread during an epoch
+	 */
+	private final DataOutputStream out;
+	
+	/**
+	 * Stream from the server; used by the {@link #sender} thread during an epoch
+	 */
+	private final DataInputStream in;
+	
+	/**
+	 * Talks to the server, so that pushes overlap the computation of the next minibatch
+	 */
+	private final ExecutorService sender;
+	
+	/**
+	 * Two gradient accumulators: one for the minibatch being computed, and one for the minibatch being pushed
+	 */
+	private final List<GradientAccumulator<I, O>> accumulators = new ArrayList<>(2);
+	
+	/**
+	 * Orders the samples in each epoch
+	 */
+	private final Random random;
+	
+	/**
+	 * Flattened parameters or gradients, sent to or received from the server
+	 */
+	private final double[] flat;
+	
+	/**
+	 * Bytes of the segment being sent or received
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(ParameterServer.SEGMENT_SIZE * Double.BYTES);
+	
+	/**
+	 * Version of the parameters in the local replica
+	 */
+	private long localVersion = 0;
+	
+	/**
+	 * Number of pushes the server has rejected
+	 */
+	private long rejected = 0;
+	
+	/**
+	 * The server's version in the reply to the latest push, or -1 before the first reply
+	 */
+	private long serverVersion = -1;
+	
+	/**
+	 * Estimated number of pushes the server accepts (from this worker and all the others) while this worker computes one
+	 * minibatch. Starts at one, for this worker's own push
+	 */
+	private double advance = 1;
+	
+	/**
+	 * Connects to a parameter server and pulls its parameters into the given replica.
+	 * 
+	 * @param _layer local replica of the server's network; its parameters are overwritten
+	 * @param _errorFunc error function to use for calculating gradients
+	 * @param server address of the server
+	 * @param _random used to shuffle the samples in each epoch
+	 * @throws IOException if the worker cannot connect to the server, or the server has a different network
+	 */
+	public ParameterServerWorker(final ParallelLayer<I, O> _layer, final CompleteErrorFunc<O> _errorFunc, final InetSocketAddress server, final Random _random) throws IOException {
+		layer = _layer;
+		errorFunc = _errorFunc;
+		random = _random;
+		
+		shardLayers = ParameterServer.shardLayers(layer);
+		shardSlots = new int[shardLayers.size()];
+		
+		final List<ParallelLayer<?, ?>> stages = layer.pipelineStages();
+		int slot = 0;
+		int shard = 0;
+		int count = 0;
+		
+		for (int i = 0; i < stages.size(); i++) {
+			if (shard < shardLayers.size() && stages.get(i) == shardLayers.get(shard)) {
+				shardSlots[shard++] = slot;
+				count += stages.get(i).parameterCount();
+			}
+			
+			slot += stages.get(i).sublayers();
+		}
+		
+		parameterCount = count;
+		flat = new double[parameterCount];
+		
+		for (int i = 0; i < 2; i++) {
+			accumulators.add(new GradientAccumulator<>(layer, errorFunc));
+		}
+		
+		socket = connect(server);
+		socket.setTcpNoDelay(true);
+		
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		
+		final int serverShards = in.readInt();
+		
+		if (serverShards != shardLayers.size()) {
+			socket.close();
+			throw new IOException("The server has " + serverShards + " shards, but the local network has " + shardLayers.size());
+		}
+		
+		for (int i = 0; i < serverShards; i++) {
+			final int serverCount = in.readInt();
+			
+			if (serverCount != shardLayers.get(i).parameterCount()) {
+				socket.close();
+				throw new IOException("Shard " + i + " has " + serverCount + " parameters on the server, but " + shardLayers.get(i).parameterCount() + " locally");
+			}
+		}
+		
+		sender = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "ParameterServerWorker-sender");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		
+		pull();
+	}
+	
+	/**
+	 * Replaces the parameters of the local replica with the server's parameters. Must not be called while an epoch is being trained.
+	 * 
+	 * @throws IOException if there is a problem communicating with the server
+	 */
+	public void pull() throws IOException {
+		out.writeByte(ParameterServer.PULL);
+		out.flush();
+		
+		localVersion = in.readLong();
+		ParameterServer.readDoubles(in, flat, buffer);
+		
+		int index = 0;
+		
+		for (int i = 0; i < shardLayers.size(); i++) {
+			final List<ElementContainer<?>> parameters = shardLayers.get(i).parameters();
+			
+			for (int p = 0; p < parameters.size(); p++) {
+				parameters.get(p).copyFrom(flat, index);
+				index += parameters.get(p).elementCount();
+			}
+		}
+	}
+	
+	/**
+	 * Sends summed gradients to the server.
+	 * 
+	 * @param gradients gradients of the whole network
+	 * @param baseVersion version of the parameters the gradients were computed from
+	 * @return the server's reply
+	 * @throws IOException if there is a problem communicating with the server
+	 */
+	private PushReply push(final ParallelBackwardPass<?> gradients, final long baseVersion) throws IOException {
+		int index = 0;
+		
+		for (int i = 0; i < shardLayers.size(); i++) {
+			final ParallelBackwardPass<?> shardGradients = gradients.slice(shardSlots[i], 1);
+			final int count = shardLayers.get(i).parameterCount();
+			
+			if (shardGradients.elementCount() != count) {
+				throw new UnsupportedOperationException(shardLayers.get(i).getClass().getSimpleName() + " has gradients of different shapes than its parameters, and cannot be trained with a parameter server");
+			}
+			
+			shardGradients.copyTo(flat, index);
+			index += count;
+		}
+		
+		out.writeByte(ParameterServer.PUSH);
+		out.writeLong(baseVersion);
+		ParameterServer.writeDoubles(out, flat, buffer);
+		out.flush();
+		
+		final boolean accepted = in.readBoolean();
+		final long serverVersion = in.readLong();
+		
+		return new PushReply(accepted, serverVersion);
+	}
+	
+	/**
+	 * Trains the server's network for one epoch on this worker's data. The learning rate is set by the server.
+	 * 
+	 * @param inputs training inputs
+	 * @param expectedOutputs expected output for each training input
+	 * @param minibatchSize number of samples whose gradients are summed into each push
+	 * @param stalenessBound the server's staleness bound; the worker pulls new parameters before its next push would be
+	 * 			expected to exceed it
+	 * @param successTest returns true if an actual output (first argument) is close enough to the expected output
+	 * 			(second argument); can be null
+	 * @return number of samples, total error, and number of successes over the epoch. Each sample is measured
+	 * 			with the parameters of the local replica when the sample was processed
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the server
+	 * @throws ExecutionException if there is a problem communicating with the server
+	 */
+	public Result trainEpoch(final I[] inputs, final O[] expectedOutputs, final int minibatchSize, final int stalenessBound, final BiPredicate<O, O> successTest) throws InterruptedException, ExecutionException {
+		final int[] order = new int[inputs.length];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		
+		for (int i = order.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		
+		Result total = new Result(0, 0, 0);
+		Future<PushReply> pending = null;
+		int current = 0;
+		
+		for (int start = 0; start < order.length; start += minibatchSize) {
+			final int end = Math.min(start + minibatchSize, order.length);
+			final GradientAccumulator<I, O> accumulator = accumulators.get(current);
+			int successes = 0;
+			
+			for (int i = start; i < end; i++) {
+				final int sample = order[i];
+				final ForwardPassResult<O> result = accumulator.train(inputs[sample], expectedOutputs[sample]);
+				
+				if (successTest != null && successTest.test(result.actualOutput, expectedOutputs[sample])) {
+					successes++;
+				}
+			}
+			
+			total = total.plus(new Result(end - start, accumulator.errorSum(), successes));
+			
+			final PushReply previous = (pending == null) ? null : pending.get();
+			final long baseVersion = localVersion;
+			pending = sender.submit(() -> push(accumulator.gradients(), baseVersion));
+			
+			if (previous != null) {
+				pullIfStale(previous, stalenessBound);
+			}
+			
+			// The other accumulator is free once its push has been sent
+			current = 1 - current;
+			accumulators.get(current).reset();
+		}
+		
+		if (pending != null) {
+			// Bring the replica up to date for the next epoch if it needs to be
+			pullIfStale(pending.get(), stalenessBound);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Records the server's reply to a push, and pulls new parameters if the push was rejected, or if the next push (of the
+	 * minibatch that is about to be computed) is expected to be too stale.
+	 * <p>
+	 * The reply describes the server as it was when the previous push arrived, about one minibatch ago, and the next push
+	 * will arrive about one minibatch from now. In between, the server accepts this worker's push that was just sent (which is
+	 * still in flight), and two minibatches' worth of pushes from the other workers. With an {@link #advance} of <code>a</code>
+	 * versions per minibatch (one of which is this worker's own), the server is expected to be <code>2a - 1</code> versions
+	 * ahead of the reply when the next push is checked. The advance is measured from the replies: it rises at once when the
+	 * server speeds up, and falls by a tenth of the difference per minibatch when it slows down, since a rejected push wastes a
+	 * whole minibatch while an extra pull only costs one transfer.
+	 * 
+	 * @param reply the server's reply to a push
+	 * @param stalenessBound the server's staleness bound
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the server
+	 * @throws ExecutionException if there is a problem communicating with the server
+	 */
+	private void pullIfStale(final PushReply reply, final int stalenessBound) throws InterruptedException, ExecutionException {
+		if (!reply.accepted) {
+			rejected++;
+		}
+		
+		if (serverVersion >= 0) {
+			final long measured = reply.serverVersion - serverVersion;
+			advance = Math.max(measured, (0.9 * advance) + (0.1 * measured));
+		}
+		
+		serverVersion = reply.serverVersion;
+		
+		final double expectedVersion = serverVersion + (2 * advance) - 1;
+		
+		if (!reply.accepted || expectedVersion - localVersion > stalenessBound) {
+			sender.submit(() -> {
+				pull();
+				return null;
+			}).get();
+		}
+	}
+	
+	/**
+	 * Returns the number of this worker's pushes that the server has rejected for being too stale.
+	 * 
+	 * @return number of rejected pushes
+	 */
+	public long rejectedPushes() {
+		return rejected;
+	}
+	
+	/**
+	 * Connects to the server, retrying until it starts listening.
+	 * 
+	 * @param address address of the server
+	 * @return connected socket
+	 * @throws IOException if the server does not start listening in time
+	 */
+	private static Socket connect(final InetSocketAddress address) throws IOException {
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		
+		while (true) {
+			final Socket out = new Socket();
+			
+			try {
+				out.connect(address);
+				return out;
+			} catch (IOException e) {
+				out.close();
+				
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+			}
+			
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while connecting to " + address, e);
+			}
+		}
+	}
+	
+	/**
+	 * Tells the server that this worker is finished, and closes the connection.
+	 * 
+	 * @throws IOException if there is a problem communicating with the server
+	 */
+	@Override
+	public void close() throws IOException {
+		sender.shutdown();
+		
+		try (socket) {
+			out.writeByte(ParameterServer.DONE);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * The server's reply to a push
+	 * 
+	 * @author Joe Desmond
+	 */
+	private static class PushReply {
+		
+		/**
+		 * True if the server applied the gradients
+		 */
+		final boolean accepted;
+		
+		/**
+		 * Version of the server's parameters after the push
+		 */
+		final long serverVersion;
+		
+		/**
+		 * Creates a push reply.
+		 * 
+		 * @param _accepted true if the server applied the gradients
+		 * @param _serverVersion version of the server's parameters after the push
+		 */
+		PushReply(final boolean _accepted, final long _serverVersion) {
+			accepted = _accepted;
+			serverVersion = _serverVersion;
+		}
+	}
+}
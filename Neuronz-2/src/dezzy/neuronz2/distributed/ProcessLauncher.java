@@ -0,0 +1,73 @@
+package dezzy.neuronz2.distributed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts several JVM processes on this host that run the same main class, for multi-process training. Each process gets
+ * the same arguments, followed by its rank and the number of processes. The processes use the same Java executable and
+ * class path as this JVM, and share this JVM's standard output and error.
+ *
+ * @author Joe Desmond
+ */
+public final class ProcessLauncher {
+	
+	/**
+	 * Starts <code>processes</code> JVMs that run <code>mainClass</code>.
+	 * 
+	 * @param mainClass class with the main method to run
+	 * @param processes number of processes to start
+	 * @param jvmOptions options for each JVM (for example; <code>-Xmx4g</code>)
+	 * @param args arguments for every process, which are followed by the process's rank and the number of processes
+	 * @return the started processes, in rank order
+	 * @throws IOException if a process cannot be started
+	 */
+	public static List<Process> launchLocal(final Class<?> mainClass, final int processes, final List<String> jvmOptions, final String ... args) throws IOException {
+		final String java = ProcessHandle.current().info().command().orElse("java");
+		final String classPath = System.getProperty("java.class.path");
+		final List<Process> out = new ArrayList<>(processes);
+		
+		for (int rank = 0; rank < processes; rank++) {
+			final List<String> command = new ArrayList<>();
+			command.add(java);
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(classPath);
+			command.add(mainClass.getName());
+			command.addAll(List.of(args));
+			command.add(Integer.toString(rank));
+			command.add(Integer.toString(processes));
+			
+			out.add(new ProcessBuilder(command).inheritIO().start());
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Waits for every process to exit. If one process fails, the others are stopped, because they would otherwise wait
+	 * for it forever.
+	 * 
+	 * @param processes processes to wait for
+	 * @return zero if every process succeeded, or the exit code of the first process that failed
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public static int waitForAll(final List<Process> processes) throws InterruptedException {
+		int result = 0;
+		
+		for (int i = 0; i < processes.size(); i++) {
+			final int exitCode = processes.get(i).waitFor();
+			
+			if (exitCode != 0 && result == 0) {
+				result = exitCode;
+				
+				for (int j = 0; j < processes.size(); j++) {
+					processes.get(j).destroy();
+				}
+			}
+		}
+		
+		return result;
+	}
+}
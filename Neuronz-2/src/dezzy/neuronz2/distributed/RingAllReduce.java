@@ -0,0 +1,561 @@
+package dezzy.neuronz2.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dezzy.neuronz2.arch.GradientExchange;
+import dezzy.neuronz2.arch.ParallelBackwardPass;
+
+/**
+ * Sums arrays across several processes with a ring all-reduce over plain TCP sockets. The processes form a ring in which
+ * each one sends only to the next and receives only from the previous, so every link carries the same amount of data no
+ * matter how many processes there are.
+ * <p>
+ * The array is split into one chunk per process. In the first <code>n - 1</code> steps (reduce-scatter), every process
+ * sends a chunk to the next process and adds the chunk it receives to its own, so that each process ends up with the
+ * complete sum of one chunk. In the next <code>n - 1</code> steps (all-gather), the complete chunks are passed around the
+ * ring. Each chunk is sent in segments by a separate sender thread while segments are being received and added, so
+ * sending, receiving, and adding overlap.
+ * <p>
+ * All the processes must create their <code>RingAllReduce</code> with the same list of addresses at about the same time;
+ * the constructor waits for the neighbors to start listening. This works the same way on one host (every process on a
+ * different port of <code>localhost</code>, see {@link #localhost(int, int, int)}) and across hosts. Running one process
+ * per NUMA node keeps each process's memory local to its cores.
+ * <p>
+ * With a {@linkplain #setCodec(GradientCodec) codec}, {@link #exchange(ParallelBackwardPass)} sends compressed gradients
+ * instead. A {@link DenseGradientCodec} (such as {@link HalfPrecisionCodec}) is reduced inside the ring: every chunk is
+ * encoded before it is sent, and decoded and added by the process that receives it, so each process still sends about
+ * twice the encoded gradients no matter how many processes there are. The complete chunks are encoded once more for the
+ * all-gather, and every process decodes the same bits, so every process still ends up with the same sum. Any other codec
+ * (such as {@link TopKCodec} or {@link SignCodec}) can only be decoded as a whole, so every process encodes its gradients,
+ * the encoded gradients are passed around the ring with {@link #allGather(byte[])}, and every process decodes and adds
+ * them in the same order.
+ *
+ * @author Joe Desmond
+ */
+public class RingAllReduce implements GradientExchange, Closeable {
+	
+	/**
+	 * Number of doubles in one segment of a chunk
+	 */
+	private static final int SEGMENT_SIZE = 8192;
+	
+	/**
+	 * How long to keep trying to connect to the next process, in milliseconds
+	 */
+	private static final long CONNECT_TIMEOUT = 60_000;
+	
+	/**
+	 * The number of this process in the ring
+	 */
+	private final int rank;
+	
+	/**
+	 * The number of processes in the ring
+	 */
+	private final int worldSize;
+	
+	/**
+	 * Connection to the next process, or null if this is the only process
+	 */
+	private final Socket next;
+	
+	/**
+	 * Connection from the previous process, or null if this is the only process
+	 */
+	private final Socket previous;
+	
+	/**
+	 * Stream to the next process
+	 */
+	private final DataOutputStream out;
+	
+	/**
+	 * Stream from the previous process
+	 */
+	private final DataInputStream in;
+	
+	/**
+	 * Sends chunks to the next process while this process receives from the previous one
+	 */
+	private final ExecutorService sender;
+	
+	/**
+	 * Bytes of the segment being sent
+	 */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(SEGMENT_SIZE * Double.BYTES);
+	
+	/**
+	 * Bytes of the segment being received
+	 */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(SEGMENT_SIZE * Double.BYTES);
+	
+	/**
+	 * Flat copy of the gradients given to {@link #exchange(ParallelBackwardPass)}, reused between calls
+	 */
+	private double[] flatGradients = new double[0];
+	
+	/**
+	 * Compresses the gradients given to {@link #exchange(ParallelBackwardPass)}, or null to send them uncompressed
+	 */
+	private GradientCodec codec = null;
+	
+	/**
+	 * Joins a ring of processes. Every process listens on its own address, connects to the next process, and accepts a
+	 * connection from the previous process.
+	 * 
+	 * @param _rank number of this process, from zero to <code>addresses.size() - 1</code>
+	 * @param addresses the address of every process, in ring order
+	 * @throws IOException if the connections cannot be made
+	 */
+	public RingAllReduce(final int _rank, final List<InetSocketAddress> addresses) throws IOException {
+		rank = _rank;
+		worldSize = addresses.size();
+		
+		if (worldSize == 1) {
+			next = null;
+			previous = null;
+			out = null;
+			in = null;
+			sender = null;
+			return;
+		}
+		
+		try (ServerSocket server = new ServerSocket()) {
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(addresses.get(rank).getPort()));
+			
+			next = connect(addresses.get((rank + 1) % worldSize));
+			previous = server.accept();
+		}
+		
+		next.setTcpNoDelay(true);
+		previous.setTcpNoDelay(true);
+		
+		out = new DataOutputStream(new BufferedOutputStream(next.getOutputStream(), 1 << 16));
+		in = new DataInputStream(new BufferedInputStream(previous.getInputStream(), 1 << 16));
+		
+		// Make sure that the ring is connected the right way round
+		out.writeInt(rank);
+		out.flush();
+		
+		final int previousRank = in.readInt();
+		
+		if (previousRank != (rank + worldSize - 1) % worldSize) {
+			throw new IOException("Expected a connection from process " + ((rank + worldSize - 1) % worldSize) + ", but process " + previousRank + " connected");
+		}
+		
+		sender = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "RingAllReduce-sender");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+	}
+	
+	/**
+	 * Joins a ring of <code>worldSize</code> processes on this host, which listen on consecutive ports starting at <code>basePort</code>.
+	 * 
+	 * @param rank number of this process
+	 * @param worldSize number of processes
+	 * @param basePort port of process zero
+	 * @return a ring all-reduce connected to the other processes
+	 * @throws IOException if the connections cannot be made
+	 */
+	public static RingAllReduce localhost(final int rank, final int worldSize, final int basePort) throws IOException {
+		final List<InetSocketAddress> addresses = new ArrayList<>(worldSize);
+		
+		for (int i = 0; i < worldSize; i++) {
+			addresses.add(new InetSocketAddress("localhost", basePort + i));
+		}
+		
+		return new RingAllReduce(rank, addresses);
+	}
+	
+	/**
+	 * Parses a comma-separated list of <code>host:port</code> addresses, in ring order.
+	 * 
+	 * @param addresses addresses of every process (for example; <code>"node0:7000,node1:7000"</code>)
+	 * @return parsed addresses
+	 */
+	public static List<InetSocketAddress> parseAddresses(final String addresses) {
+		final String[] parts = addresses.split(",");
+		final List<InetSocketAddress> out = new ArrayList<>(parts.length);
+		
+		for (int i = 0; i < parts.length; i++) {
+			final String part = parts[i].trim();
+			final int colon = part.lastIndexOf(':');
+			
+			out.add(new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1))));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Sets the codec that compresses the gradients given to {@link #exchange(ParallelBackwardPass)}. Every process must use the
+	 * same kind of codec. The codec belongs to this ring, and should not be used anywhere else.
+	 * <p>
+	 * Without a codec, each process sends about <code>2 * 8 = 16</code> bytes per gradient, whatever the number of processes
+	 * <code>n</code>. A {@link DenseGradientCodec} that takes <code>b</code> bytes per gradient is reduced inside the ring, so
+	 * each process sends about <code>2 * b</code> bytes per gradient (4 for half precision). Any other codec is all-gathered,
+	 * so each process sends <code>n - 1</code> encoded messages; with <code>b</code> encoded bytes per gradient, that is more
+	 * than the uncompressed ring once <code>n</code> is greater than <code>16 / b</code>. That is about 128 processes for
+	 * {@link SignCodec}, and <code>2 / fraction</code> processes for {@link TopKCodec} (200 for a fraction of 1%).
+	 * 
+	 * @param _codec gradient codec, or null to send uncompressed gradients
+	 * @throws IllegalArgumentException if <code>_codec</code> is a {@link DenseGradientCodec} that takes more than
+	 *             {@link Double#BYTES} bytes per gradient
+	 */
+	public void setCodec(final GradientCodec _codec) {
+		if (_codec instanceof DenseGradientCodec && ((DenseGradientCodec) _codec).bytesPerElement() > Double.BYTES) {
+			throw new IllegalArgumentException("A dense codec can take at most " + Double.BYTES + " bytes per gradient");
+		}
+		
+		codec = _codec;
+	}
+	
+	@Override
+	public int rank() {
+		return rank;
+	}
+	
+	@Override
+	public int worldSize() {
+		return worldSize;
+	}
+	
+	/**
+	 * Sums the gradients of every process through a flat copy, which is kept for the next call. If there is a codec, the
+	 * gradients are compressed even if this is the only process, so that the effect of the compression is the same. Statistics
+	 * are summed afterwards, uncompressed.
+	 * 
+	 * @param gradients this process's gradients; overwritten with the sum over every process
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	@Override
+	public void exchange(final ParallelBackwardPass<?> gradients) throws IOException {
+		if (worldSize == 1 && codec == null) {
+			return;
+		}
+		
+		final int count = gradients.elementCount();
+		
+		if (flatGradients.length != count) {
+			flatGradients = new double[count];
+		}
+		
+		gradients.copyTo(flatGradients, 0);
+		
+		if (codec == null) {
+			allReduce(flatGradients, null);
+		} else if (codec instanceof DenseGradientCodec) {
+			// Round this process's own gradients through the codec first, so that any error feedback keeps what is lost
+			final byte[] encoded = codec.encode(flatGradients);
+			Arrays.fill(flatGradients, 0);
+			codec.decodeAdd(encoded, flatGradients);
+			
+			allReduce(flatGradients, (DenseGradientCodec) codec);
+		} else {
+			final byte[][] encoded = allGather(codec.encode(flatGradients));
+			Arrays.fill(flatGradients, 0);
+			
+			for (int i = 0; i < encoded.length; i++) {
+				codec.decodeAdd(encoded[i], flatGradients);
+			}
+		}
+		
+		gradients.copyFrom(flatGradients, 0);
+		
+		// Statistics (such as batch normalization sums) are summed exactly; they are small and never go through the codec
+		final int statisticsCount = gradients.statisticsCount();
+		
+		if (worldSize > 1 && statisticsCount > 0) {
+			final double[] statistics = new double[statisticsCount];
+			gradients.copyStatisticsTo(statistics, 0);
+			allReduce(statistics, null);
+			gradients.copyStatisticsFrom(statistics, 0);
+		}
+	}
+	
+	/**
+	 * Replaces every element of <code>data</code> with the sum of that element over every process, in place. Every process
+	 * must call this with an array of the same length.
+	 * 
+	 * @param data this process's values; overwritten with the sum over every process
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	public void allReduce(final double[] data) throws IOException {
+		allReduce(data, null);
+	}
+	
+	/**
+	 * Replaces every element of <code>data</code> with the sum of that element over every process, in place, optionally
+	 * sending every chunk through a dense codec. With a codec, the partial sums are rounded again at every step of the
+	 * reduce-scatter (without error feedback), and each complete chunk is rounded once before the all-gather, so that every
+	 * process ends up with exactly the same values.
+	 * 
+	 * @param data this process's values; overwritten with the sum over every process
+	 * @param dense codec to send the chunks through, or null to send doubles
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	private void allReduce(final double[] data, final DenseGradientCodec dense) throws IOException {
+		if (worldSize == 1) {
+			return;
+		}
+		
+		for (int step = 0; step < worldSize - 1; step++) {
+			final int sendChunk = Math.floorMod(rank - step, worldSize);
+			final int receiveChunk = Math.floorMod(rank - step - 1, worldSize);
+			
+			exchangeChunks(data, sendChunk, receiveChunk, true, dense);
+		}
+		
+		if (dense != null) {
+			// The other processes will see this process's complete chunk only as decoded by the codec
+			final int completeChunk = Math.floorMod(rank + 1, worldSize);
+			roundRange(data, chunkStart(data.length, completeChunk), chunkStart(data.length, completeChunk + 1), dense);
+		}
+		
+		for (int step = 0; step < worldSize - 1; step++) {
+			final int sendChunk = Math.floorMod(rank + 1 - step, worldSize);
+			final int receiveChunk = Math.floorMod(rank - step, worldSize);
+			
+			exchangeChunks(data, sendChunk, receiveChunk, false, dense);
+		}
+	}
+	
+	/**
+	 * Gives every process a copy of every process's data. The data is passed around the ring, so each process sends and
+	 * receives <code>n - 1</code> messages. The messages can have different lengths.
+	 * 
+	 * @param data this process's data
+	 * @return the data of every process, in rank order; the element for this process is <code>data</code>
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	public byte[][] allGather(final byte[] data) throws IOException {
+		final byte[][] blocks = new byte[worldSize][];
+		blocks[rank] = data;
+		
+		for (int step = 0; step < worldSize - 1; step++) {
+			final byte[] send = blocks[Math.floorMod(rank - step, worldSize)];
+			
+			final Future<?> sent = sender.submit(() -> {
+				out.writeInt(send.length);
+				out.write(send);
+				out.flush();
+				return null;
+			});
+			
+			final byte[] received = new byte[in.readInt()];
+			in.readFully(received);
+			blocks[Math.floorMod(rank - step - 1, worldSize)] = received;
+			
+			awaitSent(sent);
+		}
+		
+		return blocks;
+	}
+	
+	/**
+	 * Sends one chunk to the next process while receiving another from the previous process.
+	 * 
+	 * @param data array being reduced
+	 * @param sendChunk index of the chunk to send
+	 * @param receiveChunk index of the chunk to receive
+	 * @param add true to add the received chunk to <code>data</code>, false to overwrite it
+	 * @param dense codec to send the chunks through, or null to send doubles
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	private void exchangeChunks(final double[] data, final int sendChunk, final int receiveChunk, final boolean add, final DenseGradientCodec dense) throws IOException {
+		final int sendStart = chunkStart(data.length, sendChunk);
+		final int sendEnd = chunkStart(data.length, sendChunk + 1);
+		
+		final Future<?> sent = sender.submit(() -> {
+			sendRange(data, sendStart, sendEnd, dense);
+			return null;
+		});
+		
+		receiveRange(data, chunkStart(data.length, receiveChunk), chunkStart(data.length, receiveChunk + 1), add, dense);
+		awaitSent(sent);
+	}
+	
+	/**
+	 * Waits for the sender thread to finish sending.
+	 * 
+	 * @param sent result of the sender thread's task
+	 * @throws IOException if there was a problem sending
+	 */
+	private void awaitSent(final Future<?> sent) throws IOException {
+		try {
+			sent.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending to process " + ((rank + 1) % worldSize), e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not send to process " + ((rank + 1) % worldSize), e.getCause());
+		}
+	}
+	
+	/**
+	 * Sends part of an array to the next process, one segment at a time.
+	 * 
+	 * @param data array being reduced
+	 * @param start first index to send
+	 * @param end last index to send (exclusive)
+	 * @param dense codec to encode the values with, or null to send doubles
+	 * @throws IOException if there is a problem sending
+	 */
+	private void sendRange(final double[] data, final int start, final int end, final DenseGradientCodec dense) throws IOException {
+		sendBuffer.clear();
+		final DoubleBuffer doubles = sendBuffer.asDoubleBuffer();
+		
+		for (int segment = start; segment < end; segment += SEGMENT_SIZE) {
+			final int length = Math.min(SEGMENT_SIZE, end - segment);
+			
+			if (dense == null) {
+				doubles.clear();
+				doubles.put(data, segment, length);
+				out.write(sendBuffer.array(), 0, length * Double.BYTES);
+			} else {
+				sendBuffer.clear();
+				dense.encodeRange(data, segment, segment + length, sendBuffer);
+				out.write(sendBuffer.array(), 0, sendBuffer.position());
+			}
+			
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Receives part of an array from the previous process, one segment at a time.
+	 * 
+	 * @param data array being reduced
+	 * @param start first index to receive
+	 * @param end last index to receive (exclusive)
+	 * @param add true to add the received values to <code>data</code>, false to overwrite it
+	 * @param dense codec to decode the values with, or null to receive doubles
+	 * @throws IOException if there is a problem receiving
+	 */
+	private void receiveRange(final double[] data, final int start, final int end, final boolean add, final DenseGradientCodec dense) throws IOException {
+		receiveBuffer.clear();
+		final DoubleBuffer doubles = receiveBuffer.asDoubleBuffer();
+		
+		for (int segment = start; segment < end; segment += SEGMENT_SIZE) {
+			final int length = Math.min(SEGMENT_SIZE, end - segment);
+			
+			if (dense != null) {
+				in.readFully(receiveBuffer.array(), 0, length * dense.bytesPerElement());
+				receiveBuffer.clear();
+				dense.decodeRange(receiveBuffer, data, segment, segment + length, add);
+			} else {
+				in.readFully(receiveBuffer.array(), 0, length * Double.BYTES);
+				doubles.clear();
+				
+				if (add) {
+					for (int i = 0; i < length; i++) {
+						data[segment + i] += doubles.get(i);
+					}
+				} else {
+					doubles.get(data, segment, length);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replaces part of an array with the values it decodes to after being encoded by a dense codec. This uses the send
+	 * buffer, so it must not be called while the sender thread is sending.
+	 * 
+	 * @param data array being reduced
+	 * @param start first index to round
+	 * @param end last index to round (exclusive)
+	 * @param dense codec to round the values with
+	 */
+	private void roundRange(final double[] data, final int start, final int end, final DenseGradientCodec dense) {
+		for (int segment = start; segment < end; segment += SEGMENT_SIZE) {
+			final int length = Math.min(SEGMENT_SIZE, end - segment);
+			
+			sendBuffer.clear();
+			dense.encodeRange(data, segment, segment + length, sendBuffer);
+			sendBuffer.flip();
+			dense.decodeRange(sendBuffer, data, segment, segment + length, false);
+		}
+	}
+	
+	/**
+	 * Returns the first index of a chunk. The chunks are as equal in size as possible.
+	 * 
+	 * @param length length of the array
+	 * @param chunk index of the chunk (or the number of chunks, for the end of the array)
+	 * @return first index of the chunk
+	 */
+	private int chunkStart(final int length, final int chunk) {
+		return (int) (((long) length * chunk) / worldSize);
+	}
+	
+	/**
+	 * Connects to a process, retrying until it starts listening.
+	 * 
+	 * @param address address of the process
+	 * @return connected socket
+	 * @throws IOException if the process does not start listening in time
+	 */
+	private static Socket connect(final InetSocketAddress address) throws IOException {
+		final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		
+		while (true) {
+			final Socket socket = new Socket();
+			
+			try {
+				socket.connect(address);
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+			}
+			
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while connecting to " + address, e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the connections to the neighboring processes.
+	 * 
+	 * @throws IOException if there is a problem closing the connections
+	 */
+	@Override
+	public void close() throws IOException {
+		if (worldSize == 1) {
+			return;
+		}
+		
+		sender.shutdown();
+		next.close();
+		previous.close();
+	}
+}
@@ -0,0 +1,73 @@
+package dezzy.neuronz2.distributed;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 1-bit sign compression: only the sign of each gradient is sent, along with one scale (the mean magnitude of the
+ * gradients), so every gradient decodes to either <code>scale</code> or <code>-scale</code>. The encoded gradients are
+ * about 64 times smaller than the doubles they came from. This should almost always be used with error feedback, which
+ * corrects the magnitudes over several steps.
+ *
+ * @author Joe Desmond
+ */
+public class SignCodec extends ErrorFeedbackCodec {
+	
+	/**
+	 * Creates a sign codec with error feedback.
+	 */
+	public SignCodec() {
+		this(true);
+	}
+	
+	/**
+	 * Creates a sign codec.
+	 * 
+	 * @param errorFeedback true to keep the difference between the gradients and their signs, and add it to the next gradients
+	 */
+	public SignCodec(final boolean errorFeedback) {
+		super(errorFeedback);
+	}
+	
+	@Override
+	protected byte[] compress(final double[] gradients) {
+		final int count = gradients.length;
+		final ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + Float.BYTES + ((count + 7) / 8));
+		double magnitudeSum = 0;
+		
+		for (int i = 0; i < count; i++) {
+			magnitudeSum += Math.abs(gradients[i]);
+		}
+		
+		out.putInt(count);
+		out.putFloat((count == 0) ? 0 : (float) (magnitudeSum / count));
+		
+		final byte[] array = out.array();
+		final int bitStart = out.position();
+		
+		// A set bit means a negative gradient
+		for (int i = 0; i < count; i++) {
+			if (gradients[i] < 0) {
+				array[bitStart + (i >>> 3)] |= 1 << (i & 7);
+			}
+		}
+		
+		return array;
+	}
+	
+	@Override
+	public void decodeAdd(final byte[] encoded, final double[] sum) {
+		final ByteBuffer in = ByteBuffer.wrap(encoded);
+		GradientCodec.checkLength(in.getInt(), sum.length);
+		
+		final double scale = in.getFloat();
+		final int bitStart = in.position();
+		
+		for (int i = 0; i < sum.length; i++) {
+			if ((encoded[bitStart + (i >>> 3)] & (1 << (i & 7))) != 0) {
+				sum[i] -= scale;
+			} else {
+				sum[i] += scale;
+			}
+		}
+	}
+}
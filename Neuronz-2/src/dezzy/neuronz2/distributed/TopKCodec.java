@@ -0,0 +1,157 @@
+package dezzy.neuronz2.distributed;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Top-k sparsification: only the <code>k</code> gradients with the greatest magnitudes are sent, as index and value pairs
+ * (with the values as floats). The other gradients are treated as zero. This should almost always be used with error
+ * feedback, so that the gradients that are not sent build up in the residual until they are large enough to be sent.
+ * <p>
+ * With a fraction of 1%, the encoded gradients are about 100 times smaller than the doubles they came from.
+ *
+ * @author Joe Desmond
+ */
+public class TopKCodec extends ErrorFeedbackCodec {
+	
+	/**
+	 * The fraction of the gradients that are sent
+	 */
+	public final double fraction;
+	
+	/**
+	 * Magnitudes of the gradients being encoded, reordered while finding the threshold
+	 */
+	private double[] magnitudes = new double[0];
+	
+	/**
+	 * Creates a top-k codec with error feedback.
+	 * 
+	 * @param _fraction fraction of the gradients to send, from 0 (exclusive) to 1
+	 */
+	public TopKCodec(final double _fraction) {
+		this(_fraction, true);
+	}
+	
+	/**
+	 * Creates a top-k codec.
+	 * 
+	 * @param _fraction fraction of the gradients to send, from 0 (exclusive) to 1
+	 * @param errorFeedback true to keep the gradients that are not sent, and add them to the next gradients
+	 */
+	public TopKCodec(final double _fraction, final boolean errorFeedback) {
+		super(errorFeedback);
+		
+		if (_fraction <= 0 || _fraction > 1) {
+			throw new IllegalArgumentException("Fraction must be greater than 0 and at most 1: " + _fraction);
+		}
+		
+		fraction = _fraction;
+	}
+	
+	@Override
+	protected byte[] compress(final double[] gradients) {
+		final int count = gradients.length;
+		final int k = (count == 0) ? 0 : Math.max(1, (int) Math.ceil(count * fraction));
+		final ByteBuffer out = ByteBuffer.allocate((2 * Integer.BYTES) + (k * (Integer.BYTES + Float.BYTES)));
+		out.putInt(count);
+		out.putInt(k);
+		
+		if (k == 0) {
+			return out.array();
+		}
+		
+		if (magnitudes.length != count) {
+			magnitudes = new double[count];
+		}
+		
+		for (int i = 0; i < count; i++) {
+			magnitudes[i] = Math.abs(gradients[i]);
+		}
+		
+		final double threshold = select(magnitudes, count - k);
+		final int indexStart = out.position();
+		final int valueStart = indexStart + (k * Integer.BYTES);
+		int taken = 0;
+		
+		// Everything above the threshold is sent, and then as many ties as there is room for
+		for (int i = 0; i < count; i++) {
+			if (Math.abs(gradients[i]) > threshold) {
+				taken++;
+			}
+		}
+		
+		int ties = k - taken;
+		int written = 0;
+		
+		for (int i = 0; i < count && written < k; i++) {
+			final double magnitude = Math.abs(gradients[i]);
+			
+			if (magnitude > threshold || (magnitude == threshold && ties-- > 0)) {
+				out.putInt(indexStart + (written * Integer.BYTES), i);
+				out.putFloat(valueStart + (written * Float.BYTES), (float) gradients[i]);
+				written++;
+			}
+		}
+		
+		return out.array();
+	}
+	
+	@Override
+	public void decodeAdd(final byte[] encoded, final double[] sum) {
+		final ByteBuffer in = ByteBuffer.wrap(encoded);
+		GradientCodec.checkLength(in.getInt(), sum.length);
+		
+		final int k = in.getInt();
+		final int valueStart = in.position() + (k * Integer.BYTES);
+		
+		for (int i = 0; i < k; i++) {
+			sum[in.getInt()] += in.getFloat(valueStart + (i * Float.BYTES));
+		}
+	}
+	
+	/**
+	 * Finds the value that would be at index <code>rank</code> if the array were sorted, with quickselect. The array is reordered.
+	 * 
+	 * @param values array to search
+	 * @param rank index in the sorted array
+	 * @return value at <code>rank</code> in the sorted array
+	 */
+	private static double select(final double[] values, final int rank) {
+		int low = 0;
+		int high = values.length - 1;
+		
+		while (low < high) {
+			final double pivot = values[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				
+				while (values[j] > pivot) {
+					j--;
+				}
+				
+				if (i <= j) {
+					final double temp = values[i];
+					values[i] = values[j];
+					values[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			
+			if (rank <= j) {
+				high = j;
+			} else if (rank >= i) {
+				low = i;
+			} else {
+				return values[rank];
+			}
+		}
+		
+		return values[rank];
+	}
+}
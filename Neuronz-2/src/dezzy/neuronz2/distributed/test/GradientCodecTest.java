@@ -0,0 +1,225 @@
+package dezzy.neuronz2.distributed.test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.distributed.GradientCodec;
+import dezzy.neuronz2.distributed.HalfPrecisionCodec;
+import dezzy.neuronz2.distributed.HalfPrecisionCodec.Format;
+import dezzy.neuronz2.distributed.RingAllReduce;
+import dezzy.neuronz2.distributed.SignCodec;
+import dezzy.neuronz2.distributed.TopKCodec;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Tests the {@linkplain GradientCodec gradient codecs}. First, each codec encodes gradients the size of a 784x768
+ * {@link DenseLayer}, and the compression ratio and the error of the decoded gradients are checked. Then the same small
+ * network is trained with each codec (through a one-process {@link RingAllReduce}, which still compresses the gradients),
+ * and the success rates are compared with training on uncompressed gradients.
+ *
+ * @author Joe Desmond
+ */
+public final class GradientCodecTest {
+	
+	/**
+	 * Names of the codecs being tested
+	 */
+	private static final String[] NAMES = {"fp16", "bf16", "top-1% + EF", "top-10% + EF", "top-10%, no EF", "sign + EF"};
+	
+	/**
+	 * Creates the codecs being tested, in the same order as {@link #NAMES}
+	 */
+	private static final List<Supplier<GradientCodec>> CODECS = List.of(
+			() -> new HalfPrecisionCodec(Format.FP16),
+			() -> new HalfPrecisionCodec(Format.BF16),
+			() -> new TopKCodec(0.01),
+			() -> new TopKCodec(0.1),
+			() -> new TopKCodec(0.1, false),
+			() -> new SignCodec()
+			);
+	
+	/**
+	 * The least compression ratio each codec must reach
+	 */
+	private static final double[] MIN_RATIOS = {3.99, 3.99, 99, 9.9, 9.9, 63};
+	
+	public static final void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+		checkHalfConversions();
+		checkCompression();
+		checkConvergence();
+		
+		System.out.println("All codec tests passed");
+	}
+	
+	/**
+	 * Checks the half precision conversions on some values with known encodings.
+	 */
+	private static final void checkHalfConversions() {
+		final float[] values = {0, 1, -2, 65504, 0.5f, 0x1p-14f, 0x1p-24f, -0x1.ffcp-1f};
+		final int[] halves = {0x0000, 0x3C00, 0xC000, 0x7BFF, 0x3800, 0x0400, 0x0001, 0xBBFF};
+		
+		for (int i = 0; i < values.length; i++) {
+			final short half = HalfPrecisionCodec.toHalf(values[i]);
+			
+			if ((half & 0xFFFF) != halves[i] || HalfPrecisionCodec.fromHalf(half) != values[i]) {
+				throw new IllegalStateException("FP16 conversion of " + values[i] + " is wrong: " + Integer.toHexString(half & 0xFFFF));
+			}
+		}
+		
+		// Values with at most 8 significant bits are exact in bfloat16, even outside the range of a half
+		final float[] bfloatValues = {0, 1, -2, 0.5f, 0x1p-100f, -0x1.fep100f};
+		
+		for (int i = 0; i < bfloatValues.length; i++) {
+			if (HalfPrecisionCodec.fromBFloat16(HalfPrecisionCodec.toBFloat16(bfloatValues[i])) != bfloatValues[i]) {
+				throw new IllegalStateException("BF16 conversion of " + bfloatValues[i] + " is wrong");
+			}
+		}
+		
+		if ((HalfPrecisionCodec.toHalf(1e6f) & 0xFFFF) != 0x7BFF) {
+			throw new IllegalStateException("FP16 conversion should clamp large values");
+		}
+		
+		System.out.println("Half precision conversions are correct");
+	}
+	
+	/**
+	 * Encodes some random gradients with every codec, and checks the compression ratio and error.
+	 */
+	private static final void checkCompression() {
+		final Random random = new Random(0);
+		final double[] gradients = new double[784 * 768];
+		
+		for (int i = 0; i < gradients.length; i++) {
+			gradients[i] = random.nextGaussian() * 1e-3;
+		}
+		
+		final double norm = norm(gradients);
+		
+		System.out.println();
+		System.out.printf("%-16s %10s %16s %12s%n", "Codec", "Ratio", "Relative error", "Encode ms");
+		
+		for (int c = 0; c < CODECS.size(); c++) {
+			final GradientCodec codec = CODECS.get(c).get();
+			
+			final long start = System.nanoTime();
+			final byte[] encoded = codec.encode(gradients);
+			final double encodeMillis = (System.nanoTime() - start) / 1e6;
+			
+			final double[] decoded = new double[gradients.length];
+			codec.decodeAdd(encoded, decoded);
+			
+			final double[] difference = new double[gradients.length];
+			
+			for (int i = 0; i < gradients.length; i++) {
+				difference[i] = decoded[i] - gradients[i];
+			}
+			
+			final double ratio = (gradients.length * (double) Double.BYTES) / encoded.length;
+			final double error = norm(difference) / norm;
+			
+			System.out.printf("%-16s %10.1f %16.6f %12.2f%n", NAMES[c], ratio, error, encodeMillis);
+			
+			if (ratio < MIN_RATIOS[c]) {
+				throw new IllegalStateException(NAMES[c] + " should compress at least " + MIN_RATIOS[c] + " times");
+			}
+			
+			if ((c == 0 && error > 1e-3) || (c == 1 && error > 1e-2)) {
+				throw new IllegalStateException(NAMES[c] + " is not precise enough");
+			}
+		}
+		
+		System.out.println();
+	}
+	
+	/**
+	 * Trains the same network with every codec, and checks that each one still converges.
+	 * 
+	 * @throws IOException if there is a problem exchanging gradients
+	 * @throws InterruptedException if this thread is interrupted while training
+	 * @throws ExecutionException if there is a problem while training
+	 */
+	private static final void checkConvergence() throws IOException, InterruptedException, ExecutionException {
+		final double baseline = train(null);
+		System.out.printf("%-16s success rate %.4f%n", "uncompressed", baseline);
+		
+		for (int c = 0; c < CODECS.size(); c++) {
+			final double successRate = train(CODECS.get(c).get());
+			System.out.printf("%-16s success rate %.4f%n", NAMES[c], successRate);
+			
+			// Top-k without error feedback throws away most of the gradient, and is only shown for comparison
+			if (c != 4 && successRate < baseline - 0.05) {
+				throw new IllegalStateException(NAMES[c] + " should converge nearly as well as uncompressed gradients");
+			}
+		}
+	}
+	
+	/**
+	 * Trains a small network on synthetic data with the given codec, and returns its final success rate.
+	 * 
+	 * @param codec gradient codec, or null to train on uncompressed gradients
+	 * @return success rate of the trained network on the training data
+	 * @throws IOException if there is a problem exchanging gradients
+	 * @throws InterruptedException if this thread is interrupted while training
+	 * @throws ExecutionException if there is a problem while training
+	 */
+	private static final double train(final GradientCodec codec) throws IOException, InterruptedException, ExecutionException {
+		final Random random = new Random(0);
+		final Vector[] inputs = new Vector[2000];
+		final Vector[] outputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final double x = (random.nextDouble() * 2) - 1;
+			final double y = (random.nextDouble() * 2) - 1;
+			
+			inputs[i] = new Vector(x, y);
+			outputs[i] = ((x * y) > 0) ? new Vector(1, 0) : new Vector(0, 1);
+		}
+		
+		final DenseLayer hidden = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 2, 16);
+		final DenseLayer output = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 16, 2);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(hidden, new ElementActivationLayer<>(FuncDerivPair.SIGMOID), output, new SoftmaxLayer()));
+		
+		try (RingAllReduce ring = RingAllReduce.localhost(0, 1, 0);
+				DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY, 1, new Random(1))) {
+			ring.setCodec(codec);
+			trainer.setGradientExchange(ring);
+			
+			for (int epoch = 1; epoch <= 30; epoch++) {
+				trainer.trainEpoch(inputs, outputs, 10, 0.05, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+			}
+			
+			final Result result = trainer.evaluate(inputs, outputs, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+			return result.successRate();
+		}
+	}
+	
+	/**
+	 * Returns the Euclidean norm of an array.
+	 * 
+	 * @param values array
+	 * @return Euclidean norm
+	 */
+	private static final double norm(final double[] values) {
+		double sum = 0;
+		
+		for (int i = 0; i < values.length; i++) {
+			sum += values[i] * values[i];
+		}
+		
+		return Math.sqrt(sum);
+	}
+}
@@ -0,0 +1,216 @@
+package dezzy.neuronz2.distributed.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.BatchNormLayer;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.distributed.ParameterServer;
+import dezzy.neuronz2.distributed.ParameterServerWorker;
+import dezzy.neuronz2.distributed.ProcessLauncher;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Tests {@link ParameterServer} with several JVM processes on this host. Without arguments, this starts one server process and
+ * three worker processes (or the number of workers given as the only argument), and waits for them. Each worker trains on its
+ * own share of some synthetic data, and the server checks that the trained network classifies all of the data well, and that
+ * the workers pulled often enough that few of their pushes were rejected for being too stale.
+ * <p>
+ * Before launching the processes, this also checks in-process that the server rejects a network with state besides its
+ * parameters, and that a failure while serving a worker is counted and thrown by {@link ParameterServer#awaitWorkers(int)}.
+ *
+ * @author Joe Desmond
+ */
+public final class ParameterServerTest {
+	
+	/**
+	 * Port of the server
+	 */
+	private static final int PORT = 47100;
+	
+	/**
+	 * Staleness bound of the server
+	 */
+	private static final int STALENESS_BOUND = 4;
+	
+	/**
+	 * The greatest share of pushes that may be rejected
+	 */
+	private static final double MAX_REJECTED = 0.1;
+	
+	public static final void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+		if (args.length < 2) {
+			checkRejectsState();
+			checkFailures();
+			
+			final int workers = (args.length == 1) ? Integer.parseInt(args[0]) : 3;
+			final List<Process> launched = ProcessLauncher.launchLocal(ParameterServerTest.class, workers + 1, List.of("-Xmx512m"));
+			final int exitCode = ProcessLauncher.waitForAll(launched);
+			
+			System.out.println((exitCode == 0) ? "All processes passed" : "A process failed with exit code " + exitCode);
+			System.exit(exitCode);
+		}
+		
+		final int rank = Integer.parseInt(args[0]);
+		final int processes = Integer.parseInt(args[1]);
+		
+		// Every process generates the same data and the same initial network
+		final Random random = new Random(0);
+		final Vector[] inputs = new Vector[3000];
+		final Vector[] outputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final double x = (random.nextDouble() * 2) - 1;
+			final double y = (random.nextDouble() * 2) - 1;
+			
+			inputs[i] = new Vector(x, y);
+			outputs[i] = ((x * y) > 0) ? new Vector(1, 0) : new Vector(0, 1);
+		}
+		
+		final DenseLayer hidden = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 2, 16);
+		final DenseLayer output = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 16, 2);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(hidden, new ElementActivationLayer<>(FuncDerivPair.SIGMOID), output, new SoftmaxLayer()));
+		
+		if (rank == 0) {
+			serve(network, inputs, outputs, processes - 1);
+		} else {
+			work(network, inputs, outputs, rank - 1, processes - 1);
+		}
+	}
+	
+	/**
+	 * Checks that the server refuses a network with a {@link BatchNormLayer}, whose running statistics are not gradients.
+	 * 
+	 * @throws IOException if the server fails to start for another reason
+	 */
+	private static final void checkRejectsState() throws IOException {
+		final DenseLayer hidden = DenseLayer.generate(new Random(0), WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 2, 4);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(hidden, new BatchNormLayer<>(4), new SoftmaxLayer()));
+		
+		try (ParameterServer server = new ParameterServer(network, PORT + 1, 0.05, STALENESS_BOUND)) {
+			throw new IllegalStateException("The server accepted a network with running statistics");
+		} catch (UnsupportedOperationException e) {
+			System.out.println("Rejected: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends an unknown request to a server, and checks that the failure is counted and thrown.
+	 * 
+	 * @throws IOException if the server cannot listen on its port
+	 * @throws InterruptedException if this thread is interrupted while waiting for the server
+	 */
+	private static final void checkFailures() throws IOException, InterruptedException {
+		final DenseLayer layer = DenseLayer.generate(new Random(0), WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 2, 2);
+		
+		try (ParameterServer server = new ParameterServer(new ParallelLayerSequence<>(List.of(layer, new SoftmaxLayer())), PORT + 1, 0.05, STALENESS_BOUND)) {
+			try (Socket socket = new Socket("localhost", PORT + 1)) {
+				final DataInputStream in = new DataInputStream(socket.getInputStream());
+				final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				final int shards = in.readInt();
+				
+				for (int i = 0; i < shards; i++) {
+					in.readInt();
+				}
+				
+				out.writeByte(99);
+				out.flush();
+				
+				try {
+					server.awaitWorkers(1);
+					throw new IllegalStateException("awaitWorkers() did not throw the failure");
+				} catch (IOException e) {
+					System.out.println("Failure thrown: " + e.getMessage() + " (" + e.getCause().getMessage() + ")");
+				}
+			}
+			
+			if (server.failures().size() != 1 || !server.throughputReport().contains("1 failed")) {
+				throw new IllegalStateException("The failure was not counted: " + server.throughputReport());
+			}
+		}
+	}
+	
+	/**
+	 * Runs the server until every worker has finished, and checks the trained network.
+	 * 
+	 * @param network network to train
+	 * @param inputs every training input
+	 * @param outputs expected output for each input
+	 * @param workers number of workers
+	 * @throws IOException if the server cannot listen on its port
+	 * @throws InterruptedException if this thread is interrupted while waiting
+	 * @throws ExecutionException if there is a problem evaluating the network
+	 */
+	private static final void serve(final ParallelLayer<Vector, Vector> network, final Vector[] inputs, final Vector[] outputs, final int workers) throws IOException, InterruptedException, ExecutionException {
+		final double rejectedShare;
+		
+		try (ParameterServer server = new ParameterServer(network, PORT, 0.05, STALENESS_BOUND)) {
+			server.awaitWorkers(workers);
+			System.out.println("Server: " + server.throughputReport());
+			
+			rejectedShare = server.rejectedPushes() / (double) (server.version() + server.rejectedPushes());
+		}
+		
+		if (rejectedShare > MAX_REJECTED) {
+			throw new IllegalStateException("The server rejected " + (100 * rejectedShare) + "% of the pushes; the workers should pull before their pushes become too stale");
+		}
+		
+		final Result result;
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY)) {
+			result = trainer.evaluate(inputs, outputs, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+		}
+		
+		System.out.println("Server: trained network has average error " + result.meanError() + ", success rate " + result.successRate());
+		
+		if (result.successRate() < 0.9) {
+			throw new IllegalStateException("The trained network should classify at least 90% of the data correctly");
+		}
+	}
+	
+	/**
+	 * Trains on one worker's share of the data.
+	 * 
+	 * @param network local replica of the network
+	 * @param inputs every training input
+	 * @param outputs expected output for each input
+	 * @param worker number of this worker
+	 * @param workers number of workers
+	 * @throws IOException if there is a problem communicating with the server
+	 * @throws InterruptedException if this thread is interrupted while waiting for the server
+	 * @throws ExecutionException if there is a problem while training
+	 */
+	private static final void work(final ParallelLayer<Vector, Vector> network, final Vector[] inputs, final Vector[] outputs, final int worker, final int workers) throws IOException, InterruptedException, ExecutionException {
+		final int start = (inputs.length * worker) / workers;
+		final int end = (inputs.length * (worker + 1)) / workers;
+		final Vector[] shardInputs = Arrays.copyOfRange(inputs, start, end);
+		final Vector[] shardOutputs = Arrays.copyOfRange(outputs, start, end);
+		
+		try (ParameterServerWorker<Vector, Vector> client = new ParameterServerWorker<>(network, VectorErrorFunctions.CROSS_ENTROPY, new InetSocketAddress("localhost", PORT), new Random(worker))) {
+			for (int epoch = 1; epoch <= 20; epoch++) {
+				final Result result = client.trainEpoch(shardInputs, shardOutputs, 10, STALENESS_BOUND, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+				
+				if (epoch % 5 == 0) {
+					System.out.println("Worker " + worker + ", epoch " + epoch + ": average error " + result.meanError() + ", success rate " + result.successRate() + ", " + client.rejectedPushes() + " pushes rejected");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package dezzy.neuronz2.distributed.test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import dezzy.neuronz2.ann.error.VectorErrorFunctions;
+import dezzy.neuronz2.ann.layers.DenseLayer;
+import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
+import dezzy.neuronz2.arch.DataParallelTrainer.Result;
+import dezzy.neuronz2.arch.ParallelLayer;
+import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.distributed.GradientCodec;
+import dezzy.neuronz2.distributed.HalfPrecisionCodec;
+import dezzy.neuronz2.distributed.HalfPrecisionCodec.Format;
+import dezzy.neuronz2.distributed.ProcessLauncher;
+import dezzy.neuronz2.distributed.RingAllReduce;
+import dezzy.neuronz2.math.constructs.ElementContainer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.OutputVerificationScheme;
+
+/**
+ * Tests {@link RingAllReduce} with several JVM processes on this host. Without arguments, this starts the processes
+ * (three by default, or the number given as the only argument) and waits for them. Each process checks that
+ * {@link RingAllReduce#allReduce(double[])} computes the right sums, then trains a replica of the same small network on
+ * its share of some synthetic data, and finally checks that every replica has the same parameters. The training is done
+ * twice: once with uncompressed gradients, and once with half precision gradients, which are summed inside the ring.
+ *
+ * @author Joe Desmond
+ */
+public final class RingAllReduceTest {
+	
+	/**
+	 * Port of process zero; the others use the ports after it
+	 */
+	private static final int BASE_PORT = 47000;
+	
+	public static final void main(final String[] args) throws IOException, InterruptedException, ExecutionException {
+		if (args.length < 2) {
+			final int processes = (args.length == 1) ? Integer.parseInt(args[0]) : 3;
+			final List<Process> launched = ProcessLauncher.launchLocal(RingAllReduceTest.class, processes, List.of("-Xmx512m"));
+			final int exitCode = ProcessLauncher.waitForAll(launched);
+			
+			System.out.println((exitCode == 0) ? "All processes passed" : "A process failed with exit code " + exitCode);
+			System.exit(exitCode);
+		}
+		
+		final int rank = Integer.parseInt(args[0]);
+		final int worldSize = Integer.parseInt(args[1]);
+		
+		try (RingAllReduce ring = RingAllReduce.localhost(rank, worldSize, BASE_PORT)) {
+			checkSums(ring);
+			checkTraining(ring, null);
+			checkTraining(ring, new HalfPrecisionCodec(Format.FP16));
+		}
+	}
+	
+	/**
+	 * Checks the sums computed by {@link RingAllReduce#allReduce(double[])}, for an array that does not split evenly into chunks.
+	 * 
+	 * @param ring ring of processes
+	 * @throws IOException if there is a problem communicating with the other processes
+	 */
+	private static final void checkSums(final RingAllReduce ring) throws IOException {
+		final double[] data = new double[100_003];
+		
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (ring.rank() + 1) * i;
+		}
+		
+		ring.allReduce(data);
+		
+		final double factor = (ring.worldSize() * (ring.worldSize() + 1)) / 2.0;
+		
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != factor * i) {
+				throw new IllegalStateException("Process " + ring.rank() + ": element " + i + " is " + data[i] + ", expected " + (factor * i));
+			}
+		}
+		
+		System.out.println("Process " + ring.rank() + ": sums are correct");
+	}
+	
+	/**
+	 * Trains one replica of a small network on synthetic data, and checks that every replica ends up with the same parameters.
+	 * 
+	 * @param ring ring of processes
+	 * @param codec codec to compress the gradients with, or null to send them uncompressed
+	 * @throws IOException if there is a problem communicating with the other processes
+	 * @throws InterruptedException if this thread is interrupted while training
+	 * @throws ExecutionException if there is a problem while training
+	 */
+	private static final void checkTraining(final RingAllReduce ring, final GradientCodec codec) throws IOException, InterruptedException, ExecutionException {
+		// Every process generates the same data and the same initial network
+		final Random random = new Random(0);
+		final Vector[] inputs = new Vector[2000];
+		final Vector[] outputs = new Vector[inputs.length];
+		
+		for (int i = 0; i < inputs.length; i++) {
+			final double x = (random.nextDouble() * 2) - 1;
+			final double y = (random.nextDouble() * 2) - 1;
+			
+			inputs[i] = new Vector(x, y);
+			outputs[i] = ((x * y) > 0) ? new Vector(1, 0) : new Vector(0, 1);
+		}
+		
+		final DenseLayer hidden = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 2, 16);
+		final DenseLayer output = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 16, 2);
+		final ParallelLayer<Vector, Vector> network = new ParallelLayerSequence<>(List.of(hidden, new ElementActivationLayer<>(FuncDerivPair.SIGMOID), output, new SoftmaxLayer()));
+		
+		final String name = (codec == null) ? "uncompressed" : "half precision";
+		ring.setCodec(codec);
+		
+		try (DataParallelTrainer<Vector, Vector> trainer = new DataParallelTrainer<>(network, VectorErrorFunctions.CROSS_ENTROPY, 2, new Random(1))) {
+			trainer.setGradientExchange(ring);
+			
+			for (int epoch = 1; epoch <= 20; epoch++) {
+				final Result result = trainer.trainEpoch(inputs, outputs, 10, 0.05, OutputVerificationScheme.greatestOutputMetric::isSuccess);
+				
+				if (epoch % 5 == 0) {
+					System.out.println("Process " + ring.rank() + " (" + name + "), epoch " + epoch + ": " + result.samples + " samples, average error " + result.meanError() + ", success rate " + result.successRate());
+				}
+			}
+		}
+		
+		final List<ElementContainer<?>> parameters = network.parameters();
+		final int count = network.parameterCount();
+		final double[] local = new double[count];
+		int index = 0;
+		
+		for (int i = 0; i < parameters.size(); i++) {
+			parameters.get(i).copyTo(local, index);
+			index += parameters.get(i).elementCount();
+		}
+		
+		final double[] sum = local.clone();
+		ring.allReduce(sum);
+		
+		for (int i = 0; i < count; i++) {
+			if (Math.abs((sum[i] / ring.worldSize()) - local[i]) > 1e-9) {
+				throw new IllegalStateException("Process " + ring.rank() + ": parameter " + i + " differs from the other replicas");
+			}
+		}
+		
+		System.out.println("Process " + ring.rank() + ": replicas are identical (" + name + ")");
+	}
+}
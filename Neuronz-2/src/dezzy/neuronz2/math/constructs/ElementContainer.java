@@ -35,6 +35,87 @@ public abstract class ElementContainer<T> implements Serializable {
 	 */
 	public abstract T transform(final DoubleApplier transformation);
 	
+	/**
+	 * Returns the total number of <code>double</code> elements in this container.
+	 * 
+	 * @return number of elements
+	 */
+	public abstract int elementCount();
+	
+	/**
+	 * Copies every element of this container into the given array, starting at <code>destIndex</code>.
+	 * Elements are copied row-wise, then layer-wise (the same order used by
+	 * {@link dezzy.neuronz2.cnn.layers.ConvFlattener ConvFlattener}).
+	 * 
+	 * @param array array to copy this container's elements to
+	 * @param destIndex starting index in <code>array</code>
+	 */
+	public abstract void copyTo(final double[] array, final int destIndex);
+	
+	/**
+	 * Overwrites every element of this container with values from the given array, in the same order
+	 * used by {@link #copyTo(double[], int)}.
+	 * <p>
+	 * <b>WARNING:</b> This function modifies the container in place, which breaks the general pattern of
+	 * keeping element containers immutable. It exists so that layers can update their own learnable
+	 * parameters without allocating a new tensor for every update. It should not be called on a
+	 * container that may be referenced somewhere else.
+	 * 
+	 * @param array array to copy elements from
+	 * @param srcIndex starting index in <code>array</code>
+	 */
+	public abstract void copyFrom(final double[] array, final int srcIndex);
+	
+	/**
+	 * Adds <code>(scale * array[srcIndex + i])</code> to the <code>i</code>th element of this container, for
+	 * every element (in the order used by {@link #copyTo(double[], int)}).
+	 * <p>
+	 * <b>WARNING:</b> This function modifies the container in place. See {@link #copyFrom(double[], int)}.
+	 * 
+	 * @param array array containing the values to add
+	 * @param srcIndex starting index in <code>array</code>
+	 * @param scale value that every element of <code>array</code> is multiplied by before it is added
+	 */
+	public abstract void addFrom(final double[] array, final int srcIndex, final double scale);
+	
+	/**
+	 * Adds every element of <code>other</code> to the corresponding element of this container. <code>other</code>
+	 * must have the same shape as this container.
+	 * <p>
+	 * <b>WARNING:</b> This function modifies the container in place. See {@link #copyFrom(double[], int)}.
+	 * 
+	 * @param other container to add to this one
+	 */
+	public abstract void addInPlace(final T other);
+	
+	/**
+	 * Adds every element of <code>other</code>, multiplied by <code>scale</code>, to the corresponding element of this container.
+	 * <code>other</code> must have the same shape as this container.
+	 * <p>
+	 * <b>WARNING:</b> This function modifies the container in place. See {@link #copyFrom(double[], int)}.
+	 * 
+	 * @param other container to add to this one
+	 * @param scale factor to multiply every element of <code>other</code> by
+	 */
+	public abstract void addScaledInPlace(final T other, final double scale);
+	
+	/**
+	 * Sets every element of this container to zero.
+	 * <p>
+	 * <b>WARNING:</b> This function modifies the container in place. See {@link #copyFrom(double[], int)}.
+	 */
+	public abstract void clear();
+	
+	/**
+	 * Creates a new container with the same shape as this one, with elements taken from the given array
+	 * in the order used by {@link #copyTo(double[], int)}. This container is not modified.
+	 * 
+	 * @param array array to copy elements from
+	 * @param srcIndex starting index in <code>array</code>
+	 * @return a new container with the same shape as this one
+	 */
+	public abstract T withElements(final double[] array, final int srcIndex);
+	
 	/**
 	 * Addition, represented as a DoubleOperator
 	 */
@@ -79,6 +160,17 @@ public abstract class ElementContainer<T> implements Serializable {
 		return plus(container);
 	}
 	
+	/**
+	 * Unsafe version of {@link #addInPlace(Object)} that exists for the parallel layer framework, where gradients
+	 * are stored without their exact type (see {@link #unsafePlus(ElementContainer)}).
+	 * 
+	 * @param other other element container, with the same type and shape as this one
+	 */
+	@SuppressWarnings("unchecked")
+	public void unsafeAddInPlace(final ElementContainer<?> other) {
+		addInPlace((T) other);
+	}
+	
 	/**
 	 * Subtracts <code>other</code> from <code>this</code>, element-wise.
 	 * 
@@ -2,6 +2,7 @@ package dezzy.neuronz2.math.constructs;
 
 import java.io.Serializable;
 
+import dezzy.neuronz2.math.utility.ApproximateFunctions;
 import dezzy.neuronz2.math.utility.DoubleApplier;
 
 /**
@@ -24,12 +25,39 @@ public final class FuncDerivPair implements Serializable {
 			sigmoid -> sigmoid * (1 - sigmoid)
 	);
 	
+	/**
+	 * Approximate sigmoid activation function, interpolated from a table instead of calling {@link Math#exp(double)}.
+	 * Differs from {@link #SIGMOID} by less than 2e-7 (see {@link ApproximateFunctions#sigmoid(double)})
+	 */
+	public static final FuncDerivPair FAST_SIGMOID = new FuncDerivPair(
+			ApproximateFunctions::sigmoid,
+			sigmoid -> sigmoid * (1 - sigmoid)
+	);
+	
+	/**
+	 * The hyperbolic tangent activation function
+	 */
+	public static final FuncDerivPair TANH = new FuncDerivPair(
+			Math::tanh,
+			tanh -> 1 - (tanh * tanh)
+	);
+	
+	/**
+	 * Approximate hyperbolic tangent activation function, interpolated from a table.
+	 * Differs from {@link #TANH} by less than 4e-7 (see {@link ApproximateFunctions#tanh(double)})
+	 */
+	public static final FuncDerivPair FAST_TANH = new FuncDerivPair(
+			ApproximateFunctions::tanh,
+			tanh -> 1 - (tanh * tanh)
+	);
+	
 	/**
 	 * Rectified Linear Unit activation function
 	 */
 	public static final FuncDerivPair RELU = new FuncDerivPair(
 			x -> (double)Math.max(0, x),
-			relu -> (relu == 0) ? 0 : 1
+			relu -> (relu == 0) ? 0 : 1,
+			1, 0
 	);
 	
 	/**
@@ -37,7 +65,8 @@ public final class FuncDerivPair implements Serializable {
 	 */
 	public static final FuncDerivPair LEAKY_RELU = new FuncDerivPair(
 			x -> (x < 0) ? 0.01 * x : x,
-			relu -> (relu < 0) ? 0.01 : 1
+			relu -> (relu < 0) ? 0.01 : 1,
+			1, 0.01
 	);
 	
 	/**
@@ -50,6 +79,22 @@ public final class FuncDerivPair implements Serializable {
 	 */
 	public final DoubleApplier derivative;
 	
+	/**
+	 * True if {@link #derivative} only ever returns {@link #highDerivative} or {@link #lowDerivative}.
+	 * Layers can then save one bit per element for backpropagation instead of a copy of the output
+	 */
+	public final boolean twoValuedDerivative;
+	
+	/**
+	 * One of the two values of {@link #derivative}, if {@link #twoValuedDerivative} is true
+	 */
+	public final double highDerivative;
+	
+	/**
+	 * The other value of {@link #derivative}, if {@link #twoValuedDerivative} is true
+	 */
+	public final double lowDerivative;
+	
 	/**
 	 * Creates a new FuncDerivPair with the given function and derivative.
 	 * 
@@ -59,5 +104,25 @@ public final class FuncDerivPair implements Serializable {
 	public FuncDerivPair(final DoubleApplier _function, final DoubleApplier _derivative) {
 		function = _function;
 		derivative = _derivative;
+		twoValuedDerivative = false;
+		highDerivative = 0;
+		lowDerivative = 0;
+	}
+	
+	/**
+	 * Creates a new FuncDerivPair whose derivative only ever takes one of two values (for example; ReLU, where
+	 * the derivative is either 1 or 0).
+	 * 
+	 * @param _function original function
+	 * @param _derivative derivative of <code>_function</code>, the output of <code>function</code> for a given input is the input to this function
+	 * @param _highDerivative one of the two values of <code>_derivative</code>
+	 * @param _lowDerivative the other value of <code>_derivative</code>
+	 */
+	public FuncDerivPair(final DoubleApplier _function, final DoubleApplier _derivative, final double _highDerivative, final double _lowDerivative) {
+		function = _function;
+		derivative = _derivative;
+		twoValuedDerivative = true;
+		highDerivative = _highDerivative;
+		lowDerivative = _lowDerivative;
 	}
 }
@@ -1,5 +1,7 @@
 package dezzy.neuronz2.math.constructs;
 
+import java.util.Arrays;
+
 import dezzy.neuronz2.cnn.pooling.PoolingOperation;
 import dezzy.neuronz2.math.constructs.shape.MatrixShape;
 import dezzy.neuronz2.math.utility.DimensionMismatchException;
@@ -166,12 +168,122 @@ public final class Matrix extends ElementContainer<Matrix> {
 	 * @param array array to copy this matrix to
 	 * @param destIndex starting index in <code>array</code> to copy elements to
 	 */
+	@Override
 	public final void copyTo(final double[] array, final int destIndex) {
 		for (int row = 0; row < rows; row++) {
 			System.arraycopy(values[row], 0, array, destIndex + (row * cols), cols);
 		}
 	}
 	
+	@Override
+	public final int elementCount() {
+		return rows * cols;
+	}
+	
+	@Override
+	public final void copyFrom(final double[] array, final int srcIndex) {
+		for (int row = 0; row < rows; row++) {
+			System.arraycopy(array, srcIndex + (row * cols), values[row], 0, cols);
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
+	@Override
+	public final Matrix withElements(final double[] array, final int srcIndex) {
+		final double[][] newValues = new double[rows][cols];
+		
+		for (int row = 0; row < rows; row++) {
+			System.arraycopy(array, srcIndex + (row * cols), newValues[row], 0, cols);
+		}
+		
+		return new Matrix(newValues);
+	}
+	
+	@Override
+	public final void addFrom(final double[] array, final int srcIndex, final double scale) {
+		for (int row = 0; row < rows; row++) {
+			final double[] rowValues = values[row];
+			final int rowIndex = srcIndex + (row * cols);
+			
+			for (int col = 0; col < cols; col++) {
+				rowValues[col] += scale * array[rowIndex + col];
+			}
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
+	@Override
+	public final void addInPlace(final Matrix other) {
+		for (int row = 0; row < rows; row++) {
+			final double[] rowValues = values[row];
+			final double[] otherRowValues = other.values[row];
+			
+			for (int col = 0; col < cols; col++) {
+				rowValues[col] += otherRowValues[col];
+			}
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
+	@Override
+	public final void addScaledInPlace(final Matrix other, final double scale) {
+		for (int row = 0; row < rows; row++) {
+			final double[] rowValues = values[row];
+			final double[] otherRowValues = other.values[row];
+			
+			for (int col = 0; col < cols; col++) {
+				rowValues[col] += scale * otherRowValues[col];
+			}
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
+	@Override
+	public final void clear() {
+		for (int row = 0; row < rows; row++) {
+			Arrays.fill(values[row], 0);
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
+	/**
+	 * Adds the outer product of two Vectors to this Matrix in place, without creating the outer product as
+	 * a separate Matrix (see {@link Vector#outerProduct(Vector)}).
+	 * 
+	 * @param left Vector with {@link #rows} components
+	 * @param right Vector with {@link #cols} components
+	 */
+	public final void addOuterProduct(final Vector left, final Vector right) {
+		addOuterProduct(left, right, 0, rows);
+	}
+	
+	/**
+	 * Adds some rows of the outer product of two Vectors to the same rows of this Matrix in place. Different threads can
+	 * add different ranges of rows at the same time.
+	 * 
+	 * @param left Vector with {@link #rows} components
+	 * @param right Vector with {@link #cols} components
+	 * @param startRow first row to add
+	 * @param endRow last row to add (exclusive)
+	 */
+	public final void addOuterProduct(final Vector left, final Vector right, final int startRow, final int endRow) {
+		for (int row = startRow; row < endRow; row++) {
+			final double[] rowValues = values[row];
+			final double leftValue = left.components[row];
+			
+			for (int col = 0; col < cols; col++) {
+				rowValues[col] += leftValue * right.components[col];
+			}
+		}
+		
+		determinant = Float.MAX_VALUE;
+	}
+	
 	/**
 	 * Multiplies this Matrix with another. Produces a matrix with the same number of rows as this matrix and {@link Matrix#rows other.cols} columns.
 	 * 
@@ -514,6 +626,61 @@ public final class Matrix extends ElementContainer<Matrix> {
 		return new Vector(result);
 	}
 	
+	/**
+	 * Multiplies some rows of this Matrix by a column Vector, and writes the results to the same indices of <code>result</code>.
+	 * Different threads can multiply different ranges of rows at the same time.
+	 * 
+	 * @param vector column vector with {@link #cols} components
+	 * @param result array with {@link #rows} elements to write the results to
+	 * @param startRow first row to multiply
+	 * @param endRow last row to multiply (exclusive)
+	 */
+	public final void multiply(final Vector vector, final double[] result, final int startRow, final int endRow) {
+		if (vector.dimension != cols) {
+			throw new DimensionMismatchException("Vector must have the same number of components as the matrix's number of columns!");
+		}
+		
+		for (int row = startRow; row < endRow; row++) {
+			final double[] rowValues = values[row];
+			double sum = 0;
+			
+			for (int col = 0; col < cols; col++) {
+				sum += vector.components[col] * rowValues[col];
+			}
+			
+			result[row] = sum;
+		}
+	}
+	
+	/**
+	 * Multiplies some columns of the transpose of this Matrix by a column Vector, without creating the transpose, and
+	 * writes the results to the same indices of <code>result</code>. Different threads can multiply different ranges of
+	 * columns at the same time.
+	 * 
+	 * @param vector column vector with {@link #rows} components
+	 * @param result array with {@link #cols} elements to write the results to
+	 * @param startCol first column of this Matrix (row of the transpose) to multiply
+	 * @param endCol last column to multiply (exclusive)
+	 */
+	public final void transposeMultiply(final Vector vector, final double[] result, final int startCol, final int endCol) {
+		if (vector.dimension != rows) {
+			throw new DimensionMismatchException("Vector must have the same number of components as the matrix's number of rows!");
+		}
+		
+		for (int col = startCol; col < endCol; col++) {
+			result[col] = 0;
+		}
+		
+		for (int row = 0; row < rows; row++) {
+			final double[] rowValues = values[row];
+			final double scale = vector.components[row];
+			
+			for (int col = startCol; col < endCol; col++) {
+				result[col] += rowValues[col] * scale;
+			}
+		}
+	}
+	
 	/**
 	 * Returns the dimension of a single row vector. Does not check to ensure that <code>row</code> is within an acceptable range.
 	 * 
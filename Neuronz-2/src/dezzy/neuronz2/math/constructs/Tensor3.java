@@ -236,6 +236,71 @@ public final class Tensor3 extends ElementContainer<Tensor3> {
 		return new Tensor3(result);
 	}
 	
+	@Override
+	public final int elementCount() {
+		return dimension * matrices[0].rows * matrices[0].cols;
+	}
+	
+	@Override
+	public final void copyTo(final double[] array, final int destIndex) {
+		final int layerSize = matrices[0].rows * matrices[0].cols;
+		
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].copyTo(array, destIndex + (layer * layerSize));
+		}
+	}
+	
+	@Override
+	public final void copyFrom(final double[] array, final int srcIndex) {
+		final int layerSize = matrices[0].rows * matrices[0].cols;
+		
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].copyFrom(array, srcIndex + (layer * layerSize));
+		}
+	}
+	
+	@Override
+	public final Tensor3 withElements(final double[] array, final int srcIndex) {
+		final int layerSize = matrices[0].rows * matrices[0].cols;
+		final Matrix[] newMatrices = new Matrix[dimension];
+		
+		for (int layer = 0; layer < dimension; layer++) {
+			newMatrices[layer] = matrices[layer].withElements(array, srcIndex + (layer * layerSize));
+		}
+		
+		return new Tensor3(newMatrices);
+	}
+	
+	@Override
+	public final void addFrom(final double[] array, final int srcIndex, final double scale) {
+		final int layerSize = matrices[0].rows * matrices[0].cols;
+		
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].addFrom(array, srcIndex + (layer * layerSize), scale);
+		}
+	}
+	
+	@Override
+	public final void addInPlace(final Tensor3 other) {
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].addInPlace(other.matrices[layer]);
+		}
+	}
+	
+	@Override
+	public final void addScaledInPlace(final Tensor3 other, final double scale) {
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].addScaledInPlace(other.matrices[layer], scale);
+		}
+	}
+	
+	@Override
+	public final void clear() {
+		for (int layer = 0; layer < dimension; layer++) {
+			matrices[layer].clear();
+		}
+	}
+	
 	@Override
 	public final String toString() {
 		final StringBuilder out = new StringBuilder("[");
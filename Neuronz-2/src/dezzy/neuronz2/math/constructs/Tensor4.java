@@ -127,4 +127,68 @@ public class Tensor4 extends ElementContainer<Tensor4> {
 		return new Tensor4(result);
 	}
 	
+	@Override
+	public int elementCount() {
+		return dimension * tensors[0].elementCount();
+	}
+	
+	@Override
+	public void copyTo(final double[] array, final int destIndex) {
+		final int tensorSize = tensors[0].elementCount();
+		
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].copyTo(array, destIndex + (i * tensorSize));
+		}
+	}
+	
+	@Override
+	public void copyFrom(final double[] array, final int srcIndex) {
+		final int tensorSize = tensors[0].elementCount();
+		
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].copyFrom(array, srcIndex + (i * tensorSize));
+		}
+	}
+	
+	@Override
+	public Tensor4 withElements(final double[] array, final int srcIndex) {
+		final int tensorSize = tensors[0].elementCount();
+		final Tensor3[] newTensors = new Tensor3[dimension];
+		
+		for (int i = 0; i < dimension; i++) {
+			newTensors[i] = tensors[i].withElements(array, srcIndex + (i * tensorSize));
+		}
+		
+		return new Tensor4(newTensors);
+	}
+	
+	@Override
+	public void addFrom(final double[] array, final int srcIndex, final double scale) {
+		final int tensorSize = tensors[0].elementCount();
+		
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].addFrom(array, srcIndex + (i * tensorSize), scale);
+		}
+	}
+	
+	@Override
+	public void addInPlace(final Tensor4 other) {
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].addInPlace(other.tensors[i]);
+		}
+	}
+	
+	@Override
+	public void addScaledInPlace(final Tensor4 other, final double scale) {
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].addScaledInPlace(other.tensors[i], scale);
+		}
+	}
+	
+	@Override
+	public void clear() {
+		for (int i = 0; i < dimension; i++) {
+			tensors[i].clear();
+		}
+	}
 }
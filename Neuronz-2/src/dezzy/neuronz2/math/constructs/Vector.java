@@ -1,5 +1,7 @@
 package dezzy.neuronz2.math.constructs;
 
+import java.util.Arrays;
+
 import dezzy.neuronz2.math.constructs.shape.VectorShape;
 import dezzy.neuronz2.math.utility.DimensionMismatchException;
 import dezzy.neuronz2.math.utility.DoubleApplier;
@@ -160,6 +162,82 @@ public class Vector extends ElementContainer<Vector> {
 		System.arraycopy(components, srcIndex, dest, destIndex, length);
 	}
 	
+	@Override
+	public final int elementCount() {
+		return dimension;
+	}
+	
+	@Override
+	public final void copyTo(final double[] array, final int destIndex) {
+		System.arraycopy(components, 0, array, destIndex, dimension);
+	}
+	
+	/**
+	 * Overwrites the components of this Vector in place. {@link #length} is <b>not</b> recalculated.
+	 * 
+	 * @param array array to copy components from
+	 * @param srcIndex starting index in <code>array</code>
+	 */
+	@Override
+	public final void copyFrom(final double[] array, final int srcIndex) {
+		System.arraycopy(array, srcIndex, components, 0, dimension);
+	}
+	
+	@Override
+	public final Vector withElements(final double[] array, final int srcIndex) {
+		final double[] newComponents = new double[dimension];
+		System.arraycopy(array, srcIndex, newComponents, 0, dimension);
+		
+		return new Vector(newComponents);
+	}
+	
+	/**
+	 * Adds a scaled array to the components of this Vector in place. {@link #length} is <b>not</b> recalculated.
+	 * 
+	 * @param array array containing the values to add
+	 * @param srcIndex starting index in <code>array</code>
+	 * @param scale value that every element of <code>array</code> is multiplied by before it is added
+	 */
+	@Override
+	public final void addFrom(final double[] array, final int srcIndex, final double scale) {
+		for (int i = 0; i < dimension; i++) {
+			components[i] += scale * array[srcIndex + i];
+		}
+	}
+	
+	/**
+	 * Adds another Vector to this Vector in place. {@link #length} is <b>not</b> recalculated.
+	 * 
+	 * @param other Vector with the same dimension as this one
+	 */
+	@Override
+	public final void addInPlace(final Vector other) {
+		for (int i = 0; i < dimension; i++) {
+			components[i] += other.components[i];
+		}
+	}
+	
+	/**
+	 * Adds another Vector, multiplied by <code>scale</code>, to this Vector in place. {@link #length} is <b>not</b> recalculated.
+	 * 
+	 * @param other Vector with the same dimension as this one
+	 * @param scale factor to multiply <code>other</code> by
+	 */
+	@Override
+	public final void addScaledInPlace(final Vector other, final double scale) {
+		for (int i = 0; i < dimension; i++) {
+			components[i] += scale * other.components[i];
+		}
+	}
+	
+	/**
+	 * Sets every component of this Vector to zero in place. {@link #length} is <b>not</b> recalculated.
+	 */
+	@Override
+	public final void clear() {
+		Arrays.fill(components, 0);
+	}
+	
 	/**
 	 * Calculates the length of this Vector using the Pythagorean Theorem.
 	 * 
@@ -0,0 +1,152 @@
+package dezzy.neuronz2.math.test;
+
+import java.util.Random;
+
+import dezzy.neuronz2.arch.layers.ElementActivationLayer;
+import dezzy.neuronz2.math.constructs.FuncDerivPair;
+import dezzy.neuronz2.math.constructs.Tensor3;
+import dezzy.neuronz2.math.utility.ApproximateFunctions;
+import dezzy.neuronz2.math.utility.DoubleApplier;
+import dezzy.neuronz2.math.utility.Functions;
+
+/**
+ * Measures the maximum error and the speed of the approximate functions in {@link ApproximateFunctions}
+ * against the exact functions they replace.
+ *
+ * @author Joe Desmond
+ */
+public final class ActivationBenchmark {
+	
+	/**
+	 * Number of forward passes to average when timing an activation layer
+	 */
+	private static final int LAYER_RUNS = 20;
+	
+	public static final void main(final String[] args) {
+		System.out.println("Maximum error (sweep in steps of 1e-5):");
+		System.out.println("exp (relative, [-700, 700]): " + maxRelativeError(Math::exp, ApproximateFunctions::exp, -700, 700));
+		System.out.println("sigmoid ([-40, 40]): " + maxAbsoluteError(Functions::sigmoid, ApproximateFunctions::sigmoid, -40, 40));
+		System.out.println("tanh ([-40, 40]): " + maxAbsoluteError(Math::tanh, ApproximateFunctions::tanh, -40, 40));
+		System.out.println();
+		
+		final double[] inputs = new double[10_000_000];
+		final Random random = new Random(0);
+		
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = (random.nextDouble() * 20) - 10;
+		}
+		
+		// Warm up both versions so that the JIT compiles them before timing
+		for (int i = 0; i < 5; i++) {
+			time(Math::exp, inputs);
+			time(ApproximateFunctions::exp, inputs);
+			time(Functions::sigmoid, inputs);
+			time(ApproximateFunctions::sigmoid, inputs);
+			time(Math::tanh, inputs);
+			time(ApproximateFunctions::tanh, inputs);
+		}
+		
+		System.out.println("Time for " + inputs.length + " elements:");
+		System.out.println("Math.exp: " + time(Math::exp, inputs) + " ms");
+		System.out.println("ApproximateFunctions.exp: " + time(ApproximateFunctions::exp, inputs) + " ms");
+		System.out.println("Functions.sigmoid: " + time(Functions::sigmoid, inputs) + " ms");
+		System.out.println("ApproximateFunctions.sigmoid: " + time(ApproximateFunctions::sigmoid, inputs) + " ms");
+		System.out.println("Math.tanh: " + time(Math::tanh, inputs) + " ms");
+		System.out.println("ApproximateFunctions.tanh: " + time(ApproximateFunctions::tanh, inputs) + " ms");
+		System.out.println();
+		
+		final Tensor3 featureMaps = Tensor3.generate(indices -> (random.nextDouble() * 20) - 10, 10, 256, 256);
+		final ElementActivationLayer<Tensor3> exactLayer = new ElementActivationLayer<>(FuncDerivPair.SIGMOID);
+		final ElementActivationLayer<Tensor3> approximateLayer = new ElementActivationLayer<>(FuncDerivPair.FAST_SIGMOID);
+		
+		for (int i = 0; i < 5; i++) {
+			exactLayer.forwardPass(featureMaps);
+			approximateLayer.forwardPass(featureMaps);
+		}
+		
+		System.out.println("Sigmoid layer forward pass on 10x256x256 feature maps (average of " + LAYER_RUNS + " runs):");
+		System.out.println("SIGMOID: " + timeLayer(exactLayer, featureMaps) + " ms");
+		System.out.println("FAST_SIGMOID: " + timeLayer(approximateLayer, featureMaps) + " ms");
+	}
+	
+	/**
+	 * Finds the largest absolute difference between two functions over an interval.
+	 * 
+	 * @param exact exact function
+	 * @param approximate approximate function
+	 * @param from start of the interval
+	 * @param to end of the interval
+	 * @return maximum absolute error
+	 */
+	private static final double maxAbsoluteError(final DoubleApplier exact, final DoubleApplier approximate, final double from, final double to) {
+		double maxError = 0;
+		
+		for (double x = from; x <= to; x += 1e-5) {
+			maxError = Math.max(maxError, Math.abs(exact.apply(x) - approximate.apply(x)));
+		}
+		
+		return maxError;
+	}
+	
+	/**
+	 * Finds the largest relative difference between two functions over an interval.
+	 * 
+	 * @param exact exact function
+	 * @param approximate approximate function
+	 * @param from start of the interval
+	 * @param to end of the interval
+	 * @return maximum relative error
+	 */
+	private static final double maxRelativeError(final DoubleApplier exact, final DoubleApplier approximate, final double from, final double to) {
+		double maxError = 0;
+		
+		for (double x = from; x <= to; x += 1e-5) {
+			final double expected = exact.apply(x);
+			maxError = Math.max(maxError, Math.abs(expected - approximate.apply(x)) / expected);
+		}
+		
+		return maxError;
+	}
+	
+	/**
+	 * Applies a function to every input and returns the elapsed time.
+	 * 
+	 * @param function function to time
+	 * @param inputs inputs to the function
+	 * @return elapsed time in milliseconds
+	 */
+	private static final long time(final DoubleApplier function, final double[] inputs) {
+		double sum = 0;
+		final long startMillis = System.currentTimeMillis();
+		
+		for (int i = 0; i < inputs.length; i++) {
+			sum += function.apply(inputs[i]);
+		}
+		
+		final long endMillis = System.currentTimeMillis();
+		
+		// Use the sum so that the loop is not optimized away
+		if (sum == Double.MIN_VALUE) {
+			System.out.println(sum);
+		}
+		
+		return endMillis - startMillis;
+	}
+	
+	/**
+	 * Runs {@link #LAYER_RUNS} forward passes through an activation layer and returns the average time.
+	 * 
+	 * @param layer activation layer
+	 * @param input input to the layer
+	 * @return average time per forward pass in milliseconds
+	 */
+	private static final double timeLayer(final ElementActivationLayer<Tensor3> layer, final Tensor3 input) {
+		final long startMillis = System.currentTimeMillis();
+		
+		for (int i = 0; i < LAYER_RUNS; i++) {
+			layer.forwardPass(input);
+		}
+		
+		return (System.currentTimeMillis() - startMillis) / (double) LAYER_RUNS;
+	}
+}
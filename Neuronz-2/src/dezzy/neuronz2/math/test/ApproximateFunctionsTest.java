@@ -0,0 +1,140 @@
+package dezzy.neuronz2.math.test;
+
+import java.util.function.DoubleUnaryOperator;
+
+import dezzy.neuronz2.math.utility.ApproximateFunctions;
+import dezzy.neuronz2.math.utility.Functions;
+
+/**
+ * Checks the error bounds documented in {@link ApproximateFunctions}. Inputs are taken densely across each table, and also
+ * right at the edges of each table (the edge itself and the neighbouring doubles on both sides), where a rounded table
+ * position can land on the last entry.
+ *
+ * @author Joe Desmond
+ */
+public final class ApproximateFunctionsTest {
+	
+	/**
+	 * The inputs where the sigmoid table starts and ends
+	 */
+	private static final double SIGMOID_EDGE = 16;
+	
+	/**
+	 * The inputs where the sigmoid table starts and ends, as used by {@link ApproximateFunctions#tanh(double)}
+	 */
+	private static final double TANH_EDGE = SIGMOID_EDGE / 2;
+	
+	/**
+	 * Number of evenly spaced inputs in each dense sweep
+	 */
+	private static final int SWEEP_STEPS = 1_000_000;
+	
+	public static final void main(final String[] args) {
+		checkTable("sigmoid", ApproximateFunctions::sigmoid, Functions::sigmoid, SIGMOID_EDGE, 2e-7);
+		checkTable("tanh", ApproximateFunctions::tanh, Math::tanh, TANH_EDGE, 4e-7);
+		checkExp();
+		
+		System.out.println("All approximate function tests passed");
+	}
+	
+	/**
+	 * Checks the absolute error of a function whose table covers <code>-edge</code> to <code>edge</code>.
+	 * 
+	 * @param name name of the function, for error messages
+	 * @param approximate approximate function
+	 * @param exact exact function
+	 * @param edge the input where the table ends
+	 * @param bound the documented maximum absolute error
+	 */
+	private static final void checkTable(final String name, final DoubleUnaryOperator approximate, final DoubleUnaryOperator exact, final double edge, final double bound) {
+		final double[] edges = {-edge, edge, 0};
+		
+		for (int i = 0; i < edges.length; i++) {
+			double x = edges[i];
+			
+			// A few doubles on each side of the edge
+			for (int j = 0; j < 4; j++) {
+				x = Math.nextDown(x);
+			}
+			
+			for (int j = 0; j < 9; j++) {
+				checkPoint(name, approximate, exact, x, bound);
+				x = Math.nextUp(x);
+			}
+		}
+		
+		for (int i = 0; i <= SWEEP_STEPS; i++) {
+			final double x = -2 * edge + ((4 * edge * i) / SWEEP_STEPS);
+			checkPoint(name, approximate, exact, x, bound);
+		}
+		
+		System.out.println(name + " is within " + bound + " everywhere");
+	}
+	
+	/**
+	 * Checks the absolute error of a function at one input.
+	 * 
+	 * @param name name of the function, for error messages
+	 * @param approximate approximate function
+	 * @param exact exact function
+	 * @param x input
+	 * @param bound the documented maximum absolute error
+	 */
+	private static final void checkPoint(final String name, final DoubleUnaryOperator approximate, final DoubleUnaryOperator exact, final double x, final double bound) {
+		final double error = Math.abs(approximate.applyAsDouble(x) - exact.applyAsDouble(x));
+		
+		if (!(error < bound)) {
+			throw new IllegalStateException(name + "(" + x + ") is off by " + error + ", more than " + bound);
+		}
+	}
+	
+	/**
+	 * Checks the relative error of {@link ApproximateFunctions#exp(double)} just below, at, and just above every integer power of
+	 * 2 (where the table of <code>2^f</code> starts and ends), and densely across the range that does not underflow.
+	 */
+	private static final void checkExp() {
+		for (int n = -1021; n <= 1023; n++) {
+			double x = n * Math.log(2);
+			
+			for (int j = 0; j < 4; j++) {
+				x = Math.nextDown(x);
+			}
+			
+			for (int j = 0; j < 9; j++) {
+				checkExp(x);
+				x = Math.nextUp(x);
+			}
+		}
+		
+		// Just below zero, x * log2(e) - floor(x * log2(e)) rounds to exactly 1
+		checkExp(-Double.MIN_VALUE);
+		checkExp(-1e-300);
+		checkExp(-1e-20);
+		
+		for (int i = 0; i <= SWEEP_STEPS; i++) {
+			final double x = -700 + ((1400.0 * i) / SWEEP_STEPS);
+			checkExp(x);
+		}
+		
+		System.out.println("exp is within a relative error of 6e-8 everywhere");
+	}
+	
+	/**
+	 * Checks the relative error of {@link ApproximateFunctions#exp(double)} at one input.
+	 * 
+	 * @param x input
+	 */
+	private static final void checkExp(final double x) {
+		final double exact = Math.exp(x);
+		
+		if (exact == 0 || Double.isInfinite(exact)) {
+			return;
+		}
+		
+		final double error = Math.abs((ApproximateFunctions.exp(x) - exact) / exact);
+		
+		if (!(error < 6e-8)) {
+			throw new IllegalStateException("exp(" + x + ") is off by a relative error of " + error + ", more than 6e-8");
+		}
+	}
+}
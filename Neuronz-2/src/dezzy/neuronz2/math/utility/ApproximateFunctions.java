@@ -0,0 +1,129 @@
+package dezzy.neuronz2.math.utility;
+
+/**
+ * Table-driven approximations of some of the functions in {@link Math} and {@link Functions}. These are
+ * faster than the exact functions because they replace the call to {@link Math#exp(double)} with a table lookup
+ * and a linear interpolation. The maximum error of each function is documented with the function, and
+ * is checked at the edges of each table by {@link dezzy.neuronz2.math.test.ApproximateFunctionsTest ApproximateFunctionsTest}.
+ *
+ * @author Joe Desmond
+ */
+public final class ApproximateFunctions {
+	
+	/**
+	 * The sigmoid table covers inputs from <code>-SIGMOID_RANGE</code> to <code>SIGMOID_RANGE</code>. Outside of this
+	 * range the sigmoid function is within 1.2e-7 of 0 or 1
+	 */
+	private static final double SIGMOID_RANGE = 16;
+	
+	/**
+	 * Number of sigmoid table entries per unit of input
+	 */
+	private static final int SIGMOID_STEPS_PER_UNIT = 256;
+	
+	/**
+	 * Sigmoid values at evenly spaced points from <code>-SIGMOID_RANGE</code> to <code>SIGMOID_RANGE</code>
+	 */
+	private static final double[] SIGMOID_TABLE = new double[(int)(2 * SIGMOID_RANGE * SIGMOID_STEPS_PER_UNIT) + 1];
+	
+	/**
+	 * Number of intervals in the table of <code>2^f</code> for <code>0 &lt;= f &lt;= 1</code>
+	 */
+	private static final int EXP2_TABLE_SIZE = 1024;
+	
+	/**
+	 * Values of <code>2^f</code> at evenly spaced points from <code>f = 0</code> to <code>f = 1</code>
+	 */
+	private static final double[] EXP2_TABLE = new double[EXP2_TABLE_SIZE + 1];
+	
+	/**
+	 * <code>log2(e)</code>, used to convert a power of e to a power of 2
+	 */
+	private static final double LOG2_E = 1.0 / Math.log(2);
+	
+	/**
+	 * Inputs larger than this overflow <code>e^x</code> to infinity
+	 */
+	private static final double MAX_EXP_INPUT = 709.782712893384;
+	
+	/**
+	 * Inputs smaller than this produce a subnormal <code>e^x</code>, which cannot be built directly from
+	 * an exponent and a mantissa
+	 */
+	private static final double MIN_NORMAL_EXP_INPUT = -708.0;
+	
+	static {
+		for (int i = 0; i < SIGMOID_TABLE.length; i++) {
+			final double x = (i / (double) SIGMOID_STEPS_PER_UNIT) - SIGMOID_RANGE;
+			SIGMOID_TABLE[i] = Functions.sigmoid(x);
+		}
+		
+		for (int i = 0; i < EXP2_TABLE.length; i++) {
+			EXP2_TABLE[i] = Math.pow(2, i / (double) EXP2_TABLE_SIZE);
+		}
+	}
+	
+	/**
+	 * Approximates <code>e^x</code>. The input is split into <code>2^(n + f)</code>, where <code>n</code>
+	 * is an integer and <code>0 &lt;= f &lt; 1</code>; <code>2^f</code> is interpolated from a table and
+	 * scaled by <code>2^n</code>. The relative error is less than 6e-8 for every input that does not
+	 * underflow.
+	 * 
+	 * @param x input
+	 * @return approximately <code>e^x</code>
+	 */
+	public static final double exp(final double x) {
+		if (x > MAX_EXP_INPUT) {
+			return Double.POSITIVE_INFINITY;
+		} else if (!(x >= MIN_NORMAL_EXP_INPUT)) {
+			// Subnormal results (and NaN) are rare enough to be left to the exact function
+			return Math.exp(x);
+		}
+		
+		final double power = x * LOG2_E;
+		final int exponent = (int) Math.floor(power);
+		final double position = (power - exponent) * EXP2_TABLE_SIZE;
+		
+		// (power - exponent) rounds up to 1 when power is just below an integer, so the last interval is used for that too
+		final int index = Math.min((int) position, EXP2_TABLE_SIZE - 1);
+		final double low = EXP2_TABLE[index];
+		final double mantissa = low + ((position - index) * (EXP2_TABLE[index + 1] - low));
+		
+		// 2^exponent, built directly from the IEEE 754 exponent bits
+		return mantissa * Double.longBitsToDouble((long)(exponent + 1023) << 52);
+	}
+	
+	/**
+	 * Approximates the sigmoid function by interpolating between values in a table. The absolute
+	 * error is less than 2e-7 for every input.
+	 * 
+	 * @param x input
+	 * @return approximately <code>1/(1 + e^-x)</code>
+	 */
+	public static final double sigmoid(final double x) {
+		if (x <= -SIGMOID_RANGE) {
+			return 0;
+		} else if (x >= SIGMOID_RANGE) {
+			return 1;
+		}
+		
+		final double position = (x + SIGMOID_RANGE) * SIGMOID_STEPS_PER_UNIT;
+		
+		// x + SIGMOID_RANGE rounds up to the end of the table when x is just below SIGMOID_RANGE
+		final int index = Math.min((int) position, SIGMOID_TABLE.length - 2);
+		final double low = SIGMOID_TABLE[index];
+		
+		return low + ((position - index) * (SIGMOID_TABLE[index + 1] - low));
+	}
+	
+	/**
+	 * Approximates the hyperbolic tangent with the sigmoid table, using <code>tanh(x) = 2 * sigmoid(2x) - 1</code>.
+	 * The absolute error is less than 4e-7 for every input.
+	 * 
+	 * @param x input
+	 * @return approximately <code>tanh(x)</code>
+	 */
+	public static final double tanh(final double x) {
+		return (2 * sigmoid(2 * x)) - 1;
+	}
+}
@@ -0,0 +1,438 @@
+package dezzy.neuronz2.network;
+
+import dezzy.neuronz2.arch.IntraOpExecutor;
+import dezzy.neuronz2.math.constructs.Matrix;
+import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.DoubleApplier;
+import dezzy.neuronz2.math.utility.DoubleOperator;
+
+/**
+ * Runs and trains a {@link Network} on a whole batch of samples at once, as matrix-matrix products (GEMM) over preallocated
+ * buffers. {@link Network#run(Vector)} and {@link Network#backprop(Vector, Vector)} work on one sample at a time, append a
+ * bias element to every activation vector, transpose every weight matrix, and allocate a new weight gradient tensor for
+ * every sample; this engine does none of that. The bias is handled as the last column of each weight matrix directly, the
+ * transposed products are done by reading the weights in the other order, and the gradients of every sample are added in
+ * place to one set of buffers that lives as long as the engine.
+ * <p>
+ * The network stays the owner of the weights: they are copied out of {@link Network#weightTensor} at the start of every
+ * batch, and copied back after every {@link #update(double)}, so the network can still be run, saved and loaded as before
+ * (the <code>.ntwk</code> files do not change). The results are the same as those of <code>backprop()</code> and
+ * {@link Network#applyWeightDeltas(dezzy.neuronz2.math.constructs.Tensor3, double)} on the same samples: every sum is taken
+ * in the same order.
+ * <p>
+ * The engine can split each product across the threads of an {@link IntraOpExecutor} (see
+ * {@link #setIntraOpParallelism(IntraOpExecutor, int)}). The buffers belong to the engine, so one engine must only be used
+ * by one thread at a time.
+ *
+ * @author Joe Desmond
+ */
+public final class BatchedNetworkEngine {
+	
+	/**
+	 * The network that is run and trained
+	 */
+	public final Network network;
+	
+	/**
+	 * The most samples in one batch
+	 */
+	public final int maxBatchSize;
+	
+	/**
+	 * The number of neurons in each layer, including the input and output layers (not counting the bias)
+	 */
+	private final int[] sizes;
+	
+	/**
+	 * The weights of each layer of weights, row-major, with the biases in the last column (as in {@link Network#weightTensor})
+	 */
+	private final double[][] weights;
+	
+	/**
+	 * The summed weight gradients of each layer of weights since the last update, laid out like {@link #weights}
+	 */
+	private final double[][] gradients;
+	
+	/**
+	 * The activations of each layer of neurons for each sample in the batch: <code>activations[layer][sample][neuron]</code>
+	 */
+	private final double[][][] activations;
+	
+	/**
+	 * The derivative of the error with respect to the input of each neuron (before the activation function), laid out like
+	 * {@link #activations}. Not used for the input layer
+	 */
+	private final double[][][] errors;
+	
+	/**
+	 * One vector per sample wrapping the output activations, returned by {@link #run(Vector[], int)}
+	 */
+	private final Vector[] outputs;
+	
+	/**
+	 * Activation function of each layer of weights
+	 */
+	private final DoubleApplier[] functions;
+	
+	/**
+	 * Derivative of each activation function, in terms of the activation
+	 */
+	private final DoubleApplier[] derivatives;
+	
+	/**
+	 * Derivative of the cost function
+	 */
+	private final DoubleOperator costFunctionDerivative;
+	
+	/**
+	 * The number of samples whose gradients are in {@link #gradients}
+	 */
+	private int pendingSamples = 0;
+	
+	/**
+	 * Threads to split each product across, or null
+	 */
+	private IntraOpExecutor executor = null;
+	
+	/**
+	 * Number of ranges to split each product into
+	 */
+	private int degree = 1;
+	
+	/**
+	 * Creates an engine for the given network, with buffers for up to <code>_maxBatchSize</code> samples at a time.
+	 * 
+	 * @param _network network to run and train
+	 * @param _maxBatchSize most samples in one batch
+	 */
+	public BatchedNetworkEngine(final Network _network, final int _maxBatchSize) {
+		network = _network;
+		maxBatchSize = _maxBatchSize;
+		
+		final int weightLayers = network.weightTensor.dimension;
+		sizes = new int[weightLayers + 1];
+		
+		for (int layer = 0; layer < weightLayers; layer++) {
+			final Matrix layerWeights = network.weightTensor.getLayer(layer);
+			
+			sizes[layer] = layerWeights.cols - 1;
+			sizes[layer + 1] = layerWeights.rows;
+		}
+		
+		weights = new double[weightLayers][];
+		gradients = new double[weightLayers][];
+		functions = new DoubleApplier[weightLayers];
+		derivatives = new DoubleApplier[weightLayers];
+		
+		for (int layer = 0; layer < weightLayers; layer++) {
+			weights[layer] = new double[sizes[layer + 1] * (sizes[layer] + 1)];
+			gradients[layer] = new double[weights[layer].length];
+			functions[layer] = network.activationFunction(layer).function;
+			derivatives[layer] = network.activationFunction(layer).derivative;
+		}
+		
+		activations = new double[sizes.length][maxBatchSize][];
+		errors = new double[sizes.length][maxBatchSize][];
+		outputs = new Vector[maxBatchSize];
+		
+		for (int layer = 0; layer < sizes.length; layer++) {
+			for (int sample = 0; sample < maxBatchSize; sample++) {
+				activations[layer][sample] = new double[sizes[layer]];
+				errors[layer][sample] = new double[sizes[layer]];
+			}
+		}
+		
+		for (int sample = 0; sample < maxBatchSize; sample++) {
+			outputs[sample] = new Vector(activations[sizes.length - 1][sample]);
+		}
+		
+		costFunctionDerivative = network.costFunctionDerivative();
+	}
+	
+	/**
+	 * Splits each product into <code>_degree</code> ranges of samples (or of neurons, for the weight gradients) on the given
+	 * executor.
+	 * 
+	 * @param _executor threads to split the work across, or null to use only the calling thread
+	 * @param _degree number of ranges to split each product into; 1 to use only the calling thread
+	 */
+	public void setIntraOpParallelism(final IntraOpExecutor _executor, final int _degree) {
+		executor = _executor;
+		degree = Math.max(1, _degree);
+	}
+	
+	/**
+	 * Runs the first <code>count</code> inputs through the network. The returned vectors are reused: they are overwritten by
+	 * the next call to {@link #run(Vector[], int)} or {@link #train(Vector[], Vector[], int)}.
+	 * 
+	 * @param inputs input vectors (without the bias element)
+	 * @param count number of inputs to run (at most {@link #maxBatchSize})
+	 * @return the output of the network for each input; the first <code>count</code> elements are valid
+	 */
+	public Vector[] run(final Vector[] inputs, final int count) {
+		checkCount(count);
+		loadWeights();
+		forward(inputs, count);
+		
+		return outputs;
+	}
+	
+	/**
+	 * Runs the first <code>count</code> inputs through the network and adds the weight gradients of every sample to this
+	 * engine's gradient buffers. The network is not changed until {@link #update(double)} is called, so a minibatch that
+	 * is larger than {@link #maxBatchSize} can be trained with several calls.
+	 * 
+	 * @param inputs input vectors (without the bias element)
+	 * @param ideals expected output for each input
+	 * @param count number of samples (at most {@link #maxBatchSize})
+	 * @return the output of the network for each input (reused as in {@link #run(Vector[], int)})
+	 */
+	public Vector[] train(final Vector[] inputs, final Vector[] ideals, final int count) {
+		checkCount(count);
+		loadWeights();
+		forward(inputs, count);
+		
+		final int outputLayer = sizes.length - 1;
+		final DoubleApplier outputDerivative = derivatives[outputLayer - 1];
+		
+		for (int sample = 0; sample < count; sample++) {
+			final double[] output = activations[outputLayer][sample];
+			final double[] error = errors[outputLayer][sample];
+			final Vector ideal = ideals[sample];
+			
+			for (int neuron = 0; neuron < output.length; neuron++) {
+				error[neuron] = costFunctionDerivative.operate(output[neuron], ideal.get(neuron)) * outputDerivative.apply(output[neuron]);
+			}
+		}
+		
+		for (int layer = outputLayer - 1; layer >= 0; layer--) {
+			final int weightLayer = layer;
+			
+			IntraOpExecutor.run(executor, degree, sizes[weightLayer + 1], (start, end) -> addGradients(weightLayer, count, start, end));
+			
+			if (weightLayer > 0) {
+				IntraOpExecutor.run(executor, degree, count, (start, end) -> propagateErrors(weightLayer, start, end));
+			}
+		}
+		
+		pendingSamples += count;
+		
+		return outputs;
+	}
+	
+	/**
+	 * Updates the network with the mean of the gradients added since the last update (plain gradient descent, as in
+	 * {@link NetworkRunner}), and clears the gradient buffers.
+	 * 
+	 * @param learningRate learning rate
+	 */
+	public void update(final double learningRate) {
+		if (pendingSamples == 0) {
+			return;
+		}
+		
+		final double scale = learningRate / pendingSamples;
+		
+		for (int layer = 0; layer < weights.length; layer++) {
+			final double[] layerWeights = weights[layer];
+			final double[] layerGradients = gradients[layer];
+			
+			for (int i = 0; i < layerWeights.length; i++) {
+				layerWeights[i] -= layerGradients[i] * scale;
+				layerGradients[i] = 0;
+			}
+			
+			network.weightTensor.getLayer(layer).copyFrom(layerWeights, 0);
+		}
+		
+		pendingSamples = 0;
+	}
+	
+	/**
+	 * Returns the number of samples whose gradients have been added since the last update.
+	 * 
+	 * @return number of pending samples
+	 */
+	public int pendingSamples() {
+		return pendingSamples;
+	}
+	
+	/**
+	 * Copies the weights of the network into {@link #weights}.
+	 */
+	private void loadWeights() {
+		for (int layer = 0; layer < weights.length; layer++) {
+			network.weightTensor.getLayer(layer).copyTo(weights[layer], 0);
+		}
+	}
+	
+	/**
+	 * Copies the inputs into the first layer of activations, and runs them through every layer of weights.
+	 * 
+	 * @param inputs input vectors
+	 * @param count number of samples
+	 */
+	private void forward(final Vector[] inputs, final int count) {
+		for (int sample = 0; sample < count; sample++) {
+			final double[] input = activations[0][sample];
+			
+			if (inputs[sample].dimension != input.length) {
+				throw new IllegalArgumentException("Input " + sample + " has " + inputs[sample].dimension + " elements, but the network has " + input.length + " inputs!");
+			}
+			
+			inputs[sample].copyTo(input, 0);
+		}
+		
+		for (int layer = 0; layer < weights.length; layer++) {
+			final int weightLayer = layer;
+			
+			IntraOpExecutor.run(executor, degree, count, (start, end) -> forwardLayer(weightLayer, start, end));
+		}
+	}
+	
+	/**
+	 * Computes the activations of the layer after <code>weightLayer</code> for samples <code>start</code> to
+	 * <code>end - 1</code>: <code>f(A W<sup>T</sup> + b)</code>. Each row of weights is applied to four samples at a time, so
+	 * that it is loaded once for all four.
+	 * 
+	 * @param weightLayer index of the layer of weights
+	 * @param start first sample
+	 * @param end last sample (exclusive)
+	 */
+	private void forwardLayer(final int weightLayer, final int start, final int end) {
+		final double[] layerWeights = weights[weightLayer];
+		final double[][] in = activations[weightLayer];
+		final double[][] out = activations[weightLayer + 1];
+		final DoubleApplier function = functions[weightLayer];
+		final int inputs = sizes[weightLayer];
+		final int cols = inputs + 1;
+		
+		for (int neuron = 0; neuron < sizes[weightLayer + 1]; neuron++) {
+			final int offset = neuron * cols;
+			final double bias = layerWeights[offset + inputs];
+			int sample = start;
+			
+			for (; sample + 3 < end; sample += 4) {
+				final double[] in0 = in[sample];
+				final double[] in1 = in[sample + 1];
+				final double[] in2 = in[sample + 2];
+				final double[] in3 = in[sample + 3];
+				double sum0 = 0;
+				double sum1 = 0;
+				double sum2 = 0;
+				double sum3 = 0;
+				
+				for (int i = 0; i < inputs; i++) {
+					final double weight = layerWeights[offset + i];
+					
+					sum0 += in0[i] * weight;
+					sum1 += in1[i] * weight;
+					sum2 += in2[i] * weight;
+					sum3 += in3[i] * weight;
+				}
+				
+				out[sample][neuron] = function.apply(sum0 + bias);
+				out[sample + 1][neuron] = function.apply(sum1 + bias);
+				out[sample + 2][neuron] = function.apply(sum2 + bias);
+				out[sample + 3][neuron] = function.apply(sum3 + bias);
+			}
+			
+			for (; sample < end; sample++) {
+				final double[] in0 = in[sample];
+				double sum = 0;
+				
+				for (int i = 0; i < inputs; i++) {
+					sum += in0[i] * layerWeights[offset + i];
+				}
+				
+				out[sample][neuron] = function.apply(sum + bias);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the weight gradients of every sample for neurons <code>start</code> to <code>end - 1</code> of the layer after
+	 * <code>weightLayer</code>: <code>E<sup>T</sup> A</code>, with the bias gradients in the last column. Each range of
+	 * neurons owns its rows of the gradient, so the ranges never write to the same place.
+	 * 
+	 * @param weightLayer index of the layer of weights
+	 * @param count number of samples
+	 * @param start first neuron
+	 * @param end last neuron (exclusive)
+	 */
+	private void addGradients(final int weightLayer, final int count, final int start, final int end) {
+		final double[] layerGradients = gradients[weightLayer];
+		final double[][] in = activations[weightLayer];
+		final double[][] error = errors[weightLayer + 1];
+		final int inputs = sizes[weightLayer];
+		final int cols = inputs + 1;
+		
+		for (int neuron = start; neuron < end; neuron++) {
+			final int offset = neuron * cols;
+			
+			for (int sample = 0; sample < count; sample++) {
+				final double delta = error[sample][neuron];
+				final double[] input = in[sample];
+				
+				for (int i = 0; i < inputs; i++) {
+					layerGradients[offset + i] += delta * input[i];
+				}
+				
+				layerGradients[offset + inputs] += delta;
+			}
+		}
+	}
+	
+	/**
+	 * Computes the error derivatives of the layer of neurons before <code>weightLayer</code> for samples <code>start</code> to
+	 * <code>end - 1</code>: <code>(E W) &#8857; f'(A)</code>, skipping the bias column. The weights are read row by row, so
+	 * they never have to be transposed.
+	 * 
+	 * @param weightLayer index of the layer of weights (at least 1)
+	 * @param start first sample
+	 * @param end last sample (exclusive)
+	 */
+	private void propagateErrors(final int weightLayer, final int start, final int end) {
+		final double[] layerWeights = weights[weightLayer];
+		final double[][] nextError = errors[weightLayer + 1];
+		final double[][] error = errors[weightLayer];
+		final double[][] in = activations[weightLayer];
+		final DoubleApplier derivative = derivatives[weightLayer - 1];
+		final int inputs = sizes[weightLayer];
+		final int cols = inputs + 1;
+		
+		for (int sample = start; sample < end; sample++) {
+			final double[] delta = nextError[sample];
+			final double[] sampleError = error[sample];
+			final double[] input = in[sample];
+			
+			for (int i = 0; i < inputs; i++) {
+				sampleError[i] = 0;
+			}
+			
+			for (int neuron = 0; neuron < delta.length; neuron++) {
+				final double neuronDelta = delta[neuron];
+				final int offset = neuron * cols;
+				
+				for (int i = 0; i < inputs; i++) {
+					sampleError[i] += neuronDelta * layerWeights[offset + i];
+				}
+			}
+			
+			for (int i = 0; i < inputs; i++) {
+				sampleError[i] *= derivative.apply(input[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Checks that a batch fits in the buffers.
+	 * 
+	 * @param count number of samples
+	 */
+	private void checkCount(final int count) {
+		if (count > maxBatchSize) {
+			throw new IllegalArgumentException("Batch of " + count + " samples does not fit in an engine for " + maxBatchSize + " samples!");
+		}
+	}
+}
@@ -12,6 +12,7 @@ import dezzy.neuronz2.math.constructs.FuncDerivPair;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Tensor3;
 import dezzy.neuronz2.math.constructs.Vector;
+import dezzy.neuronz2.math.utility.DimensionMismatchException;
 import dezzy.neuronz2.math.utility.DoubleApplier;
 import dezzy.neuronz2.math.utility.DoubleOperator;
 
@@ -47,6 +48,12 @@ public final class Network implements Serializable {
 	 */
 	private final int layers;
 	
+	/**
+	 * Two activation buffers per thread for {@link #predict(Vector, double[])}. Not saved with the network; created when first
+	 * needed
+	 */
+	private transient volatile ThreadLocal<double[][]> inferenceBuffers;
+	
 	/**
 	 * Creates a neural network with the specified layer sizes. The weights and biases are initialized to random Standard Normal values. A network created with this
 	 * constructor will use the sigmoid activation function for each layer and MSE as the cost function. To change these functions, use {@link Network#Network(int[], FuncDerivPair[], DoubleOperator)}.
@@ -166,13 +173,123 @@ public final class Network implements Serializable {
 	}
 	
 	/**
-	 * Apply the weight gradients with the given learning rate.
+	 * Runs the network on the given input and writes the output to <code>output</code>, without keeping the activations of the
+	 * hidden layers. This gives the same output as {@link #run(Vector)}, but nothing is allocated: the bias column of each
+	 * weight matrix is added directly instead of appending a 1 to each activation vector, and the hidden activations go back
+	 * and forth between two buffers that belong to the calling thread. Any number of threads can call this at the same time,
+	 * as long as the network is not being trained while they do.
+	 * 
+	 * @param input input vector (without the bias element)
+	 * @param output array to write the output to, with one element per output neuron
+	 * @return <code>output</code>
+	 * @throws DimensionMismatchException if <code>input</code> or <code>output</code> does not match the network
+	 */
+	public final double[] predict(final Vector input, final double[] output) {
+		final Tensor3 weights = weightTensor;
+		
+		if (input.dimension != weights.getLayer(0).cols - 1 || output.length != weights.getLayer(weights.dimension - 1).rows) {
+			throw new DimensionMismatchException("Input and output must have as many elements as the network has input and output neurons!");
+		}
+		
+		final ThreadLocal<double[][]> threadBuffers = inferenceBuffers();
+		double[][] buffers = threadBuffers.get();
+		int width = 0;
+		
+		for (int layer = 0; layer < weights.dimension - 1; layer++) {
+			width = Math.max(width, weights.getLayer(layer).rows);
+		}
+		
+		if (buffers[0].length < width) {
+			buffers = new double[][] {new double[width], new double[width]};
+			threadBuffers.set(buffers);
+		}
+		
+		double[] previous = null;
+		
+		for (int layer = 0; layer < weights.dimension; layer++) {
+			final Matrix layerWeights = weights.getLayer(layer);
+			final DoubleApplier activationFunction = activationFunctions[layer].function;
+			final double[] next = (layer == weights.dimension - 1) ? output : buffers[layer & 1];
+			final int biasColumn = layerWeights.cols - 1;
+			
+			for (int row = 0; row < layerWeights.rows; row++) {
+				double sum = 0;
+				
+				if (previous == null) {
+					for (int col = 0; col < biasColumn; col++) {
+						sum += input.get(col) * layerWeights.get(row, col);
+					}
+				} else {
+					for (int col = 0; col < biasColumn; col++) {
+						sum += previous[col] * layerWeights.get(row, col);
+					}
+				}
+				
+				next[row] = activationFunction.apply(sum + layerWeights.get(row, biasColumn));
+			}
+			
+			previous = next;
+		}
+		
+		return output;
+	}
+	
+	/**
+	 * Runs the network on the given input and returns only the output; see {@link #predict(Vector, double[])}. The only
+	 * allocation is the output vector.
+	 * 
+	 * @param input input vector (without the bias element)
+	 * @return output vector
+	 */
+	public final Vector predict(final Vector input) {
+		return new Vector(predict(input, new double[weightTensor.getLayer(weightTensor.dimension - 1).rows]));
+	}
+	
+	/**
+	 * Returns the activation buffers of every thread, creating them if this is the first call since the network was created
+	 * or loaded. If two threads get here first at the same time, one of their thread locals is dropped, which only costs
+	 * one extra pair of buffers.
+	 * 
+	 * @return per-thread activation buffers
+	 */
+	private ThreadLocal<double[][]> inferenceBuffers() {
+		ThreadLocal<double[][]> buffers = inferenceBuffers;
+		
+		if (buffers == null) {
+			buffers = ThreadLocal.withInitial(() -> new double[2][0]);
+			inferenceBuffers = buffers;
+		}
+		
+		return buffers;
+	}
+	
+	/**
+	 * Apply the weight gradients with the given learning rate. The weights are updated in place.
 	 * 
 	 * @param weightDeltas weight gradient tensor
 	 * @param learningRate learning rate
 	 */
 	public final void applyWeightDeltas(final Tensor3 weightDeltas, final double learningRate) {
-		weightTensor = weightTensor.elementOperation(weightDeltas, (w, dw) -> w - dw * learningRate);
+		weightTensor.addScaledInPlace(weightDeltas, -learningRate);
+	}
+	
+	/**
+	 * Returns the activation function of a layer of weights (used by {@link BatchedNetworkEngine}).
+	 * 
+	 * @param weightLayer index of the layer of weights
+	 * @return the activation function applied to the outputs of that layer
+	 */
+	final FuncDerivPair activationFunction(final int weightLayer) {
+		return activationFunctions[weightLayer];
+	}
+	
+	/**
+	 * Returns the derivative of the cost function (used by {@link BatchedNetworkEngine}).
+	 * 
+	 * @return derivative of the cost function: first operand is the actual output, second is the ideal output
+	 */
+	final DoubleOperator costFunctionDerivative() {
+		return costFunctionDerivative;
 	}
 	
 	/**
@@ -1,13 +1,17 @@
 package dezzy.neuronz2.network;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import dezzy.neuronz2.arch.IntraOpExecutor;
+import dezzy.neuronz2.dataio.MnistSamples;
 import dezzy.neuronz2.math.constructs.Tensor3;
 import dezzy.neuronz2.math.constructs.Vector;
 import dezzy.neuronz2.math.utility.OutputVerificationScheme;
@@ -20,8 +24,8 @@ import dezzy.neuronz2.network.Network.BackpropTriplet;
  */
 public final class NetworkRunner {
 	private final Network network;
-	private final InputOutputPair[] trainingData;
-	private final InputOutputPair[] testData;
+	private final Samples trainingData;
+	private final Samples testData;
 	private final boolean learnFromTestData;
 	
 	/**
@@ -41,16 +45,24 @@ public final class NetworkRunner {
 			throw new IllegalArgumentException("Input and output arrays must be the same length!");
 		}
 		
-		trainingData = new InputOutputPair[trainingInputs.length];
-		for (int i = 0; i < trainingInputs.length; i++) {
-			trainingData[i] = new InputOutputPair(trainingInputs[i], trainingOutputs[i]);
-		}
-		
-		testData = new InputOutputPair[testInputs.length];
-		for (int i = 0; i < testInputs.length; i++) {
-			testData[i] = new InputOutputPair(testInputs[i], testOutputs[i]);
-		}
-		
+		trainingData = new ArraySamples(trainingInputs, trainingOutputs);
+		testData = new ArraySamples(testInputs, testOutputs);
+		learnFromTestData = _learnFromTestData;
+	}
+	
+	/**
+	 * Creates a {@link NetworkRunner} that reads MNIST samples by index. Images are decoded when they are needed, into one
+	 * reused buffer per sample in a minibatch, instead of being decoded up front.
+	 * 
+	 * @param _network network to train
+	 * @param training training samples
+	 * @param test test samples
+	 * @param _learnFromTestData true if the network should perform backpropagation and update weights for test data
+	 */
+	public NetworkRunner(final Network _network, final MnistSamples training, final MnistSamples test, final boolean _learnFromTestData) {
+		network = _network;
+		trainingData = new DecodedSamples(training);
+		testData = new DecodedSamples(test);
 		learnFromTestData = _learnFromTestData;
 	}
 	
@@ -73,7 +85,24 @@ public final class NetworkRunner {
 	 * @throws InterruptedException if something stops one of the threads used to train the network 
 	 */
 	public final void run(final int epochs, final int miniBatchSize, final LearningRateAdjuster learningRateSchedule, final OutputVerificationScheme successEvaluator, final String bestNetworkFileName, final ProcessingScheme processingScheme) throws InterruptedException, ExecutionException {
-		final ExecutorService threadPool = (processingScheme == ProcessingScheme.CPU_MULTITHREADED) ? Executors.newFixedThreadPool(miniBatchSize) : null;
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final ExecutorService threadPool = (processingScheme == ProcessingScheme.CPU_MULTITHREADED) ? Executors.newFixedThreadPool(Math.min(miniBatchSize, cores)) : null;
+		final IntraOpExecutor intraOpExecutor = (processingScheme == ProcessingScheme.CPU_BATCHED && cores > 1) ? new IntraOpExecutor(cores - 1) : null;
+		final BatchedNetworkEngine engine = (processingScheme == ProcessingScheme.CPU_BATCHED) ? new BatchedNetworkEngine(network, miniBatchSize) : null;
+		final Vector[] batchInputs = new Vector[miniBatchSize];
+		final Vector[] batchOutputs = new Vector[miniBatchSize];
+		
+		if (engine != null) {
+			engine.setIntraOpParallelism(intraOpExecutor, cores);
+		}
+		
+		final Tensor3 weightDeltas = network.weightTensor.transform(w -> 0);
+		final double[] meanWeightDeltas = new double[weightDeltas.elementCount()];
+		final Integer[] order = new Integer[trainingData.size()];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
 		
 		double highestSuccessRate = 0;
 		double learningRate = learningRateSchedule.getNewLearningRate(0, 0, 0);
@@ -83,62 +112,97 @@ public final class NetworkRunner {
 			System.out.println("\tLearning Rate: " + learningRate);
 			long time = System.currentTimeMillis();
 			double previousSuccessRate = 0;
-			Collections.shuffle(Arrays.asList(trainingData));
-			
-			Tensor3 weightDeltas = network.weightTensor.transform(w -> 0);
+			Collections.shuffle(Arrays.asList(order));
 			
-			for (int j = 0; j < trainingData.length; j += miniBatchSize) {
+			for (int j = 0; j < order.length; j += miniBatchSize) {
+				final int samples = Math.min(miniBatchSize, order.length - j);
 				
 				switch (processingScheme) {
 					case CPU_MULTITHREADED:
 						@SuppressWarnings("unchecked")
-						final Future<Tensor3>[] miniBatchResults = (Future<Tensor3>[]) new Future<?>[miniBatchSize];
-						for (int k = 0; k < miniBatchSize; k++) {
-							final NetworkPass networkPass = new NetworkPass(network, trainingData[k + j].input, trainingData[k + j].output);
+						final Future<Tensor3>[] miniBatchResults = (Future<Tensor3>[]) new Future<?>[samples];
+						for (int k = 0; k < samples; k++) {
+							final NetworkPass networkPass = new NetworkPass(network, trainingData.input(order[k + j], k), trainingData.output(order[k + j]));
 							final Future<Tensor3> future = threadPool.submit(networkPass);
 							miniBatchResults[k] = future;
 						}
 						
-						for (int k = 0; k < miniBatchSize; k++) {
+						for (int k = 0; k < samples; k++) {
 							final Tensor3 gradients = miniBatchResults[k].get();
-							weightDeltas = weightDeltas.plus(gradients);
+							weightDeltas.addInPlace(gradients);
 						}
 						break;
 					case CPU_SINGLE_THREAD:
-						for (int k = 0; k < miniBatchSize; k++) {
-							final Tensor3 weightGradient = network.backprop(trainingData[k + j].input, trainingData[k + j].output).weightDeltas;
-							weightDeltas = weightDeltas.plus(weightGradient);
+						for (int k = 0; k < samples; k++) {
+							final Tensor3 weightGradient = network.backprop(trainingData.input(order[k + j], 0), trainingData.output(order[k + j])).weightDeltas;
+							weightDeltas.addInPlace(weightGradient);
 						}
 						break;
+					case CPU_BATCHED:
+						for (int k = 0; k < samples; k++) {
+							batchInputs[k] = trainingData.input(order[k + j], k);
+							batchOutputs[k] = trainingData.output(order[k + j]);
+						}
+						
+						engine.train(batchInputs, batchOutputs, samples);
+						break;
 					case GPU:
 						break;
 					case FPGA:
 						break;
 				}
 				
-				weightDeltas = weightDeltas.transform(w -> w / (double)miniBatchSize);
-				network.applyWeightDeltas(weightDeltas, learningRate);
-				weightDeltas = weightDeltas.transform(w -> 0);
+				if (engine != null) {
+					engine.update(learningRate);
+				} else {
+					// Average first, then scale by the learning rate: w - (dw / n) * lr, rounded exactly as before the buffers were reused
+					weightDeltas.copyTo(meanWeightDeltas, 0);
+					
+					for (int k = 0; k < meanWeightDeltas.length; k++) {
+						meanWeightDeltas[k] /= samples;
+					}
+					
+					network.weightTensor.addFrom(meanWeightDeltas, 0, -learningRate);
+					weightDeltas.clear();
+				}
 			}
 			
 			int successes = 0;
-			for (int j = 0; j < testData.length; j++) {
-				final Vector[] activations;
-				
-				if (learnFromTestData) {
-					final BackpropTriplet result = network.backprop(testData[j].input, testData[j].output);
-					network.applyWeightDeltas(result.weightDeltas, learningRate);
-					activations = result.activations;
-				} else {
-					activations = network.run(testData[j].input);
+			if (engine != null && !learnFromTestData) {
+				for (int j = 0; j < testData.size(); j += miniBatchSize) {
+					final int samples = Math.min(miniBatchSize, testData.size() - j);
+					
+					for (int k = 0; k < samples; k++) {
+						batchInputs[k] = testData.input(k + j, k);
+					}
+					
+					final Vector[] outputs = engine.run(batchInputs, samples);
+					
+					for (int k = 0; k < samples; k++) {
+						if (successEvaluator.isSuccess(outputs[k], testData.output(k + j))) {
+							successes++;
+						}
+					}
 				}
-				
-				if (successEvaluator.isSuccess(network.getLatestOutput(activations), testData[j].output)) {
-					successes++;
+			} else {
+				for (int j = 0; j < testData.size(); j++) {
+					final Vector[] activations;
+					
+					if (learnFromTestData) {
+						final BackpropTriplet result = network.backprop(testData.input(j, 0), testData.output(j));
+						network.applyWeightDeltas(result.weightDeltas, learningRate);
+						activations = result.activations;
+					} else {
+						activations = network.run(testData.input(j, 0));
+					}
+					
+					if (successEvaluator.isSuccess(network.getLatestOutput(activations), testData.output(j))) {
+						successes++;
+					}
 				}
 			}
 			
-			previousSuccessRate = successes/(double)testData.length;
+			previousSuccessRate = successes/(double)testData.size();
 			learningRate = learningRateSchedule.getNewLearningRate(learningRate, epoch + 1, previousSuccessRate);
 			
 			if (previousSuccessRate > highestSuccessRate && bestNetworkFileName != null) {
@@ -156,35 +220,136 @@ public final class NetworkRunner {
 			System.out.println("\tCompleted in " + timeInSeconds + " seconds");
 		}
 		
-		threadPool.shutdown();
+		if (threadPool != null) {
+			threadPool.shutdown();
+		}
+		
+		if (intraOpExecutor != null) {
+			intraOpExecutor.close();
+		}
 	}
 	
 	/**
-	 * An input vector and its associated expected output vector.
-	 *
+	 * Training or test samples, read by index. An input may be decoded into a buffer that belongs to a slot (the position of
+	 * the sample in its minibatch), so it is only valid until another input is read into the same slot.
+	 * 
 	 * @author Joe Desmond
 	 */
-	private static final class InputOutputPair {
+	private interface Samples {
 		
 		/**
-		 * Input vector
+		 * Returns the number of samples.
+		 * 
+		 * @return number of samples
 		 */
-		final Vector input;
+		int size();
 		
 		/**
-		 * Expected output vector
+		 * Returns the input vector of a sample.
+		 * 
+		 * @param index index of the sample
+		 * @param slot position of the sample in its minibatch
+		 * @return input vector, valid until another input is read into <code>slot</code>
 		 */
-		final Vector output;
+		Vector input(int index, int slot);
 		
 		/**
-		 * Creates an {@link InputOutputPair} with the given input and expected output vectors.
+		 * Returns the expected output vector of a sample.
 		 * 
-		 * @param _input input vector
-		 * @param _output expected output vector
+		 * @param index index of the sample
+		 * @return expected output vector
 		 */
-		InputOutputPair(final Vector _input, final Vector _output) {
-			input = _input;
-			output = _output;
+		Vector output(int index);
+	}
+	
+	/**
+	 * Samples that are already in memory, as arrays of input and expected output vectors.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private static final class ArraySamples implements Samples {
+		
+		/**
+		 * Input vectors
+		 */
+		private final Vector[] inputs;
+		
+		/**
+		 * Expected output vectors
+		 */
+		private final Vector[] outputs;
+		
+		/**
+		 * Wraps the given input and expected output vectors.
+		 * 
+		 * @param _inputs input vectors
+		 * @param _outputs expected output vector for each input
+		 */
+		ArraySamples(final Vector[] _inputs, final Vector[] _outputs) {
+			inputs = _inputs;
+			outputs = _outputs;
+		}
+		
+		@Override
+		public int size() {
+			return inputs.length;
+		}
+		
+		@Override
+		public Vector input(final int index, final int slot) {
+			return inputs[index];
+		}
+		
+		@Override
+		public Vector output(final int index) {
+			return outputs[index];
+		}
+	}
+	
+	/**
+	 * MNIST samples that are decoded when they are read, into one buffer per slot. Buffers are created the first time their
+	 * slot is used.
+	 * 
+	 * @author Joe Desmond
+	 */
+	private static final class DecodedSamples implements Samples {
+		
+		/**
+		 * The samples
+		 */
+		private final MnistSamples samples;
+		
+		/**
+		 * One buffer for each slot that has been used
+		 */
+		private final List<MnistSamples.Buffer> buffers = new ArrayList<>();
+		
+		/**
+		 * Wraps the given MNIST samples.
+		 * 
+		 * @param _samples MNIST samples
+		 */
+		DecodedSamples(final MnistSamples _samples) {
+			samples = _samples;
+		}
+		
+		@Override
+		public int size() {
+			return samples.size;
+		}
+		
+		@Override
+		public Vector input(final int index, final int slot) {
+			while (buffers.size() <= slot) {
+				buffers.add(samples.newBuffer());
+			}
+			
+			return buffers.get(slot).vector(index);
+		}
+		
+		@Override
+		public Vector output(final int index) {
+			return samples.expectedOutput(index);
 		}
 	}
 }
@@ -17,6 +17,11 @@ public enum ProcessingScheme {
 	 */
 	CPU_MULTITHREADED,
 	
+	/**
+	 * Run each minibatch as matrix-matrix products with a {@link BatchedNetworkEngine}, split across the cores
+	 */
+	CPU_BATCHED,
+	
 	/**
 	 * Use the graphics card (NOT IMPLEMENTED)
 	 */
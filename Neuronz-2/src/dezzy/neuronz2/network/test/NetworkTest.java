@@ -16,7 +16,7 @@ import java.util.concurrent.ExecutionException;
 
 import javax.imageio.ImageIO;
 
-import dezzy.neuronz2.dataio.MnistLoader;
+import dezzy.neuronz2.dataio.MnistSamples;
 import dezzy.neuronz2.math.constructs.FuncDerivPair;
 import dezzy.neuronz2.math.constructs.Matrix;
 import dezzy.neuronz2.math.constructs.Tensor3;
@@ -98,35 +98,8 @@ public final class NetworkTest {
 	}
 	
 	private static final void mnistTest3() throws ClassNotFoundException, IOException {
-		final Vector[] inputImages = MnistLoader.loadImages("data/mnist/train-images.idx3-ubyte");
-		
-		
-		final byte[] expectedDigits = MnistLoader.loadLabels("data/mnist/train-labels.idx1-ubyte");
-		final Vector[] idealOutputs = new Vector[inputImages.length];
-		
-		for (int i = 0; i < expectedDigits.length; i++) {
-			final double[] values = new double[10];
-			values[expectedDigits[i]] = 1;
-			idealOutputs[i] = new Vector(values);
-		}
-		
-		final ImageLabelPair[] data = new ImageLabelPair[50000];
-		
-		for (int i = 0; i < data.length; i++) {
-			data[i] = new ImageLabelPair(inputImages[i], idealOutputs[i]);
-		}
-		
-		final Vector[] testImages = MnistLoader.loadImages("data/mnist/test-images.idx3-ubyte");
-		
-		
-		final byte[] testDigits = MnistLoader.loadLabels("data/mnist/test-labels.idx1-ubyte");
-		final Vector[] idealTestOutputs = new Vector[testImages.length];
-		
-		for (int i = 0; i < testDigits.length; i++) {
-			final double[] values = new double[10];
-			values[testDigits[i]] = 1;
-			idealTestOutputs[i] = new Vector(values);
-		}
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples test = MnistSamples.open("data/mnist/test-images.idx3-ubyte", "data/mnist/test-labels.idx1-ubyte");
 		
 		final Network network = new Network(new int[] {784, 100, 50, 10}, new FuncDerivPair[] {FuncDerivPair.SIGMOID, FuncDerivPair.SIGMOID, FuncDerivPair.SIGMOID}, Network.MSE_DERIV);
 		System.out.println("Creating a deep neural network with 784 input neurons, 100 hidden neurons in the first hidden layer, 50 hidden neurons in the second hidden layer, and 10 output neurons; using sigmoid for all layers and MSE as the cost function.");
@@ -160,7 +133,7 @@ public final class NetworkTest {
 			return ideal.get(greatestIndex) == 1;
 		};
 		
-		final NetworkRunner networkRunner = new NetworkRunner(network, inputImages, idealOutputs, testImages, idealTestOutputs, false);
+		final NetworkRunner networkRunner = new NetworkRunner(network, training, test, false);
 		try {
 			networkRunner.run(30, 10, learningRateSchedule, evaluator, "networks/mnist/network-100h-50h-alt-3.ntwk2", ProcessingScheme.CPU_MULTITHREADED);
 		} catch (InterruptedException e) {
@@ -170,36 +143,17 @@ public final class NetworkTest {
 		}
 	}
 	
-	private static final void mnistTest2() {
-		final Vector[] inputImages = MnistLoader.loadImages("data/mnist/train-images.idx3-ubyte");
-		
-		for (int i = 0; i < inputImages.length; i++) {
-			inputImages[i] = inputImages[i];
+	private static final void mnistTest2() throws IOException {
+		final MnistSamples training = MnistSamples.open("data/mnist/train-images.idx3-ubyte", "data/mnist/train-labels.idx1-ubyte");
+		final MnistSamples test = MnistSamples.open("data/mnist/test-images.idx3-ubyte", "data/mnist/test-labels.idx1-ubyte");
+		final MnistSamples.Buffer trainingBuffer = training.newBuffer();
+		final MnistSamples.Buffer testBuffer = test.newBuffer();
+		final Integer[] order = new Integer[50000];
+		
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
 		}
 		
-		final byte[] expectedDigits = MnistLoader.loadLabels("data/mnist/train-labels.idx1-ubyte");
-		final Vector[] idealOutputs = new Vector[inputImages.length];
-		
-		for (int i = 0; i < expectedDigits.length; i++) {
-			final double[] values = new double[10];
-			values[expectedDigits[i]] = 1;
-			idealOutputs[i] = new Vector(values);
-		}
-		
-		final ImageLabelPair[] data = new ImageLabelPair[50000];
-		
-		for (int i = 0; i < data.length; i++) {
-			data[i] = new ImageLabelPair(inputImages[i], idealOutputs[i]);
-		}
-		
-		final Vector[] testImages = MnistLoader.loadImages("data/mnist/test-images.idx3-ubyte");
-		
-		for (int i = 0; i < testImages.length; i++) {
-			testImages[i] = testImages[i];
-		}
-		
-		final byte[] testDigits = MnistLoader.loadLabels("data/mnist/test-labels.idx1-ubyte");
-		
 		final Network network = new Network(784, 100, 40, 10);
 		
 		double learningRate = 1.9f;
@@ -207,11 +161,11 @@ public final class NetworkTest {
 		final int epochs = 30;
 		
 		for (int i = 0; i < epochs; i++) {
-			Collections.shuffle(Arrays.asList(data));
+			Collections.shuffle(Arrays.asList(order));
 			
 			Tensor3 weightDeltas = network.weightTensor.minus(network.weightTensor);
 			for (int j = 0; j < 50000 - miniBatchSize; j++) {
-				final BackpropTriplet result = network.backprop(data[j].image, data[j].digit);
+				final BackpropTriplet result = network.backprop(trainingBuffer.vector(order[j]), training.expectedOutput(order[j]));
 				Tensor3 deltas = result.weightDeltas;
 				weightDeltas = weightDeltas.plus(deltas);
 				
@@ -224,7 +178,7 @@ public final class NetworkTest {
 			
 			int successes = 0;
 			for (int j = 0; j < 10000; j++) {
-				final Vector output = network.getLatestOutput(network.run(testImages[j]));
+				final Vector output = network.getLatestOutput(network.run(testBuffer.vector(j)));
 				
 				int highestDigit = 0;
 				for (int k = 0; k < 10; k++) {
@@ -233,7 +187,7 @@ public final class NetworkTest {
 					}
 				}
 				
-				if (highestDigit == testDigits[j]) {
+				if (highestDigit == test.digit(j)) {
 					successes++;
 				}
 			}
@@ -245,16 +199,6 @@ public final class NetworkTest {
 		}
 	}
 	
-	private static final class ImageLabelPair {
-		final Vector image;
-		final Vector digit;
-		
-		ImageLabelPair(final Vector _image, final Vector _digit) {
-			image = _image;
-			digit = _digit;
-		}
-	}
-	
 	private static final void networkClassTest() {
 		final Matrix layer0 = new Matrix(new double[][] {
 			{0.15f, 0.2f, 0.35f},
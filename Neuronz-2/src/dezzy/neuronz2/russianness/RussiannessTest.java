@@ -7,36 +7,29 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 import dezzy.neuronz2.ann.error.VectorErrorFunctions;
 import dezzy.neuronz2.ann.layers.DenseLayer;
 import dezzy.neuronz2.ann.layers.SoftmaxLayer;
+import dezzy.neuronz2.arch.DataParallelTrainer;
 import dezzy.neuronz2.arch.ParallelBackwardPass;
 import dezzy.neuronz2.arch.ParallelForwardPass;
 import dezzy.neuronz2.arch.ParallelLayer;
-import dezzy.neuronz2.arch.ParallelNetworkPass;
 import dezzy.neuronz2.arch.init.WeightInitFunc;
+import dezzy.neuronz2.arch.layers.DropoutLayer;
 import dezzy.neuronz2.arch.layers.ElementActivationLayer;
-import dezzy.neuronz2.arch.layers.Layer;
 import dezzy.neuronz2.arch.layers.ParallelLayerSequence;
+import dezzy.neuronz2.arch.optimizers.AdamOptimizer;
 import dezzy.neuronz2.cnn.ParallelConvNet;
 import dezzy.neuronz2.cnn.layers.ConvFlattener;
 import dezzy.neuronz2.cnn.layers.ConvolutionLayer2;
 import dezzy.neuronz2.cnn.layers.PoolingLayer;
 import dezzy.neuronz2.cnn.pooling.PoolingOperation;
-import dezzy.neuronz2.math.constructs.ElementContainer;
 import dezzy.neuronz2.math.constructs.FuncDerivPair;
 import dezzy.neuronz2.math.constructs.Tensor3;
 import dezzy.neuronz2.math.constructs.Vector;
@@ -130,7 +123,6 @@ public class RussiannessTest {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	private static final void russiannessTest() throws ClassNotFoundException, IOException, InterruptedException, ExecutionException {
 		final RussianDataset dataset = RussianDataset.loadFrom("data/russianness/paintingdata.dat");
 		System.out.println("Loaded the Russianness dataset, containing " + dataset.images.length + " paintings");
@@ -166,15 +158,18 @@ public class RussiannessTest {
 		
 		final DenseLayer fc0 = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 1210, 500);
 		final ElementActivationLayer<Vector> sigmoid0 = new ElementActivationLayer<>(FuncDerivPair.SIGMOID);
+		final DropoutLayer<Vector> dropout0 = new DropoutLayer<>(0.5, random.nextLong());
 		final DenseLayer fc1 = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 500, 100);
 		final ElementActivationLayer<Vector> sigmoid1 = new ElementActivationLayer<>(FuncDerivPair.SIGMOID);
+		final DropoutLayer<Vector> dropout1 = new DropoutLayer<>(0.2, random.nextLong());
 		final DenseLayer fc2 = DenseLayer.generate(random, WeightInitFunc.XAVIER_INIT, WeightInitFunc.SMALL_VALUE_INIT, 100, 5);
 		final SoftmaxLayer softmax = new SoftmaxLayer();
 		
-		final List<ParallelLayer<Vector, Vector>> classifierLayers = List.of(fc0, sigmoid0, fc1, sigmoid1, fc2, softmax);
+		final List<ParallelLayer<Vector, Vector>> classifierLayers = List.of(fc0, sigmoid0, dropout0, fc1, sigmoid1, dropout1, fc2, softmax);
 		final ParallelLayer<Vector, Vector> classifier = new ParallelLayerSequence<>(classifierLayers);
 		
 		final ParallelConvNet<Tensor3, Vector> convNetwork = new ParallelConvNet<>(featureExtractor, flattener, classifier);
+		convNetwork.setOptimizer(new AdamOptimizer());
 		
 		System.out.println("Initialized neural network with " + convNetwork.parameterCount() + " learnable parameters and " + convNetwork.sublayers() + " layers");
 		
@@ -187,99 +182,38 @@ public class RussiannessTest {
 			expectedOutputs[i] = oneHotRussianness(russianness);
 		}
 		
-		final double learningRate = 2.0;
+		final double learningRate = 0.001;
 		final int minibatchSize = 10;		
-		final ExecutorService threadPool = Executors.newFixedThreadPool(minibatchSize);
+		final DataParallelTrainer<Tensor3, Vector> trainer = new DataParallelTrainer<>(convNetwork, VectorErrorFunctions.CROSS_ENTROPY);
 		
 		for (int epoch = 0; epoch < dataset.images.length; epoch++) {
+			final DataParallelTrainer.Result result = trainer.trainEpoch(dataset.images, expectedOutputs, minibatchSize, learningRate, (actual, expected) -> expected.get(argmax(actual)) == 1);
 			
-			int successes = 0;
-			
-			for (int i = 0; i < dataset.images.length; i += minibatchSize) {
-				final ParallelNetworkPass<Tensor3, Vector>[] passes = (ParallelNetworkPass<Tensor3, Vector>[]) new ParallelNetworkPass<?, ?>[minibatchSize];
-				final Future<ParallelBackwardPass<Tensor3>>[] minibatchResults = (Future<ParallelBackwardPass<Tensor3>>[]) new Future<?>[minibatchSize];
-				
-				//Submit training jobs
-				for (int j = 0; j < minibatchSize; j++) {
-					final ParallelNetworkPass<Tensor3, Vector> networkPass = new ParallelNetworkPass<>(convNetwork, dataset.images[i + j], expectedOutputs[i + j], VectorErrorFunctions.CROSS_ENTROPY);
-					final Future<ParallelBackwardPass<Tensor3>> future = threadPool.submit(networkPass);
-					passes[j] = networkPass;
-					minibatchResults[j] = future;
-				}
-				
-				// Sum all the gradients here
-				final Map<Layer<?,?>, List<ElementContainer<?>>> gradients = new HashMap<>();
-				
-				//Evaluate network and propagate gradients
-				for (int j = 0; j < minibatchSize; j++) {
-					final ParallelNetworkPass<Tensor3, Vector> networkPass = passes[j];
-					final ParallelBackwardPass<Tensor3> backpass = minibatchResults[j].get();
-					
-					final Vector actual = networkPass.actualOutput;
-					final Vector expected = networkPass.expectedOutput;
-					//System.out.println((j + i) + ":\t" + actual);
-					
-					int greatestIndex = 0;
-					double greatestValue = Double.NEGATIVE_INFINITY;
-					
-					for (int k = 0; k < actual.dimension; k++) {
-						final double currentValue = actual.get(k);
-						
-						if (currentValue > greatestValue) {
-							greatestIndex = k;
-							greatestValue = currentValue;
-						}
-					}
-					
-					if (expected.get(greatestIndex) == 1) {
-						successes++;
-					}
-					
-					final Map<Layer<?,?>, List<ElementContainer<?>>> currentGradients = backpass.gradients;
-					final Set<Layer<?, ?>> layerSet = currentGradients.keySet();
-					
-					for (final Layer<?, ?> layer : layerSet) {
-						if (gradients.containsKey(layer)) {
-							final List<ElementContainer<?>> currentValue = currentGradients.get(layer);
-							
-							final List<ElementContainer<?>> mapValue = gradients.get(layer);
-							
-							gradients.put(layer, sumGradients(mapValue, currentValue));
-						} else {
-							final List<ElementContainer<?>> currentValue = currentGradients.get(layer);
-							
-							if (currentValue != null) {								
-								final List<ElementContainer<?>> mapValue = gradients.get(layer);
-								
-								if (mapValue != null) {
-									gradients.put(layer, sumGradients(mapValue, currentValue));
-								} else {
-									gradients.put(layer, currentValue);
-								}
-							}
-						}
-					}
-				}
-				
-				convNetwork.parallelUpdate(new ParallelBackwardPass<Tensor3>(null, gradients), learningRate);
-			}
-			
-			System.out.println("Epoch " + epoch + ": " + successes + "/" + dataset.images.length);
+			System.out.println("Epoch " + epoch + ": " + result.successes + "/" + dataset.images.length);
 			ParallelLayer.saveAs(convNetwork, "networks/russianness/russianness.lrn");
 		}
 	}
 	
-	private static final List<ElementContainer<?>> sumGradients(final List<ElementContainer<?>> g0, final List<ElementContainer<?>> g1) {
-		final List<ElementContainer<?>> out = new ArrayList<>();
+	/**
+	 * Returns the index of the greatest component of a vector.
+	 * 
+	 * @param vector vector to search
+	 * @return index of the greatest component
+	 */
+	private static final int argmax(final Vector vector) {
+		int greatestIndex = 0;
+		double greatestValue = Double.NEGATIVE_INFINITY;
 		
-		for (int i = 0; i < g0.size(); i++) {
-			final ElementContainer<?> e0 = g0.get(i);
-			final ElementContainer<?> e1 = g1.get(i);
-			final ElementContainer<?> e2 = (ElementContainer<?>) e0.unsafePlus(e1);
-			out.add(e2);
+		for (int k = 0; k < vector.dimension; k++) {
+			final double currentValue = vector.get(k);
+			
+			if (currentValue > greatestValue) {
+				greatestIndex = k;
+				greatestValue = currentValue;
+			}
 		}
 		
-		return out;
+		return greatestIndex;
 	}
 	
 	/**
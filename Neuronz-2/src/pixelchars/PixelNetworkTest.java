@@ -39,8 +39,7 @@ public final class PixelNetworkTest {
 		for (int i = 0; i < tests; i++) {
 			final char letter = (char)((int)(Math.random() * 26) + 'A');
 			final Vector input = inputMap.get(letter);
-			final Vector[] activations = network.run(input);
-			final Vector output = network.getLatestOutput(activations);
+			final Vector output = network.predict(input);
 			
 			int greatestIndex = 0;
 			double greatestValue = 0;